@@ -0,0 +1,261 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * What the controller and the agents say to each other, sealed with a secret
+ * only they know: AES encrypts each message, as scripts carry passwords, and
+ * an HMAC over the ciphertext and what it answers proves who sent it.
+ * 
+ * <p/>
+ * A request is one message holding the time, a random nonce, a timeout and the
+ * script. The agent answers with a stream of frames, each sealed against the
+ * request's nonce and its position, so no frame can be replayed, reordered or
+ * left out unnoticed: first {@link #STARTED}, then {@link #OUTPUT} and
+ * {@link #ERROR} as the script writes them, and {@link #EXIT} with its exit
+ * code last.
+ */
+public class AgentChannel {
+   public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   public static final byte STARTED = 'S';
+   public static final byte OUTPUT = 'O';
+   public static final byte ERROR = 'E';
+   public static final byte EXIT = 'X';
+
+   static final int NONCE_LENGTH = 16;
+   private static final int IV_LENGTH = 16;
+   private static final int MAC_LENGTH = 32;
+   /** larger frames are not sent, so a bad length is not allocated */
+   private static final int MAX_FRAME = 1024 * 1024;
+   private static final byte[] REQUEST = "request".getBytes(UTF_8);
+
+   private final SecretKeySpec encryptKey;
+   private final SecretKeySpec macKey;
+   private final SecureRandom random = new SecureRandom();
+
+   /**
+    * @param secret
+    *           hex, as {@link AgentSecret} keeps it
+    */
+   public AgentChannel(String secret) {
+      byte[] key = hex(secret.trim());
+      if (key.length < 16)
+         throw new IllegalArgumentException("the agent secret must be at least 16 bytes");
+      try {
+         this.encryptKey = new SecretKeySpec(Arrays.copyOf(hmac(key, "whirr-agent encrypt"), 16), "AES");
+         this.macKey = new SecretKeySpec(hmac(key, "whirr-agent authenticate"), "HmacSHA256");
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException("the JDK has no HmacSHA256", e);
+      }
+   }
+
+   /**
+    * A script to run, once decoded by the agent
+    */
+   public static class Request {
+      private final long time;
+      private final byte[] nonce;
+      private final int timeout;
+      private final String script;
+
+      public Request(long time, byte[] nonce, int timeout, String script) {
+         this.time = time;
+         this.nonce = nonce;
+         this.timeout = timeout;
+         this.script = script;
+      }
+
+      /** milliseconds since the epoch, when the controller sent it */
+      public long getTime() {
+         return time;
+      }
+
+      public byte[] getNonce() {
+         return nonce;
+      }
+
+      /** seconds the script may run */
+      public int getTimeout() {
+         return timeout;
+      }
+
+      public String getScript() {
+         return script;
+      }
+   }
+
+   public byte[] newNonce() {
+      byte[] nonce = new byte[NONCE_LENGTH];
+      random.nextBytes(nonce);
+      return nonce;
+   }
+
+   public byte[] sealRequest(Request request) throws IOException {
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(plain);
+      out.writeLong(request.time);
+      out.write(request.nonce);
+      out.writeInt(request.timeout);
+      byte[] script = request.script.getBytes(UTF_8);
+      out.writeInt(script.length);
+      out.write(script);
+      out.flush();
+      return seal(plain.toByteArray(), REQUEST);
+   }
+
+   /**
+    * @throws GeneralSecurityException
+    *            if the request was not sealed with this secret
+    */
+   public Request openRequest(byte[] sealed) throws GeneralSecurityException, IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(open(sealed, REQUEST)));
+      long time = in.readLong();
+      byte[] nonce = new byte[NONCE_LENGTH];
+      in.readFully(nonce);
+      int timeout = in.readInt();
+      byte[] script = new byte[in.readInt()];
+      in.readFully(script);
+      return new Request(time, nonce, timeout, new String(script, UTF_8));
+   }
+
+   /**
+    * Writes the {@code sequence}th frame answering the request with
+    * {@code nonce}.
+    */
+   public void writeFrame(OutputStream out, byte[] nonce, long sequence, byte type, byte[] data, int offset,
+         int length) throws IOException {
+      byte[] plain = new byte[1 + length];
+      plain[0] = type;
+      System.arraycopy(data, offset, plain, 1, length);
+      byte[] sealed = seal(plain, frameContext(nonce, sequence));
+      DataOutputStream frame = new DataOutputStream(out);
+      frame.writeInt(sealed.length);
+      frame.write(sealed);
+      frame.flush();
+   }
+
+   /**
+    * @return the type of the frame followed by its data, or null at the end of
+    *         the stream
+    * @throws GeneralSecurityException
+    *            if the frame was not sealed for this place in the answer
+    */
+   public byte[] readFrame(InputStream in, byte[] nonce, long sequence) throws GeneralSecurityException,
+         IOException {
+      DataInputStream frame = new DataInputStream(in);
+      int length;
+      try {
+         length = frame.readInt();
+      } catch (EOFException e) {
+         return null;
+      }
+      if (length < IV_LENGTH + MAC_LENGTH || length > MAX_FRAME)
+         throw new GeneralSecurityException("frame of " + length + " bytes");
+      byte[] sealed = new byte[length];
+      frame.readFully(sealed);
+      byte[] plain = open(sealed, frameContext(nonce, sequence));
+      if (plain.length == 0)
+         throw new GeneralSecurityException("empty frame");
+      return plain;
+   }
+
+   private static byte[] frameContext(byte[] nonce, long sequence) {
+      byte[] context = Arrays.copyOf(nonce, nonce.length + 8);
+      for (int i = 0; i < 8; i++)
+         context[nonce.length + i] = (byte) (sequence >>> (56 - 8 * i));
+      return context;
+   }
+
+   /**
+    * @return a random IV, the plain text encrypted with it, and the HMAC of
+    *         {@code context}, the IV and the ciphertext
+    */
+   byte[] seal(byte[] plain, byte[] context) throws IOException {
+      try {
+         byte[] iv = new byte[IV_LENGTH];
+         random.nextBytes(iv);
+         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+         cipher.init(Cipher.ENCRYPT_MODE, encryptKey, new IvParameterSpec(iv));
+         byte[] encrypted = cipher.doFinal(plain);
+         byte[] sealed = new byte[IV_LENGTH + encrypted.length + MAC_LENGTH];
+         System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+         System.arraycopy(encrypted, 0, sealed, IV_LENGTH, encrypted.length);
+         System.arraycopy(mac(context, sealed, IV_LENGTH + encrypted.length), 0, sealed, IV_LENGTH
+               + encrypted.length, MAC_LENGTH);
+         return sealed;
+      } catch (GeneralSecurityException e) {
+         throw new IOException("cannot seal with AES and HmacSHA256", e);
+      }
+   }
+
+   byte[] open(byte[] sealed, byte[] context) throws GeneralSecurityException {
+      if (sealed.length < IV_LENGTH + MAC_LENGTH)
+         throw new GeneralSecurityException("message too short");
+      int macAt = sealed.length - MAC_LENGTH;
+      // compared in constant time, so the MAC cannot be guessed byte by byte
+      if (!MessageDigest.isEqual(mac(context, sealed, macAt), Arrays.copyOfRange(sealed, macAt, sealed.length)))
+         throw new GeneralSecurityException("message not sealed with the agent secret");
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, encryptKey, new IvParameterSpec(sealed, 0, IV_LENGTH));
+      return cipher.doFinal(sealed, IV_LENGTH, macAt - IV_LENGTH);
+   }
+
+   private byte[] mac(byte[] context, byte[] sealed, int length) throws GeneralSecurityException {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(macKey);
+      mac.update(context);
+      mac.update(sealed, 0, length);
+      return mac.doFinal();
+   }
+
+   private static byte[] hmac(byte[] key, String label) throws GeneralSecurityException {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(label.getBytes(UTF_8));
+   }
+
+   static byte[] hex(String hex) {
+      if (hex.length() % 2 != 0)
+         throw new IllegalArgumentException("the agent secret is not hex");
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; i++)
+         bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return bytes;
+   }
+}
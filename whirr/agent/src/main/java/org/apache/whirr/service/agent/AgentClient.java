@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+
+import org.apache.whirr.service.agent.AgentChannel.Request;
+import org.jclouds.compute.domain.ExecResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a script to the {@link AgentServer agent} of one instance and reads
+ * its output as it runs. Connections are kept alive between scripts, so a
+ * later action on the same instance skips the handshake too.
+ */
+public class AgentClient {
+   private static final Logger LOG = LoggerFactory.getLogger(AgentClient.class);
+
+   private final AgentChannel channel;
+   private final int port;
+   private final int connectTimeout;
+   private final int timeout;
+
+   /**
+    * @param connectTimeout
+    *           milliseconds to reach an agent
+    * @param timeout
+    *           seconds a script may run
+    */
+   public AgentClient(AgentChannel channel, int port, int connectTimeout, int timeout) {
+      this.channel = channel;
+      this.port = port;
+      this.connectTimeout = connectTimeout;
+      this.timeout = timeout;
+   }
+
+   public AgentClient(AgentConfig config, String secret) {
+      this(new AgentChannel(secret), config.getPort(), config.getConnectTimeout(), config.getTimeout());
+   }
+
+   /**
+    * @throws AgentUnavailableException
+    *            if the script did not start, as the agent is not there or
+    *            refused it
+    * @throws IOException
+    *            if the agent went away or the answer was tampered with after
+    *            the script started, when it may or may not have finished
+    */
+   public ExecResponse run(String host, String script) throws IOException {
+      byte[] nonce = channel.newNonce();
+      byte[] request = channel.sealRequest(new Request(System.currentTimeMillis(), nonce, timeout, script));
+      HttpURLConnection connection;
+      InputStream in;
+      try {
+         connection = (HttpURLConnection) new URL("http", host, port, AgentServer.PATH).openConnection();
+         connection.setConnectTimeout(connectTimeout);
+         // the agent kills the script at the timeout and answers right after
+         connection.setReadTimeout((timeout + 60) * 1000);
+         connection.setRequestMethod("POST");
+         connection.setDoOutput(true);
+         connection.setFixedLengthStreamingMode(request.length);
+         OutputStream out = connection.getOutputStream();
+         try {
+            out.write(request);
+         } finally {
+            out.close();
+         }
+         if (connection.getResponseCode() != 200)
+            throw new AgentUnavailableException("the agent on " + host + " answered "
+                  + connection.getResponseCode() + "; is its secret that of this cluster?");
+         in = connection.getInputStream();
+      } catch (AgentUnavailableException e) {
+         throw e;
+      } catch (IOException e) {
+         throw new AgentUnavailableException("cannot reach the agent on " + host + ":" + port, e);
+      }
+      try {
+         return read(host, in, nonce);
+      } finally {
+         in.close();
+      }
+   }
+
+   private ExecResponse read(String host, InputStream in, byte[] nonce) throws IOException {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ByteArrayOutputStream error = new ByteArrayOutputStream();
+      try {
+         for (long sequence = 0;; sequence++) {
+            byte[] frame = channel.readFrame(in, nonce, sequence);
+            if (frame == null) {
+               if (sequence == 0)
+                  throw new AgentUnavailableException("the agent on " + host + " did not start the script");
+               throw new IOException("the agent on " + host + " went away before the script finished");
+            }
+            switch (frame[0]) {
+            case AgentChannel.STARTED:
+               break;
+            case AgentChannel.OUTPUT:
+               output.write(frame, 1, frame.length - 1);
+               LOG.debug("{}: {}", host, new String(frame, 1, frame.length - 1, AgentChannel.UTF_8).trim());
+               break;
+            case AgentChannel.ERROR:
+               error.write(frame, 1, frame.length - 1);
+               LOG.debug("{}: {}", host, new String(frame, 1, frame.length - 1, AgentChannel.UTF_8).trim());
+               break;
+            case AgentChannel.EXIT:
+               int exitCode = ((frame[1] & 0xff) << 24) | ((frame[2] & 0xff) << 16) | ((frame[3] & 0xff) << 8)
+                     | (frame[4] & 0xff);
+               return new ExecResponse(new String(output.toByteArray(), AgentChannel.UTF_8), new String(error
+                     .toByteArray(), AgentChannel.UTF_8), exitCode);
+            default:
+               throw new IOException("the agent on " + host + " sent a frame of unknown type " + frame[0]);
+            }
+         }
+      } catch (GeneralSecurityException e) {
+         throw new IOException("the answer of the agent on " + host + " was not sealed with the cluster's secret",
+               e);
+      }
+   }
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+
+import com.google.common.base.Objects;
+
+/**
+ * Configuration of the agent on each instance, which runs lifecycle scripts
+ * sent by the controller without an SSH session per instance
+ */
+public class AgentConfig {
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public Builder toBuilder() {
+      return new Builder().fromAgentConfig(this);
+   }
+
+   public static class Builder {
+      private boolean enabled = false;
+      private String home = "/usr/local/whirr-agent";
+      private int port = 9990;
+      private URI jar = URI
+            .create("https://repository-cinderella.forge.cloudbees.com/snapshot/org/apache/whirr/whirr-agent/0.8.0-SNAPSHOT/whirr-agent-0.8.0-SNAPSHOT.jar");
+      private int connectTimeout = 3000;
+      private int timeout = 600;
+
+      /**
+       * @see AgentConfig#isEnabled()
+       */
+      public Builder enabled(boolean enabled) {
+         this.enabled = enabled;
+         return this;
+      }
+
+      /**
+       * @see AgentConfig#getHome()
+       */
+      public Builder home(String home) {
+         this.home = home;
+         return this;
+      }
+
+      /**
+       * @see AgentConfig#getPort()
+       */
+      public Builder port(int port) {
+         this.port = port;
+         return this;
+      }
+
+      /**
+       * @see AgentConfig#getJar()
+       */
+      public Builder jar(URI jar) {
+         this.jar = jar;
+         return this;
+      }
+
+      /**
+       * @see AgentConfig#getConnectTimeout()
+       */
+      public Builder connectTimeout(int connectTimeout) {
+         this.connectTimeout = connectTimeout;
+         return this;
+      }
+
+      /**
+       * @see AgentConfig#getTimeout()
+       */
+      public Builder timeout(int timeout) {
+         this.timeout = timeout;
+         return this;
+      }
+
+      public AgentConfig build() {
+         return new AgentConfig(enabled, home, port, jar, connectTimeout, timeout);
+      }
+
+      public Builder fromAgentConfig(AgentConfig in) {
+         return this.enabled(in.enabled).home(in.home).port(in.port).jar(in.jar).connectTimeout(in.connectTimeout)
+               .timeout(in.timeout);
+      }
+   }
+
+   private final boolean enabled;
+   private final String home;
+   private final int port;
+   private final URI jar;
+   private final int connectTimeout;
+   private final int timeout;
+
+   protected AgentConfig(boolean enabled, String home, int port, URI jar, int connectTimeout, int timeout) {
+      this.enabled = enabled;
+      this.home = checkNotNull(home, "home");
+      this.port = port;
+      this.jar = checkNotNull(jar, "jar");
+      this.connectTimeout = connectTimeout;
+      this.timeout = timeout;
+   }
+
+   /**
+    * true to install the agent while bootstrapping and send the start and
+    * stop actions through it (default false)
+    */
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * Directory the agent, its settings and its log are kept in (default
+    * /usr/local/whirr-agent)
+    */
+   public String getHome() {
+      return home;
+   }
+
+   /**
+    * Port the agent listens on, open to the controller only (default 9990)
+    */
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * Location of the whirr-agent jar, which needs nothing but the JDK
+    */
+   public URI getJar() {
+      return jar;
+   }
+
+   /**
+    * Milliseconds the controller waits to reach an agent before it falls back
+    * to SSH for that instance (default 3000)
+    */
+   public int getConnectTimeout() {
+      return connectTimeout;
+   }
+
+   /**
+    * Seconds a script may run before the agent kills it (default 600)
+    */
+   public int getTimeout() {
+      return timeout;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(enabled, home, port, jar, connectTimeout, timeout);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (obj == null)
+         return false;
+      if (getClass() != obj.getClass())
+         return false;
+      AgentConfig other = AgentConfig.class.cast(obj);
+      return Objects.equal(this.enabled, other.enabled) && Objects.equal(this.home, other.home)
+            && Objects.equal(this.port, other.port) && Objects.equal(this.jar, other.jar)
+            && Objects.equal(this.connectTimeout, other.connectTimeout)
+            && Objects.equal(this.timeout, other.timeout);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("enabled", enabled).add("home", home).add("port", port)
+            .add("jar", jar).add("connectTimeout", connectTimeout).add("timeout", timeout).toString();
+   }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import static org.apache.whirr.RolePredicates.onlyRolesIn;
+import static org.jclouds.compute.options.RunScriptOptions.Builder.overrideLoginCredentials;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.ClusterActionEvent;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs a lifecycle step on every instance of a template at once through their
+ * agents, and over SSH on the instances whose agent cannot be reached. A step
+ * sent this way is not added to the statement builder, so Whirr opens no SSH
+ * session for it afterwards. What each instance reports on draining its ports
+ * is logged against its address.
+ */
+public class AgentDispatcher {
+   private static final Logger LOG = LoggerFactory.getLogger(AgentDispatcher.class);
+   /** how drain_ports starts the line it reports a drain on */
+   static final String DRAIN_REPORT = "drain ";
+   private static final Pattern DROPPED = Pattern.compile("dropped=(\\d+)");
+
+   private final AgentClient client;
+   private final ComputeService compute;
+   private final ClusterSpec spec;
+
+   public AgentDispatcher(AgentClient client, ComputeService compute, ClusterSpec spec) {
+      this.client = client;
+      this.compute = compute;
+      this.spec = spec;
+   }
+
+   /**
+    * Runs {@code statement} on the instances of the event's template through
+    * their agents when {@code config} enables them, or leaves it to the
+    * statement builder otherwise.
+    * 
+    * @param task
+    *           names the step in logs and on instances reached over SSH
+    */
+   public static void run(ClusterActionEvent event, AgentConfig config, String task, Statement statement)
+         throws IOException {
+      if (!config.isEnabled()) {
+         event.getStatementBuilder().addStatement(statement);
+         return;
+      }
+      ClusterSpec spec = event.getClusterSpec();
+      new AgentDispatcher(new AgentClient(config, AgentSecret.forCluster(spec)), event.getCompute().apply(spec)
+            .getComputeService(), spec).run(
+            event.getCluster().getInstancesMatching(onlyRolesIn(event.getInstanceTemplate().getRoles())), task,
+            statement);
+   }
+
+   /**
+    * @throws IOException
+    *            naming every instance the step failed on
+    */
+   public void run(Iterable<Instance> instances, final String task, final Statement statement) throws IOException {
+      final String script = AgentStatements.render(statement);
+      final RunScriptOptions options = overrideLoginCredentials(
+            LoginCredentials.builder().user(spec.getClusterUser()).privateKey(spec.getPrivateKey()).build())
+            .nameTask(task);
+      final AtomicInteger overSsh = new AtomicInteger();
+      ExecutorService executor = Executors.newCachedThreadPool();
+      try {
+         Map<Instance, Future<ExecResponse>> runs = Maps.newLinkedHashMap();
+         for (final Instance instance : instances) {
+            runs.put(instance, executor.submit(new Callable<ExecResponse>() {
+               @Override
+               public ExecResponse call() throws IOException {
+                  try {
+                     return client.run(instance.getPublicIp(), script);
+                  } catch (AgentUnavailableException e) {
+                     LOG.warn("{}; running {} over SSH", e.getMessage(), task);
+                     overSsh.incrementAndGet();
+                     return compute.runScriptOnNode(instance.getId(), statement, options);
+                  }
+               }
+            }));
+         }
+         List<String> failed = Lists.newArrayList();
+         for (Map.Entry<Instance, Future<ExecResponse>> run : runs.entrySet()) {
+            String address = run.getKey().getPublicIp();
+            try {
+               ExecResponse response = run.getValue().get();
+               logDrains(task, address, response.getOutput());
+               if (response.getExitStatus() != 0) {
+                  LOG.error("{} failed on {} with exit code {}: {}", new Object[] { task, address,
+                        response.getExitStatus(), response.getError() });
+                  failed.add(address);
+               }
+            } catch (ExecutionException e) {
+               LOG.error(task + " failed on " + address, e.getCause());
+               failed.add(address);
+            }
+         }
+         LOG.info("{} ran on {} instance(s), {} of them over SSH", new Object[] { task, runs.size(), overSsh.get() });
+         if (!failed.isEmpty())
+            throw new IOException(task + " failed on " + failed);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while running " + task, e);
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Logs what {@code drain_ports} reported: how long the instance took to
+    * drain, and how many requests were still in flight when it stopped.
+    */
+   private static void logDrains(String task, String address, String output) {
+      for (String line : drainReports(output)) {
+         Matcher dropped = DROPPED.matcher(line);
+         if (dropped.find() && Integer.parseInt(dropped.group(1)) > 0)
+            LOG.warn("{} on {} cut requests off: {}", new Object[] { task, address, line });
+         else
+            LOG.info("{} on {}: {}", new Object[] { task, address, line });
+      }
+   }
+
+   /**
+    * @return the lines {@code drain_ports} printed in {@code output}
+    */
+   static List<String> drainReports(String output) {
+      List<String> reports = Lists.newArrayList();
+      if (output == null)
+         return reports;
+      for (String line : output.split("\n"))
+         if (line.startsWith(DRAIN_REPORT))
+            reports.add(line.trim());
+      return reports;
+   }
+}
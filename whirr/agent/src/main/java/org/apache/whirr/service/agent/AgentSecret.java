@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.apache.whirr.ClusterSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * The secret the controller and the agents of a cluster share, made on first
+ * use and kept in the cluster directory next to the other state of the
+ * cluster, readable by its owner only. It reaches the instances inside the
+ * configure script, over SSH.
+ */
+public class AgentSecret {
+   static final String FILE = "agent-secret";
+
+   public static String forCluster(ClusterSpec spec) throws IOException {
+      return load(new File(spec.getClusterDirectory(), FILE));
+   }
+
+   static synchronized String load(File file) throws IOException {
+      if (file.exists())
+         return Files.toString(file, Charsets.UTF_8).trim();
+      byte[] secret = new byte[32];
+      new SecureRandom().nextBytes(secret);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : secret)
+         hex.append(String.format("%02x", b & 0xff));
+      Files.createParentDirs(file);
+      Files.touch(file);
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+      Files.write(hex, file, Charsets.UTF_8);
+      return hex.toString();
+   }
+}
@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.whirr.service.agent.AgentChannel.Request;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs on every instance as root and runs the scripts the controller sends to
+ * {@code POST /run}, streaming their output and exit code back as they come.
+ * Requests not sealed with the cluster's secret, sent more than
+ * {@link #MAX_SKEW_MILLIS} ago or seen before are refused with a 403 and
+ * nothing else, so the controller falls back to SSH.
+ * 
+ * <p/>
+ * A script keeps running when the controller goes away, so it is never left
+ * half done; its output is then only in the agent's log.
+ */
+public class AgentServer implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(AgentServer.class.getName());
+
+   public static final String PATH = "/run";
+   /** how far the clocks of the controller and the instance may differ */
+   static final long MAX_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+   private static final int MAX_REQUEST = 8 * 1024 * 1024;
+   /** what timeout(1) exits with for scripts that ran too long */
+   static final int TIMED_OUT = 124;
+
+   private final AgentChannel channel;
+   private final File scriptDir;
+   /** nonces of requests within the allowed skew, by when they were sent */
+   private final Map<String, Long> seen = new LinkedHashMap<String, Long>();
+
+   public AgentServer(AgentChannel channel, File scriptDir) {
+      this.channel = channel;
+      this.scriptDir = scriptDir;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (!"POST".equals(exchange.getRequestMethod()) || !PATH.equals(exchange.getRequestURI().getPath())) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+         }
+         Request request;
+         try {
+            request = admit(channel.openRequest(read(exchange.getRequestBody())), System.currentTimeMillis());
+         } catch (GeneralSecurityException e) {
+            LOG.warning("refused a request from " + exchange.getRemoteAddress() + ": " + e.getMessage());
+            exchange.sendResponseHeaders(403, -1);
+            return;
+         }
+         exchange.sendResponseHeaders(200, 0);
+         run(request, exchange.getResponseBody());
+      } finally {
+         exchange.close();
+      }
+   }
+
+   /**
+    * @throws GeneralSecurityException
+    *            if the request is too old, from the future or a replay
+    */
+   Request admit(Request request, long now) throws GeneralSecurityException {
+      if (Math.abs(now - request.getTime()) > MAX_SKEW_MILLIS)
+         throw new GeneralSecurityException("sent at " + request.getTime() + ", " + (now - request.getTime())
+               + "ms from now; are the clocks in sync?");
+      String nonce = new BigInteger(1, request.getNonce()).toString(16);
+      synchronized (seen) {
+         for (Iterator<Long> sent = seen.values().iterator(); sent.hasNext();)
+            if (Math.abs(now - sent.next()) > MAX_SKEW_MILLIS)
+               sent.remove();
+         if (seen.containsKey(nonce))
+            throw new GeneralSecurityException("replayed");
+         seen.put(nonce, request.getTime());
+      }
+      return request;
+   }
+
+   private void run(Request request, OutputStream response) throws IOException {
+      scriptDir.mkdirs();
+      File script = File.createTempFile("whirr-", ".sh", scriptDir);
+      Frames frames = new Frames(response, request.getNonce());
+      try {
+         OutputStream out = new FileOutputStream(script);
+         try {
+            out.write(request.getScript().getBytes(AgentChannel.UTF_8));
+         } finally {
+            out.close();
+         }
+         // timeout(1) signals the script's whole process group, so nothing it
+         // started keeps the output open after it is killed
+         Process process = new ProcessBuilder("timeout", "-k", "10", request.getTimeout() + "s", "/bin/bash",
+               script.getAbsolutePath()).directory(scriptDir).start();
+         process.getOutputStream().close();
+         frames.write(AgentChannel.STARTED, new byte[0], 0);
+         Thread errors = pump(process.getErrorStream(), frames, AgentChannel.ERROR);
+         pump(process.getInputStream(), frames, AgentChannel.OUTPUT).join();
+         errors.join();
+         int exitCode = process.waitFor();
+         script.delete();
+         if (exitCode == TIMED_OUT) {
+            byte[] message = ("killed after " + request.getTimeout() + "s\n").getBytes(AgentChannel.UTF_8);
+            frames.write(AgentChannel.ERROR, message, message.length);
+         }
+         LOG.info(script.getName() + " exited with " + exitCode);
+         frames.write(AgentChannel.EXIT, new byte[] { (byte) (exitCode >>> 24), (byte) (exitCode >>> 16),
+               (byte) (exitCode >>> 8), (byte) exitCode }, 4);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         script.delete();
+      }
+   }
+
+   /**
+    * Sealed frames of one answer, in order. Once the controller is gone they
+    * go to the log instead, and the script runs on.
+    */
+   class Frames {
+      private final OutputStream response;
+      private final byte[] nonce;
+      private long sequence;
+      private boolean gone;
+
+      Frames(OutputStream response, byte[] nonce) {
+         this.response = response;
+         this.nonce = nonce;
+      }
+
+      synchronized void write(byte type, byte[] data, int length) {
+         if (gone) {
+            if (type != AgentChannel.EXIT)
+               LOG.info(new String(data, 0, length, AgentChannel.UTF_8).trim());
+            return;
+         }
+         try {
+            channel.writeFrame(response, nonce, sequence++, type, data, 0, length);
+         } catch (IOException e) {
+            LOG.log(Level.WARNING, "the controller went away; the script runs on", e);
+            gone = true;
+         }
+      }
+   }
+
+   private static Thread pump(final InputStream in, final Frames frames, final byte type) {
+      Thread pump = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            byte[] buffer = new byte[8192];
+            try {
+               for (int read; (read = in.read(buffer)) != -1;)
+                  frames.write(type, buffer, read);
+            } catch (IOException e) {
+               LOG.log(Level.FINE, "script output closed", e);
+            }
+         }
+      }, "whirr-agent-" + (char) type);
+      pump.setDaemon(true);
+      pump.start();
+      return pump;
+   }
+
+   private static byte[] read(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read; (read = in.read(buffer)) != -1;) {
+         body.write(buffer, 0, read);
+         if (body.size() > MAX_REQUEST)
+            throw new IOException("request larger than " + MAX_REQUEST + " bytes");
+      }
+      return body.toByteArray();
+   }
+
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      File home = new File(args[0]).getAbsoluteFile().getParentFile();
+      AgentServer agent = new AgentServer(new AgentChannel(settings.getProperty("secret")), new File(home,
+            "scripts"));
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "9990"))), 64);
+      server.createContext("/", agent);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+      LOG.info("whirr agent listening on " + server.getAddress());
+   }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.jclouds.scriptbuilder.domain.Statements.saveHttpResponseTo;
+
+import org.jclouds.scriptbuilder.ScriptBuilder;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Steps that install, start and remove the agent. Roles sharing an instance
+ * share its agent, so they add these once per script.
+ */
+public class AgentStatements {
+   public static final String JAR = "whirr-agent.jar";
+   public static final String MAIN_CLASS = "org.apache.whirr.service.agent.AgentServer";
+
+   /**
+    * Fetches the agent while bootstrapping; it needs the JDK, which the roles
+    * install.
+    */
+   public static Statement install(AgentConfig config) {
+      return new StatementList(exec("mkdir -p " + config.getHome()), saveHttpResponseTo(config.getJar(),
+            config.getHome(), JAR));
+   }
+
+   /**
+    * Writes the agent's settings, readable by root only as they hold the
+    * secret, and starts or restarts the agent if they changed.
+    */
+   public static Statement start(AgentConfig config, String secret) {
+      String settings = config.getHome() + "/agent.properties";
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(exec("install -m 600 /dev/null " + settings + ".new"))
+            .add(createOrOverwriteFile(settings + ".new", ImmutableSet.of("port=" + config.getPort(), "secret="
+                  + secret)))
+            .add(call("start_agent", config.getHome(), MAIN_CLASS)).build());
+   }
+
+   /**
+    * Stops the agent and removes it, with the cleanup action of the roles.
+    */
+   public static Statement cleanup(AgentConfig config) {
+      return new StatementList(call("stop_agent", config.getHome()), exec("rm -rf " + config.getHome()));
+   }
+
+   /**
+    * Renders {@code statement} as a whole script, with the functions it calls,
+    * as Whirr would before running it over SSH.
+    */
+   public static String render(Statement statement) {
+      return new ScriptBuilder().addStatement(statement).render(OsFamily.UNIX);
+   }
+}
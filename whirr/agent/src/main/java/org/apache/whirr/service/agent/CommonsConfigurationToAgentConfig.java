@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.agent.AgentConfig.Builder;
+import org.apache.whirr.service.common.RequiredConfiguration;
+
+import com.google.common.base.Function;
+
+public class CommonsConfigurationToAgentConfig implements Function<Configuration, AgentConfig> {
+   private final String prefix;
+
+   public CommonsConfigurationToAgentConfig(String prefix) {
+      this.prefix = checkNotNull(prefix, "prefix");
+   }
+
+   @Override
+   public AgentConfig apply(Configuration input) {
+      RequiredConfiguration required = new RequiredConfiguration(input, prefix);
+      Builder builder = AgentConfig.builder();
+      builder.enabled(required.getBoolean("enabled"));
+      builder.home(required.getString("home"));
+      builder.port(required.getPort("port"));
+      builder.jar(required.getURI("jar.url"));
+      builder.connectTimeout((int) required.getLong("connect-timeout", 1, Integer.MAX_VALUE));
+      builder.timeout((int) required.getLong("timeout", 1, Integer.MAX_VALUE / 1000));
+      required.validate();
+      return builder.build();
+   }
+}
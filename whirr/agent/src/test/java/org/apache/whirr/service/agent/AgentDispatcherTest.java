@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class AgentDispatcherTest {
+
+   @Test
+   public void testFindsTheDrainReports() {
+      String output = "stopping vblob\n"
+            + "drain vblob: ports=9981,9982 seconds=3 dropped=0\n"
+            + "drain cinderella: ports=8080 seconds=30 dropped=2\n"
+            + "vblob stopped\n";
+      assertEquals(ImmutableList.of("drain vblob: ports=9981,9982 seconds=3 dropped=0",
+            "drain cinderella: ports=8080 seconds=30 dropped=2"), AgentDispatcher.drainReports(output));
+   }
+
+   @Test
+   public void testNoDrainWithoutReports() {
+      assertTrue(AgentDispatcher.drainReports("vblob stopped\n").isEmpty());
+      assertTrue(AgentDispatcher.drainReports(null).isEmpty());
+   }
+}
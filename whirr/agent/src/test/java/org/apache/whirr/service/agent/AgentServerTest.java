@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+
+import org.apache.whirr.service.agent.AgentChannel.Request;
+import org.jclouds.compute.domain.ExecResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpServer;
+
+public class AgentServerTest {
+   private static final String SECRET = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+
+   private File dir;
+   private AgentServer agent;
+   private HttpServer server;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = Files.createTempDir();
+      agent = new AgentServer(new AgentChannel(SECRET), dir);
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", agent);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+   }
+
+   @After
+   public void tearDown() {
+      server.stop(0);
+      dir.delete();
+   }
+
+   private AgentClient client(String secret, int timeout) {
+      return new AgentClient(new AgentChannel(secret), server.getAddress().getPort(), 1000, timeout);
+   }
+
+   @Test
+   public void testStreamsOutputAndExitCode() throws IOException {
+      ExecResponse response = client(SECRET, 10).run("127.0.0.1", "echo out\necho err >&2\nexit 3\n");
+      assertEquals("out\n", response.getOutput());
+      assertEquals("err\n", response.getError());
+      assertEquals(3, response.getExitStatus());
+      assertEquals("no script is left behind", 0, dir.list().length);
+   }
+
+   @Test
+   public void testOtherSecretIsRefusedBeforeRunning() throws IOException {
+      File marker = new File(dir, "ran");
+      try {
+         client(SECRET.replace('0', '1'), 10).run("127.0.0.1", "touch " + marker + "\n");
+         fail("expected the agent to refuse a script sealed with another secret");
+      } catch (AgentUnavailableException e) {
+         assertEquals(false, marker.exists());
+      }
+   }
+
+   @Test
+   public void testUnreachableAgentIsUnavailable() throws IOException {
+      server.stop(0);
+      try {
+         client(SECRET, 10).run("127.0.0.1", "true\n");
+         fail("expected the stopped agent to be unavailable");
+      } catch (AgentUnavailableException e) {
+      }
+   }
+
+   @Test
+   public void testScriptRunningTooLongIsKilled() throws IOException {
+      ExecResponse response = client(SECRET, 1).run("127.0.0.1", "sleep 30\n");
+      assertEquals(AgentServer.TIMED_OUT, response.getExitStatus());
+   }
+
+   @Test
+   public void testReplayedAndStaleRequestsAreRefused() throws GeneralSecurityException {
+      AgentChannel channel = new AgentChannel(SECRET);
+      long now = System.currentTimeMillis();
+      Request request = new Request(now, channel.newNonce(), 10, "true\n");
+      agent.admit(request, now);
+      try {
+         agent.admit(request, now);
+         fail("expected a replayed request to be refused");
+      } catch (GeneralSecurityException e) {
+      }
+      try {
+         agent.admit(new Request(now - AgentServer.MAX_SKEW_MILLIS - 1, channel.newNonce(), 10, "true\n"), now);
+         fail("expected a stale request to be refused");
+      } catch (GeneralSecurityException e) {
+      }
+   }
+}
@@ -0,0 +1,50 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Starts the agent, or restarts it when its settings changed, so a new
+# secret or port takes effect with the next configure action.
+function start_agent() {
+  local AGENT_HOME=${1}
+  local MAIN_CLASS=${2}
+  local SETTINGS=$AGENT_HOME/agent.properties
+  local PID_FILE=$AGENT_HOME/whirr-agent.pid
+
+  if [ -f $PID_FILE ] && kill -0 $(cat $PID_FILE) 2>/dev/null; then
+    if [ -f $SETTINGS ] && cmp -s $SETTINGS.new $SETTINGS; then
+      echo whirr-agent is running
+      rm -f $SETTINGS.new
+      return 0
+    fi
+    echo restarting whirr-agent to pick up $SETTINGS
+    local PID=$(cat $PID_FILE)
+    kill $PID
+    for i in $(seq 1 10); do
+      kill -0 $PID 2>/dev/null || break
+      sleep 1
+    done
+    kill -9 $PID 2>/dev/null
+  fi
+  mv -f $SETTINGS.new $SETTINGS
+
+  echo starting whirr-agent
+  cd $AGENT_HOME
+  nohup java -Xmx32m -cp $AGENT_HOME/whirr-agent.jar $MAIN_CLASS $SETTINGS \
+    >> $AGENT_HOME/whirr-agent.log 2>&1 < /dev/null &
+  echo $! > $PID_FILE
+  cd - > /dev/null
+  sleep 1
+  kill -0 $(cat $PID_FILE) 2>/dev/null || abort "whirr-agent exited, see $AGENT_HOME/whirr-agent.log"
+}
@@ -21,8 +21,10 @@ package org.apache.whirr.service.cinderella;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.net.URI;
+import java.util.List;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Configuration required to install and configure cinderella properly
@@ -49,10 +51,37 @@ public class CinderellaConfig {
       private URI vCloudEndpoint;
       private String vCloudUserAtOrg;
       private String vCloudPassword;
+      private List<VCloudBackend> backends = ImmutableList.of();
+      private int federationBasePort = 8081;
+      private int federationTimeout = 10000;
+      private boolean metricsEnabled = true;
+      private int metricsMaxAccessKeys = 1000;
       private URI war = URI
             .create("https://repository-cinderella.forge.cloudbees.com/snapshot/io/cinderella/cinderella-web/1.0-SNAPSHOT/cinderella-web-1.0-SNAPSHOT.war");
       private URI jettyTar = URI
             .create("http://download.eclipse.org/jetty/stable-8/dist/jetty-distribution-8.1.5.v20120716.war.gz");
+      private boolean warmupEnabled = false;
+      private List<String> warmupActions = ImmutableList.of("DescribeAvailabilityZones", "DescribeRegions",
+            "DescribeImages", "DescribeInstances");
+      private int warmupRequests = 1000;
+      private int warmupTolerance = 10;
+      private int vCloudMaxConnections = 200;
+      private int vCloudMaxConnectionsPerHost = 200;
+      private int vCloudConnectTimeout = 10000;
+      private int vCloudReadTimeout = 60000;
+      private int vCloudUserThreads = 0;
+      private int vCloudIoThreads = 20;
+      private int vCloudSessionInterval = 300;
+      private int drainTimeout = 30;
+      private String heapDumpDir = "/var/lib/cinderella/heap-dumps";
+      private URI jar = URI
+            .create("https://repository-cinderella.forge.cloudbees.com/snapshot/org/apache/whirr/whirr-cinderella/0.8.0-SNAPSHOT/whirr-cinderella-0.8.0-SNAPSHOT.jar");
+      private boolean admissionEnabled = false;
+      private int admissionRate = 20;
+      private int admissionBurst = 40;
+      private int admissionConcurrency = 50;
+      private int admissionQueue = 50;
+      private int admissionQueueTimeout = 2000;
 
       /**
        * @see CinderellaConfig#getUser()
@@ -142,16 +171,246 @@ public class CinderellaConfig {
          return this;
       }
 
+      /**
+       * @see CinderellaConfig#isWarmupEnabled()
+       */
+      public Builder warmupEnabled(boolean warmupEnabled) {
+         this.warmupEnabled = warmupEnabled;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getWarmupActions()
+       */
+      public Builder warmupActions(List<String> warmupActions) {
+         this.warmupActions = ImmutableList.copyOf(checkNotNull(warmupActions, "warmupActions"));
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getWarmupRequests()
+       */
+      public Builder warmupRequests(int warmupRequests) {
+         this.warmupRequests = warmupRequests;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getWarmupTolerance()
+       */
+      public Builder warmupTolerance(int warmupTolerance) {
+         this.warmupTolerance = warmupTolerance;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudMaxConnections()
+       */
+      public Builder vCloudMaxConnections(int vCloudMaxConnections) {
+         this.vCloudMaxConnections = vCloudMaxConnections;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudMaxConnectionsPerHost()
+       */
+      public Builder vCloudMaxConnectionsPerHost(int vCloudMaxConnectionsPerHost) {
+         this.vCloudMaxConnectionsPerHost = vCloudMaxConnectionsPerHost;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudConnectTimeout()
+       */
+      public Builder vCloudConnectTimeout(int vCloudConnectTimeout) {
+         this.vCloudConnectTimeout = vCloudConnectTimeout;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudReadTimeout()
+       */
+      public Builder vCloudReadTimeout(int vCloudReadTimeout) {
+         this.vCloudReadTimeout = vCloudReadTimeout;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudUserThreads()
+       */
+      public Builder vCloudUserThreads(int vCloudUserThreads) {
+         this.vCloudUserThreads = vCloudUserThreads;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudIoThreads()
+       */
+      public Builder vCloudIoThreads(int vCloudIoThreads) {
+         this.vCloudIoThreads = vCloudIoThreads;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getVCloudSessionInterval()
+       */
+      public Builder vCloudSessionInterval(int vCloudSessionInterval) {
+         this.vCloudSessionInterval = vCloudSessionInterval;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getDrainTimeout()
+       */
+      public Builder drainTimeout(int drainTimeout) {
+         this.drainTimeout = drainTimeout;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getHeapDumpDir()
+       */
+      public Builder heapDumpDir(String heapDumpDir) {
+         this.heapDumpDir = heapDumpDir;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getJar()
+       */
+      public Builder jar(URI jar) {
+         this.jar = jar;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#isAdmissionEnabled()
+       */
+      public Builder admissionEnabled(boolean admissionEnabled) {
+         this.admissionEnabled = admissionEnabled;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getAdmissionRate()
+       */
+      public Builder admissionRate(int admissionRate) {
+         this.admissionRate = admissionRate;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getAdmissionBurst()
+       */
+      public Builder admissionBurst(int admissionBurst) {
+         this.admissionBurst = admissionBurst;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getAdmissionConcurrency()
+       */
+      public Builder admissionConcurrency(int admissionConcurrency) {
+         this.admissionConcurrency = admissionConcurrency;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getAdmissionQueue()
+       */
+      public Builder admissionQueue(int admissionQueue) {
+         this.admissionQueue = admissionQueue;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getAdmissionQueueTimeout()
+       */
+      public Builder admissionQueueTimeout(int admissionQueueTimeout) {
+         this.admissionQueueTimeout = admissionQueueTimeout;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getBackends()
+       */
+      public Builder backends(List<VCloudBackend> backends) {
+         this.backends = ImmutableList.copyOf(checkNotNull(backends, "backends"));
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getFederationBasePort()
+       */
+      public Builder federationBasePort(int federationBasePort) {
+         this.federationBasePort = federationBasePort;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getFederationTimeout()
+       */
+      public Builder federationTimeout(int federationTimeout) {
+         this.federationTimeout = federationTimeout;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#isMetricsEnabled()
+       */
+      public Builder metricsEnabled(boolean metricsEnabled) {
+         this.metricsEnabled = metricsEnabled;
+         return this;
+      }
+
+      /**
+       * @see CinderellaConfig#getMetricsMaxAccessKeys()
+       */
+      public Builder metricsMaxAccessKeys(int metricsMaxAccessKeys) {
+         this.metricsMaxAccessKeys = metricsMaxAccessKeys;
+         return this;
+      }
+
       public CinderellaConfig build() {
          return new CinderellaConfig(user, home, ec2Port, ec2Version, authorizedAccessKey, authorizedSecretKey,
-               vCloudEndpoint, vCloudUserAtOrg, vCloudPassword, war, jettyTar);
+               vCloudEndpoint, vCloudUserAtOrg, vCloudPassword, war, jettyTar, warmupEnabled, warmupActions,
+               warmupRequests, warmupTolerance, vCloudMaxConnections, vCloudMaxConnectionsPerHost,
+               vCloudConnectTimeout, vCloudReadTimeout, vCloudUserThreads, vCloudIoThreads, vCloudSessionInterval,
+               drainTimeout, heapDumpDir, jar, admissionEnabled, admissionRate, admissionBurst,
+               admissionConcurrency, admissionQueue, admissionQueueTimeout, backends, federationBasePort,
+               federationTimeout, metricsEnabled, metricsMaxAccessKeys);
       }
 
       public Builder fromCinderellaConfig(CinderellaConfig in) {
          return this.user(in.user).home(in.home).ec2Port(in.ec2Port).ec2Version(in.ec2Version)
                .authorizedAccessKey(in.authorizedAccessKey).authorizedSecretKey(in.authorizedSecretKey)
                .vCloudEndpoint(in.vCloudEndpoint).vCloudUserAtOrg(in.vCloudUserAtOrg).vCloudPassword(in.vCloudPassword)
-               .war(in.war).jettyTar(in.jettyTar);
+               .war(in.war).jettyTar(in.jettyTar)
+               .warmupEnabled(in.warmupEnabled)
+               .warmupActions(in.warmupActions)
+               .warmupRequests(in.warmupRequests)
+               .warmupTolerance(in.warmupTolerance)
+               .vCloudMaxConnections(in.vCloudMaxConnections)
+               .vCloudMaxConnectionsPerHost(in.vCloudMaxConnectionsPerHost)
+               .vCloudConnectTimeout(in.vCloudConnectTimeout)
+               .vCloudReadTimeout(in.vCloudReadTimeout)
+               .vCloudUserThreads(in.vCloudUserThreads)
+               .vCloudIoThreads(in.vCloudIoThreads)
+               .vCloudSessionInterval(in.vCloudSessionInterval)
+               .drainTimeout(in.drainTimeout)
+               .heapDumpDir(in.heapDumpDir)
+               .jar(in.jar)
+               .admissionEnabled(in.admissionEnabled)
+               .admissionRate(in.admissionRate)
+               .admissionBurst(in.admissionBurst)
+               .admissionConcurrency(in.admissionConcurrency)
+               .admissionQueue(in.admissionQueue)
+               .admissionQueueTimeout(in.admissionQueueTimeout)
+               .backends(in.backends)
+               .federationBasePort(in.federationBasePort)
+               .federationTimeout(in.federationTimeout)
+               .metricsEnabled(in.metricsEnabled)
+               .metricsMaxAccessKeys(in.metricsMaxAccessKeys);
       }
    }
 
@@ -166,10 +425,40 @@ public class CinderellaConfig {
    private final String vCloudPassword;
    private final URI war;
    private final URI jettyTar;
+   private final boolean warmupEnabled;
+   private final List<String> warmupActions;
+   private final int warmupRequests;
+   private final int warmupTolerance;
+   private final int vCloudMaxConnections;
+   private final int vCloudMaxConnectionsPerHost;
+   private final int vCloudConnectTimeout;
+   private final int vCloudReadTimeout;
+   private final int vCloudUserThreads;
+   private final int vCloudIoThreads;
+   private final int vCloudSessionInterval;
+   private final int drainTimeout;
+   private final String heapDumpDir;
+   private final URI jar;
+   private final boolean admissionEnabled;
+   private final int admissionRate;
+   private final int admissionBurst;
+   private final int admissionConcurrency;
+   private final int admissionQueue;
+   private final int admissionQueueTimeout;
+   private final List<VCloudBackend> backends;
+   private final int federationBasePort;
+   private final int federationTimeout;
+   private final boolean metricsEnabled;
+   private final int metricsMaxAccessKeys;
 
    protected CinderellaConfig(String user, String home, int ec2Port, String ec2Version, String authorizedAccessKey,
          String authorizedSecretKey, URI vCloudEndpoint, String vCloudUserAtOrg, String vCloudPassword, URI war,
-         URI jettyTar) {
+         URI jettyTar, boolean warmupEnabled, List<String> warmupActions, int warmupRequests, int warmupTolerance,
+         int vCloudMaxConnections, int vCloudMaxConnectionsPerHost, int vCloudConnectTimeout, int vCloudReadTimeout,
+         int vCloudUserThreads, int vCloudIoThreads, int vCloudSessionInterval, int drainTimeout,
+         String heapDumpDir, URI jar, boolean admissionEnabled, int admissionRate, int admissionBurst,
+         int admissionConcurrency, int admissionQueue, int admissionQueueTimeout, List<VCloudBackend> backends,
+         int federationBasePort, int federationTimeout, boolean metricsEnabled, int metricsMaxAccessKeys) {
       this.user = checkNotNull(user, "user");
       this.home = checkNotNull(home, "home");
       this.ec2Port = checkNotNull(ec2Port, "ec2Port");
@@ -181,6 +470,31 @@ public class CinderellaConfig {
       this.vCloudPassword = checkNotNull(vCloudPassword, "vCloudPassword");
       this.war = checkNotNull(war, "war");
       this.jettyTar = checkNotNull(jettyTar, "jettyTar");
+      this.warmupEnabled = warmupEnabled;
+      this.warmupActions = checkNotNull(warmupActions, "warmupActions");
+      this.warmupRequests = warmupRequests;
+      this.warmupTolerance = warmupTolerance;
+      this.vCloudMaxConnections = vCloudMaxConnections;
+      this.vCloudMaxConnectionsPerHost = vCloudMaxConnectionsPerHost;
+      this.vCloudConnectTimeout = vCloudConnectTimeout;
+      this.vCloudReadTimeout = vCloudReadTimeout;
+      this.vCloudUserThreads = vCloudUserThreads;
+      this.vCloudIoThreads = vCloudIoThreads;
+      this.vCloudSessionInterval = vCloudSessionInterval;
+      this.drainTimeout = drainTimeout;
+      this.heapDumpDir = checkNotNull(heapDumpDir, "heapDumpDir");
+      this.jar = checkNotNull(jar, "jar");
+      this.admissionEnabled = admissionEnabled;
+      this.admissionRate = admissionRate;
+      this.admissionBurst = admissionBurst;
+      this.admissionConcurrency = admissionConcurrency;
+      this.admissionQueue = admissionQueue;
+      this.admissionQueueTimeout = admissionQueueTimeout;
+      this.backends = ImmutableList.copyOf(checkNotNull(backends, "backends"));
+      this.federationBasePort = federationBasePort;
+      this.federationTimeout = federationTimeout;
+      this.metricsEnabled = metricsEnabled;
+      this.metricsMaxAccessKeys = metricsMaxAccessKeys;
    }
 
    /**
@@ -228,7 +542,8 @@ public class CinderellaConfig {
 
    /**
     * The endpoint for the vCloud api. ex.
-    * {@code https://lon01.ilandcloud.com/api}
+    * {@code https://lon01.ilandcloud.com/api}. When federated, that of the
+    * first of the {@link #getBackends() backends}.
     * 
     * @see #getVCloudUserAtOrg()
     * @see #getVCloudPassword()
@@ -275,13 +590,232 @@ public class CinderellaConfig {
       return jettyTar;
    }
 
+   /**
+    * When true, the start action replays read-only EC2 calls against the new
+    * instance until their latency settles, and only then opens its port to
+    * clients (default false)
+    */
+   public boolean isWarmupEnabled() {
+      return warmupEnabled;
+   }
+
+   /**
+    * EC2 actions replayed in turn while warming up
+    */
+   public List<String> getWarmupActions() {
+      return warmupActions;
+   }
+
+   /**
+    * Most requests sent while warming up, whether or not latency settled
+    * (default 1000)
+    */
+   public int getWarmupRequests() {
+      return warmupRequests;
+   }
+
+   /**
+    * Latency has settled once the mean of a round of requests is within this
+    * percentage of the round before (default 10)
+    */
+   public int getWarmupTolerance() {
+      return warmupTolerance;
+   }
+
+   /**
+    * Connections open to vCloud at once, across all requests. Sized to match
+    * jetty's request threads, so requests do not queue for a connection
+    * (default 200)
+    */
+   public int getVCloudMaxConnections() {
+      return vCloudMaxConnections;
+   }
+
+   /**
+    * Connections open to any one vCloud host at once, or {@code 0} for no limit
+    * beyond {@link #getVCloudMaxConnections()} (default 200)
+    */
+   public int getVCloudMaxConnectionsPerHost() {
+      return vCloudMaxConnectionsPerHost;
+   }
+
+   /**
+    * Milliseconds to wait for a connection to vCloud (default 10000)
+    */
+   public int getVCloudConnectTimeout() {
+      return vCloudConnectTimeout;
+   }
+
+   /**
+    * Milliseconds to wait for vCloud to answer on an open connection (default
+    * 60000)
+    */
+   public int getVCloudReadTimeout() {
+      return vCloudReadTimeout;
+   }
+
+   /**
+    * Threads running calls to vCloud, or {@code 0} for as many as needed
+    * (default 0)
+    */
+   public int getVCloudUserThreads() {
+      return vCloudUserThreads;
+   }
+
+   /**
+    * Threads moving bytes to and from vCloud (default 20)
+    */
+   public int getVCloudIoThreads() {
+      return vCloudIoThreads;
+   }
+
+   /**
+    * Seconds a vCloud login session is reused before logging in again
+    * (default 300)
+    */
+   public int getVCloudSessionInterval() {
+      return vCloudSessionInterval;
+   }
+
+   /**
+    * Seconds the stop action waits for requests in flight once jetty no longer
+    * accepts connections; 0 stops jetty right away (default 30)
+    */
+   public int getDrainTimeout() {
+      return drainTimeout;
+   }
+
+   /**
+    * Directory the JVM writes a heap dump into when it runs out of memory, or
+    * empty for none (default {@code /var/lib/cinderella/heap-dumps})
+    */
+   public String getHeapDumpDir() {
+      return heapDumpDir;
+   }
+
+   /**
+    * location to get the Java side of this role from, such as the admission
+    * filter. default
+    * {@code https://repository-cinderella.forge.cloudbees.com/snapshot/org/apache/whirr/whirr-cinderella/0.8.0-SNAPSHOT/whirr-cinderella-0.8.0-SNAPSHOT.jar}
+    */
+   public URI getJar() {
+      return jar;
+   }
+
+   /**
+    * When true, EC2 calls pass an admission filter in jetty before they reach
+    * cinderella, which rejects what vCloud could not keep up with as
+    * {@code RequestLimitExceeded} rather than letting it pile up (default
+    * false)
+    */
+   public boolean isAdmissionEnabled() {
+      return admissionEnabled;
+   }
+
+   /**
+    * EC2 calls per second each access key is admitted at, over time (default
+    * 20)
+    */
+   public int getAdmissionRate() {
+      return admissionRate;
+   }
+
+   /**
+    * EC2 calls an access key that has been quiet may send at once, above
+    * {@link #getAdmissionRate()} (default 40)
+    */
+   public int getAdmissionBurst() {
+      return admissionBurst;
+   }
+
+   /**
+    * EC2 calls cinderella works on at once, and so most calls it makes to
+    * vCloud at a time (default 50)
+    */
+   public int getAdmissionConcurrency() {
+      return admissionConcurrency;
+   }
+
+   /**
+    * EC2 calls that wait for one of {@link #getAdmissionConcurrency()} to
+    * finish, before more are rejected. Calls that change instances go ahead of
+    * {@code Describe} calls (default 50)
+    */
+   public int getAdmissionQueue() {
+      return admissionQueue;
+   }
+
+   /**
+    * Milliseconds a call waits in the queue before it is rejected (default
+    * 2000)
+    */
+   public int getAdmissionQueueTimeout() {
+      return admissionQueueTimeout;
+   }
+
+   /**
+    * vCloud orgs cinderella presents as one EC2 endpoint, each behind a
+    * cinderella of its own, or empty when {@link #getVCloudEndpoint()} is the
+    * only one (default)
+    */
+   public List<VCloudBackend> getBackends() {
+      return backends;
+   }
+
+   /**
+    * true when EC2 calls are spread over several {@link #getBackends()
+    * backends}
+    */
+   public boolean isFederated() {
+      return !backends.isEmpty();
+   }
+
+   /**
+    * Port of the cinderella of the first backend; the others follow on the
+    * next ports. These only listen for the federation on the same instance
+    * (default 8081)
+    */
+   public int getFederationBasePort() {
+      return federationBasePort;
+   }
+
+   /**
+    * Milliseconds a call spread over every backend, such as a Describe call,
+    * waits for a slow one before answering with the others' results (default
+    * 10000)
+    */
+   public int getFederationTimeout() {
+      return federationTimeout;
+   }
+
+   /**
+    * true to record latency and error counts of EC2 calls by action and
+    * access key, read over JMX or from {@code /_metrics} on the instance
+    * (default true)
+    */
+   public boolean isMetricsEnabled() {
+      return metricsEnabled;
+   }
+
+   /**
+    * Access keys recorded apart; calls of any further keys are recorded
+    * together (default 1000)
+    */
+   public int getMetricsMaxAccessKeys() {
+      return metricsMaxAccessKeys;
+   }
+
    /**
     * {@inheritDoc}
     */
    @Override
    public int hashCode() {
       return Objects.hashCode(user, home, ec2Port, ec2Version, authorizedAccessKey, vCloudEndpoint, vCloudUserAtOrg,
-            war, jettyTar);
+            war, jettyTar, warmupEnabled, warmupActions, warmupRequests, warmupTolerance, vCloudMaxConnections,
+            vCloudMaxConnectionsPerHost, vCloudConnectTimeout, vCloudReadTimeout, vCloudUserThreads,
+            vCloudIoThreads, vCloudSessionInterval, drainTimeout, heapDumpDir, jar, admissionEnabled, admissionRate,
+            admissionBurst, admissionConcurrency, admissionQueue, admissionQueueTimeout, backends,
+            federationBasePort, federationTimeout, metricsEnabled, metricsMaxAccessKeys);
    }
 
    /**
@@ -301,7 +835,32 @@ public class CinderellaConfig {
             && Objects.equal(this.authorizedAccessKey, other.authorizedAccessKey)
             && Objects.equal(this.vCloudEndpoint, other.vCloudEndpoint)
             && Objects.equal(this.vCloudUserAtOrg, other.vCloudUserAtOrg) && Objects.equal(this.war, other.war)
-            && Objects.equal(this.jettyTar, other.jettyTar);
+            && Objects.equal(this.jettyTar, other.jettyTar)
+            && Objects.equal(this.warmupEnabled, other.warmupEnabled)
+            && Objects.equal(this.warmupActions, other.warmupActions)
+            && Objects.equal(this.warmupRequests, other.warmupRequests)
+            && Objects.equal(this.warmupTolerance, other.warmupTolerance)
+            && Objects.equal(this.vCloudMaxConnections, other.vCloudMaxConnections)
+            && Objects.equal(this.vCloudMaxConnectionsPerHost, other.vCloudMaxConnectionsPerHost)
+            && Objects.equal(this.vCloudConnectTimeout, other.vCloudConnectTimeout)
+            && Objects.equal(this.vCloudReadTimeout, other.vCloudReadTimeout)
+            && Objects.equal(this.vCloudUserThreads, other.vCloudUserThreads)
+            && Objects.equal(this.vCloudIoThreads, other.vCloudIoThreads)
+            && Objects.equal(this.vCloudSessionInterval, other.vCloudSessionInterval)
+            && Objects.equal(this.drainTimeout, other.drainTimeout)
+            && Objects.equal(this.heapDumpDir, other.heapDumpDir)
+            && Objects.equal(this.jar, other.jar)
+            && Objects.equal(this.admissionEnabled, other.admissionEnabled)
+            && Objects.equal(this.admissionRate, other.admissionRate)
+            && Objects.equal(this.admissionBurst, other.admissionBurst)
+            && Objects.equal(this.admissionConcurrency, other.admissionConcurrency)
+            && Objects.equal(this.admissionQueue, other.admissionQueue)
+            && Objects.equal(this.admissionQueueTimeout, other.admissionQueueTimeout)
+            && Objects.equal(this.backends, other.backends)
+            && Objects.equal(this.federationBasePort, other.federationBasePort)
+            && Objects.equal(this.federationTimeout, other.federationTimeout)
+            && Objects.equal(this.metricsEnabled, other.metricsEnabled)
+            && Objects.equal(this.metricsMaxAccessKeys, other.metricsMaxAccessKeys);
    }
 
    /**
@@ -312,7 +871,32 @@ public class CinderellaConfig {
       return Objects.toStringHelper(this).omitNullValues().add("user", user).add("home", home).add("ec2Port", ec2Port)
             .add("ec2Version", ec2Version).add("authorizedAccessKey", authorizedAccessKey)
             .add("vCloudEndpoint", vCloudEndpoint).add("vCloudUserAtOrg", vCloudUserAtOrg).add("war", war)
-            .add("jettyTar", jettyTar).toString();
+            .add("jettyTar", jettyTar)
+            .add("warmupEnabled", warmupEnabled)
+            .add("warmupActions", warmupActions)
+            .add("warmupRequests", warmupRequests)
+            .add("warmupTolerance", warmupTolerance)
+            .add("vCloudMaxConnections", vCloudMaxConnections)
+            .add("vCloudMaxConnectionsPerHost", vCloudMaxConnectionsPerHost)
+            .add("vCloudConnectTimeout", vCloudConnectTimeout)
+            .add("vCloudReadTimeout", vCloudReadTimeout)
+            .add("vCloudUserThreads", vCloudUserThreads)
+            .add("vCloudIoThreads", vCloudIoThreads)
+            .add("vCloudSessionInterval", vCloudSessionInterval)
+            .add("drainTimeout", drainTimeout)
+            .add("heapDumpDir", heapDumpDir)
+            .add("jar", jar)
+            .add("admissionEnabled", admissionEnabled)
+            .add("admissionRate", admissionRate)
+            .add("admissionBurst", admissionBurst)
+            .add("admissionConcurrency", admissionConcurrency)
+            .add("admissionQueue", admissionQueue)
+            .add("admissionQueueTimeout", admissionQueueTimeout)
+            .add("backends", backends)
+            .add("federationBasePort", federationBasePort)
+            .add("federationTimeout", federationTimeout)
+            .add("metricsEnabled", metricsEnabled)
+            .add("metricsMaxAccessKeys", metricsMaxAccessKeys).toString();
    }
 
 }
@@ -20,19 +20,60 @@ package org.apache.whirr.service.cinderella;
 
 import static org.apache.whirr.RolePredicates.role;
 import static org.apache.whirr.service.cinderella.CinderellaStatements.cleanup;
+import static org.apache.whirr.service.cinderella.CinderellaStatements.configure;
 import static org.apache.whirr.service.cinderella.CinderellaStatements.install;
+import static org.apache.whirr.service.cinderella.CinderellaStatements.packages;
 import static org.apache.whirr.service.cinderella.CinderellaStatements.start;
 import static org.apache.whirr.service.cinderella.CinderellaStatements.stop;
+import static org.apache.whirr.service.common.BootstrapStatements.awaitInstalls;
+import static org.apache.whirr.service.common.BootstrapStatements.hasPackageCache;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
+import static org.apache.whirr.service.common.BootstrapStatements.untilDone;
+import static org.apache.whirr.service.common.BootstrapStatements.usePackageCache;
 
 import java.io.IOException;
 
 import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
 import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.agent.AgentConfig;
+import org.apache.whirr.service.agent.AgentDispatcher;
+import org.apache.whirr.service.agent.AgentSecret;
+import org.apache.whirr.service.agent.AgentStatements;
+import org.apache.whirr.service.agent.CommonsConfigurationToAgentConfig;
+import org.apache.whirr.service.common.RequiredConfiguration;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 
 public class CinderellaHandler extends ClusterActionHandlerSupport {
 
+   /**
+    * resolved and validated once per cluster spec, when it is first seen
+    */
+   private final LoadingCache<ClusterSpec, CinderellaConfig> configs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, CinderellaConfig>() {
+            @Override
+            public CinderellaConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToCinderellaConfig(getRole(), spec.getClusterUser())
+                     .apply(getConfiguration(spec, "whirr-" + getRole() + "-default.properties"));
+            }
+         });
+
+   private final LoadingCache<ClusterSpec, AgentConfig> agentConfigs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, AgentConfig>() {
+            @Override
+            public AgentConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToAgentConfig("agent").apply(getConfiguration(spec,
+                     "whirr-agent-default.properties"));
+            }
+         });
+
    @Override
    public String getRole() {
       return "cinderella";
@@ -40,17 +81,63 @@ public class CinderellaHandler extends ClusterActionHandlerSupport {
 
    @Override
    protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(install(toConfig(event)));
+      CinderellaConfig config = toConfig(event);
+      AgentConfig agent = toAgentConfig(event);
+      for (Statement step : install(config))
+         event.getStatementBuilder().addStatement(step);
+      // with a package cache, packages wait for it until the configure action
+      if (!hasPackageCache(event.getClusterSpec()))
+         for (Statement step : packages(config))
+            event.getStatementBuilder().addStatement(step);
+      if (agent.isEnabled())
+         event.getStatementBuilder().addStatement(once("whirr-agent-install", AgentStatements.install(agent)));
    }
 
+   /**
+    * Bootstrap runs before any instance is provisioned, so missing or bad
+    * settings fail the launch right away, all listed in one error.
+    */
    protected CinderellaConfig toConfig(ClusterActionEvent event) throws IOException {
-      return new CommonsConfigurationToCinderellaConfig(getRole(), event.getClusterSpec().getClusterUser())
-            .apply(getConfiguration(event.getClusterSpec(), "whirr-" + getRole() + "-default.properties"));
+      return RequiredConfiguration.resolve(configs, event.getClusterSpec());
+   }
+
+   protected AgentConfig toAgentConfig(ClusterActionEvent event) throws IOException {
+      return RequiredConfiguration.resolve(agentConfigs, event.getClusterSpec());
    }
 
    @Override
    protected void beforeConfigure(ClusterActionEvent event) throws IOException {
       CinderellaConfig config = toConfig(event);
+      // when warming up, clients are let in once the start action is done
+      if (!config.isWarmupEnabled())
+         authorizeEC2Port(event, config);
+      if (hasPackageCache(event.getClusterSpec())) {
+         event.getStatementBuilder().addStatement(usePackageCache(event.getClusterSpec(), event.getCluster()));
+         event.getStatementBuilder().addStatement(untilDone(getRole() + "-packages", new StatementList(
+               packages(config))));
+      }
+      // downloads started while bootstrapping, shared with co-located roles
+      event.getStatementBuilder().addStatement(awaitInstalls());
+      startAgent(event);
+      event.getStatementBuilder().addStatement(configure(config));
+   }
+
+   /**
+    * Starts the agent once the JDK is there; the start and stop actions then
+    * go through it.
+    */
+   private void startAgent(ClusterActionEvent event) throws IOException {
+      AgentConfig agent = toAgentConfig(event);
+      if (!agent.isEnabled())
+         return;
+      event.getFirewallManager().addRule(
+            Rule.create().destination(event.getCluster().getInstancesMatching(role(getRole()))).port(
+                  agent.getPort()));
+      event.getStatementBuilder().addStatement(
+            once("whirr-agent", AgentStatements.start(agent, AgentSecret.forCluster(event.getClusterSpec()))));
+   }
+
+   private void authorizeEC2Port(ClusterActionEvent event, CinderellaConfig config) throws IOException {
       Cluster cluster = event.getCluster();
       event.getFirewallManager().addRule(
             Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getEC2Port()));
@@ -58,17 +145,28 @@ public class CinderellaHandler extends ClusterActionHandlerSupport {
 
    @Override
    protected void beforeStart(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(start(toConfig(event)));
+      AgentDispatcher.run(event, toAgentConfig(event), "start-" + getRole(), start(toConfig(event)));
+   }
+
+   @Override
+   protected void afterStart(ClusterActionEvent event) throws IOException {
+      CinderellaConfig config = toConfig(event);
+      if (config.isWarmupEnabled())
+         authorizeEC2Port(event, config);
    }
 
    @Override
    protected void beforeStop(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(stop(toConfig(event)));
+      AgentDispatcher.run(event, toAgentConfig(event), "stop-" + getRole(), stop(toConfig(event)));
    }
 
    @Override
    protected void beforeCleanup(ClusterActionEvent event) throws IOException {
       event.getStatementBuilder().addStatement(cleanup(toConfig(event)));
+      // the agent goes too, so this runs over SSH
+      AgentConfig agent = toAgentConfig(event);
+      if (agent.isEnabled())
+         event.getStatementBuilder().addStatement(once("whirr-agent-cleanup", AgentStatements.cleanup(agent)));
    }
 
 }
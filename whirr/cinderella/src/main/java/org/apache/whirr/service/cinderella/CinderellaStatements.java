@@ -18,58 +18,301 @@
 
 package org.apache.whirr.service.cinderella;
 
+import static org.apache.whirr.service.common.BootstrapStatements.ARTIFACTS_DIR;
+import static org.apache.whirr.service.common.BootstrapStatements.function;
+import static org.apache.whirr.service.common.BootstrapStatements.inBackground;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
 import static org.jclouds.scriptbuilder.domain.Statements.call;
 import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
 import static org.jclouds.scriptbuilder.domain.Statements.extractTargzAndFlattenIntoDirectory;
 import static org.jclouds.scriptbuilder.domain.Statements.saveHttpResponseTo;
 
-import java.util.Map;
+import java.net.URI;
+import java.util.List;
 
 import org.jclouds.scriptbuilder.domain.Statement;
 import org.jclouds.scriptbuilder.domain.StatementList;
 import org.jclouds.scriptbuilder.statements.java.InstallJDK;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 public class CinderellaStatements {
 
-   public static Statement install(CinderellaConfig config) {
-      return new StatementList(ImmutableSet
-            .<Statement> builder()
-            .add(InstallJDK.fromOpenJDK())
-            .add(extractTargzAndFlattenIntoDirectory(config.getJettyTar(), config.getHome()))
-            .add(saveHttpResponseTo(config.getWar(), config.getHome() +"/webapps", "root.war"))
-            .add(writeEC2ServiceProperties(config))
-            .add(exec("chown -R " + config.getUser() + " " + config.getHome())).build());
+   /** where jetty.sh, running as root, keeps the pid of jetty */
+   public static final String JETTY_PID_FILE = "/var/run/jetty.pid";
+   public static final String ADMISSION_FILTER_CLASS = "org.apache.whirr.service.cinderella.admission.AdmissionFilter";
+   public static final String METRICS_FILTER_CLASS = "org.apache.whirr.service.cinderella.metrics.ActionMetricsFilter";
+   /** the filters and the federation run from this jar, in jetty's lib/ext */
+   public static final String JAR = "whirr-cinderella.jar";
+   public static final String FEDERATION_SERVICE = "cinderella-federation";
+   public static final String FEDERATION_MAIN_CLASS = "org.apache.whirr.service.cinderella.federation.EC2Federation";
+   /** the last war fetched, under {@link org.apache.whirr.service.common.BootstrapStatements#ARTIFACTS_DIR} */
+   public static final String WAR = "cinderella-web.war";
+
+   /**
+    * Fetches jetty and the webapp, and the filters or federation when enabled,
+    * in the background until the configure action awaits them. The webapp is
+    * fetched through the artifact cache, so reinstalling fetches only what
+    * changed since the copy left there.
+    */
+   public static List<Statement> install(CinderellaConfig config) {
+      ImmutableSet.Builder<Statement> downloads = ImmutableSet.<Statement> builder();
+      downloads.add(extractTargzAndFlattenIntoDirectory(config.getJettyTar(), config.getHome()));
+      downloads.addAll(deployWar(config, config.getHome(), "jetty"));
+      if (config.isMetricsEnabled() || config.isAdmissionEnabled() || config.isFederated())
+         downloads.add(saveHttpResponseTo(config.getJar(), config.getHome() + "/lib/ext", JAR));
+      downloads.add(exec("chown -R " + config.getUser() + " " + config.getHome()));
+      return ImmutableList.of(inBackground("cinderella", new StatementList(downloads.build())));
+   }
+
+   /**
+    * Installs the JDK, and zsync for fetching only what changed in the webapp,
+    * once on instances shared with other roles, while bootstrapping or, to go
+    * through a package cache, when configuring.
+    */
+   public static List<Statement> packages(CinderellaConfig config) {
+      return ImmutableList.of(once("jdk", InstallJDK.fromOpenJDK()), once("zsync", call("install_zsync")));
    }
    
-   private static Statement writeEC2ServiceProperties(CinderellaConfig config) {
-      Map<String, String> configFile = ImmutableMap.<String, String>builder()
-            .put("endpoint", config.getVCloudEndpoint().toASCIIString())
-            .put("useratorg", config.getVCloudUserAtOrg())
-            .put("password", config.getVCloudPassword())
+   /**
+    * Writes {@code ec2-service.properties} next to the live copy and lets
+    * {@code reconfigure_jetty} decide whether anything changed. Unchanged
+    * settings are a no-op, changed settings hot redeploy the webapp, and only a
+    * changed port restarts jetty. Nothing is ever reinstalled. The metrics and
+    * admission filters are listed in, or removed from, jetty's webdefault.xml
+    * first, metrics outermost so it times calls waiting for admission too, and
+    * their settings are part of the same file, so turning them on or off or
+    * changing their limits redeploys like any other setting.
+    * 
+    * <p/>
+    * The webapp is fetched again first, which moves nothing when its
+    * {@code .sha1} is unchanged and only the changed blocks when a
+    * {@code .zsync} is published next to it, and a new war is hot redeployed
+    * the same way.
+    * 
+    * <p/>
+    * When federated, each backend gets a copy of jetty and the webapp under
+    * {@code backends/<name>}, configured the same way, and the federation is
+    * restarted if its settings changed.
+    */
+   public static Statement configure(CinderellaConfig config) {
+      if (!config.isFederated())
+         return new StatementList(ImmutableSet.<Statement> builder()
+               .addAll(deployWar(config, config.getHome(), "jetty"))
+               .add(writeEC2ServiceProperties(config, config.getHome(), config.getVCloudEndpoint(),
+                     config.getVCloudUserAtOrg(), config.getVCloudPassword()))
+               .addAll(configureFilters(config, config.getHome()))
+               .add(call("reconfigure_jetty", config.getHome(), config.getEC2Port() + "", config.getUser())).build());
+
+      ImmutableSet.Builder<Statement> statements = ImmutableSet.<Statement> builder();
+      // the main home is what new backends are cloned from
+      statements.addAll(deployWar(config, config.getHome(), "jetty"));
+      List<VCloudBackend> backends = config.getBackends();
+      for (int i = 0; i < backends.size(); i++) {
+         VCloudBackend backend = backends.get(i);
+         String home = backendHome(config, backend);
+         statements.add(call("clone_jetty", config.getHome(), home, config.getUser()))
+               .add(call("deploy_war", ARTIFACTS_DIR + "/" + WAR, home, config.getUser(), jettyName(backend)))
+               .add(writeEC2ServiceProperties(config, home, backend.getEndpoint(), backend.getUserAtOrg(),
+                     backend.getPassword()))
+               .addAll(configureFilters(config, home))
+               .add(call("reconfigure_jetty", home, backendPort(config, i) + "", config.getUser(),
+                     jettyName(backend)));
+      }
+      statements.add(writeFederationProperties(config));
+      statements.add(call("reconfigure_java_service", FEDERATION_SERVICE, config.getHome(), config.getUser(),
+            config.getHome() + "/federation.properties"));
+      return new StatementList(statements.build());
+   }
+
+   /**
+    * Fetches the webapp into the artifact cache and deploys it to the jetty in
+    * {@code home} if it changed.
+    */
+   private static List<Statement> deployWar(CinderellaConfig config, String home, String jettyName) {
+      return ImmutableList.of(
+            call("fetch_artifact", config.getWar().toASCIIString(), ARTIFACTS_DIR, WAR),
+            call("deploy_war", ARTIFACTS_DIR + "/" + WAR, home, config.getUser(), jettyName));
+   }
+
+   private static List<Statement> configureFilters(CinderellaConfig config, String home) {
+      return ImmutableList.of(
+            call("configure_filter", home, "metrics", config.isMetricsEnabled() + "", METRICS_FILTER_CLASS,
+                  home + "/ec2-service.properties"),
+            call("configure_filter", home, "admission", config.isAdmissionEnabled() + "", ADMISSION_FILTER_CLASS,
+                  home + "/ec2-service.properties"));
+   }
+
+   private static String backendHome(CinderellaConfig config, VCloudBackend backend) {
+      return config.getHome() + "/backends/" + backend.getName();
+   }
+
+   private static int backendPort(CinderellaConfig config, int index) {
+      return config.getFederationBasePort() + index;
+   }
+
+   /** what jetty.sh is run as, which names its settings and pid file */
+   private static String jettyName(VCloudBackend backend) {
+      return "cinderella-" + backend.getName();
+   }
+
+   private static Statement writeFederationProperties(CinderellaConfig config) {
+      ImmutableMap.Builder<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getEC2Port() + "")
+            .put("timeout", config.getFederationTimeout() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .put("backends", Joiner.on(',').join(Lists.transform(config.getBackends(),
+                  new Function<VCloudBackend, String>() {
+                     @Override
+                     public String apply(VCloudBackend backend) {
+                        return backend.getName();
+                     }
+                  })));
+      List<VCloudBackend> backends = config.getBackends();
+      for (int i = 0; i < backends.size(); i++) {
+         VCloudBackend backend = backends.get(i);
+         configFile.put("backend." + backend.getName() + ".url", "http://127.0.0.1:" + backendPort(config, i))
+               .put("backend." + backend.getName() + ".weight", backend.getWeight() + "");
+      }
+      return createOrOverwriteFile(config.getHome() + "/federation.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile.build())));
+   }
+
+   private static Statement writeEC2ServiceProperties(CinderellaConfig config, String home, URI endpoint,
+         String userAtOrg, String password) {
+      ImmutableMap.Builder<String, String> configFile = ImmutableMap.<String, String>builder()
+            .put("endpoint", endpoint.toASCIIString())
+            .put("useratorg", userAtOrg)
+            .put("password", password)
             .put("WSDLVersion", config.getEC2Version())
             .put("key." + config.getAuthorizedAccessKey(), config.getAuthorizedSecretKey())
-            .build();
+            // passed through to the jclouds context cinderella talks to vCloud with
+            .put("jclouds.max-connections-per-context", config.getVCloudMaxConnections() + "")
+            .put("jclouds.max-connections-per-host", config.getVCloudMaxConnectionsPerHost() + "")
+            .put("jclouds.connection-timeout", config.getVCloudConnectTimeout() + "")
+            .put("jclouds.so-timeout", config.getVCloudReadTimeout() + "")
+            .put("jclouds.user-threads", config.getVCloudUserThreads() + "")
+            .put("jclouds.io-worker-threads", config.getVCloudIoThreads() + "")
+            .put("jclouds.session-interval", config.getVCloudSessionInterval() + "");
+      if (config.isAdmissionEnabled())
+         // read by the admission filter, not cinderella
+         configFile.put("admission.rate", config.getAdmissionRate() + "")
+               .put("admission.burst", config.getAdmissionBurst() + "")
+               .put("admission.concurrency", config.getAdmissionConcurrency() + "")
+               .put("admission.queue", config.getAdmissionQueue() + "")
+               .put("admission.queue-timeout", config.getAdmissionQueueTimeout() + "");
+      if (config.isMetricsEnabled())
+         // read by the metrics filter
+         configFile.put("metrics.max-access-keys", config.getMetricsMaxAccessKeys() + "");
             
-      return createOrOverwriteFile(config.getHome() + "/ec2-service.properties",
-                  ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+      return createOrOverwriteFile(home + "/ec2-service.properties.new",
+                  ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile.build())));
    }
 
+   /**
+    * Starts jetty, or the jetty of each backend and the federation. The port
+    * is opened first in case a failed stop left it drained, or clients would
+    * stay refused after the start.
+    */
    public static Statement start(CinderellaConfig config) {
-      return call("start_jetty", config.getHome(),  config.getEC2Port() + "", config.getUser());
+      ImmutableSet.Builder<Statement> statements = ImmutableSet.<Statement> builder();
+      statements.add(call("undrain_ports", config.getEC2Port() + ""));
+      if (!config.isFederated()) {
+         statements.add(call("start_jetty", config.getHome(), config.getEC2Port() + "", config.getUser(),
+               config.getHeapDumpDir()));
+      } else {
+         List<VCloudBackend> backends = config.getBackends();
+         for (int i = 0; i < backends.size(); i++)
+            statements.add(call("start_jetty", backendHome(config, backends.get(i)), backendPort(config, i) + "",
+                  config.getUser(), config.getHeapDumpDir(), jettyName(backends.get(i))));
+         statements.add(call("start_java_service", FEDERATION_SERVICE, config.getHome(), config.getUser(),
+               config.getHome() + "/lib/ext/" + JAR, FEDERATION_MAIN_CLASS, config.getHome()
+                     + "/federation.properties"));
+      }
+      if (config.isWarmupEnabled())
+         statements.add(warmup(config));
+      return new StatementList(statements.build());
+   }
+
+   /**
+    * Replays the configured EC2 actions on localhost in rounds, until the mean
+    * latency of a round is within the tolerance of the one before, so the JIT
+    * and the jclouds caches are warm before clients arrive. The script reads
+    * the secret key from the settings the port is served with, rather than
+    * taking it as an argument.
+    */
+   public static Statement warmup(CinderellaConfig config) {
+      String secretFile = config.getHome()
+            + (config.isFederated() ? "/federation.properties" : "/ec2-service.properties");
+      String secretProperty = config.isFederated() ? "auth.secret-key" : "key." + config.getAuthorizedAccessKey();
+      return call("warmup_cinderella", config.getEC2Port() + "", config.getAuthorizedAccessKey(), secretFile,
+            secretProperty, config.getEC2Version(), Joiner.on(',').join(config.getWarmupActions()),
+            config.getWarmupRequests() + "", config.getWarmupTolerance() + "");
    }
 
+   /**
+    * Drains jetty before stopping it: new connections are refused, and EC2
+    * calls in flight get up to the drain timeout to finish. The drain line in
+    * the output tells how long that took and how many calls were cut off, and
+    * is logged per instance when the agent runs the stop.
+    */
    public static Statement stop(CinderellaConfig config) {
-      return call("stop_jetty", config.getHome(),  config.getEC2Port() + "", config.getUser());
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(call("drain_ports", "cinderella", config.getDrainTimeout() + "", config.getEC2Port() + ""))
+            .addAll(stopJettys(config))
+            .add(call("undrain_ports", config.getEC2Port() + "")).build());
+   }
+
+   /**
+    * stops jetty, or the federation and then the jetty of each backend
+    */
+   private static List<Statement> stopJettys(CinderellaConfig config) {
+      if (!config.isFederated())
+         return ImmutableList.of(call("stop_jetty", config.getHome(), config.getEC2Port() + "", config.getUser()));
+      ImmutableList.Builder<Statement> statements = ImmutableList.<Statement> builder();
+      statements.add(call("stop_java_service", FEDERATION_SERVICE, config.getHome()));
+      List<VCloudBackend> backends = config.getBackends();
+      for (int i = 0; i < backends.size(); i++)
+         statements.add(call("stop_jetty", backendHome(config, backends.get(i)), backendPort(config, i) + "",
+               config.getUser(), jettyName(backends.get(i))));
+      return statements.build();
+   }
+
+   /**
+    * Records jetty for {@code seconds}, then takes a thread dump and, when
+    * asked, a heap histogram, all into {@code dir}. When federated, the jetty
+    * of each backend is recorded at the same time, into a directory named
+    * after it. Prints a {@code profile file:} line for each file to fetch.
+    * This runs outside of whirr's scripts, so the function is sent along with
+    * the call.
+    */
+   public static Statement profile(CinderellaConfig config, int seconds, boolean histogram, String dir) {
+      String capture;
+      if (!config.isFederated()) {
+         capture = "capture_jvm_profile " + JETTY_PID_FILE + " " + config.getUser() + " " + seconds + " "
+               + histogram + " " + dir;
+      } else {
+         StringBuilder names = new StringBuilder();
+         for (VCloudBackend backend : config.getBackends())
+            names.append(' ').append(jettyName(backend));
+         capture = "capture_jvm_profiles " + config.getUser() + " " + seconds + " " + histogram + " " + dir + names;
+      }
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(exec(function(CinderellaStatements.class, "capture_jvm_profile")))
+            .add(exec(capture))
+            .build());
    }
 
    public static Statement cleanup(CinderellaConfig config) {
       return new StatementList(ImmutableSet.<Statement> builder()
-            .add(call("stop_jetty", config.getHome(),  config.getEC2Port() + "", config.getUser()))
+            .addAll(stopJettys(config))
             .add(exec("rm -rf ${HOME}/.cinderella " + config.getHome())).build());
    }
 }
@@ -20,15 +20,21 @@ package org.apache.whirr.service.cinderella;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.net.URI;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.whirr.service.cinderella.CinderellaConfig.Builder;
+import org.apache.whirr.service.common.RequiredConfiguration;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class CommonsConfigurationToCinderellaConfig implements Function<Configuration, CinderellaConfig> {
+   /** request threads of the jetty distribution cinderella runs in */
+   static final int JETTY_THREADS = 200;
+
    private final String prefix;
    private final String user;
 
@@ -37,27 +43,98 @@ public class CommonsConfigurationToCinderellaConfig implements Function<Configur
       this.user = checkNotNull(user, "user");
    }
 
-   @SuppressWarnings("unchecked")
-   static String getPropertyOrThrowReasonableNPE(String propertyKey, Configuration config) {
-      return checkNotNull(config.getString(propertyKey), "%s not in %s", propertyKey,
-            ImmutableSet.copyOf(config.getKeys()));
-   }
-
    @Override
    public CinderellaConfig apply(Configuration input) {
+      RequiredConfiguration required = new RequiredConfiguration(input, prefix);
       Builder builder = CinderellaConfig.builder();
       builder.user(user);
-      builder.home(getPropertyOrThrowReasonableNPE(prefix + ".home", input));
-      builder.ec2Port(Integer.parseInt(getPropertyOrThrowReasonableNPE(prefix + ".ec2.port", input)));
-      builder.ec2Version(getPropertyOrThrowReasonableNPE(prefix + ".ec2.version", input));
-      builder.authorizedAccessKey(getPropertyOrThrowReasonableNPE(prefix + ".auth.access-key", input));
-      builder.authorizedSecretKey(getPropertyOrThrowReasonableNPE(prefix + ".auth.secret-key", input));
-      builder.vCloudEndpoint(URI.create(getPropertyOrThrowReasonableNPE(prefix + ".vcloud.endpoint", input)));
-      builder.vCloudUserAtOrg(getPropertyOrThrowReasonableNPE(prefix + ".vcloud.useratorg", input));
-      builder.vCloudPassword(getPropertyOrThrowReasonableNPE(prefix + ".vcloud.password", input));
-      builder.war(URI.create(getPropertyOrThrowReasonableNPE(prefix + ".war.url", input)));
-      builder.jettyTar(URI.create(getPropertyOrThrowReasonableNPE(prefix + ".jetty.tar.url", input)));
+      builder.home(required.getString("home"));
+      int ec2Port = required.getPort("ec2.port");
+      builder.ec2Port(ec2Port);
+      builder.ec2Version(required.getString("ec2.version"));
+      builder.authorizedAccessKey(required.getString("auth.access-key"));
+      builder.authorizedSecretKey(required.getString("auth.secret-key"));
+      List<VCloudBackend> backends = backends(required);
+      builder.backends(backends);
+      if (backends.isEmpty()) {
+         builder.vCloudEndpoint(required.getURI("vcloud.endpoint"));
+         builder.vCloudUserAtOrg(required.getString("vcloud.useratorg"));
+         builder.vCloudPassword(required.getString("vcloud.password"));
+      } else {
+         builder.vCloudEndpoint(backends.get(0).getEndpoint());
+         builder.vCloudUserAtOrg(backends.get(0).getUserAtOrg());
+         builder.vCloudPassword(backends.get(0).getPassword());
+      }
+      int federationBasePort = required.getPort("federation.base-port");
+      builder.federationBasePort(federationBasePort);
+      builder.federationTimeout((int) required.getLong("federation.timeout", 1, Integer.MAX_VALUE));
+      if (ec2Port >= federationBasePort && ec2Port < federationBasePort + backends.size())
+         required.addProblem(prefix + ".ec2.port=" + ec2Port + " is one of the " + backends.size() + " ports from "
+               + prefix + ".federation.base-port=" + federationBasePort);
+      if (federationBasePort + backends.size() - 1 > 65535)
+         required.addProblem(prefix + ".federation.base-port=" + federationBasePort + " leaves no port for each of "
+               + backends.size() + " backends");
+      builder.war(required.getURI("war.url"));
+      builder.jettyTar(required.getURI("jetty.tar.url"));
+      builder.warmupEnabled(required.getBoolean("warmup.enabled"));
+      builder.warmupActions(required.getStringList("warmup.actions"));
+      builder.warmupRequests((int) required.getLong("warmup.requests", 1, Integer.MAX_VALUE));
+      builder.warmupTolerance((int) required.getLong("warmup.tolerance", 1, 100));
+      int maxConnections = (int) required.getLong("vcloud.max-connections", 1, Integer.MAX_VALUE);
+      builder.vCloudMaxConnections(maxConnections);
+      int maxConnectionsPerHost = (int) required.getLong("vcloud.max-connections-per-host", 0, Integer.MAX_VALUE);
+      builder.vCloudMaxConnectionsPerHost(maxConnectionsPerHost);
+      builder.vCloudConnectTimeout((int) required.getLong("vcloud.connect-timeout", 0, Integer.MAX_VALUE));
+      builder.vCloudReadTimeout((int) required.getLong("vcloud.read-timeout", 0, Integer.MAX_VALUE));
+      builder.vCloudUserThreads((int) required.getLong("vcloud.user-threads", 0, Integer.MAX_VALUE));
+      builder.vCloudIoThreads((int) required.getLong("vcloud.io-threads", 1, Integer.MAX_VALUE));
+      builder.vCloudSessionInterval((int) required.getLong("vcloud.session-interval", 1, Integer.MAX_VALUE));
+      builder.drainTimeout((int) required.getLong("drain.timeout", 0, 3600));
+      builder.heapDumpDir(required.getOptionalString("heap-dump.dir"));
+      builder.jar(required.getURI("jar.url"));
+      boolean admissionEnabled = required.getBoolean("admission.enabled");
+      builder.admissionEnabled(admissionEnabled);
+      builder.admissionRate((int) required.getLong("admission.rate", 1, Integer.MAX_VALUE));
+      builder.admissionBurst((int) required.getLong("admission.burst", 1, Integer.MAX_VALUE));
+      int admissionConcurrency = (int) required.getLong("admission.concurrency", 1, JETTY_THREADS);
+      builder.admissionConcurrency(admissionConcurrency);
+      int admissionQueue = (int) required.getLong("admission.queue", 0, JETTY_THREADS);
+      builder.admissionQueue(admissionQueue);
+      builder.admissionQueueTimeout((int) required.getLong("admission.queue-timeout", 0, Integer.MAX_VALUE));
+      builder.metricsEnabled(required.getBoolean("metrics.enabled"));
+      builder.metricsMaxAccessKeys((int) required.getLong("metrics.max-access-keys", 1, Integer.MAX_VALUE));
+      if (maxConnectionsPerHost > maxConnections)
+         required.addProblem(prefix + ".vcloud.max-connections-per-host=" + maxConnectionsPerHost + " is more than "
+               + prefix + ".vcloud.max-connections=" + maxConnections);
+      // rejections need threads of their own to be answered on
+      if (admissionEnabled && admissionConcurrency + admissionQueue >= JETTY_THREADS)
+         required.addProblem(prefix + ".admission.concurrency plus " + prefix + ".admission.queue is "
+               + (admissionConcurrency + admissionQueue) + ", which leaves none of jetty's " + JETTY_THREADS
+               + " request threads to reject calls on");
+      required.validate();
       return builder.build();
    }
+
+   /**
+    * reads the orgs listed in {@code backends}, each from its
+    * {@code backend.<name>.*} settings
+    */
+   private List<VCloudBackend> backends(RequiredConfiguration required) {
+      List<VCloudBackend> backends = Lists.newArrayList();
+      Set<String> names = Sets.newHashSet();
+      for (String name : required.getOptionalStringList("backends")) {
+         // names end up in file names and shell arguments
+         if (!name.matches("[A-Za-z0-9_-]+"))
+            required.addProblem(prefix + ".backends lists " + name + ", names may only hold letters, digits, - and _");
+         if (!names.add(name))
+            required.addProblem(prefix + ".backends lists " + name + " twice");
+         String key = "backend." + name;
+         String weight = required.getOptionalString(key + ".weight");
+         backends.add(new VCloudBackend(name, required.getURI(key + ".endpoint"), required.getString(key
+               + ".useratorg"), required.getString(key + ".password"), weight.isEmpty() ? 1 : (int) required
+               .getLong(key + ".weight", 1, 1000)));
+      }
+      return backends;
+   }
 }
 
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+
+import com.google.common.base.Objects;
+
+/**
+ * One vCloud org of a federated cinderella, with a cinderella of its own.
+ * 
+ * @see CinderellaConfig#getBackends()
+ */
+public class VCloudBackend {
+   private final String name;
+   private final URI endpoint;
+   private final String userAtOrg;
+   private final String password;
+   private final int weight;
+
+   public VCloudBackend(String name, URI endpoint, String userAtOrg, String password, int weight) {
+      this.name = checkNotNull(name, "name");
+      this.endpoint = checkNotNull(endpoint, "endpoint");
+      this.userAtOrg = checkNotNull(userAtOrg, "userAtOrg");
+      this.password = checkNotNull(password, "password");
+      this.weight = weight;
+   }
+
+   /**
+    * Names the backend in settings, file names and logs, ex. {@code lon01}
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @see CinderellaConfig#getVCloudEndpoint()
+    */
+   public URI getEndpoint() {
+      return endpoint;
+   }
+
+   /**
+    * @see CinderellaConfig#getVCloudUserAtOrg()
+    */
+   public String getUserAtOrg() {
+      return userAtOrg;
+   }
+
+   /**
+    * @see CinderellaConfig#getVCloudPassword()
+    */
+   public String getPassword() {
+      return password;
+   }
+
+   /**
+    * Share of new instances placed in this org when a RunInstances call names
+    * no availability zone, relative to the other backends (default 1)
+    */
+   public int getWeight() {
+      return weight;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(name, endpoint, userAtOrg, weight);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (obj == null)
+         return false;
+      if (getClass() != obj.getClass())
+         return false;
+      VCloudBackend other = VCloudBackend.class.cast(obj);
+      return Objects.equal(this.name, other.name) && Objects.equal(this.endpoint, other.endpoint)
+            && Objects.equal(this.userAtOrg, other.userAtOrg) && Objects.equal(this.weight, other.weight);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("name", name).add("endpoint", endpoint).add("userAtOrg", userAtOrg)
+            .add("weight", weight).toString();
+   }
+}
@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.admission;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which EC2 calls cinderella works on. Each access key draws from a
+ * token bucket of its own, at most {@code concurrency} calls run at once, and
+ * up to {@code queue} more wait for one of them to finish, calls that change
+ * instances ahead of those that only describe them. A call that finds no token
+ * or no room in the queue, or that waits past the queue timeout, is rejected
+ * at once, so the calls that are let in keep the latency of an unloaded
+ * backend.
+ * 
+ * <p/>
+ * This runs inside jetty next to cinderella, so it only uses the JDK.
+ */
+public class AdmissionController {
+
+   /** why a call was not admitted */
+   public static enum Rejection {
+      /** its access key has used up its tokens */
+      RATE,
+      /** the queue was full */
+      QUEUE,
+      /** it waited in the queue past the timeout */
+      TIMEOUT;
+   }
+
+   /**
+    * A slot among the calls running at once, to be released when the call is
+    * done.
+    */
+   public interface Permit {
+      void release();
+   }
+
+   /** access keys above this many have their idle buckets dropped */
+   static final int MAX_KEYS = 1024;
+
+   private static class TokenBucket {
+      private double tokens;
+      private long lastRefill;
+
+      TokenBucket(double tokens, long now) {
+         this.tokens = tokens;
+         this.lastRefill = now;
+      }
+   }
+
+   private static class Waiter implements Comparable<Waiter> {
+      final boolean urgent;
+      final long deadline;
+      final long sequence;
+      boolean granted;
+
+      Waiter(boolean urgent, long deadline, long sequence) {
+         this.urgent = urgent;
+         this.deadline = deadline;
+         this.sequence = sequence;
+      }
+
+      @Override
+      public int compareTo(Waiter that) {
+         if (urgent != that.urgent)
+            return urgent ? -1 : 1;
+         if (deadline != that.deadline)
+            return deadline < that.deadline ? -1 : 1;
+         return sequence < that.sequence ? -1 : sequence == that.sequence ? 0 : 1;
+      }
+   }
+
+   private final double ratePerNano;
+   private final int burst;
+   private final int concurrency;
+   private final int queueSize;
+   private final long queueTimeoutNanos;
+   private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+   private final PriorityQueue<Waiter> queue = new PriorityQueue<Waiter>();
+   private int running;
+   private long sequence;
+
+   private final AtomicLong admitted = new AtomicLong();
+   private final AtomicLong rejectedRate = new AtomicLong();
+   private final AtomicLong rejectedQueue = new AtomicLong();
+   private final AtomicLong rejectedTimeout = new AtomicLong();
+
+   /**
+    * @param rate
+    *           calls per second each access key is admitted at
+    * @param burst
+    *           calls an idle access key may send at once
+    * @param concurrency
+    *           calls running at once
+    * @param queue
+    *           calls waiting for one of those to finish
+    * @param queueTimeoutMillis
+    *           how long a call may wait
+    */
+   public AdmissionController(int rate, int burst, int concurrency, int queue, long queueTimeoutMillis) {
+      if (rate < 1 || burst < 1 || concurrency < 1 || queue < 0 || queueTimeoutMillis < 0)
+         throw new IllegalArgumentException("rate, burst and concurrency must be positive, queue and timeout not "
+               + "negative");
+      this.ratePerNano = rate / 1e9;
+      this.burst = burst;
+      this.concurrency = concurrency;
+      this.queueSize = queue;
+      this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+   }
+
+   /**
+    * @return false if {@code accessKey} has no token left, in which case the
+    *         call is rejected as {@link Rejection#RATE}
+    */
+   public boolean tryAcquireToken(String accessKey) {
+      long now = System.nanoTime();
+      TokenBucket bucket = buckets.get(accessKey);
+      if (bucket == null) {
+         if (buckets.size() >= MAX_KEYS)
+            dropIdleBuckets(now);
+         TokenBucket created = new TokenBucket(burst, now);
+         bucket = buckets.putIfAbsent(accessKey, created);
+         if (bucket == null)
+            bucket = created;
+      }
+      synchronized (bucket) {
+         refill(bucket, now);
+         if (bucket.tokens >= 1) {
+            bucket.tokens -= 1;
+            return true;
+         }
+      }
+      rejectedRate.incrementAndGet();
+      return false;
+   }
+
+   private void refill(TokenBucket bucket, long now) {
+      bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * ratePerNano);
+      bucket.lastRefill = now;
+   }
+
+   /**
+    * keys of anyone who can reach the port end up here, so those that refilled
+    * are forgotten; they would start full anyway
+    */
+   private void dropIdleBuckets(long now) {
+      for (Iterator<TokenBucket> i = buckets.values().iterator(); i.hasNext();) {
+         TokenBucket bucket = i.next();
+         synchronized (bucket) {
+            refill(bucket, now);
+            if (bucket.tokens >= burst)
+               i.remove();
+         }
+      }
+   }
+
+   /**
+    * Waits, up to the queue timeout, for a slot to run the call in.
+    * 
+    * @param urgent
+    *           whether the call goes ahead of those that are not
+    * @return the slot, or null if the call was rejected as
+    *         {@link Rejection#QUEUE} or {@link Rejection#TIMEOUT}
+    */
+   public Permit enter(boolean urgent) throws InterruptedException {
+      Waiter waiter;
+      synchronized (this) {
+         if (running < concurrency && queue.isEmpty()) {
+            running++;
+            return admit();
+         }
+         if (queue.size() >= queueSize) {
+            rejectedQueue.incrementAndGet();
+            return null;
+         }
+         waiter = new Waiter(urgent, System.nanoTime() + queueTimeoutNanos, sequence++);
+         queue.add(waiter);
+         try {
+            while (!waiter.granted) {
+               long remaining = waiter.deadline - System.nanoTime();
+               if (remaining <= 0)
+                  break;
+               TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+         } catch (InterruptedException e) {
+            // a slot handed over meanwhile goes to the next waiter
+            if (waiter.granted)
+               handOff();
+            else
+               queue.remove(waiter);
+            throw e;
+         }
+         if (!waiter.granted) {
+            queue.remove(waiter);
+            rejectedTimeout.incrementAndGet();
+            return null;
+         }
+      }
+      return admit();
+   }
+
+   private Permit admit() {
+      admitted.incrementAndGet();
+      return new Permit() {
+         private boolean released;
+
+         @Override
+         public void release() {
+            synchronized (AdmissionController.this) {
+               if (released)
+                  return;
+               released = true;
+               handOff();
+            }
+         }
+      };
+   }
+
+   /**
+    * passes the slot of a finished call straight to the first waiter still
+    * within its deadline, so no newcomer overtakes the queue
+    */
+   private void handOff() {
+      long now = System.nanoTime();
+      Waiter next;
+      while ((next = queue.poll()) != null) {
+         if (next.deadline - now > 0) {
+            next.granted = true;
+            notifyAll();
+            return;
+         }
+         // let it time out, its thread counts the rejection
+         notifyAll();
+      }
+      running--;
+   }
+
+   public long getAdmitted() {
+      return admitted.get();
+   }
+
+   public long getRejected(Rejection why) {
+      switch (why) {
+      case RATE:
+         return rejectedRate.get();
+      case QUEUE:
+         return rejectedQueue.get();
+      default:
+         return rejectedTimeout.get();
+      }
+   }
+
+   public synchronized int getRunning() {
+      return running;
+   }
+
+   public synchronized int getQueued() {
+      return queue.size();
+   }
+
+   @Override
+   public String toString() {
+      return "admitted=" + getAdmitted() + " running=" + getRunning() + " queued=" + getQueued() + " rejected(rate="
+            + getRejected(Rejection.RATE) + " queue=" + getRejected(Rejection.QUEUE) + " timeout="
+            + getRejected(Rejection.TIMEOUT) + ")";
+   }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.admission;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.whirr.service.cinderella.admission.AdmissionController.Permit;
+
+/**
+ * Puts an {@link AdmissionController} in front of cinderella. Jetty loads it
+ * from {@code lib/ext} for every webapp, as {@code etc/webdefault.xml} lists
+ * it, and it reads its limits from the {@code admission.*} settings of the
+ * file named by the {@code config} init parameter, which is
+ * {@code ec2-service.properties}.
+ * 
+ * <p/>
+ * Calls from the instance itself skip the token buckets, but not the
+ * concurrency limit. Rejected calls get the 503 {@code RequestLimitExceeded} error EC2 answers
+ * throttled calls with, which EC2 clients back off and retry on.
+ */
+public class AdmissionFilter implements Filter {
+   private static final Logger LOG = Logger.getLogger(AdmissionFilter.class.getName());
+
+   /** how often the counters are logged while calls are being rejected */
+   private static final long LOG_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+   private AdmissionController controller;
+   private volatile long lastLogged = System.nanoTime();
+   private volatile long lastRejected;
+
+   @Override
+   public void init(FilterConfig filterConfig) throws ServletException {
+      String config = filterConfig.getInitParameter("config");
+      if (config == null)
+         throw new ServletException("init parameter config, the file holding the admission settings, is not set");
+      Properties settings = new Properties();
+      try {
+         InputStream in = new FileInputStream(config);
+         try {
+            settings.load(in);
+         } finally {
+            in.close();
+         }
+         controller = new AdmissionController(Integer.parseInt(required(settings, "admission.rate")),
+               Integer.parseInt(required(settings, "admission.burst")), Integer.parseInt(required(settings,
+                     "admission.concurrency")), Integer.parseInt(required(settings, "admission.queue")),
+               Long.parseLong(required(settings, "admission.queue-timeout")));
+      } catch (IOException e) {
+         throw new ServletException("could not read " + config, e);
+      } catch (IllegalArgumentException e) {
+         throw new ServletException("invalid admission settings in " + config + ": " + e.getMessage(), e);
+      }
+      LOG.info("admitting EC2 calls with " + settings.getProperty("admission.rate") + "/s per access key, burst "
+            + settings.getProperty("admission.burst") + ", " + settings.getProperty("admission.concurrency")
+            + " at once and " + settings.getProperty("admission.queue") + " queued for "
+            + settings.getProperty("admission.queue-timeout") + "ms");
+   }
+
+   private static String required(Properties settings, String key) {
+      String value = settings.getProperty(key);
+      if (value == null)
+         throw new IllegalArgumentException(key + " is not set");
+      return value.trim();
+   }
+
+   @Override
+   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+         ServletException {
+      if (!(request instanceof HttpServletRequest)) {
+         chain.doFilter(request, response);
+         return;
+      }
+      HttpServletRequest http = (HttpServletRequest) request;
+      // the warm-up replays calls from the instance itself, as fast as it can
+      if (!isLoopback(clientAddress(http)) && !controller.tryAcquireToken(accessKey(http))) {
+         reject((HttpServletResponse) response, "Request limit exceeded for this access key.");
+         return;
+      }
+      Permit permit;
+      try {
+         permit = controller.enter(isUrgent(http.getParameter("Action")));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ServletException("interrupted awaiting admission", e);
+      }
+      if (permit == null) {
+         reject((HttpServletResponse) response, "Request limit exceeded.");
+         return;
+      }
+      try {
+         chain.doFilter(request, response);
+      } finally {
+         permit.release();
+      }
+   }
+
+   /**
+    * @return the access key of a signature version 2 or 4 call, or an empty
+    *         string for anonymous ones, which share a bucket
+    */
+   public static String accessKey(HttpServletRequest request) {
+      String authorization = request.getHeader("Authorization");
+      if (authorization != null) {
+         int credential = authorization.indexOf("Credential=");
+         if (credential >= 0) {
+            int slash = authorization.indexOf('/', credential);
+            return authorization.substring(credential + 11, slash > 0 ? slash : authorization.length()).trim();
+         }
+      }
+      String accessKey = request.getParameter("AWSAccessKeyId");
+      return accessKey != null ? accessKey : "";
+   }
+
+   /**
+    * @return the address of the caller, or of the client for calls the EC2
+    *         federation on the same instance forwarded
+    */
+   public static String clientAddress(HttpServletRequest request) {
+      String address = request.getRemoteAddr();
+      String forwardedFor = request.getHeader("X-Forwarded-For");
+      if (isLoopback(address) && forwardedFor != null && !forwardedFor.trim().isEmpty())
+         return forwardedFor.split(",")[0].trim();
+      return address;
+   }
+
+   public static boolean isLoopback(String address) {
+      return address != null && (address.startsWith("127.") || address.equals("::1")
+            || address.equals("0:0:0:0:0:0:0:1"));
+   }
+
+   /**
+    * calls that change instances go first; describe calls are mostly polling
+    * and are retried anyway
+    */
+   static boolean isUrgent(String action) {
+      return action != null && !action.startsWith("Describe");
+   }
+
+   private void reject(HttpServletResponse response, String message) throws IOException {
+      long now = System.nanoTime();
+      lastRejected = now;
+      if (now - lastLogged > LOG_INTERVAL) {
+         lastLogged = now;
+         LOG.warning("rejecting EC2 calls: " + controller);
+      }
+      response.setStatus(503);
+      response.setHeader("Retry-After", "1");
+      response.setContentType("text/xml;charset=UTF-8");
+      response.getWriter().write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Response><Errors><Error>"
+            + "<Code>RequestLimitExceeded</Code><Message>" + message + "</Message></Error></Errors><RequestID>"
+            + UUID.randomUUID() + "</RequestID></Response>");
+   }
+
+   @Override
+   public void destroy() {
+      if (lastRejected != 0)
+         LOG.info("admission at undeploy: " + controller);
+   }
+}
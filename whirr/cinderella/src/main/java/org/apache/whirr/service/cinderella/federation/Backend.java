@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.federation;
+
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The cinderella of one vCloud org, with a pool of threads of its own, so an
+ * org that is slow to answer ties up its own threads and not the others'.
+ * Calls beyond the pool are refused right away rather than queued.
+ * 
+ * <p/>
+ * A backend that failed {@code failures} calls in a row is skipped by calls
+ * that may go elsewhere for {@code coolDown} milliseconds, after which the next
+ * call tries it again.
+ */
+class Backend {
+   private final String name;
+   private final URI endpoint;
+   private final int weight;
+   private final int failures;
+   private final long coolDown;
+   private final ThreadPoolExecutor pool;
+   private final AtomicInteger consecutiveFailures = new AtomicInteger();
+   private volatile long downUntil;
+
+   /** smooth weighted round robin state, guarded by the federation */
+   int currentWeight;
+
+   Backend(final String name, URI endpoint, int weight, int threads, int failures, long coolDown) {
+      this.name = name;
+      this.endpoint = endpoint;
+      this.weight = weight;
+      this.failures = failures;
+      this.coolDown = coolDown;
+      this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+               private final AtomicInteger count = new AtomicInteger();
+
+               @Override
+               public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "backend-" + name + "-" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      pool.allowCoreThreadTimeOut(true);
+   }
+
+   String getName() {
+      return name;
+   }
+
+   URI getEndpoint() {
+      return endpoint;
+   }
+
+   int getWeight() {
+      return weight;
+   }
+
+   /**
+    * @throws java.util.concurrent.RejectedExecutionException
+    *            if every thread of this backend is busy
+    */
+   <T> Future<T> submit(Callable<T> call) {
+      return pool.submit(call);
+   }
+
+   boolean isHealthy() {
+      return downUntil <= System.currentTimeMillis();
+   }
+
+   void succeeded() {
+      consecutiveFailures.set(0);
+      downUntil = 0;
+   }
+
+   void failed() {
+      if (consecutiveFailures.incrementAndGet() >= failures)
+         downUntil = System.currentTimeMillis() + coolDown;
+   }
+
+   int busyThreads() {
+      return pool.getActiveCount();
+   }
+
+   void shutdown() {
+      pool.shutdownNow();
+   }
+
+   @Override
+   public String toString() {
+      return name + "(" + endpoint + ")";
+   }
+}
@@ -0,0 +1,783 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.federation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.w3c.dom.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One EC2 endpoint in front of the cinderellas of several vCloud orgs, so no
+ * single org's API throughput or quota caps the whole endpoint.
+ * 
+ * <ul>
+ * <li>Describe calls go to every healthy org in parallel, and the results of
+ * those that answer within {@code timeout} are merged</li>
+ * <li>calls naming instances, images, volumes or snapshots go to the org that
+ * holds them, learned from earlier responses. Ids not seen yet are tried on
+ * every org, as the others answer that they do not know them.</li>
+ * <li>RunInstances goes to the org holding the image, else to the one reporting
+ * the requested availability zone, else to the healthy orgs in turn by
+ * weight</li>
+ * <li>other calls, such as those on key pairs and security groups, are
+ * account-wide and go to every healthy org. CreateKeyPair is sent as
+ * ImportKeyPair of one key made by the federation, so every org holds the
+ * same key.</li>
+ * </ul>
+ * 
+ * Calls are checked against the client's version 2 signature and signed again
+ * for each cinderella, as the signature covers the host.
+ */
+public class EC2Federation implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(EC2Federation.class.getName());
+
+   /** learned owners of resources kept, least recently used dropped first */
+   static final int MAX_OWNERS = 100000;
+
+   private static final Pattern INDEXED = Pattern.compile("(\\w+)\\.(\\d+)");
+   private static final Set<String> ID_PARAMS = new HashSet<String>(Arrays.asList("InstanceId", "ImageId",
+         "VolumeId", "SnapshotId", "ResourceId"));
+
+   /**
+    * A backend response held in memory
+    */
+   static class Response {
+      final Backend backend;
+      final int status;
+      final String contentType;
+      final byte[] body;
+
+      Response(Backend backend, int status, String contentType, byte[] body) {
+         this.backend = backend;
+         this.status = status;
+         this.contentType = contentType;
+         this.body = body;
+      }
+
+      boolean isSuccess() {
+         return status >= 200 && status < 300;
+      }
+   }
+
+   private final List<Backend> backends;
+   private final String accessKey;
+   private final String secretKey;
+   private final int timeout;
+   private final int connectTimeout;
+   private final int readTimeout;
+   private final Map<String, Backend> owners = Collections.synchronizedMap(new LinkedHashMap<String, Backend>(16,
+         0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Backend> eldest) {
+         return size() > MAX_OWNERS;
+      }
+   });
+   private final Map<String, Backend> zones = new ConcurrentHashMap<String, Backend>();
+
+   public EC2Federation(List<Backend> backends, String accessKey, String secretKey, int timeout,
+         int connectTimeout, int readTimeout) {
+      this.backends = backends;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.timeout = timeout;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (exchange.getRequestURI().getPath().equals("/_federation/stats"))
+            respond(exchange, 200, "text/plain", stats().getBytes("UTF-8"));
+         else
+            route(exchange);
+      } catch (Exception e) {
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 500, "InternalError", "federation error");
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   private void route(HttpExchange exchange) throws Exception {
+      String method = exchange.getRequestMethod();
+      SortedMap<String, String> params = QuerySignatures.parse(exchange.getRequestURI().getRawQuery());
+      if ("POST".equals(method))
+         params.putAll(QuerySignatures.parse(new String(readFully(exchange.getRequestBody()), "UTF-8")));
+      if (!QuerySignatures.verify(method, exchange.getRequestHeaders().getFirst("Host"), exchange.getRequestURI()
+            .getRawPath(), params, accessKey, secretKey)) {
+         error(exchange, 401, "AuthFailure", "AWS was not able to validate the provided access credentials");
+         return;
+      }
+      String action = params.get("Action");
+      if (action == null) {
+         error(exchange, 400, "MissingParameter", "The request must contain the parameter Action");
+         return;
+      }
+      Call call = new Call(method, params, exchange.getRemoteAddress().getAddress().getHostAddress());
+      if (action.equals("RunInstances"))
+         runInstances(exchange, call);
+      else if (action.equals("CreateKeyPair"))
+         createKeyPair(exchange, call);
+      else if (!idParams(params).isEmpty())
+         routeByIds(exchange, call);
+      else if (action.startsWith("Describe"))
+         describe(exchange, call);
+      else
+         broadcast(exchange, call);
+   }
+
+   /**
+    * the parameters of a call, signed again for each backend
+    */
+   static class Call {
+      final String method;
+      final SortedMap<String, String> params;
+      final String client;
+
+      Call(String method, SortedMap<String, String> params, String client) {
+         this.method = method;
+         this.params = params;
+         this.client = client;
+      }
+
+      /**
+       * @return this call with the ids of the indexed parameter {@code name}
+       *         replaced by {@code ids}, numbered from 1
+       */
+      Call withIds(String name, List<String> ids) {
+         SortedMap<String, String> copy = new TreeMap<String, String>();
+         for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!param.getKey().startsWith(name + "."))
+               copy.put(param.getKey(), param.getValue());
+         }
+         for (int i = 0; i < ids.size(); i++)
+            copy.put(name + "." + (i + 1), ids.get(i));
+         return new Call(method, copy, client);
+      }
+   }
+
+   /**
+    * @return the parameters naming resources, by name
+    */
+   private static Map<String, String> idParams(Map<String, String> params) {
+      Map<String, String> ids = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, String> param : params.entrySet()) {
+         Matcher indexed = INDEXED.matcher(param.getKey());
+         if (ID_PARAMS.contains(indexed.matches() ? indexed.group(1) : param.getKey()))
+            ids.put(param.getKey(), param.getValue());
+      }
+      return ids;
+   }
+
+   private void runInstances(HttpExchange exchange, Call call) throws Exception {
+      Backend target = owners.get(call.params.get("ImageId"));
+      String zone = call.params.get("Placement.AvailabilityZone");
+      if (target == null && zone != null && !zone.isEmpty()) {
+         target = zones.get(zone);
+         if (target == null) {
+            learnZones(call);
+            target = zones.get(zone);
+         }
+         if (target == null) {
+            error(exchange, 400, "InvalidParameterValue", "No org reports the availability zone " + zone);
+            return;
+         }
+      }
+      List<Backend> tried = new ArrayList<Backend>();
+      while (true) {
+         Backend backend = target != null ? target : pick(tried);
+         if (backend == null) {
+            error(exchange, 503, "Unavailable", "No org is available");
+            return;
+         }
+         tried.add(backend);
+         try {
+            forward(exchange, backend, call);
+            return;
+         } catch (RejectedExecutionException e) {
+            // nothing was sent, so another org may take the instances
+         } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof ConnectException))
+               throw e;
+         }
+         if (target != null) {
+            error(exchange, 503, "Unavailable", "The org holding the image or zone is not available");
+            return;
+         }
+      }
+   }
+
+   /**
+    * Sends calls naming resources to their orgs. A call listing ids in one
+    * indexed parameter, such as {@code InstanceId.1}, is split by org, and
+    * the answers merged; ids not seen yet are tried one by one on every org.
+    * Other calls go whole to the org of their first known id, or to every org.
+    */
+   private void routeByIds(HttpExchange exchange, Call call) throws Exception {
+      Map<String, String> ids = idParams(call.params);
+      String name = null;
+      for (String param : ids.keySet()) {
+         Matcher indexed = INDEXED.matcher(param);
+         String base = indexed.matches() ? indexed.group(1) : param;
+         if (!indexed.matches() || name != null && !name.equals(base)) {
+            name = null;
+            break;
+         }
+         name = base;
+      }
+      if (name == null) {
+         for (String id : ids.values()) {
+            Backend owner = owners.get(id);
+            if (owner != null) {
+               forward(exchange, owner, call);
+               return;
+            }
+         }
+         List<Response> responses = probe(call, backends, waitFor(call));
+         relayMerged(exchange, responses, responses);
+         return;
+      }
+
+      Map<Backend, List<String>> byOwner = new LinkedHashMap<Backend, List<String>>();
+      List<String> unknown = new ArrayList<String>();
+      for (String id : ids.values()) {
+         Backend owner = owners.get(id);
+         if (owner == null) {
+            unknown.add(id);
+         } else {
+            if (!byOwner.containsKey(owner))
+               byOwner.put(owner, new ArrayList<String>());
+            byOwner.get(owner).add(id);
+         }
+      }
+      List<Backend> targets = new ArrayList<Backend>();
+      List<Future<Response>> futures = new ArrayList<Future<Response>>();
+      for (Map.Entry<Backend, List<String>> owned : byOwner.entrySet()) {
+         targets.add(owned.getKey());
+         futures.add(submitOrFail(owned.getKey(), call.withIds(name, owned.getValue())));
+      }
+      List<Response> known = awaitAll(targets, futures, readTimeout);
+      List<List<Response>> probes = new ArrayList<List<Response>>();
+      for (String id : unknown)
+         probes.add(probe(call.withIds(name, Collections.singletonList(id)), backends, waitFor(call)));
+      List<Response> probed = new ArrayList<Response>();
+      for (List<Response> responses : probes) {
+         Response found = firstSuccess(responses);
+         if (found == null) {
+            relayMerged(exchange, Collections.<Response> emptyList(), responses);
+            return;
+         }
+         probed.add(found);
+      }
+      for (int i = 0; i < known.size(); i++) {
+         if (known.get(i) == null) {
+            error(exchange, 503, "Unavailable", "The org " + targets.get(i).getName() + " did not answer");
+            return;
+         }
+         if (!known.get(i).isSuccess()) {
+            relay(exchange, known.get(i));
+            return;
+         }
+      }
+      known.addAll(probed);
+      relayMerged(exchange, known, known);
+   }
+
+   /**
+    * sends {@code call} to each of {@code targets} in parallel
+    */
+   private List<Response> probe(Call call, List<Backend> targets, long millis) throws Exception {
+      List<Future<Response>> futures = new ArrayList<Future<Response>>();
+      for (Backend backend : targets)
+         futures.add(submitOrFail(backend, call));
+      return awaitAll(targets, futures, millis);
+   }
+
+   /**
+    * Describe calls give up on a slow org after the federation timeout. Other
+    * calls wait as long as a single org would be waited for, as an org that
+    * is cut off may still act on them.
+    */
+   private long waitFor(Call call) {
+      return call.params.get("Action").startsWith("Describe") ? timeout : readTimeout;
+   }
+
+   private void forward(HttpExchange exchange, Backend backend, Call call) throws Exception {
+      Future<Response> future = submit(backend, call);
+      try {
+         Response response = future.get(readTimeout, TimeUnit.MILLISECONDS);
+         learn(response);
+         relay(exchange, response);
+      } catch (TimeoutException e) {
+         future.cancel(true);
+         backend.failed();
+         error(exchange, 503, "Unavailable", "The org " + backend.getName() + " did not answer");
+      }
+   }
+
+   private void describe(HttpExchange exchange, Call call) throws Exception {
+      List<Backend> targets = healthy();
+      List<Response> responses = probe(call, targets, timeout);
+      List<String> missing = new ArrayList<String>();
+      for (int i = 0; i < targets.size(); i++) {
+         Response response = responses.get(i);
+         if (response == null || !response.isSuccess())
+            missing.add(targets.get(i).getName());
+      }
+      if (!missing.isEmpty() && missing.size() < targets.size())
+         exchange.getResponseHeaders().set("X-Federation-Missing", join(missing));
+      relayMerged(exchange, responses, responses);
+   }
+
+   private void broadcast(HttpExchange exchange, Call call) throws Exception {
+      Response response = sendToAll(exchange, call, ".Duplicate", ".NotFound");
+      if (response != null)
+         relay(exchange, response);
+   }
+
+   /**
+    * EC2 would make a different key in each org, so the key is made here
+    * once and imported into every org instead. An org that already has a key
+    * of that name fails the call, as its key is not the one returned.
+    */
+   private void createKeyPair(HttpExchange exchange, Call call) throws Exception {
+      KeyPair keyPair = KeyPairs.generate();
+      SortedMap<String, String> params = new TreeMap<String, String>(call.params);
+      params.put("Action", "ImportKeyPair");
+      params.put("PublicKeyMaterial", DatatypeConverter.printBase64Binary(KeyPairs.openSshPublicKey(
+            (RSAPublicKey) keyPair.getPublic()).getBytes("UTF-8")));
+      Response imported = sendToAll(exchange, new Call(call.method, params, call.client));
+      if (imported == null)
+         return;
+      if (!imported.isSuccess()) {
+         relay(exchange, imported);
+         return;
+      }
+      String version = call.params.get("Version");
+      String keyName = call.params.get("KeyName");
+      respond(exchange, 200, "text/xml;charset=UTF-8", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<CreateKeyPairResponse xmlns=\"http://ec2.amazonaws.com/doc/" + (version == null ? "" : version)
+            + "/\"><requestId>" + UUID.randomUUID() + "</requestId><keyName>" + escape(keyName == null ? ""
+            : keyName) + "</keyName><keyFingerprint>" + KeyPairs.fingerprint(keyPair.getPrivate())
+            + "</keyFingerprint><keyMaterial>" + KeyPairs.pemPrivateKey(keyPair.getPrivate())
+            + "</keyMaterial></CreateKeyPairResponse>").getBytes("UTF-8"));
+   }
+
+   /**
+    * Sends an account-wide call to every healthy org. Errors whose code ends
+    * with one of {@code tolerated} count as success, so a retry after a
+    * partial failure completes. Orgs that are down or do not answer are named
+    * in {@code X-Federation-Missing} rather than failing the call, as a slow
+    * org should not block the rest.
+    * 
+    * @return the response to relay, or null if an error was sent as no org
+    *         answered
+    */
+   private Response sendToAll(HttpExchange exchange, Call call, String... tolerated) throws Exception {
+      List<Backend> targets = healthy();
+      List<Response> responses = probe(call, targets, readTimeout);
+      List<String> missing = new ArrayList<String>();
+      for (Backend backend : backends) {
+         if (!targets.contains(backend))
+            missing.add(backend.getName());
+      }
+      Response first = null;
+      Response success = null;
+      for (int i = 0; i < responses.size(); i++) {
+         Response response = responses.get(i);
+         if (response == null) {
+            missing.add(targets.get(i).getName());
+            continue;
+         }
+         if (first == null)
+            first = response;
+         if (response.isSuccess()) {
+            if (success == null)
+               success = response;
+         } else if (!isTolerated(ResponseMerger.errorCode(ResponseMerger.parse(response.body)), tolerated)) {
+            return response;
+         }
+      }
+      if (first == null) {
+         error(exchange, 503, "Unavailable", "No org answered");
+         return null;
+      }
+      if (!missing.isEmpty())
+         exchange.getResponseHeaders().set("X-Federation-Missing", join(missing));
+      return success != null ? success : first;
+   }
+
+   private static boolean isTolerated(String code, String... tolerated) {
+      if (code == null)
+         return false;
+      for (String suffix : tolerated) {
+         if (code.endsWith(suffix))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * merges the successful {@code responses}, or relays the first of
+    * {@code errors} when there are none
+    */
+   private void relayMerged(HttpExchange exchange, List<Response> responses, List<Response> errors)
+         throws Exception {
+      List<Document> documents = new ArrayList<Document>();
+      Response first = null;
+      for (Response response : responses) {
+         if (response != null && response.isSuccess()) {
+            documents.add(learn(response));
+            if (first == null)
+               first = response;
+         }
+      }
+      if (first != null) {
+         respond(exchange, first.status, first.contentType, documents.size() == 1 ? first.body : ResponseMerger
+               .merge(documents));
+         return;
+      }
+      for (Response error : errors) {
+         if (error != null) {
+            relay(exchange, error);
+            return;
+         }
+      }
+      error(exchange, 503, "Unavailable", "No org answered");
+   }
+
+   private static Response firstSuccess(List<Response> responses) {
+      for (Response response : responses) {
+         if (response != null && response.isSuccess())
+            return response;
+      }
+      return null;
+   }
+
+   /**
+    * records the org of the resources and zones a successful response names
+    * 
+    * @return the parsed response, or null if it is not a success
+    */
+   private Document learn(Response response) throws Exception {
+      if (!response.isSuccess())
+         return null;
+      Document document = ResponseMerger.parse(response.body);
+      Set<String> found = new HashSet<String>();
+      ResponseMerger.collect(document, ResponseMerger.ID_ELEMENTS, found);
+      for (String id : found)
+         owners.put(id, response.backend);
+      found.clear();
+      ResponseMerger.collect(document, ResponseMerger.ZONE_ELEMENTS, found);
+      for (String zone : found)
+         zones.put(zone, response.backend);
+      return document;
+   }
+
+   /**
+    * asks every org for its availability zones, signed with the federation's
+    * own credentials
+    */
+   private void learnZones(Call call) throws Exception {
+      SortedMap<String, String> params = new TreeMap<String, String>();
+      params.put("Action", "DescribeAvailabilityZones");
+      params.put("Version", call.params.get("Version"));
+      params.put("AWSAccessKeyId", accessKey);
+      params.put("SignatureVersion", "2");
+      params.put("SignatureMethod", "HmacSHA256");
+      SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+      iso8601.setTimeZone(TimeZone.getTimeZone("GMT"));
+      params.put("Timestamp", iso8601.format(new Date()));
+      for (Response response : probe(new Call("GET", params, call.client), backends, timeout)) {
+         if (response != null)
+            learn(response);
+      }
+   }
+
+   private List<Backend> healthy() {
+      List<Backend> healthy = new ArrayList<Backend>();
+      for (Backend backend : backends) {
+         if (backend.isHealthy())
+            healthy.add(backend);
+      }
+      // when every org looks down, trying them beats failing outright
+      return healthy.isEmpty() ? backends : healthy;
+   }
+
+   /**
+    * picks among the healthy orgs not yet tried by smooth weighted round
+    * robin, which spreads each org's share evenly over time
+    */
+   private synchronized Backend pick(Collection<Backend> tried) {
+      Backend best = null;
+      int total = 0;
+      for (Backend backend : healthy()) {
+         if (tried.contains(backend))
+            continue;
+         backend.currentWeight += backend.getWeight();
+         total += backend.getWeight();
+         if (best == null || backend.currentWeight > best.currentWeight)
+            best = backend;
+      }
+      if (best != null)
+         best.currentWeight -= total;
+      return best;
+   }
+
+   private Future<Response> submit(final Backend backend, final Call call) {
+      return backend.submit(new Callable<Response>() {
+         @Override
+         public Response call() throws Exception {
+            return send(backend, call);
+         }
+      });
+   }
+
+   /**
+    * @return the call's future, or null if the org has no thread free for it
+    */
+   private Future<Response> submitOrFail(Backend backend, Call call) {
+      try {
+         return submit(backend, call);
+      } catch (RejectedExecutionException e) {
+         LOG.fine(backend.getName() + " has no thread free");
+         backend.failed();
+         return null;
+      }
+   }
+
+   /**
+    * @return the responses in the order of {@code targets}, null for orgs that
+    *         failed or did not answer within {@code millis} altogether
+    */
+   private List<Response> awaitAll(List<Backend> targets, List<Future<Response>> futures, long millis)
+         throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      List<Response> responses = new ArrayList<Response>();
+      for (int i = 0; i < futures.size(); i++) {
+         Future<Response> future = futures.get(i);
+         Response response = null;
+         if (future != null) {
+            try {
+               response = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+               LOG.log(Level.FINE, targets.get(i).getName() + " failed", e.getCause());
+            } catch (TimeoutException e) {
+               future.cancel(true);
+               targets.get(i).failed();
+               LOG.fine(targets.get(i).getName() + " did not answer within " + millis + "ms");
+            }
+         }
+         responses.add(response);
+      }
+      return responses;
+   }
+
+   private Response send(Backend backend, Call call) throws IOException {
+      URI endpoint = backend.getEndpoint();
+      SortedMap<String, String> params = new TreeMap<String, String>(call.params);
+      params.remove("Signature");
+      String host = endpoint.getHost() + (endpoint.getPort() == -1 ? "" : ":" + endpoint.getPort());
+      String query = QuerySignatures.canonicalQuery(params) + "&Signature="
+            + QuerySignatures.encode(QuerySignatures.sign(call.method, host, "/", params, secretKey));
+      boolean post = "POST".equals(call.method);
+      try {
+         HttpURLConnection connection = (HttpURLConnection) endpoint.resolve(post ? "/" : "/?" + query).toURL()
+               .openConnection();
+         connection.setConnectTimeout(connectTimeout);
+         connection.setReadTimeout(readTimeout);
+         connection.setRequestMethod(call.method);
+         // the admission filter limits calls by the client, not the federation
+         connection.setRequestProperty("X-Forwarded-For", call.client);
+         if (post) {
+            byte[] body = query.getBytes("UTF-8");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+            OutputStream out = connection.getOutputStream();
+            try {
+               out.write(body);
+            } finally {
+               out.close();
+            }
+         }
+         int status = connection.getResponseCode();
+         InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+         Response response = new Response(backend, status, connection.getContentType(), in == null ? new byte[0]
+               : readFully(in));
+         if (status >= 500)
+            backend.failed();
+         else
+            backend.succeeded();
+         return response;
+      } catch (IOException e) {
+         backend.failed();
+         throw e;
+      }
+   }
+
+   private String stats() {
+      StringBuilder stats = new StringBuilder();
+      for (Backend backend : backends)
+         stats.append("backend ").append(backend.getName()).append(" healthy=").append(backend.isHealthy())
+               .append(" busy=").append(backend.busyThreads()).append('\n');
+      stats.append("owners ").append(owners.size()).append('\n');
+      stats.append("zones ").append(new TreeMap<String, Backend>(zones)).append('\n');
+      return stats.toString();
+   }
+
+   private static void relay(HttpExchange exchange, Response response) throws IOException {
+      respond(exchange, response.status, response.contentType, response.body);
+   }
+
+   private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+         throws IOException {
+      if (contentType != null)
+         exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+   }
+
+   private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+      respond(exchange, status, "text/xml;charset=UTF-8", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Response><Errors><Error><Code>" + code + "</Code><Message>" + message
+            + "</Message></Error></Errors><RequestID>" + UUID.randomUUID() + "</RequestID></Response>")
+            .getBytes("UTF-8"));
+   }
+
+   private static byte[] readFully(InputStream in) throws IOException {
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+            out.write(buffer, 0, n);
+         return out.toByteArray();
+      } finally {
+         in.close();
+      }
+   }
+
+   private static String escape(String text) {
+      return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+   }
+
+   private static String join(List<String> names) {
+      StringBuilder joined = new StringBuilder();
+      for (String name : names)
+         joined.append(joined.length() == 0 ? "" : ",").append(name);
+      return joined.toString();
+   }
+
+   /**
+    * Starts the federation with settings from the properties file named by
+    * the first argument.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      int threadsPerBackend = Integer.parseInt(settings.getProperty("backend.threads", "50"));
+      int failures = Integer.parseInt(settings.getProperty("health.failures", "3"));
+      long coolDown = Long.parseLong(settings.getProperty("health.cool-down", "30000"));
+      List<Backend> backends = new ArrayList<Backend>();
+      for (String name : settings.getProperty("backends", "").split(",")) {
+         name = name.trim();
+         if (name.isEmpty())
+            continue;
+         backends.add(new Backend(name, URI.create(settings.getProperty("backend." + name + ".url")), Integer
+               .parseInt(settings.getProperty("backend." + name + ".weight", "1")), threadsPerBackend, failures,
+               coolDown));
+      }
+      if (backends.isEmpty())
+         throw new IllegalArgumentException("backends lists no backend in " + args[0]);
+      // pooled keep-alive connections to each backend
+      System.setProperty("http.maxConnections", threadsPerBackend + "");
+
+      EC2Federation federation = new EC2Federation(backends, settings.getProperty("auth.access-key"),
+            settings.getProperty("auth.secret-key"), Integer.parseInt(settings.getProperty("timeout", "10000")),
+            Integer.parseInt(settings.getProperty("connect-timeout", "2000")), Integer.parseInt(settings
+                  .getProperty("read-timeout", "300000")));
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "8080"))), 1024);
+      server.createContext("/", federation);
+      server.setExecutor(Executors.newFixedThreadPool(Integer.parseInt(settings.getProperty("threads", "200"))));
+      server.start();
+      LOG.info("EC2 federation of " + backends + " listening on " + server.getAddress());
+   }
+}
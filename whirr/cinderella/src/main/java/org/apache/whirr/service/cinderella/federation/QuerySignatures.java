@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.federation;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Version 2 signatures of the EC2 Query API, which cover the host, so a call
+ * is signed again for each cinderella it is forwarded to.
+ */
+public class QuerySignatures {
+
+   /**
+    * @return the parameters of a query string or form body, in byte order as
+    *         the signature takes them
+    */
+   public static SortedMap<String, String> parse(String raw) {
+      SortedMap<String, String> params = new TreeMap<String, String>();
+      if (raw == null || raw.isEmpty())
+         return params;
+      for (String param : raw.split("&")) {
+         if (param.isEmpty())
+            continue;
+         int equals = param.indexOf('=');
+         String name = decode(equals == -1 ? param : param.substring(0, equals));
+         params.put(name, equals == -1 ? "" : decode(param.substring(equals + 1)));
+      }
+      return params;
+   }
+
+   /**
+    * @return {@code params} percent encoded as the signature requires, without
+    *         the signature itself
+    */
+   public static String canonicalQuery(SortedMap<String, String> params) {
+      StringBuilder query = new StringBuilder();
+      for (Map.Entry<String, String> param : params.entrySet()) {
+         if (param.getKey().equals("Signature"))
+            continue;
+         if (query.length() > 0)
+            query.append('&');
+         query.append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+      }
+      return query.toString();
+   }
+
+   public static String sign(String method, String host, String path, SortedMap<String, String> params,
+         String secretKey) {
+      String algorithm = "HmacSHA1".equals(params.get("SignatureMethod")) ? "HmacSHA1" : "HmacSHA256";
+      String stringToSign = method + "\n" + host.toLowerCase() + "\n" + (path.isEmpty() ? "/" : path) + "\n"
+            + canonicalQuery(params);
+      try {
+         Mac mac = Mac.getInstance(algorithm);
+         mac.init(new SecretKeySpec(secretKey.getBytes("UTF-8"), algorithm));
+         return DatatypeConverter.printBase64Binary(mac.doFinal(stringToSign.getBytes("UTF-8")));
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(algorithm + " is not available", e);
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * @return true if {@code params} carry a version 2 signature by
+    *         {@code accessKey} that matches the call
+    */
+   public static boolean verify(String method, String host, String path, SortedMap<String, String> params,
+         String accessKey, String secretKey) {
+      String signature = params.get("Signature");
+      if (signature == null || host == null || !"2".equals(params.get("SignatureVersion"))
+            || !accessKey.equals(params.get("AWSAccessKeyId")))
+         return false;
+      try {
+         // constant time, so the signature cannot be guessed byte by byte
+         return MessageDigest.isEqual(signature.getBytes("UTF-8"), sign(method, host, path, params, secretKey)
+               .getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * percent encodes all but the unreserved characters of RFC 3986
+    */
+   public static String encode(String value) {
+      try {
+         return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
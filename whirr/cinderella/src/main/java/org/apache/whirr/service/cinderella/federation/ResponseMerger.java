@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.federation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Merges EC2 responses of several backends into one, and picks out the
+ * resources and availability zones each backend answered with.
+ */
+class ResponseMerger {
+
+   /** elements naming resources that live in exactly one org */
+   static final Set<String> ID_ELEMENTS = new HashSet<String>(Arrays.asList("instanceId", "imageId", "volumeId",
+         "snapshotId"));
+
+   /** elements naming an availability zone */
+   static final Set<String> ZONE_ELEMENTS = new HashSet<String>(Arrays.asList("zoneName", "availabilityZone"));
+
+   /**
+    * Merges responses to the same call: the {@code item}s of each top level
+    * set, such as {@code reservationSet} or {@code availabilityZoneInfo}, are
+    * appended to those of the first response. Items whose first field, such as
+    * {@code regionName}, was already seen are left out, as every org reports
+    * the same region.
+    */
+   static byte[] merge(List<Document> responses) throws Exception {
+      Document template = responses.get(0);
+      for (Element set : sets(template.getDocumentElement())) {
+         Set<String> seen = new HashSet<String>();
+         for (Element item : children(set, "item"))
+            seen.add(identity(item));
+         for (Document other : responses.subList(1, responses.size())) {
+            Element otherSet = first(other.getDocumentElement(), set.getNodeName());
+            if (otherSet == null)
+               continue;
+            for (Element item : children(otherSet, "item")) {
+               if (seen.add(identity(item)))
+                  set.appendChild(template.importNode(item, true));
+            }
+         }
+      }
+      return serialize(template);
+   }
+
+   /**
+    * adds the text of every element named by one of {@code names} to
+    * {@code found}
+    */
+   static void collect(Node node, Set<String> names, Set<String> found) {
+      NodeList nodes = node.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         Node child = nodes.item(i);
+         if (!(child instanceof Element))
+            continue;
+         if (names.contains(child.getNodeName())) {
+            String text = child.getTextContent().trim();
+            if (!text.isEmpty())
+               found.add(text);
+         } else {
+            collect(child, names, found);
+         }
+      }
+   }
+
+   /**
+    * @return the {@code Code} of an EC2 error response, or null
+    */
+   static String errorCode(Document response) {
+      NodeList codes = response.getElementsByTagName("Code");
+      return codes.getLength() == 0 ? null : codes.item(0).getTextContent().trim();
+   }
+
+   static Document parse(byte[] xml) throws Exception {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(false);
+      return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+   }
+
+   static byte[] serialize(Document doc) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+      return out.toByteArray();
+   }
+
+   /**
+    * the sets directly under the root, which hold the results of a call
+    */
+   private static List<Element> sets(Element root) {
+      List<Element> result = new ArrayList<Element>();
+      NodeList nodes = root.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         Node node = nodes.item(i);
+         if (node instanceof Element && (node.getNodeName().endsWith("Set") || node.getNodeName().endsWith("Info")))
+            result.add((Element) node);
+      }
+      return result;
+   }
+
+   private static String identity(Element item) {
+      Element field = null;
+      NodeList nodes = item.getChildNodes();
+      for (int i = 0; i < nodes.getLength() && field == null; i++) {
+         if (nodes.item(i) instanceof Element)
+            field = (Element) nodes.item(i);
+      }
+      return field == null ? "" : field.getNodeName() + "=" + field.getTextContent().trim();
+   }
+
+   private static List<Element> children(Element parent, String name) {
+      List<Element> result = new ArrayList<Element>();
+      NodeList nodes = parent.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         Node node = nodes.item(i);
+         if (node instanceof Element && name.equals(node.getNodeName()))
+            result.add((Element) node);
+      }
+      return result;
+   }
+
+   private static Element first(Element parent, String name) {
+      NodeList nodes = parent.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         if (nodes.item(i) instanceof Element && name.equals(nodes.item(i).getNodeName()))
+            return (Element) nodes.item(i);
+      }
+      return null;
+   }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link ActionStats} by EC2 action and by access key. Both are named by
+ * clients, so past a limit new names are counted together as {@code other},
+ * which bounds the memory they take. Each is registered as an MXBean named
+ * {@code org.apache.whirr.cinderella:type=Action,name=<action>} or
+ * {@code type=AccessKey}, when JMX is given.
+ */
+public class ActionMetrics {
+   private static final Logger LOG = Logger.getLogger(ActionMetrics.class.getName());
+
+   public static final String DOMAIN = "org.apache.whirr.cinderella";
+   public static final String OTHER = "other";
+
+   private final ConcurrentMap<String, ActionStats> actions = new ConcurrentHashMap<String, ActionStats>();
+   private final ConcurrentMap<String, ActionStats> accessKeys = new ConcurrentHashMap<String, ActionStats>();
+   private final ActionStats otherActions = new ActionStats();
+   private final ActionStats otherAccessKeys = new ActionStats();
+   private final int maxActions;
+   private final int maxAccessKeys;
+   private final MBeanServer jmx;
+
+   public ActionMetrics(int maxActions, int maxAccessKeys, MBeanServer jmx) {
+      this.maxActions = maxActions;
+      this.maxAccessKeys = maxAccessKeys;
+      this.jmx = jmx;
+   }
+
+   public static ActionMetrics withPlatformJMX(int maxActions, int maxAccessKeys) {
+      return new ActionMetrics(maxActions, maxAccessKeys, ManagementFactory.getPlatformMBeanServer());
+   }
+
+   public ActionStats action(String action) {
+      return stats(actions, maxActions, otherActions, "Action", action);
+   }
+
+   public ActionStats accessKey(String accessKey) {
+      return stats(accessKeys, maxAccessKeys, otherAccessKeys, "AccessKey", accessKey);
+   }
+
+   /**
+    * looks up without allocating once a name was seen, or once the names are
+    * past {@code max}, as those share {@code other}
+    */
+   private ActionStats stats(ConcurrentMap<String, ActionStats> byName, int max, ActionStats other, String type,
+         String name) {
+      ActionStats stats = byName.get(name);
+      if (stats != null)
+         return stats;
+      if (byName.size() >= max) {
+         name = OTHER;
+         stats = other;
+      } else {
+         stats = new ActionStats();
+      }
+      ActionStats existing = byName.putIfAbsent(name, stats);
+      if (existing != null)
+         return existing;
+      register(type, name, stats);
+      return stats;
+   }
+
+   private void register(String type, String name, ActionStats stats) {
+      if (jmx == null)
+         return;
+      try {
+         jmx.registerMBean(stats, objectName(type, name));
+      } catch (JMException e) {
+         LOG.log(Level.WARNING, "could not register the metrics of " + type + " " + name, e);
+      }
+   }
+
+   private static ObjectName objectName(String type, String name) throws JMException {
+      return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+   }
+
+   /**
+    * unregisters every MXBean, as the webapp is undeployed
+    */
+   public void close() {
+      if (jmx == null)
+         return;
+      for (Map.Entry<String, ActionStats> action : actions.entrySet())
+         unregister("Action", action.getKey());
+      for (Map.Entry<String, ActionStats> accessKey : accessKeys.entrySet())
+         unregister("AccessKey", accessKey.getKey());
+   }
+
+   private void unregister(String type, String name) {
+      try {
+         jmx.unregisterMBean(objectName(type, name));
+      } catch (JMException ignored) {
+         // already gone
+      }
+   }
+
+   /**
+    * @return a line per action and per access key, in name order
+    */
+   public String report() {
+      StringBuilder report = new StringBuilder();
+      for (Map.Entry<String, ActionStats> action : new TreeMap<String, ActionStats>(actions).entrySet())
+         report.append("action ").append(action.getKey()).append(' ').append(action.getValue()).append('\n');
+      for (Map.Entry<String, ActionStats> accessKey : new TreeMap<String, ActionStats>(accessKeys).entrySet())
+         report.append("key ").append(accessKey.getKey()).append(' ').append(accessKey.getValue()).append('\n');
+      return report.toString();
+   }
+}
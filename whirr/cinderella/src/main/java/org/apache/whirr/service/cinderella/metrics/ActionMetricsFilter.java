@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.whirr.service.cinderella.admission.AdmissionFilter;
+
+/**
+ * Records {@link ActionMetrics} of every EC2 call, by its {@code Action}
+ * parameter and access key. Jetty loads it from {@code lib/ext} as
+ * {@code etc/webdefault.xml} lists it, ahead of the admission filter, so
+ * calls waiting for admission or rejected by it are counted too. It reads its
+ * limits from the {@code metrics.*} settings of the file named by the
+ * {@code config} init parameter, which is {@code ec2-service.properties}.
+ * 
+ * <p/>
+ * The metrics are MXBeans, and {@code GET /_metrics} from the instance itself
+ * answers them as text.
+ * 
+ * <p/>
+ * Recording a call allocates only a small wrapper of the response, as
+ * servlet 2.5 responses do not tell their status otherwise; the stats
+ * themselves are updated in place.
+ */
+public class ActionMetricsFilter implements Filter {
+   private static final Logger LOG = Logger.getLogger(ActionMetricsFilter.class.getName());
+
+   public static final String PATH = "/_metrics";
+
+   private ActionMetrics metrics;
+
+   @Override
+   public void init(FilterConfig filterConfig) throws ServletException {
+      String config = filterConfig.getInitParameter("config");
+      if (config == null)
+         throw new ServletException("init parameter config, the file holding the metrics settings, is not set");
+      Properties settings = new Properties();
+      try {
+         InputStream in = new FileInputStream(config);
+         try {
+            settings.load(in);
+         } finally {
+            in.close();
+         }
+         metrics = ActionMetrics.withPlatformJMX(Integer.parseInt(settings.getProperty("metrics.max-actions",
+               "256").trim()), Integer.parseInt(settings.getProperty("metrics.max-access-keys", "1000").trim()));
+      } catch (IOException e) {
+         throw new ServletException("could not read " + config, e);
+      } catch (NumberFormatException e) {
+         throw new ServletException("invalid metrics settings in " + config + ": " + e.getMessage(), e);
+      }
+      LOG.info("recording EC2 call metrics under " + ActionMetrics.DOMAIN + " and " + PATH);
+   }
+
+   @Override
+   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+         ServletException {
+      if (!(request instanceof HttpServletRequest)) {
+         chain.doFilter(request, response);
+         return;
+      }
+      HttpServletRequest http = (HttpServletRequest) request;
+      if (PATH.equals(http.getRequestURI()) && AdmissionFilter.isLoopback(http.getRemoteAddr())) {
+         byte[] report = metrics.report().getBytes("UTF-8");
+         response.setContentType("text/plain;charset=UTF-8");
+         response.setContentLength(report.length);
+         response.getOutputStream().write(report);
+         return;
+      }
+      String action = http.getParameter("Action");
+      ActionStats byAction = metrics.action(action == null ? "none" : action);
+      ActionStats byAccessKey = metrics.accessKey(AdmissionFilter.accessKey(http));
+      StatusRecorder recorder = new StatusRecorder((HttpServletResponse) response);
+      int status = 500;
+      byAction.started();
+      byAccessKey.started();
+      long start = System.nanoTime();
+      try {
+         chain.doFilter(request, recorder);
+         status = recorder.status;
+      } finally {
+         long nanos = System.nanoTime() - start;
+         byAction.finished(nanos, status);
+         byAccessKey.finished(nanos, status);
+      }
+   }
+
+   /**
+    * remembers the status, as servlet 2.5 responses do not tell it
+    */
+   static class StatusRecorder extends HttpServletResponseWrapper {
+      int status = 200;
+
+      StatusRecorder(HttpServletResponse response) {
+         super(response);
+      }
+
+      @Override
+      public void setStatus(int status) {
+         this.status = status;
+         super.setStatus(status);
+      }
+
+      @SuppressWarnings("deprecation")
+      @Override
+      public void setStatus(int status, String message) {
+         this.status = status;
+         super.setStatus(status, message);
+      }
+
+      @Override
+      public void sendError(int status) throws IOException {
+         this.status = status;
+         super.sendError(status);
+      }
+
+      @Override
+      public void sendError(int status, String message) throws IOException {
+         this.status = status;
+         super.sendError(status, message);
+      }
+   }
+
+   @Override
+   public void destroy() {
+      if (metrics != null) {
+         LOG.info("EC2 call metrics at undeploy:\n" + metrics.report());
+         metrics.close();
+      }
+   }
+}
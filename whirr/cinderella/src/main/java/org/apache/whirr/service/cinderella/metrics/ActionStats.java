@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls of one EC2 action or access key. Recording only updates atomic
+ * counters, so it allocates nothing and never blocks the call.
+ */
+public class ActionStats implements ActionStatsMXBean {
+   private final LatencyHistogram latency = new LatencyHistogram();
+   private final AtomicInteger inFlight = new AtomicInteger();
+   private final AtomicLong clientErrors = new AtomicLong();
+   private final AtomicLong serverErrors = new AtomicLong();
+
+   public void started() {
+      inFlight.incrementAndGet();
+   }
+
+   /**
+    * @param status
+    *           the status answered with, 500 if the call failed with an
+    *           exception
+    */
+   public void finished(long nanos, int status) {
+      inFlight.decrementAndGet();
+      latency.record(nanos);
+      if (status >= 500)
+         serverErrors.incrementAndGet();
+      else if (status >= 400)
+         clientErrors.incrementAndGet();
+   }
+
+   @Override
+   public long getCount() {
+      return latency.getCount();
+   }
+
+   @Override
+   public int getInFlight() {
+      return inFlight.get();
+   }
+
+   @Override
+   public long getClientErrors() {
+      return clientErrors.get();
+   }
+
+   @Override
+   public long getServerErrors() {
+      return serverErrors.get();
+   }
+
+   @Override
+   public double getMeanMillis() {
+      return latency.getMeanMillis();
+   }
+
+   @Override
+   public double getP50Millis() {
+      return latency.getQuantileMillis(0.5);
+   }
+
+   @Override
+   public double getP90Millis() {
+      return latency.getQuantileMillis(0.9);
+   }
+
+   @Override
+   public double getP99Millis() {
+      return latency.getQuantileMillis(0.99);
+   }
+
+   @Override
+   public double getMaxMillis() {
+      return latency.getMaxMillis();
+   }
+
+   @Override
+   public String toString() {
+      return String.format(Locale.ENGLISH, "count=%d inflight=%d 4xx=%d 5xx=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms "
+            + "max=%.1fms", getCount(), getInFlight(), getClientErrors(), getServerErrors(), getMeanMillis(),
+            getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis());
+   }
+}
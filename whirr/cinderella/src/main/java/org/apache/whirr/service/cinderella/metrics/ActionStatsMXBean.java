@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+/**
+ * EC2 calls of one action, or by one access key, as seen by jetty.
+ * Latencies are in milliseconds.
+ */
+public interface ActionStatsMXBean {
+
+   long getCount();
+
+   int getInFlight();
+
+   /** calls answered with a 4xx status, such as a bad parameter */
+   long getClientErrors();
+
+   /** calls answered with a 5xx status, or that failed with an exception */
+   long getServerErrors();
+
+   double getMeanMillis();
+
+   double getP50Millis();
+
+   double getP90Millis();
+
+   double getP99Millis();
+
+   double getMaxMillis();
+}
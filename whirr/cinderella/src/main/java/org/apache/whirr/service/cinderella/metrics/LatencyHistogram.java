@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies counted in fixed buckets, so recording one allocates nothing and
+ * takes a few atomic increments. Below 8 microseconds each microsecond has a
+ * bucket; above, each power of two is split in four, so a quantile is within
+ * a quarter of the true value.
+ */
+public class LatencyHistogram {
+   private static final int SUB_BUCKETS = 4;
+   private static final int LINEAR = 2 * SUB_BUCKETS;
+   /** up to 2^40 microseconds, about 12 days */
+   private static final int BUCKETS = LINEAR + (40 - 3) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong totalMicros = new AtomicLong();
+   private final AtomicLong maxMicros = new AtomicLong();
+
+   public void record(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      counts.incrementAndGet(bucket(micros));
+      count.incrementAndGet();
+      totalMicros.addAndGet(micros);
+      for (long max = maxMicros.get(); micros > max; max = maxMicros.get()) {
+         if (maxMicros.compareAndSet(max, micros))
+            break;
+      }
+   }
+
+   static int bucket(long micros) {
+      if (micros < LINEAR)
+         return (int) micros;
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+      return Math.min(BUCKETS - 1, LINEAR + (exponent - 3) * SUB_BUCKETS + sub);
+   }
+
+   /**
+    * @return the highest latency, in microseconds, that falls in
+    *         {@code bucket}
+    */
+   static long upperBound(int bucket) {
+      if (bucket < LINEAR)
+         return bucket;
+      int exponent = (bucket - LINEAR) / SUB_BUCKETS + 3;
+      int sub = (bucket - LINEAR) % SUB_BUCKETS;
+      return (1L << exponent) + ((sub + 1L) << (exponent - 2)) - 1;
+   }
+
+   public long getCount() {
+      return count.get();
+   }
+
+   public double getMeanMillis() {
+      long n = count.get();
+      return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+   }
+
+   public double getMaxMillis() {
+      return maxMicros.get() / 1000.0;
+   }
+
+   /**
+    * @return the latency, in milliseconds, below which {@code quantile} of the
+    *         calls fell, such as 0.99, or 0 before any call. Counts recorded
+    *         meanwhile may be seen in part.
+    */
+   public double getQuantileMillis(double quantile) {
+      long total = 0;
+      long[] snapshot = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++)
+         total += snapshot[i] = counts.get(i);
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank)
+            return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+      }
+      return getMaxMillis();
+   }
+}
@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.profile;
+
+import static org.apache.whirr.RolePredicates.role;
+import static org.jclouds.compute.predicates.NodePredicates.withIds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import joptsimple.OptionException;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.command.AbstractClusterCommand;
+import org.apache.whirr.service.cinderella.CinderellaConfig;
+import org.apache.whirr.service.cinderella.CinderellaStatements;
+import org.apache.whirr.service.cinderella.CommonsConfigurationToCinderellaConfig;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.ssh.SshClient;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * {@code whirr profile-cinderella} records the JVM of the chosen
+ * {@code cinderella} instances, all of them by default, at the same time. Each
+ * gets a flight recording covering CPU, allocation and lock contention, or
+ * where the JDK has no flight recorder, a stack sample per second and the GC
+ * counters. A thread dump follows, and a heap histogram if asked for. When
+ * federated, the jetty of every backend is recorded, each into a directory of
+ * its own. The files are fetched into a directory per instance.
+ */
+public class ProfileCinderellaCommand extends AbstractClusterCommand {
+
+   static final String PROFILE_FILE = "profile file: ";
+   private static final String REMOTE_DIR = "/tmp/cinderella-profile";
+
+   private final OptionSpec<String> instances = parser.accepts("instances",
+         "Ids or addresses of the cinderella instances to profile, all by default").withRequiredArg()
+         .ofType(String.class).withValuesSeparatedBy(',');
+   private final OptionSpec<Integer> duration = parser.accepts("duration", "Seconds to record, at most 600")
+         .withRequiredArg().ofType(Integer.class).defaultsTo(60);
+   private final OptionSpec<Void> histogram = parser.accepts("histogram", "Also take a heap histogram");
+   private final OptionSpec<File> output = parser.accepts("output",
+         "Directory to fetch into, profiles/<time> in the cluster directory by default").withRequiredArg()
+         .ofType(File.class);
+
+   public ProfileCinderellaCommand() {
+      this(new ClusterControllerFactory());
+   }
+
+   public ProfileCinderellaCommand(ClusterControllerFactory factory) {
+      super("profile-cinderella", "Record the JVM of cinderella instances and fetch the results.", factory);
+   }
+
+   @Override
+   public int run(InputStream in, PrintStream out, PrintStream err, List<String> args) throws Exception {
+      OptionSet options;
+      try {
+         options = parser.parse(args.toArray(new String[args.size()]));
+      } catch (OptionException e) {
+         err.println(e.getMessage());
+         printUsage(err);
+         return -1;
+      }
+      int seconds = options.valueOf(duration);
+      if (seconds < 1 || seconds > 600) {
+         err.println("--duration must be between 1 and 600 seconds");
+         return -1;
+      }
+      ClusterSpec spec = getClusterSpec(options);
+      ClusterController controller = createClusterController(spec.getServiceName());
+
+      CompositeConfiguration settings = new CompositeConfiguration();
+      settings.addConfiguration(spec.getConfiguration());
+      settings.addConfiguration(new PropertiesConfiguration(getClass().getClassLoader().getResource(
+            "whirr-cinderella-default.properties")));
+      CinderellaConfig config;
+      try {
+         config = new CommonsConfigurationToCinderellaConfig("cinderella", spec.getClusterUser()).apply(settings);
+      } catch (IllegalArgumentException e) {
+         err.println(e.getMessage());
+         return -1;
+      }
+
+      Set<String> ids = select(getCluster(spec, controller).getInstances(), options.valuesOf(instances));
+      if (ids.isEmpty()) {
+         err.println("No cinderella instance matches " + options.valuesOf(instances));
+         return -1;
+      }
+      File target = options.has(output) ? options.valueOf(output) : new File(spec.getClusterDirectory(),
+            "profiles/" + new SimpleDateFormat("yyyyMMdd'T'HHmmss").format(new Date()));
+
+      out.println("Recording " + ids.size() + " cinderella instance(s) for " + seconds + "s");
+      // withIds tests any ComputeMetadata, runScriptOnNodesMatching wants nodes
+      Predicate<NodeMetadata> selected = Predicates.<NodeMetadata> and(withIds(ids.toArray(new String[ids.size()])));
+      Map<? extends NodeMetadata, ExecResponse> responses = controller.runScriptOnNodesMatching(spec, selected,
+            CinderellaStatements.profile(config, seconds, options.has(histogram), REMOTE_DIR));
+
+      Function<NodeMetadata, SshClient> ssh = controller.getCompute().apply(spec).utils().sshForNode();
+      LoginCredentials login = LoginCredentials.builder().user(spec.getClusterUser())
+            .privateKey(spec.getPrivateKey()).build();
+      int failed = 0;
+      for (Map.Entry<? extends NodeMetadata, ExecResponse> response : responses.entrySet()) {
+         NodeMetadata node = response.getKey();
+         String name = Iterables.getFirst(node.getPrivateAddresses(), node.getId()).replaceAll("[^\\w.-]", "_");
+         List<String> files = profileFiles(response.getValue().getOutput());
+         if (response.getValue().getExitStatus() != 0 || files.isEmpty()) {
+            err.println(name + ": profiling failed: " + response.getValue().getOutput().trim() + " "
+                  + response.getValue().getError().trim());
+            failed++;
+            continue;
+         }
+         File dir = new File(target, name);
+         fetch(ssh.apply(NodeMetadataBuilder.fromNodeMetadata(node).credentials(login).build()), files, dir);
+         out.println(name + ": " + dir);
+      }
+      return failed == 0 ? 0 : -1;
+   }
+
+   /**
+    * @return ids of the {@code cinderella} instances whose id or address is in
+    *         {@code wanted}, or of all of them if it is empty
+    */
+   static Set<String> select(Set<Instance> cluster, List<String> wanted) {
+      Set<String> ids = Sets.newLinkedHashSet();
+      for (Instance instance : Iterables.filter(cluster, role("cinderella")))
+         if (wanted.isEmpty() || wanted.contains(instance.getId()) || wanted.contains(instance.getPublicIp())
+               || wanted.contains(instance.getPrivateIp()))
+            ids.add(instance.getId());
+      return ids;
+   }
+
+   /**
+    * @return the remote paths {@code capture_jvm_profile} listed
+    */
+   static List<String> profileFiles(String output) {
+      List<String> files = Lists.newArrayList();
+      for (String line : output.split("\n"))
+         if (line.startsWith(PROFILE_FILE))
+            files.add(line.substring(PROFILE_FILE.length()).trim());
+      return files;
+   }
+
+   private static void fetch(SshClient ssh, List<String> files, File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      ssh.connect();
+      try {
+         for (String file : files) {
+            InputStream input = ssh.get(file).getInput();
+            // federated backends each record into a directory of their own
+            File local = new File(dir, file.substring(REMOTE_DIR.length() + 1));
+            if (!local.getParentFile().isDirectory() && !local.getParentFile().mkdirs())
+               throw new IOException("Cannot create " + local.getParentFile());
+            OutputStream copy = new FileOutputStream(local);
+            try {
+               ByteStreams.copy(input, copy);
+            } finally {
+               Closeables.closeQuietly(input);
+               copy.close();
+            }
+         }
+         // profiles are not kept on the instance, so recording again is safe
+         ssh.exec("sudo rm -rf " + REMOTE_DIR);
+      } finally {
+         ssh.disconnect();
+      }
+   }
+}
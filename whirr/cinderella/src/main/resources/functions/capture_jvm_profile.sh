@@ -0,0 +1,112 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function jdk_tool() {
+  local JAVA_BIN=${1}
+  local TOOL=${2}
+
+  # the tools next to the running java match its version; a jre has none
+  if [ -x $JAVA_BIN/$TOOL ]; then
+    echo $JAVA_BIN/$TOOL
+  elif [ -x $JAVA_BIN/../../bin/$TOOL ]; then
+    echo $JAVA_BIN/../../bin/$TOOL
+  else
+    which $TOOL
+  fi
+}
+
+function capture_jvm_profile() {
+  local PID_FILE=${1}
+  local JVM_USER=${2}
+  local DURATION=${3}
+  local HISTOGRAM=${4}
+  local DIR=${5}
+  local PID=$(cat $PID_FILE 2> /dev/null)
+
+  if [ -z "$PID" ] || ! kill -0 $PID 2> /dev/null; then
+    echo "no jvm is running from $PID_FILE"
+    return 1
+  fi
+  # only the user a jvm runs as may attach to it
+  local AS="sudo -n -H -u $JVM_USER"
+  local JAVA_BIN=$(dirname $(readlink -f /proc/$PID/exe))
+  local JCMD=$(jdk_tool $JAVA_BIN jcmd)
+  local JSTACK=$(jdk_tool $JAVA_BIN jstack)
+  rm -rf $DIR && mkdir -p $DIR && chown $JVM_USER $DIR || return 1
+
+  if [ -n "$JCMD" ] && $AS $JCMD $PID JFR.start name=whirr settings=profile duration=${DURATION}s \
+      filename=$DIR/profile.jfr > $DIR/jfr.txt 2>&1 && ! grep -qi "error\|not enabled\|unlock" $DIR/jfr.txt; then
+    # the profile settings sample cpu, allocations and lock contention for a
+    # few percent of overhead; the file is written once the recording ends
+    echo "recording $PID with the flight recorder for ${DURATION}s"
+    sleep $DURATION
+    local i
+    for i in $(seq 1 30); do
+      $AS $JCMD $PID JFR.check name=whirr 2> /dev/null | grep -q "name=whirr" || break
+      sleep 1
+    done
+  else
+    # no flight recorder in this jdk: sample every thread once a second.
+    # RUNNABLE stacks show where cpu goes and BLOCKED ones which locks are
+    # contended, while the gc counters give the allocation rate
+    echo "sampling $PID with jstack for ${DURATION}s"
+    local JSTAT=$(jdk_tool $JAVA_BIN jstat)
+    [ -n "$JSTAT" ] && $AS $JSTAT -gc -t $PID 1000 $DURATION > $DIR/gc.txt 2>&1 &
+    local i
+    for i in $(seq 1 $DURATION); do
+      $AS $JSTACK $PID >> $DIR/stacks.txt 2>&1
+      sleep 1
+    done
+    wait
+  fi
+  rm -f $DIR/jfr.txt
+
+  $AS $JSTACK -l $PID > $DIR/threads.txt 2>&1
+  if [ "$HISTOGRAM" = "true" ]; then
+    # without :live, so it does not force a full collection
+    $AS $(jdk_tool $JAVA_BIN jmap) -histo $PID > $DIR/histogram.txt 2>&1
+  fi
+
+  chmod a+r $DIR/*
+  local FILE
+  for FILE in $DIR/*; do
+    echo "profile file: $FILE"
+  done
+  return 0
+}
+
+function capture_jvm_profiles() {
+  local JVM_USER=${1}
+  local DURATION=${2}
+  local HISTOGRAM=${3}
+  local DIR=${4}
+  shift 4
+
+  # one jetty per backend, each named after its pid file, all recorded at
+  # once into a directory of its own
+  local NAME
+  local PIDS=""
+  for NAME in "$@"; do
+    capture_jvm_profile /var/run/$NAME.pid $JVM_USER $DURATION $HISTOGRAM $DIR/$NAME &
+    PIDS="$PIDS $!"
+  done
+  local PID
+  local FAILED=0
+  for PID in $PIDS; do
+    wait $PID || FAILED=1
+  done
+  return $FAILED
+}
@@ -0,0 +1,32 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function clone_jetty() {
+  local SOURCE=$1
+  local TARGET=$2
+  local JETTY_USER=$3
+
+  # once: the webapp is only downloaded once too, and settings are written to
+  # each copy on its own
+  if [ -f $TARGET/start.jar ]; then
+    return 0
+  fi
+  echo "copying jetty and cinderella from $SOURCE to $TARGET"
+  mkdir -p $TARGET &&
+  (cd $SOURCE && tar -cf - --exclude=./backends --exclude='./ec2-service.properties*' --exclude='./logs/*' .) |
+    (cd $TARGET && tar -xf -) &&
+  chown -R $JETTY_USER $TARGET
+}
@@ -0,0 +1,56 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function configure_filter() {
+  local JETTY_HOME=$1
+  local NAME=$2
+  local ENABLED=$3
+  local FILTER_CLASS=$4
+  local CONFIG=$5
+  local WEBDEFAULT=$JETTY_HOME/etc/webdefault.xml
+  local BEGIN="<!-- begin whirr $NAME -->"
+  local END="<!-- end whirr $NAME -->"
+
+  # drop what an earlier configure added, then add it back if still wanted.
+  # Filters run in the order they were configured in, as each is appended.
+  sed -i -e "\|$BEGIN|,\|$END|d" $WEBDEFAULT
+  if [ "$ENABLED" != "true" ]; then
+    return 0
+  fi
+  if [ ! -f $JETTY_HOME/lib/ext/whirr-cinderella.jar ]; then
+    echo "the $NAME filter was enabled after install; $JETTY_HOME/lib/ext/whirr-cinderella.jar is missing"
+    return 1
+  fi
+
+  # webdefault.xml applies to every webapp before its own web.xml, so the
+  # filter runs ahead of anything cinderella maps
+  local FILTER="  $BEGIN\n\
+  <filter>\n\
+    <filter-name>whirr-$NAME</filter-name>\n\
+    <filter-class>$FILTER_CLASS</filter-class>\n\
+    <init-param>\n\
+      <param-name>config</param-name>\n\
+      <param-value>$CONFIG</param-value>\n\
+    </init-param>\n\
+  </filter>\n\
+  <filter-mapping>\n\
+    <filter-name>whirr-$NAME</filter-name>\n\
+    <url-pattern>/*</url-pattern>\n\
+  </filter-mapping>\n\
+  $END"
+  sed -i -e "s|</web-app>|$FILTER\n</web-app>|" $WEBDEFAULT
+  echo "$NAME filter enabled in $WEBDEFAULT"
+}
@@ -0,0 +1,62 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Deploys WAR as root.war of the jetty in JETTY_HOME when it differs from the
+# one there. A running jetty redeploys it from its webapps scanner, without
+# restarting the jvm, and this waits until cinderella answers again.
+function deploy_war() {
+  local WAR=$1
+  local JETTY_HOME=$2
+  local JETTY_USER=$3
+  local NAME=${4:-jetty}
+  local DEPLOYED=$JETTY_HOME/webapps/root.war
+
+  if [ -f $DEPLOYED ] && cmp -s $WAR $DEPLOYED; then
+    echo "$DEPLOYED is current"
+    return 0
+  fi
+
+  # copied beside webapps and renamed, so the scanner never sees half a war
+  mkdir -p $JETTY_HOME/webapps
+  cp -f $WAR $JETTY_HOME/root.war.new &&
+  chown $JETTY_USER $JETTY_HOME/root.war.new &&
+  mv -f $JETTY_HOME/root.war.new $DEPLOYED || return 1
+
+  # nothing is running yet (first launch); start_jetty will deploy it
+  if [ ! -f /etc/default/$NAME ]; then
+    return 0
+  fi
+
+  local JETTY_PORT=$(. /etc/default/$NAME; echo $JETTY_PORT)
+  if ! curl -s -o /dev/null http://localhost:${JETTY_PORT}/; then
+    echo "jetty is not running; $DEPLOYED will be deployed on start"
+    return 0
+  fi
+
+  echo "redeploying cinderella from $WAR"
+  sleep 2
+  local attempt=0
+  until curl -s -o /dev/null http://localhost:${JETTY_PORT}/; do
+    attempt=$(( attempt + 1 ))
+    if (( $attempt >= 40 )); then
+      echo "cinderella did not come back on port $JETTY_PORT"
+      return 1
+    fi
+    sleep 2
+  done
+  return 0
+}
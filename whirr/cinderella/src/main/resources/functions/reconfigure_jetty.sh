@@ -0,0 +1,69 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+function reconfigure_jetty() {
+  local JETTY_HOME=$1
+  local JETTY_PORT=$2
+  local JETTY_USER=$3
+  local NAME=${4:-jetty}
+  local CONFIG=$JETTY_HOME/ec2-service.properties
+
+  if [ -f $CONFIG ] && cmp -s $CONFIG.new $CONFIG; then
+    echo "$CONFIG is unchanged"
+    rm -f $CONFIG.new
+    return 0
+  fi
+
+  mv -f $CONFIG.new $CONFIG
+  chown $JETTY_USER $CONFIG
+
+  # nothing is running yet (first launch); start_jetty will read the new file
+  if [ ! -f /etc/default/$NAME ]; then
+    return 0
+  fi
+
+  local RUNNING_PORT=$(. /etc/default/$NAME; echo $JETTY_PORT)
+  if ! curl -s -o /dev/null http://localhost:${RUNNING_PORT}/; then
+    echo "jetty is not running; $CONFIG will be read on start"
+    return 0
+  fi
+
+  if [ "$RUNNING_PORT" != "$JETTY_PORT" ]; then
+    # the connector port is only read when jetty starts
+    echo "port changed from $RUNNING_PORT to $JETTY_PORT, restarting jetty"
+    sed -i -e "s/^JETTY_PORT=.*/JETTY_PORT=$JETTY_PORT/" /etc/default/$NAME
+    cd $JETTY_HOME &&
+    ./bin/$NAME.sh restart
+  else
+    # the webapps scanner redeploys root.war when its timestamp changes, which
+    # reloads ec2-service.properties without restarting the jvm
+    echo "redeploying cinderella to pick up $CONFIG"
+    touch $JETTY_HOME/webapps/root.war
+    sleep 2
+  fi
+
+  local attempt=0
+  until curl -s -o /dev/null http://localhost:${JETTY_PORT}/; do
+    attempt=$(( attempt + 1 ))
+    if (( $attempt >= 40 )); then
+      echo "cinderella did not come back on port $JETTY_PORT"
+      return 1
+    fi
+    sleep 2
+  done
+  return 0
+}
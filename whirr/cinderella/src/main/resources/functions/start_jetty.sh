@@ -53,13 +53,32 @@ function start_jetty() {
   export JETTY_HOME=$1
   export JETTY_PORT=$2
   export JETTY_USER=$3
+  local HEAP_DUMP_DIR=$4
+  # jetty.sh reads /etc/default/<name> and writes /var/run/<name>.pid, after
+  # the name it is run as, so several jettys can run side by side
+  local NAME=${5:-jetty}
   
   export JAVA_OPTIONS="-Xms256m -Xmx512m -XX:PermSize=64m -XX:MaxPermSize=128m -verbose:gc"
+  if [ -n "$HEAP_DUMP_DIR" ]; then
+    # written as java_pid<pid>.hprof, so dumps of earlier runs are kept
+    mkdir -p $HEAP_DUMP_DIR && chown $JETTY_USER $HEAP_DUMP_DIR &&
+    JAVA_OPTIONS="$JAVA_OPTIONS -XX:+HeapDumpOnOutOfMemoryError -XX:HeapDumpPath=$HEAP_DUMP_DIR"
+  fi
   
+  # jetty.sh reads this on every invocation, so restart and stop see the same
+  # environment as the original start
+  cat > /etc/default/$NAME <<END
+JETTY_HOME=$JETTY_HOME
+JETTY_PORT=$JETTY_PORT
+JETTY_USER=$JETTY_USER
+JAVA_OPTIONS="$JAVA_OPTIONS"
+END
+
   ulimit -n 4096 &&
   cd $JETTY_HOME &&
   rm -rf contexts* &&
-  ./bin/jetty.sh start &&
+  { [ $NAME = jetty ] || cp -f bin/jetty.sh bin/$NAME.sh; } &&
+  ./bin/$NAME.sh start &&
   with_backoff curl http://localhost:${JETTY_PORT}/
   return $?
 }
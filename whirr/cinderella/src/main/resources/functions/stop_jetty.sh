@@ -18,8 +18,9 @@ function stop_jetty() {
   export JETTY_HOME=$1
   export JETTY_PORT=$2
   export JETTY_USER=$3
+  local NAME=${4:-jetty}
   
   cd $JETTY_HOME
-  ./bin/jetty.sh stop
+  ./bin/$NAME.sh stop
   return $?
 }
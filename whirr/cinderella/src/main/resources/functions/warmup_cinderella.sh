@@ -0,0 +1,68 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function warmup_cinderella() {
+  local PORT=${1}
+  local ACCESS_KEY=${2}
+  local SECRET_FILE=${3}
+  local SECRET_PROPERTY=${4}
+  local VERSION=${5}
+  local ACTIONS=${6}
+  local MAX_REQUESTS=${7}
+  local TOLERANCE=${8}
+  local ROUND_SIZE=50
+  local HOST=127.0.0.1:$PORT
+  local SENT=0
+  local FIRST=
+  local PREVIOUS=
+  local MEAN=
+  # the secret is read from the file cinderella itself reads, so it never shows
+  # up in ps or in the script's log
+  local SECRET_KEY=$(awk -v key="$SECRET_PROPERTY" 'index($0, key "=") == 1 { print substr($0, length(key) + 2) }' $SECRET_FILE)
+  if [ -z "$SECRET_KEY" ]; then
+    echo "no $SECRET_PROPERTY in $SECRET_FILE, skipping warm-up"
+    return 0
+  fi
+
+  echo warming up cinderella on $HOST with ${ACTIONS//,/ }
+  while [ $SENT -lt $MAX_REQUESTS ]; do
+    local TOTAL=0
+    local FAILED=0
+    local i
+    for i in $(seq 1 $ROUND_SIZE); do
+      local ACTIONS_ARRAY=(${ACTIONS//,/ })
+      local ACTION=${ACTIONS_ARRAY[$(( (SENT + i) % ${#ACTIONS_ARRAY[@]} ))]}
+      # version 2 signature, parameters in byte order
+      local TIMESTAMP=$(date -u +%Y-%m-%dT%H%%3A%M%%3A%SZ)
+      local QUERY="AWSAccessKeyId=$ACCESS_KEY&Action=$ACTION&SignatureMethod=HmacSHA256&SignatureVersion=2&Timestamp=$TIMESTAMP&Version=$VERSION"
+      local SIGNATURE=$(printf '%s\n%s\n%s\n%s' GET $HOST / "$QUERY" | openssl dgst -sha256 -hmac "$SECRET_KEY" -binary | openssl base64 | sed -e 's/+/%2B/g' -e 's/\//%2F/g' -e 's/=/%3D/g')
+      local RESULT=$(curl -s -o /dev/null -w '%{http_code} %{time_total}' "http://$HOST/?$QUERY&Signature=$SIGNATURE")
+      [ "${RESULT%% *}" = "200" ] || FAILED=$((FAILED + 1))
+      TOTAL=$(echo $TOTAL ${RESULT##* } | awk '{ print $1 + $2 }')
+    done
+    SENT=$((SENT + ROUND_SIZE))
+    MEAN=$(echo $TOTAL $ROUND_SIZE | awk '{ printf "%.1f", $1 * 1000 / $2 }')
+    echo "warm-up round of $ROUND_SIZE: mean ${MEAN}ms, $FAILED failed"
+    [ -z "$FIRST" ] && FIRST=$MEAN
+    if [ -n "$PREVIOUS" ] && echo $MEAN $PREVIOUS $TOLERANCE | awk '{ exit !($1 - $2 <= $2 * $3 / 100 && $2 - $1 <= $2 * $3 / 100) }'; then
+      echo "cinderella warmed up after $SENT requests: mean ${MEAN}ms, first round ${FIRST}ms"
+      return 0
+    fi
+    PREVIOUS=$MEAN
+  done
+  echo "cinderella latency did not settle within $MAX_REQUESTS requests: mean ${MEAN}ms, first round ${FIRST}ms"
+  return 0
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.cinderella;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.net.URI;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Test;
+
+public class CommonsConfigurationToCinderellaConfigTest {
+
+   private PropertiesConfiguration defaults() throws ConfigurationException {
+      return new PropertiesConfiguration("whirr-cinderella-default.properties");
+   }
+
+   @Test
+   public void testReportsEveryProblemAtOnce() throws ConfigurationException {
+      PropertiesConfiguration config = defaults();
+      config.setProperty("cinderella.ec2.port", "eighty");
+      config.setProperty("cinderella.vcloud.endpoint", "vcloud.example.com/api");
+      try {
+         new CommonsConfigurationToCinderellaConfig("cinderella", "cinderella").apply(config);
+         fail("expected the missing and malformed settings to be reported");
+      } catch (IllegalArgumentException e) {
+         for (String problem : new String[] { "cinderella.ec2.port=eighty", "cinderella.vcloud.endpoint=",
+               "cinderella.auth.access-key", "cinderella.auth.secret-key", "cinderella.vcloud.useratorg",
+               "cinderella.vcloud.password" })
+            assertTrue(e.getMessage(), e.getMessage().contains(problem));
+      }
+   }
+
+   @Test
+   public void testCompleteConfig() throws ConfigurationException {
+      PropertiesConfiguration config = defaults();
+      config.setProperty("cinderella.auth.access-key", "access");
+      config.setProperty("cinderella.auth.secret-key", "secret");
+      config.setProperty("cinderella.vcloud.endpoint", "https://vcloud.example.com/api");
+      config.setProperty("cinderella.vcloud.useratorg", "user@org");
+      config.setProperty("cinderella.vcloud.password", "password");
+      CinderellaConfig cinderella = new CommonsConfigurationToCinderellaConfig("cinderella", "cinderella")
+            .apply(config);
+      assertEquals(8080, cinderella.getEC2Port());
+      assertEquals(URI.create("https://vcloud.example.com/api"), cinderella.getVCloudEndpoint());
+      assertEquals(ImmutableList.of("DescribeAvailabilityZones", "DescribeRegions", "DescribeImages",
+            "DescribeInstances"), cinderella.getWarmupActions());
+   }
+
+   @Test
+   public void testFederatedConfig() throws ConfigurationException {
+      PropertiesConfiguration config = defaults();
+      config.setProperty("cinderella.auth.access-key", "access");
+      config.setProperty("cinderella.auth.secret-key", "secret");
+      config.setProperty("cinderella.backends", "lon01, ams01");
+      for (String name : new String[] { "lon01", "ams01" }) {
+         config.setProperty("cinderella.backend." + name + ".endpoint", "https://" + name + ".example.com/api");
+         config.setProperty("cinderella.backend." + name + ".useratorg", "user@" + name);
+         config.setProperty("cinderella.backend." + name + ".password", "password");
+      }
+      config.setProperty("cinderella.backend.ams01.weight", "3");
+      CinderellaConfig cinderella = new CommonsConfigurationToCinderellaConfig("cinderella", "cinderella")
+            .apply(config);
+      assertTrue(cinderella.isFederated());
+      assertEquals(new VCloudBackend("lon01", URI.create("https://lon01.example.com/api"), "user@lon01",
+            "password", 1), cinderella.getBackends().get(0));
+      assertEquals(2, cinderella.getBackends().size());
+      assertEquals(3, cinderella.getBackends().get(1).getWeight());
+      assertEquals(URI.create("https://lon01.example.com/api"), cinderella.getVCloudEndpoint());
+   }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import joptsimple.OptionSet;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.DryRunModule.DryRun;
+import org.apache.whirr.service.common.ReconfigureServicesCommand;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs {@code reconfigure-services} against a cinderella cluster of the
+ * jclouds {@code stub} provider, whose dry run records the scripts it is sent.
+ */
+public class ReconfigureServicesTest {
+
+   private ClusterSpec spec;
+   private ClusterController controller;
+   private DryRun dryRun;
+
+   @Before
+   public void setUp() throws Exception {
+      BaseConfiguration overrides = new BaseConfiguration();
+      overrides.setProperty("whirr.cluster-name", "reconfigure-services-test");
+      overrides.setProperty("whirr.instance-templates", "3 cinderella");
+      // the command finds the instances through the state store
+      overrides.setProperty("whirr.state-store", "local");
+      CompositeConfiguration config = new CompositeConfiguration();
+      config.addConfiguration(overrides);
+      config.addConfiguration(new PropertiesConfiguration("whirr-cinderella-benchmark.properties"));
+      config.addConfiguration(new PropertiesConfiguration("whirr-cinderella-default.properties"));
+      spec = ClusterSpec.withTemporaryKeys(config);
+      controller = new ClusterController();
+      dryRun = controller.getCompute().apply(spec).utils().injector().getInstance(DryRun.class);
+      controller.launchCluster(spec);
+      dryRun.reset();
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      controller.destroyCluster(spec);
+   }
+
+   @Test
+   public void testReconfiguresOneInstanceAtATime() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(0, run(out));
+      assertEquals(ImmutableList.of("Reconfigured 1 of 3 instance(s) of reconfigure-services-test",
+            "Reconfigured 2 of 3 instance(s) of reconfigure-services-test",
+            "Reconfigured 3 of 3 instance(s) of reconfigure-services-test"), lines(out));
+      assertEquals(3, configuredNodes().size());
+   }
+
+   @Test
+   public void testReconfiguresInBatches() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(0, run(out, "--batch-size", "2"));
+      assertEquals(ImmutableList.of("Reconfigured 2 of 3 instance(s) of reconfigure-services-test",
+            "Reconfigured 3 of 3 instance(s) of reconfigure-services-test"), lines(out));
+      assertEquals(3, configuredNodes().size());
+   }
+
+   @Test
+   public void testReconfiguresOnlyTheChosenInstances() throws Exception {
+      String chosen = controller.getNodes(spec).iterator().next().getId();
+      assertEquals(0, run(new ByteArrayOutputStream(), "--instances", chosen));
+      assertEquals(ImmutableList.of(chosen), configuredNodes());
+   }
+
+   @Test
+   public void testBatchSizeIsPositive() throws Exception {
+      assertEquals(-1, run(new ByteArrayOutputStream(), "--batch-size", "0"));
+      assertEquals(0, configuredNodes().size());
+   }
+
+   private int run(ByteArrayOutputStream out, String... args) throws Exception {
+      ReconfigureServicesCommand command = new ReconfigureServicesCommand() {
+         @Override
+         protected ClusterSpec getClusterSpec(OptionSet options) {
+            return spec;
+         }
+      };
+      PrintStream print = new PrintStream(out, true, "UTF-8");
+      return command.run(System.in, print, print, ImmutableList.copyOf(args));
+   }
+
+   private static List<String> lines(ByteArrayOutputStream out) {
+      return ImmutableList.copyOf(new String(out.toByteArray(), Charsets.UTF_8).trim().split("\n"));
+   }
+
+   /**
+    * @return ids of the nodes a configure script ran on, in order
+    */
+   private List<String> configuredNodes() {
+      List<String> ids = Lists.newArrayList();
+      for (Map.Entry<NodeMetadata, Statement> execution : dryRun.getExecutions().entries())
+         if (execution.getValue().render(OsFamily.UNIX).contains("reconfigure_jetty")
+               && !ids.contains(execution.getKey().getId()))
+            ids.add(execution.getKey().getId());
+      return ids;
+   }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.whirr.service.cinderella.admission.AdmissionController.Permit;
+import org.apache.whirr.service.cinderella.admission.AdmissionController.Rejection;
+import org.junit.After;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+   private final ExecutorService threads = Executors.newCachedThreadPool();
+
+   @After
+   public void tearDown() {
+      threads.shutdownNow();
+   }
+
+   @Test
+   public void testBurstThenRatePerAccessKey() {
+      AdmissionController controller = new AdmissionController(1, 3, 10, 10, 1000);
+      for (int i = 0; i < 3; i++)
+         assertTrue(controller.tryAcquireToken("alice"));
+      assertFalse(controller.tryAcquireToken("alice"));
+      assertTrue(controller.tryAcquireToken("bob"));
+      assertEquals(1, controller.getRejected(Rejection.RATE));
+   }
+
+   @Test
+   public void testQueueFullIsRejectedAtOnce() throws Exception {
+      AdmissionController controller = new AdmissionController(100, 100, 1, 1, 10000);
+      Permit running = controller.enter(true);
+      Future<Permit> queued = enterLater(controller, true, null);
+      awaitQueued(controller, 1);
+      long start = System.nanoTime();
+      assertNull(controller.enter(true));
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+      assertEquals(1, controller.getRejected(Rejection.QUEUE));
+
+      running.release();
+      assertNotNull(queued.get(1, TimeUnit.SECONDS));
+      assertEquals(1, controller.getRunning());
+   }
+
+   @Test
+   public void testUrgentCallsGoFirst() throws Exception {
+      AdmissionController controller = new AdmissionController(100, 100, 1, 2, 10000);
+      List<String> order = new CopyOnWriteArrayList<String>();
+      Permit running = controller.enter(true);
+      Future<Permit> describe = enterLater(controller, false, order);
+      awaitQueued(controller, 1);
+      Future<Permit> runInstances = enterLater(controller, true, order);
+      awaitQueued(controller, 2);
+
+      running.release();
+      runInstances.get(1, TimeUnit.SECONDS).release();
+      describe.get(1, TimeUnit.SECONDS).release();
+      assertEquals("[urgent, not urgent]", order.toString());
+      assertEquals(0, controller.getRunning());
+   }
+
+   @Test
+   public void testQueueTimeout() throws Exception {
+      AdmissionController controller = new AdmissionController(100, 100, 1, 1, 50);
+      Permit running = controller.enter(true);
+      assertNull(controller.enter(true));
+      assertEquals(1, controller.getRejected(Rejection.TIMEOUT));
+      assertEquals(0, controller.getQueued());
+      running.release();
+      assertEquals(0, controller.getRunning());
+   }
+
+   private Future<Permit> enterLater(final AdmissionController controller, final boolean urgent,
+         final List<String> order) {
+      return threads.submit(new Callable<Permit>() {
+         @Override
+         public Permit call() throws Exception {
+            Permit permit = controller.enter(urgent);
+            if (order != null)
+               order.add(urgent ? "urgent" : "not urgent");
+            return permit;
+         }
+      });
+   }
+
+   private static void awaitQueued(AdmissionController controller, int queued) throws InterruptedException {
+      for (int i = 0; i < 100 && controller.getQueued() < queued; i++)
+         Thread.sleep(10);
+      assertEquals(queued, controller.getQueued());
+   }
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.benchmark;
+
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.cinderella.CinderellaConfig;
+import org.apache.whirr.service.cinderella.CinderellaStatements;
+import org.apache.whirr.service.cinderella.CommonsConfigurationToCinderellaConfig;
+import org.apache.whirr.service.common.benchmark.LifecycleBenchmark;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The cinderella lifecycle, measured by {@link LifecycleBenchmark} against
+ * {@code cinderella-benchmark-baseline.properties}.
+ */
+public class CinderellaBenchmark extends LifecycleBenchmark {
+
+   public CinderellaBenchmark() {
+      super("cinderella");
+   }
+
+   @Override
+   protected Map<String, Statement> statements(Configuration configuration) throws Exception {
+      CinderellaConfig config = toConfig(configuration);
+      return ImmutableMap.<String, Statement> builder()
+            .put("install", new StatementList(CinderellaStatements.install(config)))
+            .put("configure", CinderellaStatements.configure(config))
+            .put("start", CinderellaStatements.start(config))
+            .put("stop", CinderellaStatements.stop(config))
+            .put("cleanup", CinderellaStatements.cleanup(config)).build();
+   }
+
+   @Override
+   protected CinderellaConfig toConfig(Configuration configuration) throws Exception {
+      return new CommonsConfigurationToCinderellaConfig("cinderella", "cinderella").apply(configuration);
+   }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ActionMetricsTest {
+
+   @Test
+   public void testBucketsHoldTheirValues() {
+      for (long micros = 0; micros < 1L << 20; micros++) {
+         int bucket = LatencyHistogram.bucket(micros);
+         assertTrue(micros + " above bucket " + bucket, micros <= LatencyHistogram.upperBound(bucket));
+         if (bucket > 0)
+            assertTrue(micros + " in bucket " + bucket, micros > LatencyHistogram.upperBound(bucket - 1));
+      }
+   }
+
+   @Test
+   public void testQuantilesWithinABucket() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int millis = 1; millis <= 100; millis++)
+         histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+      assertEquals(100, histogram.getCount());
+      assertEquals(50.5, histogram.getMeanMillis(), 0.1);
+      assertEquals(100, histogram.getMaxMillis(), 0.1);
+      // buckets are a quarter of a power of two wide
+      assertEquals(50, histogram.getQuantileMillis(0.5), 50 * 0.25);
+      assertEquals(99, histogram.getQuantileMillis(0.99), 99 * 0.25);
+   }
+
+   @Test
+   public void testErrorsAndInFlight() {
+      ActionStats stats = new ActionStats();
+      stats.started();
+      stats.started();
+      stats.started();
+      assertEquals(3, stats.getInFlight());
+      stats.finished(1000, 200);
+      stats.finished(1000, 400);
+      stats.finished(1000, 503);
+      assertEquals(0, stats.getInFlight());
+      assertEquals(3, stats.getCount());
+      assertEquals(1, stats.getClientErrors());
+      assertEquals(1, stats.getServerErrors());
+   }
+
+   @Test
+   public void testAccessKeysPastTheLimitAreOther() {
+      ActionMetrics metrics = new ActionMetrics(256, 2, null);
+      ActionStats alice = metrics.accessKey("alice");
+      assertSame(alice, metrics.accessKey("alice"));
+      metrics.accessKey("bob");
+      ActionStats other = metrics.accessKey("carol");
+      assertSame(other, metrics.accessKey("dave"));
+      assertSame(other, metrics.accessKey(ActionMetrics.OTHER));
+      assertSame(alice, metrics.accessKey("alice"));
+      metrics.action("DescribeInstances").finished(1000, 200);
+      assertTrue(metrics.report().startsWith("action DescribeInstances count=1 "));
+   }
+}
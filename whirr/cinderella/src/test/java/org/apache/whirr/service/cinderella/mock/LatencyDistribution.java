@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.mock;
+
+import java.util.Random;
+
+/**
+ * How long the mock takes to answer, written as
+ * <ul>
+ * <li>{@code none}</li>
+ * <li>{@code fixed:50}, always 50ms</li>
+ * <li>{@code uniform:20-200}, anywhere from 20 to 200ms</li>
+ * <li>{@code lognormal:40,400}, a median of 40ms and a 99th percentile of
+ * 400ms, the long tail a busy vCloud shows</li>
+ * </ul>
+ */
+public class LatencyDistribution {
+   /** standard normal quantile of the 99th percentile */
+   private static final double Z99 = 2.3263;
+
+   public static final LatencyDistribution NONE = new LatencyDistribution("none", 0, 0, false);
+
+   private final String spec;
+   private final double a;
+   private final double b;
+   private final boolean lognormal;
+
+   private LatencyDistribution(String spec, double a, double b, boolean lognormal) {
+      this.spec = spec;
+      this.a = a;
+      this.b = b;
+      this.lognormal = lognormal;
+   }
+
+   public static LatencyDistribution parse(String spec) {
+      String trimmed = spec.trim();
+      if (trimmed.isEmpty() || trimmed.equals("none") || trimmed.equals("0"))
+         return NONE;
+      int colon = trimmed.indexOf(':');
+      String kind = colon < 0 ? "" : trimmed.substring(0, colon);
+      String args = trimmed.substring(colon + 1);
+      try {
+         if (kind.equals("fixed")) {
+            double millis = Double.parseDouble(args);
+            return new LatencyDistribution(trimmed, millis, millis, false);
+         } else if (kind.equals("uniform")) {
+            String[] range = args.split("-");
+            double min = Double.parseDouble(range[0]);
+            double max = Double.parseDouble(range[1]);
+            if (min <= max)
+               return new LatencyDistribution(trimmed, min, max, false);
+         } else if (kind.equals("lognormal")) {
+            String[] percentiles = args.split(",");
+            double median = Double.parseDouble(percentiles[0]);
+            double p99 = Double.parseDouble(percentiles[1]);
+            if (median > 0 && p99 >= median)
+               return new LatencyDistribution(trimmed, Math.log(median), (Math.log(p99) - Math.log(median)) / Z99,
+                     true);
+         }
+      } catch (RuntimeException e) {
+         // reported below along with unknown kinds
+      }
+      throw new IllegalArgumentException(spec
+            + " is not none, fixed:<ms>, uniform:<min>-<max> or lognormal:<median>,<p99>");
+   }
+
+   public long nextMillis(Random random) {
+      if (lognormal)
+         return Math.round(Math.exp(a + b * random.nextGaussian()));
+      return Math.round(a + (b - a) * random.nextDouble());
+   }
+
+   @Override
+   public String toString() {
+      return spec;
+   }
+}
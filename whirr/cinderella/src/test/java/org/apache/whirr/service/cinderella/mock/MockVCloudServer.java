@@ -0,0 +1,723 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A vCloud Director 1.5 API in memory, for measuring cinderella with no
+ * network and a backend whose slowness is under control. Point
+ * {@code cinderella.vcloud.endpoint} at {@link #getEndpoint()}, with
+ * {@code user@org} and the password it was started with.
+ * 
+ * <p/>
+ * One org holds one vdc, network and catalog. The catalog has
+ * {@code catalog.items} vApp templates and the vdc starts with {@code vapps}
+ * vApps of one VM each. Logging in, reading entities, the query service,
+ * instantiating templates, power actions, undeploy and delete all answer as
+ * vCloud does: actions return a task that runs for {@code task.duration}
+ * milliseconds before its vApp changes state.
+ * 
+ * <p/>
+ * Every request first waits as long as {@code latency} says, or
+ * {@code latency.login}, {@code latency.read}, {@code latency.query} or
+ * {@code latency.action} for that kind of request, see
+ * {@link LatencyDistribution}. Then {@code error-rate} percent of them fail
+ * with a 500.
+ */
+public class MockVCloudServer implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(MockVCloudServer.class.getName());
+
+   static final String NS = "http://www.vmware.com/vcloud/v1.5";
+   static final String OVF = "http://schemas.dmtf.org/ovf/envelope/1";
+   static final String MEDIA = "application/vnd.vmware.vcloud.";
+   static final String TOKEN_HEADER = "x-vcloud-authorization";
+
+   /** vApp and VM status codes */
+   static final int UNRESOLVED = 0;
+   static final int SUSPENDED = 3;
+   static final int POWERED_ON = 4;
+   static final int POWERED_OFF = 8;
+
+   static class Template {
+      final String id;
+      final String name;
+
+      Template(String id, String name) {
+         this.id = id;
+         this.name = name;
+      }
+   }
+
+   static class VApp {
+      final String id;
+      final String name;
+      final String vmId;
+      final String ipAddress;
+      volatile int status = UNRESOLVED;
+      volatile Task running;
+
+      VApp(String id, String name, String vmId, String ipAddress) {
+         this.id = id;
+         this.name = name;
+         this.vmId = vmId;
+         this.ipAddress = ipAddress;
+      }
+   }
+
+   static class Task {
+      final String id;
+      final String operationName;
+      final String operation;
+      final VApp owner;
+      final long start = System.currentTimeMillis();
+      volatile String status = "running";
+      volatile long end;
+
+      Task(String id, String operationName, String operation, VApp owner) {
+         this.id = id;
+         this.operationName = operationName;
+         this.operation = operation;
+         this.owner = owner;
+      }
+   }
+
+   private final String org;
+   private final String user;
+   private final String password;
+   private final Map<String, LatencyDistribution> latencies = Maps.newHashMap();
+   private final double errorRate;
+   private final long taskDuration;
+   private final Random random;
+
+   private final String orgId = id(1, 1);
+   private final String vdcId = id(2, 1);
+   private final String catalogId = id(3, 1);
+   private final String networkId = id(4, 1);
+   private final Map<String, Template> templates = Maps.newLinkedHashMap();
+   private final ConcurrentMap<String, VApp> vApps = new ConcurrentHashMap<String, VApp>();
+   private final ConcurrentMap<String, Task> tasks = new ConcurrentHashMap<String, Task>();
+   private final Set<String> sessions = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final AtomicInteger vAppSequence = new AtomicInteger();
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong errors = new AtomicLong();
+   private final ScheduledExecutorService taskRunner = Executors.newSingleThreadScheduledExecutor();
+
+   private HttpServer server;
+   private ExecutorService executor;
+
+   /**
+    * @param settings
+    *           see the class documentation; every key has a default
+    */
+   public MockVCloudServer(Properties settings) {
+      this.org = settings.getProperty("org", "org");
+      this.user = settings.getProperty("user", "user");
+      this.password = settings.getProperty("password", "password");
+      LatencyDistribution latency = LatencyDistribution.parse(settings.getProperty("latency", "none"));
+      for (String kind : new String[] { "login", "read", "query", "action" })
+         latencies.put(kind, settings.containsKey("latency." + kind) ? LatencyDistribution.parse(settings
+               .getProperty("latency." + kind)) : latency);
+      this.errorRate = Double.parseDouble(settings.getProperty("error-rate", "0"));
+      this.taskDuration = Long.parseLong(settings.getProperty("task.duration", "2000"));
+      this.random = settings.containsKey("seed") ? new Random(Long.parseLong(settings.getProperty("seed")))
+            : new Random();
+
+      int catalogItems = Integer.parseInt(settings.getProperty("catalog.items", "100"));
+      for (int i = 1; i <= catalogItems; i++)
+         templates.put(id(5, i), new Template(id(5, i), "template-" + i));
+      int initialVApps = Integer.parseInt(settings.getProperty("vapps", "10"));
+      for (int i = 0; i < initialVApps; i++)
+         newVApp("vapp-" + (i + 1)).status = POWERED_ON;
+   }
+
+   private static String id(int kind, int n) {
+      return String.format("%08x-0000-4000-8000-%012x", kind, n);
+   }
+
+   private VApp newVApp(String name) {
+      int n = vAppSequence.incrementAndGet();
+      VApp vApp = new VApp(id(6, n), name, id(7, n), "10.0." + (n / 250) % 256 + "." + (n % 250 + 2));
+      vApps.put(vApp.id, vApp);
+      return vApp;
+   }
+
+   /**
+    * Starts listening on {@code port}, any free port if 0.
+    */
+   public MockVCloudServer start(int port, int threads) throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+      server.createContext("/", this);
+      // requests sleep through their latency, so each needs a thread
+      executor = Executors.newFixedThreadPool(threads);
+      server.setExecutor(executor);
+      server.start();
+      return this;
+   }
+
+   public void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+      taskRunner.shutdownNow();
+   }
+
+   /**
+    * @return the {@code cinderella.vcloud.endpoint} of this server
+    */
+   public URI getEndpoint() {
+      return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+   }
+
+   public String getUserAtOrg() {
+      return user + "@" + org;
+   }
+
+   public String getPassword() {
+      return password;
+   }
+
+   public long getRequestCount() {
+      return requests.get();
+   }
+
+   public long getErrorCount() {
+      return errors.get();
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         String kind = kindOf(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+         long millis = latencies.get(kind).nextMillis(random);
+         if (millis > 0)
+            Thread.sleep(millis);
+         requests.incrementAndGet();
+         if (errorRate > 0 && random.nextDouble() * 100 < errorRate) {
+            errors.incrementAndGet();
+            error(exchange, 500, "INTERNAL_SERVER_ERROR", "injected by the mock");
+            return;
+         }
+         route(exchange);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         exchange.close();
+      } catch (Exception e) {
+         if (exchange.getResponseCode() != -1) {
+            // the client went away while reading the response
+            exchange.close();
+            return;
+         }
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 500, "INTERNAL_SERVER_ERROR", String.valueOf(e.getMessage()));
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   static String kindOf(String method, String path) {
+      if (path.startsWith("/api/sessions") || path.startsWith("/api/login"))
+         return "login";
+      if (path.startsWith("/api/query"))
+         return "query";
+      return "GET".equals(method) ? "read" : "action";
+   }
+
+   private void route(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      String base = "http://" + exchange.getRequestHeaders().getFirst("Host") + "/api";
+
+      if (path.equals("/api/versions")) {
+         respond(exchange, 200, "versions", versions(base));
+         return;
+      }
+      if (path.equals("/api/sessions") && "POST".equals(method)) {
+         login(exchange, base);
+         return;
+      }
+      if (!sessions.contains(String.valueOf(exchange.getRequestHeaders().getFirst(TOKEN_HEADER)))) {
+         error(exchange, 401, "UNAUTHORIZED", "log in at " + base + "/sessions first");
+         return;
+      }
+
+      String[] parts = path.replaceFirst("^/api/?", "").split("/");
+      String type = parts[0];
+      String id = parts.length > 1 ? parts[1] : "";
+      if (type.equals("session")) {
+         if ("DELETE".equals(method)) {
+            sessions.remove(exchange.getRequestHeaders().getFirst(TOKEN_HEADER));
+            respond(exchange, 204, null, null);
+         } else {
+            respond(exchange, 200, "session", session(base));
+         }
+      } else if (type.equals("org") && id.isEmpty()) {
+         respond(exchange, 200, "orgList", orgList(base));
+      } else if (type.equals("org") && id.equals(orgId)) {
+         respond(exchange, 200, "org", org(base));
+      } else if (type.equals("catalog") && id.equals(catalogId)) {
+         respond(exchange, 200, "catalog", catalog(base));
+      } else if (type.equals("catalogItem") && templates.containsKey(id)) {
+         respond(exchange, 200, "catalogItem", catalogItem(base, templates.get(id)));
+      } else if (type.equals("vAppTemplate") && templates.containsKey(id.replaceFirst("^vappTemplate-", ""))) {
+         respond(exchange, 200, "vAppTemplate", template(base, templates.get(id.replaceFirst("^vappTemplate-",
+               ""))));
+      } else if (type.equals("network") && id.equals(networkId)) {
+         respond(exchange, 200, "orgNetwork", network(base));
+      } else if (type.equals("vdc") && id.equals(vdcId) && parts.length == 2) {
+         respond(exchange, 200, "vdc", vdc(base));
+      } else if (type.equals("vdc") && id.equals(vdcId) && path.endsWith("/action/instantiateVAppTemplate")
+            && "POST".equals(method)) {
+         instantiate(exchange, base);
+      } else if (type.equals("vApp")) {
+         vApp(exchange, base, method, id, parts);
+      } else if (type.equals("task") && tasks.containsKey(id)) {
+         respond(exchange, 200, "task", task(base, tasks.get(id), true));
+      } else if (type.equals("query")) {
+         query(exchange, base);
+      } else {
+         error(exchange, 404, "RESOURCE_NOT_FOUND", path + " does not exist");
+      }
+   }
+
+   private void login(HttpExchange exchange, String base) throws IOException {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      String expected = user + "@" + org + ":" + password;
+      if (authorization == null || !authorization.startsWith("Basic ")
+            || !expected.equals(new String(DatatypeConverter.parseBase64Binary(authorization.substring(6)),
+                  "UTF-8"))) {
+         error(exchange, 401, "UNAUTHORIZED", "bad user@org or password");
+         return;
+      }
+      String token = DatatypeConverter.printBase64Binary(UUID.randomUUID().toString().getBytes("UTF-8"));
+      sessions.add(token);
+      exchange.getResponseHeaders().set(TOKEN_HEADER, token);
+      respond(exchange, 200, "session", session(base));
+   }
+
+   private void vApp(HttpExchange exchange, String base, String method, String id, String[] parts)
+         throws IOException {
+      boolean isVm = id.startsWith("vm-");
+      VApp vApp = null;
+      for (VApp candidate : vApps.values())
+         if (id.equals((isVm ? "vm-" + candidate.vmId : "vapp-" + candidate.id)))
+            vApp = candidate;
+      if (vApp == null) {
+         error(exchange, 404, "RESOURCE_NOT_FOUND", id + " does not exist");
+      } else if (parts.length == 2 && "GET".equals(method)) {
+         respond(exchange, 200, isVm ? "vm" : "vApp", isVm ? vm(base, vApp, true) : vApp(base, vApp));
+      } else if (parts.length == 2 && "DELETE".equals(method) && !isVm) {
+         if (vApp.status == POWERED_ON)
+            error(exchange, 400, "BAD_REQUEST", "vApp " + vApp.name + " must be powered off before it is deleted");
+         else
+            startTask(exchange, base, vApp, "vdcDeleteVapp", "Deleting Virtual Application " + vApp.name, -1);
+      } else if ("POST".equals(method) && parts.length == 5 && parts[2].equals("power")) {
+         String action = parts[4];
+         int status = action.equals("powerOff") || action.equals("shutdown") ? POWERED_OFF
+               : action.equals("suspend") ? SUSPENDED : POWERED_ON;
+         startTask(exchange, base, vApp, "vapp" + Character.toUpperCase(action.charAt(0)) + action.substring(1),
+               "Running " + action + " of " + vApp.name, status);
+      } else if ("POST".equals(method) && parts.length == 4 && parts[3].equals("undeploy")) {
+         startTask(exchange, base, vApp, "vappUndeployPowerOff", "Stopping Virtual Application " + vApp.name,
+               POWERED_OFF);
+      } else if ("POST".equals(method) && parts.length == 4 && parts[3].equals("deploy")) {
+         startTask(exchange, base, vApp, "vappDeploy", "Starting Virtual Application " + vApp.name, POWERED_ON);
+      } else {
+         error(exchange, 400, "BAD_REQUEST", method + " " + exchange.getRequestURI().getPath() + " is not supported");
+      }
+   }
+
+   private static final Pattern PARAMS_NAME = Pattern.compile("<(?:\\w+:)?InstantiateVAppTemplateParams[^>]*\\sname=\"([^\"]*)\"");
+   private static final Pattern POWER_ON = Pattern.compile("<(?:\\w+:)?InstantiateVAppTemplateParams[^>]*\\spowerOn=\"true\"");
+   private static final Pattern SOURCE = Pattern.compile("<(?:\\w+:)?Source[^>]*href=\"[^\"]*vappTemplate-([^\"/]+)\"");
+
+   private void instantiate(HttpExchange exchange, String base) throws IOException {
+      String body = new String(readFully(exchange.getRequestBody()), "UTF-8");
+      Matcher source = SOURCE.matcher(body);
+      if (!source.find() || !templates.containsKey(source.group(1))) {
+         error(exchange, 400, "BAD_REQUEST", "Source is not a vApp template of this catalog");
+         return;
+      }
+      Matcher name = PARAMS_NAME.matcher(body);
+      VApp vApp = newVApp(name.find() ? name.group(1) : "vapp-" + (vAppSequence.get() + 1));
+      schedule(vApp, "vdcInstantiateVapp", "Creating Virtual Application " + vApp.name,
+            POWER_ON.matcher(body).find() ? POWERED_ON : POWERED_OFF);
+      // the vApp lists the task while it runs
+      respond(exchange, 201, "vApp", vApp(base, vApp));
+   }
+
+   private void startTask(HttpExchange exchange, String base, VApp vApp, String operationName, String operation,
+         int status) throws IOException {
+      if (vApp.running != null) {
+         error(exchange, 400, "BUSY_ENTITY", vApp.name + " is busy completing an operation");
+         return;
+      }
+      respond(exchange, 202, "task", task(base, schedule(vApp, operationName, operation, status), true));
+   }
+
+   /**
+    * @param status
+    *           of the vApp once the task is done, or -1 to remove it
+    */
+   private Task schedule(final VApp vApp, String operationName, String operation, final int status) {
+      final Task task = new Task(UUID.randomUUID().toString(), operationName, operation, vApp);
+      tasks.put(task.id, task);
+      vApp.running = task;
+      taskRunner.schedule(new Runnable() {
+         public void run() {
+            if (status < 0)
+               vApps.remove(vApp.id);
+            else
+               vApp.status = status;
+            vApp.running = null;
+            task.end = System.currentTimeMillis();
+            task.status = "success";
+         }
+      }, taskDuration, TimeUnit.MILLISECONDS);
+      return task;
+   }
+
+   private void query(HttpExchange exchange, String base) throws IOException {
+      Map<String, String> params = Maps.newHashMap();
+      String rawQuery = exchange.getRequestURI().getQuery();
+      if (rawQuery != null)
+         for (String param : rawQuery.split("&"))
+            if (param.indexOf('=') > 0)
+               params.put(param.substring(0, param.indexOf('=')), param.substring(param.indexOf('=') + 1));
+      String type = params.containsKey("type") ? params.get("type") : "";
+      String nameFilter = params.containsKey("filter") && params.get("filter").startsWith("name==") ? params.get(
+            "filter").substring(6) : null;
+      int page = params.containsKey("page") ? Math.max(1, Integer.parseInt(params.get("page"))) : 1;
+      int pageSize = params.containsKey("pageSize") ? Math.min(128, Math.max(1, Integer.parseInt(params
+            .get("pageSize")))) : 25;
+
+      List<String> records = Lists.newArrayList();
+      if (type.equals("vAppTemplate")) {
+         for (Template template : templates.values())
+            if (nameFilter == null || nameFilter.equals(template.name))
+               records.add(templateRecord(base, template));
+      } else if (type.equals("vApp") || type.equals("vm")) {
+         for (VApp vApp : vApps.values())
+            if (nameFilter == null || nameFilter.equals(vApp.name))
+               records.add(type.equals("vApp") ? vAppRecord(base, vApp) : vmRecord(base, vApp));
+      } else {
+         error(exchange, 400, "BAD_REQUEST", "query type " + type + " is not supported");
+         return;
+      }
+
+      String href = base + "/query?type=" + type + "&amp;format=records&amp;pageSize=" + pageSize + "&amp;page=";
+      StringBuilder xml = new StringBuilder("<QueryResultRecords xmlns=\"" + NS + "\" total=\"" + records.size()
+            + "\" pageSize=\"" + pageSize + "\" page=\"" + page + "\" name=\"" + type + "\" type=\"" + MEDIA
+            + "query.records+xml\" href=\"" + href + page + "\">");
+      if (page * pageSize < records.size())
+         xml.append(link("nextPage", "query.records+xml", href + (page + 1)));
+      if (page > 1)
+         xml.append(link("previousPage", "query.records+xml", href + (page - 1)));
+      for (String record : records.subList(Math.min(records.size(), (page - 1) * pageSize), Math.min(records
+            .size(), page * pageSize)))
+         xml.append(record);
+      respond(exchange, 200, "query.records", xml.append("</QueryResultRecords>").toString());
+   }
+
+   private String versions(String base) {
+      return "<SupportedVersions xmlns=\"http://www.vmware.com/vcloud/versions\"><VersionInfo><Version>1.5</Version>"
+            + "<LoginUrl>" + base + "/sessions</LoginUrl></VersionInfo></SupportedVersions>";
+   }
+
+   private String session(String base) {
+      return "<Session xmlns=\"" + NS + "\" user=\"" + user + "\" org=\"" + org + "\" type=\"" + MEDIA
+            + "session+xml\" href=\"" + base + "/session/\">" + link("down", "orgList+xml", base + "/org/")
+            + link("remove", null, base + "/session/") + link("down", "query.queryList+xml", base + "/query")
+            + "</Session>";
+   }
+
+   private String orgList(String base) {
+      return "<OrgList xmlns=\"" + NS + "\" type=\"" + MEDIA + "orgList+xml\" href=\"" + base + "/org/\">"
+            + "<Org type=\"" + MEDIA + "org+xml\" name=\"" + org + "\" href=\"" + base + "/org/" + orgId + "\"/>"
+            + "</OrgList>";
+   }
+
+   private String org(String base) {
+      return "<Org xmlns=\"" + NS + "\" name=\"" + org + "\" id=\"urn:vcloud:org:" + orgId + "\" type=\"" + MEDIA
+            + "org+xml\" href=\"" + base + "/org/" + orgId + "\">"
+            + link("down", "vdc+xml", base + "/vdc/" + vdcId, "vdc")
+            + link("down", "catalog+xml", base + "/catalog/" + catalogId, "catalog")
+            + link("down", "orgNetwork+xml", base + "/network/" + networkId, "network")
+            + "<Description/><FullName>" + org + "</FullName></Org>";
+   }
+
+   private String catalog(String base) {
+      StringBuilder xml = new StringBuilder("<Catalog xmlns=\"" + NS + "\" name=\"catalog\" id=\"urn:vcloud:catalog:"
+            + catalogId + "\" type=\"" + MEDIA + "catalog+xml\" href=\"" + base + "/catalog/" + catalogId + "\">"
+            + link("up", "org+xml", base + "/org/" + orgId) + "<Description/><CatalogItems>");
+      for (Template template : templates.values())
+         xml.append("<CatalogItem type=\"" + MEDIA + "catalogItem+xml\" name=\"" + template.name + "\" href=\""
+               + base + "/catalogItem/" + template.id + "\"/>");
+      return xml.append("</CatalogItems><IsPublished>true</IsPublished></Catalog>").toString();
+   }
+
+   private String catalogItem(String base, Template template) {
+      return "<CatalogItem xmlns=\"" + NS + "\" name=\"" + template.name + "\" id=\"urn:vcloud:catalogitem:"
+            + template.id + "\" type=\"" + MEDIA + "catalogItem+xml\" href=\"" + base + "/catalogItem/"
+            + template.id + "\">" + link("up", "catalog+xml", base + "/catalog/" + catalogId)
+            + "<Description/><Entity type=\"" + MEDIA + "vAppTemplate+xml\" name=\"" + template.name
+            + "\" href=\"" + base + "/vAppTemplate/vappTemplate-" + template.id + "\"/></CatalogItem>";
+   }
+
+   private String template(String base, Template template) {
+      String href = base + "/vAppTemplate/vappTemplate-" + template.id;
+      return "<VAppTemplate xmlns=\"" + NS + "\" xmlns:ovf=\"" + OVF + "\" goldMaster=\"false\" status=\"8\" name=\""
+            + template.name + "\" id=\"urn:vcloud:vapptemplate:" + template.id + "\" type=\"" + MEDIA
+            + "vAppTemplate+xml\" href=\"" + href + "\">" + link("up", "vdc+xml", base + "/vdc/" + vdcId)
+            + "<Description>Ubuntu 12.04 LTS (64-bit)</Description><Children><Vm status=\"8\" name=\"vm\" "
+            + "id=\"urn:vcloud:vm:" + template.id + "\" type=\"" + MEDIA + "vm+xml\" href=\"" + base
+            + "/vAppTemplate/vm-" + template.id + "\"><Description/>"
+            + "<VAppScopedLocalId>vm</VAppScopedLocalId></Vm></Children>"
+            + "<ovf:NetworkSection><ovf:Info>The list of logical networks</ovf:Info><ovf:Network ovf:name=\"network\">"
+            + "<ovf:Description/></ovf:Network></ovf:NetworkSection>"
+            + "<VAppScopedLocalId>" + template.name + "</VAppScopedLocalId></VAppTemplate>";
+   }
+
+   private String network(String base) {
+      return "<OrgNetwork xmlns=\"" + NS + "\" name=\"network\" id=\"urn:vcloud:network:" + networkId + "\" type=\""
+            + MEDIA + "orgNetwork+xml\" href=\"" + base + "/network/" + networkId + "\">"
+            + link("up", "org+xml", base + "/org/" + orgId) + "<Description/><Configuration><IpScope>"
+            + "<IsInherited>false</IsInherited><Gateway>10.0.0.1</Gateway><Netmask>255.255.0.0</Netmask>"
+            + "</IpScope><FenceMode>bridged</FenceMode></Configuration></OrgNetwork>";
+   }
+
+   private String vdc(String base) {
+      StringBuilder xml = new StringBuilder("<Vdc xmlns=\"" + NS + "\" status=\"1\" name=\"vdc\" id=\"urn:vcloud:vdc:"
+            + vdcId + "\" type=\"" + MEDIA + "vdc+xml\" href=\"" + base + "/vdc/" + vdcId + "\">"
+            + link("up", "org+xml", base + "/org/" + orgId)
+            + link("add", "instantiateVAppTemplateParams+xml", base + "/vdc/" + vdcId
+                  + "/action/instantiateVAppTemplate")
+            + "<Description/><AllocationModel>AllocationPool</AllocationModel><ResourceEntities>");
+      for (Template template : templates.values())
+         xml.append("<ResourceEntity type=\"" + MEDIA + "vAppTemplate+xml\" name=\"" + template.name
+               + "\" href=\"" + base + "/vAppTemplate/vappTemplate-" + template.id + "\"/>");
+      for (VApp vApp : vApps.values())
+         xml.append("<ResourceEntity type=\"" + MEDIA + "vApp+xml\" name=\"" + vApp.name + "\" href=\"" + base
+               + "/vApp/vapp-" + vApp.id + "\"/>");
+      xml.append("</ResourceEntities><AvailableNetworks><Network type=\"" + MEDIA + "network+xml\" name=\"network\""
+            + " href=\"" + base + "/network/" + networkId + "\"/></AvailableNetworks>");
+      return xml.append("<IsEnabled>true</IsEnabled></Vdc>").toString();
+   }
+
+   private String vApp(String base, VApp vApp) {
+      String href = base + "/vApp/vapp-" + vApp.id;
+      Task running = vApp.running;
+      return "<VApp xmlns=\"" + NS + "\" xmlns:ovf=\"" + OVF + "\" deployed=\"" + (vApp.status == POWERED_ON)
+            + "\" status=\"" + vApp.status + "\" name=\"" + vApp.name + "\" id=\"urn:vcloud:vapp:" + vApp.id
+            + "\" type=\"" + MEDIA + "vApp+xml\" href=\"" + href + "\">" + link("up", "vdc+xml", base + "/vdc/"
+            + vdcId) + powerLinks(href, vApp) + link("remove", null, href) + "<Description/>"
+            + (running != null ? "<Tasks>" + task(base, running, false) + "</Tasks>" : "")
+            + "<Owner type=\"" + MEDIA + "owner+xml\"><User type=\"application/vnd.vmware.admin.user+xml\" name=\""
+            + user + "\" href=\"" + base + "/admin/user/" + id(8, 1) + "\"/></Owner>"
+            + "<InMaintenanceMode>false</InMaintenanceMode><Children>" + vm(base, vApp, false)
+            + "</Children></VApp>";
+   }
+
+   private String vm(String base, VApp vApp, boolean root) {
+      String href = base + "/vApp/vm-" + vApp.vmId;
+      return "<Vm" + (root ? " xmlns=\"" + NS + "\" xmlns:ovf=\"" + OVF + "\"" : "") + " needsCustomization=\"false\""
+            + " deployed=\"" + (vApp.status == POWERED_ON) + "\" status=\"" + vApp.status + "\" name=\"vm\""
+            + " id=\"urn:vcloud:vm:" + vApp.vmId + "\" type=\"" + MEDIA + "vm+xml\" href=\"" + href + "\">"
+            + link("up", "vApp+xml", base + "/vApp/vapp-" + vApp.id) + powerLinks(href, vApp) + "<Description/>"
+            + "<NetworkConnectionSection type=\"" + MEDIA + "networkConnectionSection+xml\" href=\"" + href
+            + "/networkConnectionSection/\" ovf:required=\"false\"><ovf:Info>Network connections</ovf:Info>"
+            + "<PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex><NetworkConnection network=\"network\""
+            + " needsCustomization=\"false\"><NetworkConnectionIndex>0</NetworkConnectionIndex><IpAddress>"
+            + vApp.ipAddress + "</IpAddress><IsConnected>true</IsConnected><MACAddress>"
+            + String.format("00:50:56:01:%02x:%02x", (vApp.ipAddress.hashCode() >> 8) & 0xff,
+                  vApp.ipAddress.hashCode() & 0xff) + "</MACAddress>"
+            + "<IpAddressAllocationMode>POOL</IpAddressAllocationMode></NetworkConnection></NetworkConnectionSection>"
+            + "<VAppScopedLocalId>vm</VAppScopedLocalId></Vm>";
+   }
+
+   private static String powerLinks(String href, VApp vApp) {
+      if (vApp.status == UNRESOLVED)
+         return "";
+      if (vApp.status == POWERED_ON)
+         return link("power:powerOff", null, href + "/power/action/powerOff")
+               + link("power:reboot", null, href + "/power/action/reboot")
+               + link("power:reset", null, href + "/power/action/reset")
+               + link("power:shutdown", null, href + "/power/action/shutdown")
+               + link("power:suspend", null, href + "/power/action/suspend")
+               + link("undeploy", "undeployVAppParams+xml", href + "/action/undeploy");
+      return link("power:powerOn", null, href + "/power/action/powerOn")
+            + link("deploy", "deployVAppParams+xml", href + "/action/deploy");
+   }
+
+   private String task(String base, Task task, boolean root) {
+      VApp owner = task.owner;
+      return "<Task" + (root ? " xmlns=\"" + NS + "\"" : "") + " status=\"" + task.status + "\" startTime=\""
+            + timestamp(task.start) + "\"" + (task.end > 0 ? " endTime=\"" + timestamp(task.end) + "\"" : "")
+            + " operationName=\"" + task.operationName + "\" operation=\"" + task.operation + "\" name=\"task\""
+            + " id=\"urn:vcloud:task:" + task.id + "\" type=\"" + MEDIA + "task+xml\" href=\"" + base + "/task/"
+            + task.id + "\">" + ("running".equals(task.status) ? link("task:cancel", null, base + "/task/"
+            + task.id + "/action/cancel") : "") + "<Owner type=\"" + MEDIA + "vApp+xml\" name=\"" + owner.name
+            + "\" href=\"" + base + "/vApp/vapp-" + owner.id + "\"/><User type=\"application/vnd.vmware.admin.user+xml\""
+            + " name=\"" + user + "\" href=\"" + base + "/admin/user/" + id(8, 1) + "\"/><Organization type=\"" + MEDIA
+            + "org+xml\" name=\"" + org + "\" href=\"" + base + "/org/" + orgId + "\"/></Task>";
+   }
+
+   private String templateRecord(String base, Template template) {
+      return "<VAppTemplateRecord name=\"" + template.name + "\" catalogName=\"catalog\" isPublished=\"true\""
+            + " ownerName=\"system\" vdcName=\"vdc\" vdc=\"" + base + "/vdc/" + vdcId + "\" org=\"" + base + "/org/"
+            + orgId + "\" status=\"RESOLVED\" isBusy=\"false\" isDeployed=\"false\" isEnabled=\"true\""
+            + " isGoldMaster=\"false\" numberOfCpus=\"1\" memoryAllocationMB=\"512\" storageKB=\"10485760\""
+            + " href=\"" + base + "/vAppTemplate/vappTemplate-" + template.id + "\"/>";
+   }
+
+   private String vAppRecord(String base, VApp vApp) {
+      return "<VAppRecord name=\"" + vApp.name + "\" vdcName=\"vdc\" vdc=\"" + base + "/vdc/" + vdcId
+            + "\" ownerName=\"" + user + "\" status=\"" + statusName(vApp.status) + "\" isDeployed=\""
+            + (vApp.status == POWERED_ON) + "\" isBusy=\"" + (vApp.running != null) + "\" numberOfVMs=\"1\""
+            + " href=\"" + base + "/vApp/vapp-" + vApp.id + "\"/>";
+   }
+
+   private String vmRecord(String base, VApp vApp) {
+      return "<VMRecord name=\"vm\" container=\"" + base + "/vApp/vapp-" + vApp.id + "\" containerName=\""
+            + vApp.name + "\" guestOs=\"Ubuntu Linux (64-bit)\" isVAppTemplate=\"false\" isDeployed=\""
+            + (vApp.status == POWERED_ON) + "\" isBusy=\"" + (vApp.running != null) + "\" status=\""
+            + statusName(vApp.status) + "\" numberOfCpus=\"1\" memoryMB=\"512\" networkName=\"network\""
+            + " ipAddress=\"" + vApp.ipAddress + "\" href=\"" + base + "/vApp/vm-" + vApp.vmId + "\"/>";
+   }
+
+   private static String statusName(int status) {
+      switch (status) {
+      case POWERED_ON:
+         return "POWERED_ON";
+      case POWERED_OFF:
+         return "POWERED_OFF";
+      case SUSPENDED:
+         return "SUSPENDED";
+      default:
+         return "UNRESOLVED";
+      }
+   }
+
+   private static String link(String rel, String type, String href) {
+      return link(rel, type, href, null);
+   }
+
+   private static String link(String rel, String type, String href, String name) {
+      return "<Link rel=\"" + rel + "\"" + (type != null ? " type=\"" + MEDIA + type + "\"" : "")
+            + (name != null ? " name=\"" + name + "\"" : "") + " href=\"" + href + "\"/>";
+   }
+
+   private static String timestamp(long millis) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format.format(new Date(millis));
+   }
+
+   private static void error(HttpExchange exchange, int status, String minorCode, String message)
+         throws IOException {
+      respond(exchange, status, "error", "<Error xmlns=\"" + NS + "\" majorErrorCode=\"" + status
+            + "\" minorErrorCode=\"" + minorCode + "\" message=\"" + message.replace("&", "&amp;").replace("\"",
+            "&quot;").replace("<", "&lt;") + "\"/>");
+   }
+
+   private static void respond(HttpExchange exchange, int status, String mediaType, String xml) throws IOException {
+      // the request body must be consumed before a keep-alive response
+      readFully(exchange.getRequestBody());
+      if (xml == null) {
+         exchange.sendResponseHeaders(status, -1);
+         exchange.close();
+         return;
+      }
+      byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", MEDIA + mediaType + "+xml;version=1.5");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+   }
+
+   private static byte[] readFully(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+         bytes.write(buffer, 0, read);
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Serves the mock until killed, with settings from the properties file named
+    * by the first argument, if any, and {@code port} and {@code threads} of
+    * its own.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      if (args.length > 0) {
+         InputStream in = new FileInputStream(args[0]);
+         try {
+            settings.load(in);
+         } finally {
+            in.close();
+         }
+      }
+      MockVCloudServer mock = new MockVCloudServer(settings).start(Integer.parseInt(settings.getProperty("port",
+            "8443")), Integer.parseInt(settings.getProperty("threads", "200")));
+      LOG.info("mock vCloud listening on " + mock.getEndpoint() + " for " + mock.getUserAtOrg() + "/"
+            + mock.getPassword());
+   }
+}
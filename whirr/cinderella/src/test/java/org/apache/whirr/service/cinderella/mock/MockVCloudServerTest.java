@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MockVCloudServerTest {
+   private MockVCloudServer mock;
+   private String token;
+
+   private MockVCloudServer start(String... settings) throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("catalog.items", "30");
+      properties.setProperty("vapps", "2");
+      properties.setProperty("task.duration", "50");
+      for (int i = 0; i < settings.length; i += 2)
+         properties.setProperty(settings[i], settings[i + 1]);
+      mock = new MockVCloudServer(properties).start(0, 8);
+      return mock;
+   }
+
+   @After
+   public void tearDown() {
+      if (mock != null)
+         mock.stop();
+   }
+
+   @Test
+   public void testLoginIsRequired() throws IOException {
+      start();
+      assertEquals(401, call("GET", "/org/", null).getResponseCode());
+      HttpURLConnection login = call("POST", "/sessions", null);
+      login.setRequestProperty("Authorization", "Basic "
+            + DatatypeConverter.printBase64Binary("user@org:wrong".getBytes("UTF-8")));
+      assertEquals(401, login.getResponseCode());
+      login();
+      assertEquals(200, call("GET", "/org/", null).getResponseCode());
+      assertEquals(204, call("DELETE", "/session", null).getResponseCode());
+      assertEquals(401, call("GET", "/org/", null).getResponseCode());
+   }
+
+   @Test
+   public void testCatalogHoldsItsItems() throws IOException {
+      start();
+      login();
+      String org = href(body(call("GET", "/org/", null)), "org+xml");
+      String catalog = href(body(get(org)), "catalog+xml");
+      String items = body(get(catalog));
+      assertEquals(30, count(items, "<CatalogItem "));
+      String template = href(body(get(href(items, "catalogItem+xml"))), "vAppTemplate+xml");
+      assertTrue(body(get(template)).contains("<VAppTemplate "));
+
+      String page = body(call("GET", "/query?type=vAppTemplate&format=records&pageSize=25&page=2", null));
+      assertTrue(page.contains("total=\"30\""));
+      assertEquals(5, count(page, "<VAppTemplateRecord "));
+   }
+
+   @Test
+   public void testInstantiateAndPowerOn() throws Exception {
+      start();
+      login();
+      String vdc = href(body(get(href(body(call("GET", "/org/", null)), "org+xml"))), "vdc+xml");
+      String template = href(body(call("GET", "/query?type=vAppTemplate&format=records&filter=name==template-7",
+            null)), null);
+      HttpURLConnection instantiate = call("POST", vdc.substring(vdc.indexOf("/api") + 4)
+            + "/action/instantiateVAppTemplate", "<InstantiateVAppTemplateParams xmlns=\"" + MockVCloudServer.NS
+            + "\" name=\"web-1\" deploy=\"true\" powerOn=\"false\"><Source href=\"" + template
+            + "\"/></InstantiateVAppTemplateParams>");
+      assertEquals(201, instantiate.getResponseCode());
+      String vApp = body(instantiate);
+      assertTrue(vApp.contains("status=\"0\""));
+      waitFor(href(vApp, "task+xml"));
+      String href = self(vApp);
+      assertTrue(body(get(href)).contains("status=\"8\""));
+
+      HttpURLConnection powerOn = call("POST", href.substring(href.indexOf("/api") + 4) + "/power/action/powerOn",
+            null);
+      assertEquals(202, powerOn.getResponseCode());
+      waitFor(self(body(powerOn)));
+      assertTrue(body(get(href)).contains("status=\"4\""));
+      assertEquals(400, call("DELETE", href.substring(href.indexOf("/api") + 4), null).getResponseCode());
+   }
+
+   @Test
+   public void testErrorRate() throws IOException {
+      start("error-rate", "100");
+      assertEquals(500, call("GET", "/versions", null).getResponseCode());
+      assertEquals(1, mock.getErrorCount());
+   }
+
+   @Test
+   public void testLatency() throws IOException {
+      start("latency", "none", "latency.read", "fixed:200");
+      long start = System.nanoTime();
+      assertEquals(200, call("GET", "/versions", null).getResponseCode());
+      assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+   }
+
+   @Test
+   public void testLognormalPercentiles() {
+      LatencyDistribution latency = LatencyDistribution.parse("lognormal:40,400");
+      Random random = new Random(1);
+      long[] samples = new long[100000];
+      for (int i = 0; i < samples.length; i++)
+         samples[i] = latency.nextMillis(random);
+      Arrays.sort(samples);
+      assertEquals(40, samples[samples.length / 2], 2);
+      assertEquals(400, samples[samples.length * 99 / 100], 20);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownLatency() {
+      LatencyDistribution.parse("gaussian:40");
+   }
+
+   private void login() throws IOException {
+      HttpURLConnection login = call("POST", "/sessions", null);
+      login.setRequestProperty("Authorization", "Basic "
+            + DatatypeConverter.printBase64Binary((mock.getUserAtOrg() + ":" + mock.getPassword()).getBytes("UTF-8")));
+      assertEquals(200, login.getResponseCode());
+      token = login.getHeaderField(MockVCloudServer.TOKEN_HEADER);
+   }
+
+   private void waitFor(String task) throws Exception {
+      for (int i = 0; i < 100; i++) {
+         if (body(get(task)).contains("status=\"success\""))
+            return;
+         Thread.sleep(20);
+      }
+      throw new AssertionError(task + " did not complete");
+   }
+
+   private HttpURLConnection get(String href) throws IOException {
+      return call("GET", href.substring(href.indexOf("/api") + 4), null);
+   }
+
+   private HttpURLConnection call(String method, String path, String body) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) new URL(mock.getEndpoint() + path).openConnection();
+      connection.setRequestMethod(method);
+      if (token != null)
+         connection.setRequestProperty(MockVCloudServer.TOKEN_HEADER, token);
+      if (body != null) {
+         connection.setDoOutput(true);
+         OutputStream out = connection.getOutputStream();
+         out.write(body.getBytes("UTF-8"));
+         out.close();
+      }
+      return connection;
+   }
+
+   private static String body(HttpURLConnection connection) throws IOException {
+      InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection
+            .getErrorStream();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+         bytes.write(buffer, 0, read);
+      in.close();
+      return bytes.toString("UTF-8");
+   }
+
+   /**
+    * @return the href of the first element under the root of {@code type}, or
+    *         of any type if null
+    */
+   private static String href(String xml, String type) {
+      String children = xml.substring(xml.indexOf('>', xml.indexOf("?>") + 2) + 1);
+      Matcher matcher = Pattern.compile(
+            "<\\w+ [^>]*" + (type != null ? "type=\"[^\"]*" + Pattern.quote(type) + "\"[^>]*" : "")
+                  + "href=\"([^\"]+)\"").matcher(children);
+      assertTrue(xml, matcher.find());
+      return matcher.group(1);
+   }
+
+   private static String self(String xml) {
+      return xml.replaceFirst("(?s).*?\\?>\\s*<\\w+ [^>]*href=\"([^\"]+)\".*", "$1");
+   }
+
+   private static int count(String xml, String element) {
+      int count = 0;
+      for (int i = xml.indexOf(element); i >= 0; i = xml.indexOf(element, i + 1))
+         count++;
+      return count;
+   }
+}
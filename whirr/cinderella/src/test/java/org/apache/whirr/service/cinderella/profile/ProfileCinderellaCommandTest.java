@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.cinderella.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import joptsimple.OptionSet;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.DryRunModule.DryRun;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs {@code profile-cinderella} against a cluster of the jclouds
+ * {@code stub} provider, whose dry run records the scripts it is sent.
+ */
+public class ProfileCinderellaCommandTest {
+
+   private ClusterSpec spec;
+   private ClusterController controller;
+   private DryRun dryRun;
+
+   @Before
+   public void setUp() throws Exception {
+      BaseConfiguration overrides = new BaseConfiguration();
+      overrides.setProperty("whirr.cluster-name", "profile-cinderella-test");
+      overrides.setProperty("whirr.instance-templates", "2 cinderella");
+      // the command finds the instances through the state store
+      overrides.setProperty("whirr.state-store", "local");
+      CompositeConfiguration config = new CompositeConfiguration();
+      config.addConfiguration(overrides);
+      config.addConfiguration(new PropertiesConfiguration("whirr-cinderella-benchmark.properties"));
+      config.addConfiguration(new PropertiesConfiguration("whirr-cinderella-default.properties"));
+      spec = ClusterSpec.withTemporaryKeys(config);
+      controller = new ClusterController();
+      dryRun = controller.getCompute().apply(spec).utils().injector().getInstance(DryRun.class);
+      controller.launchCluster(spec);
+      dryRun.reset();
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      controller.destroyCluster(spec);
+   }
+
+   @Test
+   public void testRecordsEveryCinderellaInstance() throws Exception {
+      run("--duration", "5");
+      Map<NodeMetadata, Statement> scripts = profileScripts();
+      assertEquals(2, scripts.size());
+      for (Statement script : scripts.values())
+         assertTrue(script.render(OsFamily.UNIX).contains(" 5 "));
+   }
+
+   @Test
+   public void testRecordsOnlyTheChosenInstances() throws Exception {
+      String chosen = controller.getNodes(spec).iterator().next().getId();
+      run("--instances", chosen);
+      Map<NodeMetadata, Statement> scripts = profileScripts();
+      assertEquals(1, scripts.size());
+      assertEquals(chosen, scripts.keySet().iterator().next().getId());
+   }
+
+   @Test
+   public void testRecordsEachBackendWhenFederated() throws Exception {
+      for (String name : new String[] { "lon01", "ams01" }) {
+         spec.getConfiguration().setProperty("cinderella.backend." + name + ".endpoint",
+               "https://" + name + ".example.com/api");
+         spec.getConfiguration().setProperty("cinderella.backend." + name + ".useratorg", "user@" + name);
+         spec.getConfiguration().setProperty("cinderella.backend." + name + ".password", "password");
+      }
+      spec.getConfiguration().setProperty("cinderella.backends", "lon01,ams01");
+      run();
+      Map<NodeMetadata, Statement> scripts = profileScripts();
+      assertEquals(2, scripts.size());
+      for (Statement script : scripts.values())
+         assertTrue(script.render(OsFamily.UNIX).contains("capture_jvm_profiles " + spec.getClusterUser()
+               + " 60 false /tmp/cinderella-profile cinderella-lon01 cinderella-ams01"));
+   }
+
+   @Test
+   public void testDurationIsBounded() throws Exception {
+      assertEquals(-1, run("--duration", "601"));
+      assertTrue(profileScripts().isEmpty());
+   }
+
+   /**
+    * runs the command on the launched cluster; the stub answers with no
+    * profile files, so there is nothing to fetch
+    */
+   private int run(String... args) throws Exception {
+      ProfileCinderellaCommand command = new ProfileCinderellaCommand() {
+         @Override
+         protected ClusterSpec getClusterSpec(OptionSet options) {
+            return spec;
+         }
+      };
+      PrintStream out = new PrintStream(new ByteArrayOutputStream());
+      return command.run(System.in, out, out, ImmutableList.copyOf(args));
+   }
+
+   private Map<NodeMetadata, Statement> profileScripts() {
+      Map<NodeMetadata, Statement> scripts = Maps.newHashMap();
+      for (Map.Entry<NodeMetadata, Statement> execution : dryRun.getExecutions().entries())
+         if (execution.getValue().render(OsFamily.UNIX).contains("capture_jvm_profile"))
+            scripts.put(execution.getKey(), execution.getValue());
+      return scripts;
+   }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.common;
+
+import static org.apache.whirr.RolePredicates.role;
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.InstanceTemplate;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Resources;
+
+/**
+ * Bootstrap steps of roles that may share an instance. Steps every role needs,
+ * such as installing the JDK, are keyed with {@link #once}, so the instance
+ * runs them once however many roles ask. Each role's own downloads run
+ * {@link #inBackground in the background}, next to those of the other roles,
+ * and are {@link #awaitInstalls awaited} before anything is configured.
+ * Package managers hold a lock, so steps using them stay in the foreground,
+ * and with a {@code package-cache} instance in the cluster they wait for the
+ * configure action to {@link #usePackageCache go through it}.
+ * <p>
+ * The functions these steps call, and the other roles share, are kept next
+ * to this class.
+ */
+public class BootstrapStatements {
+   /** where background installs leave their log and exit code */
+   public static final String INSTALLS_DIR = "/var/lib/whirr/installs";
+   /**
+    * where {@code fetch_artifact} keeps the last copy of each artifact, so
+    * later fetches only move what changed since
+    */
+   public static final String ARTIFACTS_DIR = "/var/cache/whirr/artifacts";
+   public static final String PACKAGE_CACHE_ROLE = "package-cache";
+   /** of apt-cacher-ng, unless {@code package-cache.port} says otherwise */
+   public static final int PACKAGE_CACHE_PORT = 3142;
+
+   /**
+    * Runs {@code statement} the first time {@code key} is seen in a script.
+    * Equal steps of co-located roles are also kept once by the statement
+    * builder of the instance.
+    */
+   public static Statement once(String key, Statement statement) {
+      return new Once(key, statement);
+   }
+
+   /**
+    * Starts {@code statement} in a subshell and goes on, leaving its output in
+    * {@code key.log} under {@link #INSTALLS_DIR} and its exit code in
+    * {@code key.rc} once done. The step stops at the first command that
+    * fails.
+    */
+   public static Statement inBackground(String key, Statement statement) {
+      return new InBackground(key, statement);
+   }
+
+   /**
+    * Runs {@code statement} until it succeeded once on the instance, for
+    * bootstrap steps moved into actions that run again, such as configure.
+    */
+   public static Statement untilDone(String key, Statement statement) {
+      return new UntilDone(key, statement);
+   }
+
+   /**
+    * Waits for every background install on the instance, failing with the
+    * log of any that failed.
+    */
+   public static Statement awaitInstalls() {
+      return call("await_installs", INSTALLS_DIR);
+   }
+
+   /**
+    * Whether package manager steps should wait for the configure action, when
+    * the {@code package-cache} instance is up, so that they go through it.
+    */
+   public static boolean hasPackageCache(ClusterSpec spec) {
+      for (InstanceTemplate template : spec.getInstanceTemplates())
+         if (template.getRoles().contains(PACKAGE_CACHE_ROLE))
+            return true;
+      return false;
+   }
+
+   /**
+    * Points apt or yum at the {@code package-cache} instance, or leaves them
+    * on the mirrors if it does not answer.
+    */
+   public static Statement usePackageCache(ClusterSpec spec, Cluster cluster) {
+      List<String> caches = Lists.newArrayList();
+      for (Instance instance : cluster.getInstancesMatching(role(PACKAGE_CACHE_ROLE)))
+         caches.add(instance.getPrivateIp());
+      if (caches.isEmpty())
+         return exec("echo no package-cache instance, using the mirrors");
+      int port = spec.getConfiguration().getInt(PACKAGE_CACHE_ROLE + ".port", PACKAGE_CACHE_PORT);
+      return once("package-cache", call("use_package_cache", Ordering.natural().min(caches), port + ""));
+   }
+
+   /**
+    * The source of function {@code name}, for scripts run outside of whirr's,
+    * which are sent their functions along. It is looked for next to
+    * {@code owner}, the class of the role, then among the shared functions.
+    */
+   public static String function(Class<?> owner, String name) {
+      String path = "/functions/" + name + ".sh";
+      URL url = owner.getResource(path);
+      if (url == null)
+         url = BootstrapStatements.class.getResource(path);
+      if (url == null)
+         throw new IllegalStateException(name + ".sh is missing from the classpath");
+      try {
+         return Resources.toString(url, Charsets.UTF_8);
+      } catch (IOException e) {
+         throw new IllegalStateException("cannot read " + url, e);
+      }
+   }
+
+   private abstract static class Keyed implements Statement {
+      protected final String key;
+      protected final Statement statement;
+
+      Keyed(String key, Statement statement) {
+         this.key = key;
+         this.statement = statement;
+      }
+
+      /**
+       * roles ask for the same step under the same key, so steps are compared
+       * by key rather than by rendering what they run
+       */
+      @Override
+      public boolean equals(Object o) {
+         return o instanceof Keyed && ((Keyed) o).key.equals(key)
+               && o.getClass().getName().equals(getClass().getName());
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(getClass().getName(), key);
+      }
+   }
+
+   private static class Once extends Keyed {
+      Once(String key, Statement statement) {
+         super(key, statement);
+      }
+
+      @Override
+      public Iterable<String> functionDependencies(OsFamily family) {
+         return ImmutableSet.copyOf(Iterables.concat(ImmutableSet.of("once"), statement
+               .functionDependencies(family)));
+      }
+
+      @Override
+      public String render(OsFamily family) {
+         return "if once " + key + "; then\n" + statement.render(family) + "fi\n";
+      }
+   }
+
+   private static class UntilDone extends Keyed {
+      UntilDone(String key, Statement statement) {
+         super(key, statement);
+      }
+
+      @Override
+      public Iterable<String> functionDependencies(OsFamily family) {
+         return statement.functionDependencies(family);
+      }
+
+      @Override
+      public String render(OsFamily family) {
+         String done = INSTALLS_DIR + "/" + key + ".done";
+         return "if [ ! -e " + done + " ]; then\n" + statement.render(family) + "mkdir -p " + INSTALLS_DIR
+               + " && touch " + done + "\nfi\n";
+      }
+   }
+
+   private static class InBackground extends Keyed {
+      InBackground(String key, Statement statement) {
+         super(key, statement);
+      }
+
+      @Override
+      public Iterable<String> functionDependencies(OsFamily family) {
+         return statement.functionDependencies(family);
+      }
+
+      @Override
+      public String render(OsFamily family) {
+         String job = INSTALLS_DIR + "/" + key;
+         // errexit stops the step at its first failure, and is off around it
+         // so that its exit code is always written
+         return "mkdir -p " + INSTALLS_DIR + "\nrm -f " + job + ".rc\n( set +e\n( set -e\n"
+               + statement.render(family) + ")\necho $? > " + job + ".rc ) > " + job + ".log 2>&1 &\n";
+      }
+   }
+}
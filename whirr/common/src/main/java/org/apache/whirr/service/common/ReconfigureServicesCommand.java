@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.common;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+
+import joptsimple.OptionException;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.command.AbstractClusterCommand;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * {@code whirr reconfigure-services} runs the configure phase again on a
+ * running cluster, which Whirr otherwise only runs at launch. Handlers whose
+ * configure statements render a service's settings next to the live file and
+ * swap them in, as cinderella and vBlob do, apply changed properties this way
+ * without reinstalling: an unchanged file is left alone, and a changed one
+ * reloads or restarts its service.
+ * 
+ * <p/>
+ * The instances are reconfigured in batches of {@code --batch-size}, one at a
+ * time by default, so a setting that restarts a service only takes that many
+ * instances out at once while the others keep serving.
+ */
+public class ReconfigureServicesCommand extends AbstractClusterCommand {
+
+   private final OptionSpec<String> roles = parser.accepts("roles",
+         "Roles to reconfigure, all of the cluster's by default").withRequiredArg().ofType(String.class)
+         .withValuesSeparatedBy(',');
+   private final OptionSpec<String> instances = parser.accepts("instances",
+         "Ids of the instances to reconfigure, all by default").withRequiredArg().ofType(String.class)
+         .withValuesSeparatedBy(',');
+   private final OptionSpec<Integer> batchSize = parser.accepts("batch-size",
+         "Instances to reconfigure at once; each batch is done before the next starts").withRequiredArg()
+         .ofType(Integer.class).defaultsTo(1);
+
+   public ReconfigureServicesCommand() {
+      this(new ClusterControllerFactory());
+   }
+
+   public ReconfigureServicesCommand(ClusterControllerFactory factory) {
+      super("reconfigure-services", "Run the configure phase of a running cluster again.", factory);
+   }
+
+   @Override
+   public int run(InputStream in, PrintStream out, PrintStream err, List<String> args) throws Exception {
+      OptionSet options;
+      try {
+         options = parser.parse(args.toArray(new String[args.size()]));
+      } catch (OptionException e) {
+         err.println(e.getMessage());
+         printUsage(err);
+         return -1;
+      }
+      int batch = options.valueOf(batchSize);
+      if (batch < 1) {
+         err.println("--batch-size must be at least 1");
+         return -1;
+      }
+      ClusterSpec spec = getClusterSpec(options);
+      ClusterController controller = createClusterController(spec.getServiceName());
+      Cluster cluster = getCluster(spec, controller);
+      if (cluster.getInstances().isEmpty()) {
+         err.println("No running instances of " + spec.getClusterName());
+         return -1;
+      }
+      Set<String> targetRoles = ImmutableSet.copyOf(options.valuesOf(roles));
+      List<String> ids = select(cluster, targetRoles, options.valuesOf(instances));
+      if (ids.isEmpty()) {
+         err.println("No instance of " + spec.getClusterName() + " matches the given roles and instances");
+         return -1;
+      }
+      int done = 0;
+      for (List<String> next : Lists.partition(ids, batch)) {
+         controller.configureServices(spec, cluster, targetRoles, ImmutableSet.copyOf(next));
+         done += next.size();
+         out.println("Reconfigured " + done + " of " + ids.size() + " instance(s) of " + spec.getClusterName());
+      }
+      return 0;
+   }
+
+   /**
+    * @return ids of the instances with one of {@code targetRoles} whose id is
+    *         in {@code wanted}, either of which matches all when empty
+    */
+   static List<String> select(Cluster cluster, Set<String> targetRoles, List<String> wanted) {
+      List<String> ids = Lists.newArrayList();
+      for (Instance instance : cluster.getInstances())
+         if ((targetRoles.isEmpty() || !Sets.intersection(targetRoles, instance.getRoles()).isEmpty())
+               && (wanted.isEmpty() || wanted.contains(instance.getId())))
+            ids.add(instance.getId());
+      return ids;
+   }
+}
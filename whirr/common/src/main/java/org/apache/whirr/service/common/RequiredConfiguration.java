@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Reads the settings of a role, noting every missing or malformed one instead
+ * of failing on the first, so that {@link #validate()} can report them all at
+ * once. Getters return a placeholder for bad settings, which is never used as
+ * {@link #validate()} throws before the config is built.
+ */
+public class RequiredConfiguration {
+   private final Configuration config;
+   private final String prefix;
+   private final List<String> problems = Lists.newArrayList();
+
+   public RequiredConfiguration(Configuration config, String prefix) {
+      this.config = checkNotNull(config, "config");
+      this.prefix = checkNotNull(prefix, "prefix");
+   }
+
+   public String getString(String key) {
+      String value = config.getString(prefix + "." + key);
+      if (value == null || value.trim().isEmpty()) {
+         problems.add(prefix + "." + key + " is not set");
+         return "";
+      }
+      return value.trim();
+   }
+
+   /**
+    * @return the value of {@code key}, or an empty string if it is not set
+    */
+   public String getOptionalString(String key) {
+      String value = config.getString(prefix + "." + key);
+      return value == null ? "" : value.trim();
+   }
+
+   /**
+    * @return the items of {@code key}, a comma separated list, as
+    *         commons-configuration splits values on commas and
+    *         {@link #getString} would only see the first
+    */
+   public List<String> getStringList(String key) {
+      List<String> values = getOptionalStringList(key);
+      if (values.isEmpty())
+         problems.add(prefix + "." + key + " is not set");
+      return values;
+   }
+
+   /**
+    * @return the items of {@code key}, or an empty list if it is not set
+    */
+   public List<String> getOptionalStringList(String key) {
+      ImmutableList.Builder<String> values = ImmutableList.builder();
+      for (String value : config.getStringArray(prefix + "." + key))
+         values.addAll(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+      return values.build();
+   }
+
+   public int getInt(String key) {
+      return (int) getLong(key, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   public int getPort(String key) {
+      return (int) getLong(key, 1, 65535);
+   }
+
+   public long getLong(String key) {
+      return getLong(key, Long.MIN_VALUE, Long.MAX_VALUE);
+   }
+
+   public long getLong(String key, long min, long max) {
+      String value = getString(key);
+      if (value.isEmpty())
+         return 0;
+      try {
+         long parsed = Long.parseLong(value);
+         if (parsed < min || parsed > max)
+            problems.add(prefix + "." + key + "=" + value + " is not between " + min + " and " + max);
+         return parsed;
+      } catch (NumberFormatException e) {
+         problems.add(prefix + "." + key + "=" + value + " is not a number");
+         return 0;
+      }
+   }
+
+   public boolean getBoolean(String key) {
+      String value = getString(key);
+      if (value.isEmpty())
+         return false;
+      if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+         problems.add(prefix + "." + key + "=" + value + " is not true or false");
+      return Boolean.parseBoolean(value);
+   }
+
+   /**
+    * @return the value of {@code key}, which must be an absolute URI
+    */
+   public URI getURI(String key) {
+      String value = getString(key);
+      if (value.isEmpty())
+         return URI.create("");
+      try {
+         URI uri = new URI(value);
+         if (!uri.isAbsolute())
+            problems.add(prefix + "." + key + "=" + value + " is not an absolute URI");
+         return uri;
+      } catch (java.net.URISyntaxException e) {
+         problems.add(prefix + "." + key + "=" + value + " is not a URI: " + e.getReason());
+         return URI.create("");
+      }
+   }
+
+   /**
+    * Looks up a config resolved once per cluster spec, rethrowing the failure
+    * to resolve it as is.
+    */
+   public static <K, V> V resolve(LoadingCache<K, V> configs, K key) throws IOException {
+      try {
+         return configs.get(key);
+      } catch (ExecutionException e) {
+         Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+         throw Throwables.propagate(e.getCause());
+      } catch (UncheckedExecutionException e) {
+         // such as the IllegalArgumentException of validate()
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   /**
+    * records a problem that spans more than one setting
+    */
+   public void addProblem(String problem) {
+      problems.add(problem);
+   }
+
+   /**
+    * @throws IllegalArgumentException
+    *            listing every problem found while reading
+    */
+   public void validate() {
+      if (!problems.isEmpty())
+         throw new IllegalArgumentException(problems.size() + " invalid " + prefix + " setting"
+               + (problems.size() == 1 ? "" : "s") + ":\n  " + Joiner.on("\n  ").join(problems));
+   }
+}
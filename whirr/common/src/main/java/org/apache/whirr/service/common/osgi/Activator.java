@@ -0,0 +1,27 @@
+package org.apache.whirr.service.common.osgi;
+
+import org.jclouds.scriptbuilder.functionloader.osgi.BundleFunctionLoader;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Makes the functions the roles share available to their scripts. This bundle
+ * has no role of its own.
+ */
+public class Activator implements BundleActivator {
+
+  private BundleFunctionLoader functionLoader;
+
+  @Override
+  public void start(BundleContext context) throws Exception {
+    functionLoader = new BundleFunctionLoader(context);
+    functionLoader.start();
+  }
+
+  @Override
+  public void stop(BundleContext context) throws Exception {
+    if (functionLoader != null) {
+      functionLoader.stop();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Leaves the artifact at URL in CACHE/NAME, moving as few bytes as it can.
+# Nothing is fetched when the .sha1 published next to the artifact matches
+# the copy already there. With a .zsync published too and zsync installed,
+# only the blocks that differ from that copy are fetched. Otherwise the whole
+# artifact is. What arrives is checked against the .sha1 before it replaces
+# the copy, which is kept as the base of the next fetch: a delta that fails
+# or does not match falls back to a full fetch, and a full fetch that does
+# not match fails.
+function fetch_artifact() {
+  local URL=$1
+  local CACHE=$2
+  local NAME=$3
+  local CACHED=$CACHE/$NAME
+  local NEW=$CACHED.new
+  local CURL="curl -q -s -S -L --connect-timeout 10 --retry 5"
+
+  mkdir -p $CACHE
+  rm -f $NEW $NEW.part
+  # maven repositories publish the sum alone or followed by the file name
+  local SHA1=$($CURL -f "$URL.sha1" 2>/dev/null | head -c 40 | tr 'A-F' 'a-f')
+  if ! echo "$SHA1" | grep -q '^[0-9a-f]\{40\}$'; then
+    SHA1=
+  fi
+
+  if [ -n "$SHA1" -a -f $CACHED ] && [ "$(sha1sum < $CACHED | cut -c1-40)" == "$SHA1" ]; then
+    echo "$NAME is unchanged"
+    return 0
+  fi
+
+  if [ -f $CACHED ] && which zsync > /dev/null 2>&1 && $CURL -f -I "$URL.zsync" > /dev/null 2>&1; then
+    echo "fetching what changed in $NAME from $URL.zsync"
+    # zsync checks the result against the sum in the control file itself
+    if ! (cd $CACHE && zsync -q -i $CACHED -o $NEW "$URL.zsync"); then
+      echo "the delta of $NAME failed, fetching it whole"
+      rm -f $NEW
+    elif [ -n "$SHA1" ] && [ "$(sha1sum < $NEW | cut -c1-40)" != "$SHA1" ]; then
+      echo "the delta of $NAME does not match $URL.sha1, fetching it whole"
+      rm -f $NEW
+    fi
+    rm -f $NEW.part $NEW.zs-old
+  fi
+
+  if [ ! -f $NEW ]; then
+    echo "fetching $NAME from $URL"
+    if ! $CURL -f --max-time 600 -o $NEW "$URL"; then
+      rm -f $NEW
+      echo "could not fetch $URL"
+      return 1
+    fi
+    if [ -n "$SHA1" ] && [ "$(sha1sum < $NEW | cut -c1-40)" != "$SHA1" ]; then
+      rm -f $NEW
+      echo "$URL does not match $URL.sha1"
+      return 1
+    fi
+  fi
+
+  if [ -f $CACHED ] && cmp -s $NEW $CACHED; then
+    echo "$NAME is unchanged"
+    rm -f $NEW
+    return 0
+  fi
+  mv -f $NEW $CACHED
+  echo "$NAME changed"
+  return 0
+}
@@ -0,0 +1,37 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function stop_java_service() {
+  local NAME=${1}
+  local SERVICE_HOME=${2}
+  local PID_FILE=$SERVICE_HOME/$NAME.pid
+
+  if [ ! -f $PID_FILE ]; then
+    echo $NAME is not running
+    return 0
+  fi
+
+  echo stopping $NAME
+  local PID=$(cat $PID_FILE)
+  kill $PID 2>/dev/null
+  for i in $(seq 1 30); do
+    kill -0 $PID 2>/dev/null || break
+    sleep 1
+  done
+  kill -9 $PID 2>/dev/null
+  rm -f $PID_FILE
+  return 0
+}
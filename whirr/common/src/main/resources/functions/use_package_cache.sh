@@ -0,0 +1,37 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Sends apt and yum through the package cache of the cluster, so each package
+# is fetched from the mirrors once. Stays on the mirrors if it does not answer.
+function use_package_cache() {
+  local CACHE_HOST=${1}
+  local CACHE_PORT=${2}
+  local PROXY=http://$CACHE_HOST:$CACHE_PORT
+
+  if ! curl -s -o /dev/null --max-time 5 $PROXY/acng-report.html; then
+    echo package cache $PROXY does not answer, using the mirrors
+    return 0
+  fi
+  if [ -d /etc/apt/apt.conf.d ]; then
+    echo "Acquire::http::Proxy \"$PROXY\";" > /etc/apt/apt.conf.d/01whirr-package-cache
+  fi
+  if [ -f /etc/yum.conf ]; then
+    sed -i '/^proxy=/d' /etc/yum.conf
+    sed -i "/^\[main\]/a proxy=$PROXY" /etc/yum.conf
+  fi
+  echo using package cache $PROXY
+  return 0
+}
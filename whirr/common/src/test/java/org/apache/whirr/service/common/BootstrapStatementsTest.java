@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.common;
+
+import static org.apache.whirr.service.common.BootstrapStatements.INSTALLS_DIR;
+import static org.apache.whirr.service.common.BootstrapStatements.inBackground;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class BootstrapStatementsTest {
+
+   private File installs;
+
+   @Before
+   public void setUp() {
+      installs = Files.createTempDir();
+   }
+
+   @After
+   public void tearDown() {
+      for (File file : installs.listFiles())
+         file.delete();
+      installs.delete();
+   }
+
+   @Test
+   public void testBackgroundStepRecordsItsFirstFailure() throws Exception {
+      run(inBackground("failing", exec("false\ntouch " + installs + "/after")));
+      assertEquals("1", Files.toString(new File(installs, "failing.rc"), Charsets.UTF_8).trim());
+      assertFalse(new File(installs, "after").exists());
+   }
+
+   @Test
+   public void testBackgroundStepRecordsSuccess() throws Exception {
+      run(inBackground("passing", exec("true")));
+      assertEquals("0", Files.toString(new File(installs, "passing.rc"), Charsets.UTF_8).trim());
+   }
+
+   @Test
+   public void testStepsAreEqualByKey() {
+      assertEquals(once("jdk", exec("install_openjdk")), once("jdk", exec("install_openjdk")));
+      assertEquals(once("jdk", exec("install_openjdk")).hashCode(), once("jdk", exec("install_openjdk")).hashCode());
+      assertFalse(once("jdk", exec("true")).equals(inBackground("jdk", exec("true"))));
+      assertFalse(once("jdk", exec("true")).equals(exec("true")));
+   }
+
+   /**
+    * runs {@code statement} with errexit on, as whirr does, against the
+    * temporary installs directory, and waits for what it left in the
+    * background
+    */
+   private void run(Statement statement) throws Exception {
+      String script = "set -e\n" + statement.render(OsFamily.UNIX).replace(INSTALLS_DIR, installs.getPath())
+            + "wait\n";
+      Process process = new ProcessBuilder("bash", "-c", script).redirectErrorStream(true).start();
+      assertEquals(0, process.waitFor());
+   }
+}
@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.common.benchmark;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.DryRunModule.DryRun;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs a role's whole lifecycle against the jclouds {@code stub} provider.
+ * Whirr's dry run records scripts instead of executing them over ssh, so the
+ * timings are controller-side cost only: handler callbacks, statement
+ * building and rendering, and the cluster actions themselves.
+ *
+ * <p/>
+ * Each role's benchmark is only built and run with {@code -Pbenchmark}, in
+ * the {@code integration-test} phase of its module, for clusters of
+ * {@code whirr.benchmark.sizes} instances: 1, 10 and 100. The baselines are
+ * wall-clock times of one machine, so an ordinary build does not check them.
+ * Each measurement is compared against
+ * {@code <role>-benchmark-baseline.properties}, and the build fails when one
+ * exceeds its baseline by more than {@code whirr.benchmark.tolerance} and by
+ * more than the noise of its unit, 20us for renders and 100ms for cluster
+ * actions, which timings this small show from run to run. Pass
+ * {@code -Dwhirr.benchmark.record=true} to write the measurements to
+ * {@code target/<role>-benchmark.properties} when refreshing the baseline.
+ */
+public abstract class LifecycleBenchmark {
+   private static final Logger LOG = LoggerFactory.getLogger(LifecycleBenchmark.class);
+
+   private static final int RENDER_ITERATIONS = 1000;
+   /** rounds of renders, of which the fastest is kept */
+   private static final int RENDER_ROUNDS = 5;
+   /** differences each unit shows between runs of unchanged code */
+   private static final Map<String, Long> NOISE = ImmutableMap.of("ns", 20000L, "us", 20L, "ms", 100L);
+
+   private final String role;
+   private Properties baseline;
+   private Properties measured;
+   private double tolerance;
+
+   protected LifecycleBenchmark(String role) {
+      this.role = role;
+   }
+
+   /**
+    * @return the statements of each lifecycle phase, by phase name
+    */
+   protected abstract Map<String, Statement> statements(Configuration config) throws Exception;
+
+   /**
+    * reads the role's settings from {@code config} as its handler does
+    */
+   protected abstract Object toConfig(Configuration config) throws Exception;
+
+   @Before
+   public void setUp() throws IOException {
+      baseline = new Properties();
+      InputStream in = getClass().getResourceAsStream("/" + role + "-benchmark-baseline.properties");
+      assertNotNull("no baseline for " + role, in);
+      try {
+         baseline.load(in);
+      } finally {
+         in.close();
+      }
+      measured = new Properties();
+      tolerance = Double.parseDouble(System.getProperty("whirr.benchmark.tolerance", "1.5"));
+   }
+
+   @Test
+   public void testStatementRendering() throws Exception {
+      for (final Map.Entry<String, Statement> statement : statements(newConfiguration(1)).entrySet()) {
+         record("render." + statement.getKey() + ".ns", fastest(new Timed() {
+            @Override
+            void call() {
+               statement.getValue().render(OsFamily.UNIX);
+            }
+         }));
+      }
+      record("handler.toConfig.ns", fastest(new Timed() {
+         @Override
+         void call() throws Exception {
+            toConfig(newConfiguration(1));
+         }
+      }));
+      writeAndCheck();
+   }
+
+   private abstract static class Timed {
+      abstract void call() throws Exception;
+   }
+
+   /**
+    * @return nanoseconds per call in the fastest of {@link #RENDER_ROUNDS}
+    *         rounds, after a round to warm up; slower rounds measure the
+    *         machine rather than the code
+    */
+   private static long fastest(Timed timed) throws Exception {
+      long fastest = Long.MAX_VALUE;
+      for (int round = 0; round <= RENDER_ROUNDS; round++) {
+         Stopwatch watch = new Stopwatch().start();
+         for (int i = 0; i < RENDER_ITERATIONS; i++)
+            timed.call();
+         if (round > 0)
+            fastest = Math.min(fastest, watch.elapsedTime(TimeUnit.NANOSECONDS) / RENDER_ITERATIONS);
+      }
+      return fastest;
+   }
+
+   @Test
+   public void testLifecycle() throws Exception {
+      for (String size : Splitter.on(',').trimResults().omitEmptyStrings().split(
+            System.getProperty("whirr.benchmark.sizes", "1,10"))) {
+         int instances = Integer.parseInt(size);
+         ClusterSpec clusterSpec = ClusterSpec.withTemporaryKeys(newConfiguration(instances));
+         ClusterController controller = new ClusterController();
+         DryRun dryRun = controller.getCompute().apply(clusterSpec).utils().injector().getInstance(DryRun.class);
+         dryRun.reset();
+
+         Stopwatch watch = new Stopwatch().start();
+         controller.launchCluster(clusterSpec);
+         record("launch." + instances + ".ms", watch.elapsedMillis());
+
+         watch.reset().start();
+         controller.stopServices(clusterSpec);
+         record("stop." + instances + ".ms", watch.elapsedMillis());
+
+         watch.reset().start();
+         controller.startServices(clusterSpec);
+         record("start." + instances + ".ms", watch.elapsedMillis());
+
+         watch.reset().start();
+         controller.cleanupCluster(clusterSpec);
+         record("cleanup." + instances + ".ms", watch.elapsedMillis());
+
+         watch.reset().start();
+         controller.destroyCluster(clusterSpec);
+         record("destroy." + instances + ".ms", watch.elapsedMillis());
+
+         assertTrue("no scripts were recorded for " + instances + " instances", dryRun.getExecutions().size() > 0);
+      }
+      writeAndCheck();
+   }
+
+   /**
+    * @return the benchmark settings of the role, over its defaults, for a
+    *         cluster of {@code instances}
+    */
+   protected Configuration newConfiguration(int instances) throws Exception {
+      BaseConfiguration overrides = new BaseConfiguration();
+      overrides.setProperty("whirr.instance-templates", instances + " " + role);
+      CompositeConfiguration config = new CompositeConfiguration();
+      config.addConfiguration(overrides);
+      config.addConfiguration(new PropertiesConfiguration("whirr-" + role + "-benchmark.properties"));
+      config.addConfiguration(new PropertiesConfiguration("whirr-" + role + "-default.properties"));
+      return config;
+   }
+
+   protected void record(String key, long value) {
+      LOG.info("{} = {}", key, value);
+      measured.setProperty(key, Long.toString(value));
+   }
+
+   /**
+    * Writes the measurements when recording, then fails if any exceeds its
+    * baseline by more than the tolerance.
+    */
+   protected void writeAndCheck() throws IOException {
+      if (Boolean.getBoolean("whirr.benchmark.record")) {
+         File out = new File("target/" + role + "-benchmark.properties");
+         out.getParentFile().mkdirs();
+         Properties all = new Properties();
+         if (out.exists()) {
+            InputStream in = new FileInputStream(out);
+            try {
+               all.load(in);
+            } finally {
+               in.close();
+            }
+         }
+         all.putAll(measured);
+         OutputStream os = new FileOutputStream(out);
+         try {
+            all.store(os, role + " benchmark");
+         } finally {
+            os.close();
+         }
+      }
+      Map<String, String> regressions = Maps.newTreeMap();
+      for (String key : measured.stringPropertyNames()) {
+         String limit = baseline.getProperty(key);
+         if (limit == null)
+            continue;
+         long value = Long.parseLong(measured.getProperty(key));
+         Long noise = NOISE.get(key.substring(key.lastIndexOf('.') + 1));
+         if (value > Long.parseLong(limit) * tolerance && value > Long.parseLong(limit) + (noise == null ? 0 : noise))
+            regressions.put(key, value + " > " + limit + " * " + tolerance);
+      }
+      assertTrue("regressed against baseline: " + regressions, regressions.isEmpty());
+   }
+}
@@ -0,0 +1,42 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Waits for the installs started in the background while bootstrapping, and
+# fails with the log of any that failed or did not finish in time.
+function await_installs() {
+  local INSTALLS_DIR=${1}
+  local TIMEOUT=${2:-3600}
+  local DEADLINE=$(( $(date +%s) + TIMEOUT ))
+  local FAILED=0
+
+  for LOG in $INSTALLS_DIR/*.log; do
+    [ -e "$LOG" ] || continue
+    local JOB=${LOG%.log}
+    local NAME=$(basename $JOB)
+    while [ ! -e $JOB.rc ] && [ $(date +%s) -lt $DEADLINE ]; do
+      sleep 1
+    done
+    if [ ! -e $JOB.rc ]; then
+      echo "$NAME install did not finish in $TIMEOUT seconds" >&2
+      FAILED=1
+    elif [ "$(cat $JOB.rc)" != 0 ]; then
+      echo "$NAME install failed with $(cat $JOB.rc):" >&2
+      tail -n 50 $LOG >&2
+      FAILED=1
+    fi
+  done
+  return $FAILED
+}
@@ -0,0 +1,74 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function busy_connections() {
+  local PORT=${1}
+
+  # keep-alive connections that sit idle after their last response are not
+  # counted, clients reconnect those elsewhere; nor are local clients such as
+  # the cache, which are stopped along with the port
+  if which ss > /dev/null 2>&1; then
+    ss -tni state established "( sport = :$PORT )" 2> /dev/null | awk '
+      function count() { if (peer != "" && peer !~ /^\[?(127\.|::1\]|::ffff:127\.)/ && (sendq > 0 || busy)) n++ }
+      NR == 1 { next }
+      /^[0-9]/ { count(); sendq = $2; peer = $4; busy = 1; next }
+      /lastsnd:/ && /lastrcv:/ {
+        snd = $0; sub(/.*lastsnd:/, "", snd); sub(/[^0-9].*/, "", snd)
+        rcv = $0; sub(/.*lastrcv:/, "", rcv); sub(/[^0-9].*/, "", rcv)
+        # a request came in after the last bytes went out
+        busy = rcv + 0 < snd + 0
+      }
+      END { count(); print n + 0 }'
+  else
+    netstat -tn 2> /dev/null | awk -v port=$PORT '
+      $6 == "ESTABLISHED" && $4 ~ ":" port "$" && $5 !~ /^(127\.|::1:|::ffff:127\.)/ { n++ }
+      END { print n + 0 }'
+  fi
+}
+
+function drain_ports() {
+  local NAME=${1}
+  local TIMEOUT=${2}
+  shift 2
+  local PORTS="$@"
+  local START=$(date +%s)
+  local PORT BUSY
+
+  if [ "$TIMEOUT" -le 0 ]; then
+    return 0
+  fi
+  if ! which iptables > /dev/null 2>&1; then
+    echo "drain $NAME: iptables is missing, stopping without draining"
+    return 0
+  fi
+  # refuse new connections with a reset, so clients and vblob-router move on at
+  # once, while established connections finish their requests
+  for PORT in $PORTS; do
+    iptables -C INPUT ! -i lo -p tcp --dport $PORT --syn -j REJECT --reject-with tcp-reset 2> /dev/null ||
+      iptables -I INPUT ! -i lo -p tcp --dport $PORT --syn -j REJECT --reject-with tcp-reset
+  done
+  while true; do
+    BUSY=0
+    for PORT in $PORTS; do
+      BUSY=$((BUSY + $(busy_connections $PORT)))
+    done
+    [ $BUSY -eq 0 -o $(($(date +%s) - START)) -ge $TIMEOUT ] && break
+    sleep 1
+  done
+  # reported in the output of the stop script; requests still in flight now are
+  # cut off when the process stops
+  echo "drain $NAME: ports=${PORTS// /,} seconds=$(($(date +%s) - START)) dropped=$BUSY"
+}
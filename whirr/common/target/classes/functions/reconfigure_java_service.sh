@@ -0,0 +1,43 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function reconfigure_java_service() {
+  local NAME=${1}
+  local SERVICE_HOME=${2}
+  local SERVICE_USER=${3}
+  local CONFIG=${4}
+  local PID_FILE=$SERVICE_HOME/$NAME.pid
+
+  if [ -f $CONFIG ] && cmp -s $CONFIG.new $CONFIG; then
+    echo "$CONFIG is unchanged"
+    rm -f $CONFIG.new
+    return 0
+  fi
+
+  mv -f $CONFIG.new $CONFIG
+  chown $SERVICE_USER $CONFIG
+
+  if [ -f $PID_FILE ] && kill -0 $(cat $PID_FILE) 2>/dev/null; then
+    echo restarting $NAME to pick up $CONFIG
+    kill $(cat $PID_FILE)
+    for i in $(seq 1 30); do
+      kill -0 $(cat $PID_FILE) 2>/dev/null || break
+      sleep 1
+    done
+    sudo -n -H -u ${SERVICE_USER} sh -c "cd $SERVICE_HOME; nohup sh $SERVICE_HOME/$NAME.cmd >> $SERVICE_HOME/$NAME.log 2>&1 & echo \$! > $PID_FILE"
+  fi
+  return 0
+}
@@ -0,0 +1,32 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function start_java_service() {
+  local NAME=${1}
+  local SERVICE_HOME=${2}
+  local SERVICE_USER=${3}
+  local CLASSPATH=${4}
+  shift 4
+
+  # kept so the service can be restarted with the same command line
+  echo "exec java -cp $CLASSPATH $@" > $SERVICE_HOME/$NAME.cmd
+  chown $SERVICE_USER $SERVICE_HOME/$NAME.cmd
+
+  echo starting $NAME as user ${SERVICE_USER}
+  sudo -n -H -u ${SERVICE_USER} sh -c "cd $SERVICE_HOME; nohup sh $SERVICE_HOME/$NAME.cmd >> $SERVICE_HOME/$NAME.log 2>&1 & echo \$! > $SERVICE_HOME/$NAME.pid"
+  sleep 1
+  kill -0 $(cat $SERVICE_HOME/$NAME.pid) 2>/dev/null || abort "$NAME exited, see $SERVICE_HOME/$NAME.log"
+}
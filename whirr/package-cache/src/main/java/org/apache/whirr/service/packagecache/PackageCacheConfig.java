@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.packagecache;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+
+/**
+ * Configuration required to run the package cache of a cluster
+ */
+public class PackageCacheConfig {
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public Builder toBuilder() {
+      return new Builder().fromPackageCacheConfig(this);
+   }
+
+   public static class Builder {
+      private int port = 3142;
+      private String dir = "/var/cache/apt-cacher-ng";
+      private int keepDays = 4;
+
+      /**
+       * @see PackageCacheConfig#getPort()
+       */
+      public Builder port(int port) {
+         this.port = port;
+         return this;
+      }
+
+      /**
+       * @see PackageCacheConfig#getDir()
+       */
+      public Builder dir(String dir) {
+         this.dir = dir;
+         return this;
+      }
+
+      /**
+       * @see PackageCacheConfig#getKeepDays()
+       */
+      public Builder keepDays(int keepDays) {
+         this.keepDays = keepDays;
+         return this;
+      }
+
+      public PackageCacheConfig build() {
+         return new PackageCacheConfig(port, dir, keepDays);
+      }
+
+      public Builder fromPackageCacheConfig(PackageCacheConfig in) {
+         return this.port(in.port).dir(in.dir).keepDays(in.keepDays);
+      }
+   }
+
+   private final int port;
+   private final String dir;
+   private final int keepDays;
+
+   protected PackageCacheConfig(int port, String dir, int keepDays) {
+      this.port = port;
+      this.dir = checkNotNull(dir, "dir");
+      this.keepDays = keepDays;
+   }
+
+   /**
+    * Port apt and yum on the other instances connect to (default 3142)
+    */
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * Directory packages are kept in (default /var/cache/apt-cacher-ng)
+    */
+   public String getDir() {
+      return dir;
+   }
+
+   /**
+    * Days a package no longer listed by its mirror is kept (default 4)
+    */
+   public int getKeepDays() {
+      return keepDays;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(port, dir, keepDays);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (obj == null)
+         return false;
+      if (getClass() != obj.getClass())
+         return false;
+      PackageCacheConfig other = PackageCacheConfig.class.cast(obj);
+      return Objects.equal(this.port, other.port) && Objects.equal(this.dir, other.dir)
+            && Objects.equal(this.keepDays, other.keepDays);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("port", port).add("dir", dir).add("keepDays", keepDays).toString();
+   }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.packagecache;
+
+import static org.apache.whirr.service.packagecache.PackageCacheStatements.cleanup;
+import static org.apache.whirr.service.packagecache.PackageCacheStatements.install;
+import static org.apache.whirr.service.packagecache.PackageCacheStatements.start;
+import static org.apache.whirr.service.packagecache.PackageCacheStatements.stop;
+
+import java.io.IOException;
+
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.ClusterActionEvent;
+import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.common.RequiredConfiguration;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Caches the apt and yum packages the other instances of a cluster install.
+ * The cache is up once bootstrapping is done, and roles that support it then
+ * install their packages through it when configuring, so a large launch
+ * fetches each package from the mirrors once. It is only reachable from inside
+ * the cluster, on the private addresses.
+ */
+public class PackageCacheHandler extends ClusterActionHandlerSupport {
+
+   /**
+    * resolved and validated once per cluster spec, when it is first seen
+    */
+   private final LoadingCache<ClusterSpec, PackageCacheConfig> configs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, PackageCacheConfig>() {
+            @Override
+            public PackageCacheConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToPackageCacheConfig(getRole()).apply(getConfiguration(spec,
+                     "whirr-" + getRole() + "-default.properties"));
+            }
+         });
+
+   @Override
+   public String getRole() {
+      return "package-cache";
+   }
+
+   @Override
+   protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(install(toConfig(event)));
+   }
+
+   protected PackageCacheConfig toConfig(ClusterActionEvent event) throws IOException {
+      return RequiredConfiguration.resolve(configs, event.getClusterSpec());
+   }
+
+   @Override
+   protected void beforeStart(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(start(toConfig(event)));
+   }
+
+   @Override
+   protected void beforeStop(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(stop(toConfig(event)));
+   }
+
+   @Override
+   protected void beforeCleanup(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(cleanup(toConfig(event)));
+   }
+
+}
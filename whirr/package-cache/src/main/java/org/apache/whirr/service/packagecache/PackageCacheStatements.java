@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.packagecache;
+
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+
+import org.jclouds.scriptbuilder.domain.Statement;
+
+public class PackageCacheStatements {
+
+   /**
+    * Installs and starts apt-cacher-ng while bootstrapping, so it is up before
+    * the other roles install packages through it when configuring.
+    */
+   public static Statement install(PackageCacheConfig config) {
+      return call("install_package_cache", config.getPort() + "", config.getDir(), config.getKeepDays() + "");
+   }
+
+   public static Statement start(PackageCacheConfig config) {
+      return call("start_package_cache", config.getPort() + "");
+   }
+
+   public static Statement stop(PackageCacheConfig config) {
+      return call("stop_package_cache");
+   }
+
+   /**
+    * Stops the cache, but keeps the packages in it for the next cluster on
+    * this instance.
+    */
+   public static Statement cleanup(PackageCacheConfig config) {
+      return call("stop_package_cache");
+   }
+}
@@ -0,0 +1,44 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# apt-cacher-ng caches the packages apt fetches, and with the patterns below
+# the rpms and metadata of yum repositories too. It is an apt package, so the
+# cache instance needs an apt based image; its clients may use either.
+function install_package_cache() {
+  local PORT=${1:-3142}
+  local CACHE_DIR=${2:-/var/cache/apt-cacher-ng}
+  local KEEP_DAYS=${3:-4}
+
+  if ! which apt-get &> /dev/null; then
+    abort "the package cache installs apt-cacher-ng, which needs apt-get"
+    return 1
+  fi
+  mkdir -p /etc/apt-cacher-ng $CACHE_DIR
+  # read after the packaged acng.conf, so these settings win
+  cat > /etc/apt-cacher-ng/zz_whirr.conf <<END
+Port: $PORT
+CacheDir: $CACHE_DIR
+ExTreshold: $KEEP_DAYS
+PassThroughPattern: .*
+PfilePatternEx: \.rpm$
+VfilePatternEx: (repomd\.xml|\.xml\.gz|\.sqlite\.bz2)$
+END
+  apt-get update -qq
+  DEBIAN_FRONTEND=noninteractive apt-get install -qq -y apt-cacher-ng
+  chown -R apt-cacher-ng $CACHE_DIR
+  start_package_cache $PORT
+  return $?
+}
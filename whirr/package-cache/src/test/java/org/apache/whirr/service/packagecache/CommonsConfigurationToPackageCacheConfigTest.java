@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.packagecache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Test;
+
+public class CommonsConfigurationToPackageCacheConfigTest {
+
+   private PropertiesConfiguration defaults() throws ConfigurationException {
+      return new PropertiesConfiguration("whirr-package-cache-default.properties");
+   }
+
+   @Test
+   public void testDefaults() throws ConfigurationException {
+      PackageCacheConfig cache = new CommonsConfigurationToPackageCacheConfig("package-cache").apply(defaults());
+      assertEquals(PackageCacheConfig.builder().build(), cache);
+   }
+
+   @Test
+   public void testReportsEveryProblemAtOnce() throws ConfigurationException {
+      PropertiesConfiguration config = defaults();
+      config.setProperty("package-cache.port", "0");
+      config.setProperty("package-cache.dir", "");
+      try {
+         new CommonsConfigurationToPackageCacheConfig("package-cache").apply(config);
+         fail("expected the missing and malformed settings to be reported");
+      } catch (IllegalArgumentException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith("2 invalid package-cache settings"));
+      }
+   }
+}
@@ -0,0 +1,30 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function start_package_cache() {
+  local PORT=${1:-3142}
+
+  service apt-cacher-ng restart
+  for i in $(seq 1 30); do
+    if curl -s -o /dev/null http://localhost:$PORT/acng-report.html; then
+      echo package cache is up on port $PORT
+      return 0
+    fi
+    sleep 1
+  done
+  echo apt-cacher-ng did not answer on port $PORT >&2
+  return 1
+}
@@ -23,11 +23,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.net.URI;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.common.RequiredConfiguration;
 import org.apache.whirr.service.vblob.VBlobConfig.Builder;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 
 public class CommonsConfigurationToVBlobConfig implements Function<Configuration, VBlobConfig> {
    private final String prefix;
@@ -38,26 +38,104 @@ public class CommonsConfigurationToVBlobConfig implements Function<Configuration
       this.user = checkNotNull(user, "user");
    }
 
-   @SuppressWarnings("unchecked")
-   static String getPropertyOrThrowReasonableNPE(String propertyKey, Configuration config) {
-      return checkNotNull(config.getString(propertyKey), "%s not in %s", propertyKey,
-            ImmutableSet.copyOf(config.getKeys()));
-   }
-
    @Override
    public VBlobConfig apply(Configuration input) {
+      RequiredConfiguration required = new RequiredConfiguration(input, prefix);
       Builder builder = VBlobConfig.builder();
       builder.user(user);
-      builder.home(getPropertyOrThrowReasonableNPE(prefix + ".home", input));
-      builder.s3Port(Integer.parseInt(getPropertyOrThrowReasonableNPE(prefix + ".s3port", input)));
-      builder.authorizedAccessKey(getPropertyOrThrowReasonableNPE(prefix + ".auth.access-key", input));
-      builder.authorizedSecretKey(getPropertyOrThrowReasonableNPE(prefix + ".auth.secret-key", input));
-      builder.tar(URI.create(getPropertyOrThrowReasonableNPE(prefix + ".tar.url", input)));
+      builder.home(required.getString("home"));
+      builder.s3Port(required.getPort("s3port"));
+      builder.authorizedAccessKey(required.getString("auth.access-key"));
+      builder.authorizedSecretKey(required.getString("auth.secret-key"));
+      builder.tar(required.getURI("tar.url"));
       builder.formatToNodejsPackage(ImmutableMap.<String, URI> builder()
-            .put("deb", URI.create(getPropertyOrThrowReasonableNPE(prefix + ".node.deb.url", input)))
-            .put("rpm", URI.create(getPropertyOrThrowReasonableNPE(prefix + ".node.rpm.url", input))).build());
-      builder.foreverVersion(getPropertyOrThrowReasonableNPE(prefix + ".forever.version", input));
+            .put("deb", required.getURI("node.deb.url"))
+            .put("rpm", required.getURI("node.rpm.url")).build());
+      builder.foreverVersion(required.getString("forever.version"));
+      builder.migrationThreads((int) required.getLong("migration.threads", 1, 1024));
+      builder.migrationBandwidth(required.getLong("migration.bandwidth", 0, Long.MAX_VALUE));
+      builder.jar(required.getURI("jar.url"));
+      boolean cacheEnabled = required.getBoolean("cache.enabled");
+      builder.cacheEnabled(cacheEnabled);
+      builder.cachePort(required.getPort("cache.port"));
+      long cacheMemory = required.getLong("cache.memory", 0, Long.MAX_VALUE);
+      builder.cacheMemory(cacheMemory);
+      long cacheMaxObjectSize = required.getLong("cache.max-object-size", 0, Long.MAX_VALUE);
+      builder.cacheMaxObjectSize(cacheMaxObjectSize);
+      builder.cacheTtl(required.getLong("cache.ttl", 0, Long.MAX_VALUE));
+      builder.warmupEnabled(required.getBoolean("warmup.enabled"));
+      builder.warmupRequests((int) required.getLong("warmup.requests", 1, Integer.MAX_VALUE));
+      builder.warmupTolerance((int) required.getLong("warmup.tolerance", 1, 100));
+      builder.dataDir(required.getString("data.dir"));
+      builder.dataDevice(required.getOptionalString("data.device"));
+      builder.snapshotDir(required.getOptionalString("snapshot.dir"));
+      builder.snapshotsKept((int) required.getLong("snapshot.keep", 1, 100));
+      String driver = required.getString("driver");
+      builder.driver(driver);
+      if (!driver.isEmpty() && !driver.equals("fs") && !driver.equals("log"))
+         required.addProblem(prefix + ".driver must be fs or log, not " + driver);
+      builder.logSegmentSize(required.getLong("log.segment-size", 1024 * 1024, Long.MAX_VALUE));
+      builder.logSync(required.getBoolean("log.sync"));
+      builder.logCompactThreshold((int) required.getLong("log.compact-threshold", 1, 100));
+      builder.drainTimeout((int) required.getLong("drain.timeout", 0, 3600));
+      boolean indexEnabled = required.getBoolean("index.enabled");
+      builder.indexEnabled(indexEnabled);
+      builder.indexPort(required.getPort("index.port"));
+      builder.indexRescanInterval((int) required.getLong("index.rescan-interval", 60, Integer.MAX_VALUE));
+      if (indexEnabled && driver.equals("log"))
+         required.addProblem(prefix + ".index.enabled needs the fs driver; the log driver keeps its keys in order "
+               + "already");
+      boolean tierEnabled = required.getBoolean("tier.enabled");
+      builder.tierEnabled(tierEnabled);
+      builder.tierPort(required.getPort("tier.port"));
+      String tierEndpoint = required.getOptionalString("tier.endpoint");
+      builder.tierEndpoint(tierEndpoint);
+      String tierBucket = required.getOptionalString("tier.bucket");
+      builder.tierBucket(tierBucket);
+      builder.tierPrefix(required.getOptionalString("tier.prefix"));
+      String tierAccessKey = required.getOptionalString("tier.access-key");
+      builder.tierAccessKey(tierAccessKey);
+      String tierSecretKey = required.getOptionalString("tier.secret-key");
+      builder.tierSecretKey(tierSecretKey);
+      builder.tierUploadInterval((int) required.getLong("tier.upload-interval", 1, 86400));
+      builder.tierBatchSize((int) required.getLong("tier.batch-size", 1, 10000));
+      builder.tierUploadThreads((int) required.getLong("tier.upload-threads", 1, 256));
+      int tierHighWatermark = (int) required.getLong("tier.high-watermark", 1, 100);
+      builder.tierHighWatermark(tierHighWatermark);
+      int tierLowWatermark = (int) required.getLong("tier.low-watermark", 0, 100);
+      builder.tierLowWatermark(tierLowWatermark);
+      builder.tierMinIdle((int) required.getLong("tier.min-idle", 0, Integer.MAX_VALUE));
+      if (tierEnabled) {
+         if (tierEndpoint.isEmpty())
+            required.addProblem(prefix + ".tier.endpoint is required when tiering is enabled");
+         else if (!isAbsoluteURI(tierEndpoint))
+            required.addProblem(prefix + ".tier.endpoint must be a URI such as https://s3.amazonaws.com, not "
+                  + tierEndpoint);
+         if (tierBucket.isEmpty())
+            required.addProblem(prefix + ".tier.bucket is required when tiering is enabled");
+         if (tierAccessKey.isEmpty() || tierSecretKey.isEmpty())
+            required.addProblem(prefix + ".tier.access-key and " + prefix
+                  + ".tier.secret-key are required when tiering is enabled");
+         if (tierLowWatermark >= tierHighWatermark)
+            required.addProblem(prefix + ".tier.low-watermark must be below " + prefix + ".tier.high-watermark");
+         if (driver.equals("log"))
+            required.addProblem(prefix + ".tier.enabled needs the fs driver");
+         if (indexEnabled)
+            required.addProblem(prefix + ".tier.enabled and " + prefix + ".index.enabled cannot be combined; "
+                  + "listings of cold objects come from the tier service");
+      }
+      if (cacheEnabled && cacheMaxObjectSize > cacheMemory)
+         required.addProblem(prefix + ".cache.max-object-size is larger than " + prefix + ".cache.memory");
+      required.validate();
       return builder.build();
    }
+
+   private static boolean isAbsoluteURI(String value) {
+      try {
+         return URI.create(value).isAbsolute();
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+   }
 }
 
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.common.RequiredConfiguration;
+import org.apache.whirr.service.vblob.VBlobRouterConfig.Builder;
+
+import com.google.common.base.Function;
+
+public class CommonsConfigurationToVBlobRouterConfig implements Function<Configuration, VBlobRouterConfig> {
+   private final String prefix;
+   private final String user;
+
+   public CommonsConfigurationToVBlobRouterConfig(String prefix, String user) {
+      this.prefix = checkNotNull(prefix, "prefix");
+      this.user = checkNotNull(user, "user");
+   }
+
+   @Override
+   public VBlobRouterConfig apply(Configuration input) {
+      RequiredConfiguration required = new RequiredConfiguration(input, prefix);
+      Builder builder = VBlobRouterConfig.builder();
+      builder.user(user);
+      builder.home(required.getString("home"));
+      builder.s3Port(required.getPort("s3port"));
+      builder.authorizedAccessKey(required.getString("auth.access-key"));
+      builder.authorizedSecretKey(required.getString("auth.secret-key"));
+      int replicas = (int) required.getLong("replicas", 1, 16);
+      builder.replicas(replicas);
+      int writeQuorum = (int) required.getLong("write-quorum", 1, 16);
+      builder.writeQuorum(writeQuorum);
+      builder.virtualNodes((int) required.getLong("virtual-nodes", 1, 4096));
+      builder.healthCheckInterval((int) required.getLong("health.interval", 1, Integer.MAX_VALUE));
+      builder.failureThreshold((int) required.getLong("health.failures", 1, Integer.MAX_VALUE));
+      builder.connectTimeout((int) required.getLong("connect-timeout", 0, Integer.MAX_VALUE));
+      builder.readTimeout((int) required.getLong("read-timeout", 0, Integer.MAX_VALUE));
+      builder.threads((int) required.getLong("threads", 1, 4096));
+      builder.jar(required.getURI("jar.url"));
+      if (writeQuorum > replicas)
+         required.addProblem(prefix + ".write-quorum=" + writeQuorum + " is more than " + prefix + ".replicas="
+               + replicas);
+      required.validate();
+      return builder.build();
+   }
+}
@@ -54,6 +54,43 @@ public class VBlobConfig {
             .put("rpm",
                   URI.create("https://raw.github.com/cinderella/deploy/master/rpms/x86_64/nodejs-0.6.10-1.x86_64.rpm"));
       private String foreverVersion = "0.9.2";
+      private int migrationThreads = 16;
+      private long migrationBandwidth = 0;
+      private URI jar = URI
+            .create("https://repository-cinderella.forge.cloudbees.com/snapshot/org/apache/whirr/whirr-vblob/0.8.0-SNAPSHOT/whirr-vblob-0.8.0-SNAPSHOT.jar");
+      private boolean cacheEnabled = false;
+      private int cachePort = 9982;
+      private long cacheMemory = 256L * 1024 * 1024;
+      private long cacheMaxObjectSize = 1024 * 1024;
+      private long cacheTtl = 1000;
+      private boolean warmupEnabled = false;
+      private int warmupRequests = 1000;
+      private int warmupTolerance = 10;
+      private String dataDir = "/data/vblob";
+      private String dataDevice = "";
+      private String snapshotDir = "";
+      private int snapshotsKept = 2;
+      private String driver = "fs";
+      private long logSegmentSize = 256L * 1024 * 1024;
+      private boolean logSync = true;
+      private int logCompactThreshold = 50;
+      private int drainTimeout = 30;
+      private boolean indexEnabled = false;
+      private int indexPort = 9983;
+      private int indexRescanInterval = 3600;
+      private boolean tierEnabled = false;
+      private int tierPort = 9984;
+      private String tierEndpoint = "";
+      private String tierBucket = "";
+      private String tierPrefix = "";
+      private String tierAccessKey = "";
+      private String tierSecretKey = "";
+      private int tierUploadInterval = 30;
+      private int tierBatchSize = 100;
+      private int tierUploadThreads = 4;
+      private int tierHighWatermark = 80;
+      private int tierLowWatermark = 70;
+      private int tierMinIdle = 3600;
       
       /**
        * @see VBlobConfig#getUser()
@@ -129,8 +166,302 @@ public class VBlobConfig {
          return this;
       }
 
+      /**
+       * @see VBlobConfig#getMigrationThreads()
+       */
+      public Builder migrationThreads(int migrationThreads) {
+         this.migrationThreads = migrationThreads;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getMigrationBandwidth()
+       */
+      public Builder migrationBandwidth(long migrationBandwidth) {
+         this.migrationBandwidth = migrationBandwidth;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getJar()
+       */
+      public Builder jar(URI jar) {
+         this.jar = jar;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#isCacheEnabled()
+       */
+      public Builder cacheEnabled(boolean cacheEnabled) {
+         this.cacheEnabled = cacheEnabled;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getCachePort()
+       */
+      public Builder cachePort(int cachePort) {
+         this.cachePort = cachePort;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getCacheMemory()
+       */
+      public Builder cacheMemory(long cacheMemory) {
+         this.cacheMemory = cacheMemory;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getCacheMaxObjectSize()
+       */
+      public Builder cacheMaxObjectSize(long cacheMaxObjectSize) {
+         this.cacheMaxObjectSize = cacheMaxObjectSize;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getCacheTtl()
+       */
+      public Builder cacheTtl(long cacheTtl) {
+         this.cacheTtl = cacheTtl;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#isWarmupEnabled()
+       */
+      public Builder warmupEnabled(boolean warmupEnabled) {
+         this.warmupEnabled = warmupEnabled;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getWarmupRequests()
+       */
+      public Builder warmupRequests(int warmupRequests) {
+         this.warmupRequests = warmupRequests;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getWarmupTolerance()
+       */
+      public Builder warmupTolerance(int warmupTolerance) {
+         this.warmupTolerance = warmupTolerance;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getDataDir()
+       */
+      public Builder dataDir(String dataDir) {
+         this.dataDir = dataDir;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getDataDevice()
+       */
+      public Builder dataDevice(String dataDevice) {
+         this.dataDevice = dataDevice;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getSnapshotDir()
+       */
+      public Builder snapshotDir(String snapshotDir) {
+         this.snapshotDir = snapshotDir;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getSnapshotsKept()
+       */
+      public Builder snapshotsKept(int snapshotsKept) {
+         this.snapshotsKept = snapshotsKept;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getDriver()
+       */
+      public Builder driver(String driver) {
+         this.driver = driver;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getLogSegmentSize()
+       */
+      public Builder logSegmentSize(long logSegmentSize) {
+         this.logSegmentSize = logSegmentSize;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#isLogSync()
+       */
+      public Builder logSync(boolean logSync) {
+         this.logSync = logSync;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getLogCompactThreshold()
+       */
+      public Builder logCompactThreshold(int logCompactThreshold) {
+         this.logCompactThreshold = logCompactThreshold;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getDrainTimeout()
+       */
+      public Builder drainTimeout(int drainTimeout) {
+         this.drainTimeout = drainTimeout;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#isIndexEnabled()
+       */
+      public Builder indexEnabled(boolean indexEnabled) {
+         this.indexEnabled = indexEnabled;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getIndexPort()
+       */
+      public Builder indexPort(int indexPort) {
+         this.indexPort = indexPort;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getIndexRescanInterval()
+       */
+      public Builder indexRescanInterval(int indexRescanInterval) {
+         this.indexRescanInterval = indexRescanInterval;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#isTierEnabled()
+       */
+      public Builder tierEnabled(boolean tierEnabled) {
+         this.tierEnabled = tierEnabled;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierPort()
+       */
+      public Builder tierPort(int tierPort) {
+         this.tierPort = tierPort;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierEndpoint()
+       */
+      public Builder tierEndpoint(String tierEndpoint) {
+         this.tierEndpoint = tierEndpoint;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierBucket()
+       */
+      public Builder tierBucket(String tierBucket) {
+         this.tierBucket = tierBucket;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierPrefix()
+       */
+      public Builder tierPrefix(String tierPrefix) {
+         this.tierPrefix = tierPrefix;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierAccessKey()
+       */
+      public Builder tierAccessKey(String tierAccessKey) {
+         this.tierAccessKey = tierAccessKey;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierSecretKey()
+       */
+      public Builder tierSecretKey(String tierSecretKey) {
+         this.tierSecretKey = tierSecretKey;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierUploadInterval()
+       */
+      public Builder tierUploadInterval(int tierUploadInterval) {
+         this.tierUploadInterval = tierUploadInterval;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierBatchSize()
+       */
+      public Builder tierBatchSize(int tierBatchSize) {
+         this.tierBatchSize = tierBatchSize;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierUploadThreads()
+       */
+      public Builder tierUploadThreads(int tierUploadThreads) {
+         this.tierUploadThreads = tierUploadThreads;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierHighWatermark()
+       */
+      public Builder tierHighWatermark(int tierHighWatermark) {
+         this.tierHighWatermark = tierHighWatermark;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierLowWatermark()
+       */
+      public Builder tierLowWatermark(int tierLowWatermark) {
+         this.tierLowWatermark = tierLowWatermark;
+         return this;
+      }
+
+      /**
+       * @see VBlobConfig#getTierMinIdle()
+       */
+      public Builder tierMinIdle(int tierMinIdle) {
+         this.tierMinIdle = tierMinIdle;
+         return this;
+      }
+
       public VBlobConfig build() {
-         return new VBlobConfig(user, home, s3Port, authorizedAccessKey, authorizedSecretKey, tar, formatToNodejsPackage.build(), foreverVersion);
+         return new VBlobConfig(user, home, s3Port, authorizedAccessKey, authorizedSecretKey, tar, formatToNodejsPackage.build(), foreverVersion,
+               migrationThreads, migrationBandwidth, jar, cacheEnabled, cachePort, cacheMemory,
+               cacheMaxObjectSize, cacheTtl, warmupEnabled, warmupRequests, warmupTolerance, dataDir, dataDevice,
+               snapshotDir, snapshotsKept, driver, logSegmentSize, logSync, logCompactThreshold, drainTimeout,
+               indexEnabled, indexPort, indexRescanInterval, tierEnabled, tierPort, tierEndpoint, tierBucket,
+               tierPrefix, tierAccessKey, tierSecretKey, tierUploadInterval, tierBatchSize, tierUploadThreads,
+               tierHighWatermark, tierLowWatermark, tierMinIdle);
       }
 
       public Builder fromVBlobConfig(VBlobConfig in) {
@@ -141,7 +472,43 @@ public class VBlobConfig {
                     .authorizedSecretKey(in.authorizedSecretKey)
                     .tar(in.tar)
                     .formatToNodejsPackage(in.formatToNodejsPackage)
-                    .foreverVersion(in.foreverVersion);
+                    .foreverVersion(in.foreverVersion)
+                    .migrationThreads(in.migrationThreads)
+                    .migrationBandwidth(in.migrationBandwidth)
+                    .jar(in.jar)
+                    .cacheEnabled(in.cacheEnabled)
+                    .cachePort(in.cachePort)
+                    .cacheMemory(in.cacheMemory)
+                    .cacheMaxObjectSize(in.cacheMaxObjectSize)
+                    .cacheTtl(in.cacheTtl)
+               .warmupEnabled(in.warmupEnabled)
+               .warmupRequests(in.warmupRequests)
+               .warmupTolerance(in.warmupTolerance)
+               .dataDir(in.dataDir)
+               .dataDevice(in.dataDevice)
+               .snapshotDir(in.snapshotDir)
+               .snapshotsKept(in.snapshotsKept)
+               .driver(in.driver)
+               .logSegmentSize(in.logSegmentSize)
+               .logSync(in.logSync)
+               .logCompactThreshold(in.logCompactThreshold)
+               .drainTimeout(in.drainTimeout)
+               .indexEnabled(in.indexEnabled)
+               .indexPort(in.indexPort)
+               .indexRescanInterval(in.indexRescanInterval)
+               .tierEnabled(in.tierEnabled)
+               .tierPort(in.tierPort)
+               .tierEndpoint(in.tierEndpoint)
+               .tierBucket(in.tierBucket)
+               .tierPrefix(in.tierPrefix)
+               .tierAccessKey(in.tierAccessKey)
+               .tierSecretKey(in.tierSecretKey)
+               .tierUploadInterval(in.tierUploadInterval)
+               .tierBatchSize(in.tierBatchSize)
+               .tierUploadThreads(in.tierUploadThreads)
+               .tierHighWatermark(in.tierHighWatermark)
+               .tierLowWatermark(in.tierLowWatermark)
+               .tierMinIdle(in.tierMinIdle);
       }
    }
 
@@ -153,9 +520,52 @@ public class VBlobConfig {
    private final URI tar;
    private final Map<String, URI> formatToNodejsPackage;
    private final String foreverVersion;
+   private final int migrationThreads;
+   private final long migrationBandwidth;
+   private final URI jar;
+   private final boolean cacheEnabled;
+   private final int cachePort;
+   private final long cacheMemory;
+   private final long cacheMaxObjectSize;
+   private final long cacheTtl;
+   private final boolean warmupEnabled;
+   private final int warmupRequests;
+   private final int warmupTolerance;
+   private final String dataDir;
+   private final String dataDevice;
+   private final String snapshotDir;
+   private final int snapshotsKept;
+   private final String driver;
+   private final long logSegmentSize;
+   private final boolean logSync;
+   private final int logCompactThreshold;
+   private final int drainTimeout;
+   private final boolean indexEnabled;
+   private final int indexPort;
+   private final int indexRescanInterval;
+   private final boolean tierEnabled;
+   private final int tierPort;
+   private final String tierEndpoint;
+   private final String tierBucket;
+   private final String tierPrefix;
+   private final String tierAccessKey;
+   private final String tierSecretKey;
+   private final int tierUploadInterval;
+   private final int tierBatchSize;
+   private final int tierUploadThreads;
+   private final int tierHighWatermark;
+   private final int tierLowWatermark;
+   private final int tierMinIdle;
 
    protected VBlobConfig(String user, String home, int s3Port, String authorizedAccessKey, String authorizedSecretKey, URI tar,
-         Map<String, URI> formatToNodejsPackage, String foreverVersion) {
+         Map<String, URI> formatToNodejsPackage, String foreverVersion, int migrationThreads, long migrationBandwidth,
+         URI jar, boolean cacheEnabled, int cachePort, long cacheMemory,
+         long cacheMaxObjectSize, long cacheTtl, boolean warmupEnabled, int warmupRequests, int warmupTolerance,
+         String dataDir, String dataDevice, String snapshotDir, int snapshotsKept, String driver,
+         long logSegmentSize, boolean logSync, int logCompactThreshold, int drainTimeout, boolean indexEnabled,
+         int indexPort, int indexRescanInterval, boolean tierEnabled, int tierPort, String tierEndpoint,
+         String tierBucket, String tierPrefix, String tierAccessKey, String tierSecretKey, int tierUploadInterval,
+         int tierBatchSize, int tierUploadThreads, int tierHighWatermark, int tierLowWatermark, int tierMinIdle) {
       this.user = checkNotNull(user, "user");
       this.home = checkNotNull(home, "home");
       this.s3Port = checkNotNull(s3Port, "s3Port");
@@ -164,6 +574,42 @@ public class VBlobConfig {
       this.tar = checkNotNull(tar, "tar");
       this.formatToNodejsPackage = checkNotNull(formatToNodejsPackage, "formatToNodejsPackage");
       this.foreverVersion = checkNotNull(foreverVersion, "foreverVersion");
+      this.migrationThreads = migrationThreads;
+      this.migrationBandwidth = migrationBandwidth;
+      this.jar = checkNotNull(jar, "jar");
+      this.cacheEnabled = cacheEnabled;
+      this.cachePort = cachePort;
+      this.cacheMemory = cacheMemory;
+      this.cacheMaxObjectSize = cacheMaxObjectSize;
+      this.cacheTtl = cacheTtl;
+      this.warmupEnabled = warmupEnabled;
+      this.warmupRequests = warmupRequests;
+      this.warmupTolerance = warmupTolerance;
+      this.dataDir = checkNotNull(dataDir, "dataDir");
+      this.dataDevice = checkNotNull(dataDevice, "dataDevice");
+      this.snapshotDir = checkNotNull(snapshotDir, "snapshotDir");
+      this.snapshotsKept = snapshotsKept;
+      this.driver = checkNotNull(driver, "driver");
+      this.logSegmentSize = logSegmentSize;
+      this.logSync = logSync;
+      this.logCompactThreshold = logCompactThreshold;
+      this.drainTimeout = drainTimeout;
+      this.indexEnabled = indexEnabled;
+      this.indexPort = indexPort;
+      this.indexRescanInterval = indexRescanInterval;
+      this.tierEnabled = tierEnabled;
+      this.tierPort = tierPort;
+      this.tierEndpoint = checkNotNull(tierEndpoint, "tierEndpoint");
+      this.tierBucket = checkNotNull(tierBucket, "tierBucket");
+      this.tierPrefix = checkNotNull(tierPrefix, "tierPrefix");
+      this.tierAccessKey = checkNotNull(tierAccessKey, "tierAccessKey");
+      this.tierSecretKey = checkNotNull(tierSecretKey, "tierSecretKey");
+      this.tierUploadInterval = tierUploadInterval;
+      this.tierBatchSize = tierBatchSize;
+      this.tierUploadThreads = tierUploadThreads;
+      this.tierHighWatermark = tierHighWatermark;
+      this.tierLowWatermark = tierLowWatermark;
+      this.tierMinIdle = tierMinIdle;
    }
    
    /**
@@ -240,13 +686,312 @@ public class VBlobConfig {
       return foreverVersion;
    }
 
+   /**
+    * Connections used to list and transfer objects when buckets are migrated
+    * between vBlob instances (default 16)
+    */
+   public int getMigrationThreads() {
+      return migrationThreads;
+   }
+
+   /**
+    * Total bytes per second a migration may use across all of its connections,
+    * or {@code 0} for unlimited (default)
+    */
+   public long getMigrationBandwidth() {
+      return migrationBandwidth;
+   }
+
+   /**
+    * location of the whirr-vblob jar, which holds the Java services that run
+    * next to vBlob, such as the cache
+    */
+   public URI getJar() {
+      return jar;
+   }
+
+   /**
+    * When true, a caching proxy on {@link #getCachePort()} serves frequently
+    * read objects from memory, and forwards everything else to vBlob (default
+    * false)
+    */
+   public boolean isCacheEnabled() {
+      return cacheEnabled;
+   }
+
+   /**
+    * Port the cache listens to connections on (default 9982)
+    */
+   public int getCachePort() {
+      return cachePort;
+   }
+
+   /**
+    * Bytes of object bodies the cache holds, outside of the Java heap (default
+    * 256MB)
+    */
+   public long getCacheMemory() {
+      return cacheMemory;
+   }
+
+   /**
+    * Objects larger than this many bytes are never cached (default 1MB)
+    */
+   public long getCacheMaxObjectSize() {
+      return cacheMaxObjectSize;
+   }
+
+   /**
+    * Milliseconds a cached object is served before its ETag is checked with
+    * vBlob again (default 1000)
+    */
+   public long getCacheTtl() {
+      return cacheTtl;
+   }
+
+   /**
+    * When true, the start action replays S3 HEAD and GET calls against the new
+    * instance until their latency settles, and only then opens its ports to
+    * clients (default false)
+    */
+   public boolean isWarmupEnabled() {
+      return warmupEnabled;
+   }
+
+   /**
+    * Most requests sent while warming up, whether or not latency settled
+    * (default 1000)
+    */
+   public int getWarmupRequests() {
+      return warmupRequests;
+   }
+
+   /**
+    * Latency has settled once the mean of a round of requests is within this
+    * percentage of the round before (default 10)
+    */
+   public int getWarmupTolerance() {
+      return warmupTolerance;
+   }
+
+   /**
+    * Directory holding the stored objects, kept apart from {@link #getHome()}
+    * so that removing vBlob leaves the data in place (default
+    * {@code /data/vblob})
+    */
+   public String getDataDir() {
+      return dataDir;
+   }
+
+   /**
+    * Block device mounted on {@link #getDataDir()}, formatted on first use, or
+    * empty to keep the data on the root filesystem (default empty)
+    */
+   public String getDataDevice() {
+      return dataDevice;
+   }
+
+   /**
+    * Directory, on storage that outlives the instances, that the destroy
+    * action snapshots each instance's data into and the next launch restores
+    * from, or empty for no snapshots (default empty)
+    */
+   public String getSnapshotDir() {
+      return snapshotDir;
+   }
+
+   /**
+    * Snapshots kept per instance (default 2)
+    */
+   public int getSnapshotsKept() {
+      return snapshotsKept;
+   }
+
+   public boolean isSnapshotEnabled() {
+      return !snapshotDir.isEmpty();
+   }
+
+   /**
+    * Where objects are kept: {@code fs}, vBlob's driver with a file per object,
+    * or {@code log}, the log-structured store that takes vBlob's place on
+    * {@link #getS3Port()} (default {@code fs})
+    */
+   public String getDriver() {
+      return driver;
+   }
+
+   public boolean isLogDriver() {
+      return "log".equals(driver);
+   }
+
+   /**
+    * Bytes after which the log store starts a new segment file (default 256MB)
+    */
+   public long getLogSegmentSize() {
+      return logSegmentSize;
+   }
+
+   /**
+    * Whether the log store forces each write to disk before acknowledging it
+    * (default true)
+    */
+   public boolean isLogSync() {
+      return logSync;
+   }
+
+   /**
+    * Percent of a segment that must be overwritten or deleted objects before
+    * the log store compacts it (default 50)
+    */
+   public int getLogCompactThreshold() {
+      return logCompactThreshold;
+   }
+
+   /**
+    * Seconds the stop action waits for S3 requests in flight once vBlob and
+    * the cache no longer accept connections; 0 stops them right away (default
+    * 30)
+    */
+   public int getDrainTimeout() {
+      return drainTimeout;
+   }
+
+   /**
+    * When true, a Java service on {@link #getIndexPort()} keeps a sorted index
+    * of the keys the {@code fs} driver stores, updated as files change, and
+    * answers ListObjects from it, forwarding all else to vBlob (default false)
+    */
+   public boolean isIndexEnabled() {
+      return indexEnabled;
+   }
+
+   /**
+    * Port clients list buckets through when the index is enabled (default
+    * 9983)
+    */
+   public int getIndexPort() {
+      return indexPort;
+   }
+
+   /**
+    * Seconds between full rescans of the data directory, which catch changes
+    * the file notifications missed (default 3600)
+    */
+   public int getIndexRescanInterval() {
+      return indexRescanInterval;
+   }
+
+   /**
+    * When true, a Java service on {@link #getTierPort()} keeps what the {@code
+    * fs} driver stores on local disk as a hot tier: it copies new objects to
+    * the S3 store at {@link #getTierEndpoint()} in the background, removes the
+    * local copies of objects not read for a while when the disk fills up, and
+    * copies them back on the next read (default false)
+    */
+   public boolean isTierEnabled() {
+      return tierEnabled;
+   }
+
+   /**
+    * Port clients reach vBlob through when tiering is enabled (default 9984)
+    */
+   public int getTierPort() {
+      return tierPort;
+   }
+
+   /**
+    * S3 endpoint of the remote tier, such as {@code https://s3.amazonaws.com}
+    */
+   public String getTierEndpoint() {
+      return tierEndpoint;
+   }
+
+   /**
+    * Bucket in the remote tier that holds the objects of all buckets
+    */
+   public String getTierBucket() {
+      return tierBucket;
+   }
+
+   /**
+    * Prefix of the keys in {@link #getTierBucket()}, followed by bucket and
+    * key, so instances can share a bucket (default none)
+    */
+   public String getTierPrefix() {
+      return tierPrefix;
+   }
+
+   /**
+    * Access key for the remote tier
+    */
+   public String getTierAccessKey() {
+      return tierAccessKey;
+   }
+
+   /**
+    * The secret key corresponding to {@link #getTierAccessKey()}
+    */
+   public String getTierSecretKey() {
+      return tierSecretKey;
+   }
+
+   /**
+    * Seconds between rounds of copying new objects to the remote tier and
+    * evicting local copies (default 30)
+    */
+   public int getTierUploadInterval() {
+      return tierUploadInterval;
+   }
+
+   /**
+    * Objects copied to the remote tier per batch (default 100)
+    */
+   public int getTierBatchSize() {
+      return tierBatchSize;
+   }
+
+   /**
+    * Objects copied to the remote tier at once (default 4)
+    */
+   public int getTierUploadThreads() {
+      return tierUploadThreads;
+   }
+
+   /**
+    * Percent of the data directory's file system in use above which local
+    * copies are evicted (default 80)
+    */
+   public int getTierHighWatermark() {
+      return tierHighWatermark;
+   }
+
+   /**
+    * Percent of the file system in use that eviction stops at (default 70)
+    */
+   public int getTierLowWatermark() {
+      return tierLowWatermark;
+   }
+
+   /**
+    * Seconds an object must not have been read before its local copy may be
+    * evicted (default 3600)
+    */
+   public int getTierMinIdle() {
+      return tierMinIdle;
+   }
+
    /**
     * {@inheritDoc}
     */
    @Override
    public int hashCode() {
       return Objects.hashCode(user, home, s3Port, authorizedAccessKey, tar, formatToNodejsPackage,
-            foreverVersion);
+            foreverVersion, migrationThreads, migrationBandwidth, jar, cacheEnabled, cachePort,
+            cacheMemory, cacheMaxObjectSize, cacheTtl, warmupEnabled, warmupRequests, warmupTolerance, dataDir,
+            dataDevice, snapshotDir, snapshotsKept, driver, logSegmentSize, logSync, logCompactThreshold,
+            drainTimeout, indexEnabled, indexPort, indexRescanInterval, tierEnabled, tierPort, tierEndpoint,
+            tierBucket, tierPrefix, tierAccessKey, tierUploadInterval, tierBatchSize, tierUploadThreads,
+            tierHighWatermark, tierLowWatermark, tierMinIdle);
    }
 
    /**
@@ -266,7 +1011,42 @@ public class VBlobConfig {
             && Objects.equal(this.authorizedAccessKey, other.authorizedAccessKey)
             && Objects.equal(this.tar, other.tar)
             && Objects.equal(this.formatToNodejsPackage, other.formatToNodejsPackage)
-            && Objects.equal(this.foreverVersion, other.foreverVersion);
+            && Objects.equal(this.foreverVersion, other.foreverVersion)
+            && Objects.equal(this.migrationThreads, other.migrationThreads)
+            && Objects.equal(this.migrationBandwidth, other.migrationBandwidth)
+            && Objects.equal(this.jar, other.jar)
+            && Objects.equal(this.cacheEnabled, other.cacheEnabled)
+            && Objects.equal(this.cachePort, other.cachePort)
+            && Objects.equal(this.cacheMemory, other.cacheMemory)
+            && Objects.equal(this.cacheMaxObjectSize, other.cacheMaxObjectSize)
+            && Objects.equal(this.cacheTtl, other.cacheTtl)
+            && Objects.equal(this.warmupEnabled, other.warmupEnabled)
+            && Objects.equal(this.warmupRequests, other.warmupRequests)
+            && Objects.equal(this.warmupTolerance, other.warmupTolerance)
+            && Objects.equal(this.dataDir, other.dataDir)
+            && Objects.equal(this.dataDevice, other.dataDevice)
+            && Objects.equal(this.snapshotDir, other.snapshotDir)
+            && Objects.equal(this.snapshotsKept, other.snapshotsKept)
+            && Objects.equal(this.driver, other.driver)
+            && Objects.equal(this.logSegmentSize, other.logSegmentSize)
+            && Objects.equal(this.logSync, other.logSync)
+            && Objects.equal(this.logCompactThreshold, other.logCompactThreshold)
+            && Objects.equal(this.drainTimeout, other.drainTimeout)
+            && Objects.equal(this.indexEnabled, other.indexEnabled)
+            && Objects.equal(this.indexPort, other.indexPort)
+            && Objects.equal(this.indexRescanInterval, other.indexRescanInterval)
+            && Objects.equal(this.tierEnabled, other.tierEnabled)
+            && Objects.equal(this.tierPort, other.tierPort)
+            && Objects.equal(this.tierEndpoint, other.tierEndpoint)
+            && Objects.equal(this.tierBucket, other.tierBucket)
+            && Objects.equal(this.tierPrefix, other.tierPrefix)
+            && Objects.equal(this.tierAccessKey, other.tierAccessKey)
+            && Objects.equal(this.tierUploadInterval, other.tierUploadInterval)
+            && Objects.equal(this.tierBatchSize, other.tierBatchSize)
+            && Objects.equal(this.tierUploadThreads, other.tierUploadThreads)
+            && Objects.equal(this.tierHighWatermark, other.tierHighWatermark)
+            && Objects.equal(this.tierLowWatermark, other.tierLowWatermark)
+            && Objects.equal(this.tierMinIdle, other.tierMinIdle);
    }
 
    /**
@@ -276,7 +1056,38 @@ public class VBlobConfig {
    public String toString() {
       return Objects.toStringHelper(this).omitNullValues().add("user", user).add("home", home).add("s3Port", s3Port)
             .add("authorizedAccessKey", authorizedAccessKey).add("tar", tar)
-            .add("formatToNodejsPackage", formatToNodejsPackage).add("foreverVersion", foreverVersion).toString();
+            .add("formatToNodejsPackage", formatToNodejsPackage).add("foreverVersion", foreverVersion)
+            .add("migrationThreads", migrationThreads).add("migrationBandwidth", migrationBandwidth)
+            .add("jar", jar).add("cacheEnabled", cacheEnabled)
+            .add("cachePort", cachePort).add("cacheMemory", cacheMemory)
+            .add("cacheMaxObjectSize", cacheMaxObjectSize).add("cacheTtl", cacheTtl)
+            .add("warmupEnabled", warmupEnabled)
+            .add("warmupRequests", warmupRequests)
+            .add("warmupTolerance", warmupTolerance)
+            .add("dataDir", dataDir)
+            .add("dataDevice", dataDevice)
+            .add("snapshotDir", snapshotDir)
+            .add("snapshotsKept", snapshotsKept)
+            .add("driver", driver)
+            .add("logSegmentSize", logSegmentSize)
+            .add("logSync", logSync)
+            .add("logCompactThreshold", logCompactThreshold)
+            .add("drainTimeout", drainTimeout)
+            .add("indexEnabled", indexEnabled)
+            .add("indexPort", indexPort)
+            .add("indexRescanInterval", indexRescanInterval)
+            .add("tierEnabled", tierEnabled)
+            .add("tierPort", tierPort)
+            .add("tierEndpoint", tierEndpoint)
+            .add("tierBucket", tierBucket)
+            .add("tierPrefix", tierPrefix)
+            .add("tierAccessKey", tierAccessKey)
+            .add("tierUploadInterval", tierUploadInterval)
+            .add("tierBatchSize", tierBatchSize)
+            .add("tierUploadThreads", tierUploadThreads)
+            .add("tierHighWatermark", tierHighWatermark)
+            .add("tierLowWatermark", tierLowWatermark)
+            .add("tierMinIdle", tierMinIdle).toString();
    }
 
 }
@@ -19,20 +19,70 @@
 package org.apache.whirr.service.vblob;
 
 import static org.apache.whirr.RolePredicates.role;
+import static org.apache.whirr.service.common.BootstrapStatements.awaitInstalls;
+import static org.apache.whirr.service.common.BootstrapStatements.hasPackageCache;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
+import static org.apache.whirr.service.common.BootstrapStatements.untilDone;
+import static org.apache.whirr.service.common.BootstrapStatements.usePackageCache;
 import static org.apache.whirr.service.vblob.VBlobStatements.cleanup;
+import static org.apache.whirr.service.vblob.VBlobStatements.configure;
 import static org.apache.whirr.service.vblob.VBlobStatements.install;
+import static org.apache.whirr.service.vblob.VBlobStatements.restore;
 import static org.apache.whirr.service.vblob.VBlobStatements.start;
 import static org.apache.whirr.service.vblob.VBlobStatements.stop;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
 import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.agent.AgentConfig;
+import org.apache.whirr.service.agent.AgentDispatcher;
+import org.apache.whirr.service.agent.AgentSecret;
+import org.apache.whirr.service.agent.AgentStatements;
+import org.apache.whirr.service.agent.CommonsConfigurationToAgentConfig;
+import org.apache.whirr.service.common.RequiredConfiguration;
+import org.apache.whirr.service.vblob.snapshot.SnapshotSlots;
+import org.apache.whirr.service.vblob.snapshot.VBlobSnapshotter;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+import org.jclouds.scriptbuilder.statements.java.InstallJDK;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
 
 public class VBlobHandler extends ClusterActionHandlerSupport {
 
+   /**
+    * resolved and validated once per cluster spec, when it is first seen
+    */
+   private final LoadingCache<ClusterSpec, VBlobConfig> configs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, VBlobConfig>() {
+            @Override
+            public VBlobConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToVBlobConfig(getRole(), spec.getClusterUser())
+                     .apply(getConfiguration(spec, "whirr-" + getRole() + "-default.properties"));
+            }
+         });
+
+   private final LoadingCache<ClusterSpec, AgentConfig> agentConfigs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, AgentConfig>() {
+            @Override
+            public AgentConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToAgentConfig("agent").apply(getConfiguration(spec,
+                     "whirr-agent-default.properties"));
+            }
+         });
+
    @Override
    public String getRole() {
       return "vblob";
@@ -40,35 +90,149 @@ public class VBlobHandler extends ClusterActionHandlerSupport {
 
    @Override
    protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(install(toConfig(event)));
+      VBlobConfig config = toConfig(event);
+      AgentConfig agent = toAgentConfig(event);
+      for (Statement step : install(config))
+         event.getStatementBuilder().addStatement(step);
+      // with a package cache, packages wait for it until the configure action
+      if (!hasPackageCache(event.getClusterSpec()))
+         for (Statement step : packages(config, agent))
+            event.getStatementBuilder().addStatement(step);
+      if (agent.isEnabled())
+         event.getStatementBuilder().addStatement(once("whirr-agent-install", AgentStatements.install(agent)));
    }
 
+   /**
+    * vBlob's packages, and the JDK for the agent when vBlob runs without one
+    */
+   private static List<Statement> packages(VBlobConfig config, AgentConfig agent) {
+      List<Statement> steps = Lists.newArrayList(VBlobStatements.packages(config));
+      if (agent.isEnabled() && !config.isIndexEnabled())
+         steps.add(once("jdk", InstallJDK.fromOpenJDK()));
+      return steps;
+   }
+
+   /**
+    * Bootstrap runs before any instance is provisioned, so missing or bad
+    * settings fail the launch right away, all listed in one error.
+    */
    protected VBlobConfig toConfig(ClusterActionEvent event) throws IOException {
-      return new CommonsConfigurationToVBlobConfig(getRole(), event.getClusterSpec().getClusterUser())
-            .apply(getConfiguration(event.getClusterSpec(), "whirr-" + getRole() + "-default.properties"));
+      return RequiredConfiguration.resolve(configs, event.getClusterSpec());
+   }
+
+   protected AgentConfig toAgentConfig(ClusterActionEvent event) throws IOException {
+      return RequiredConfiguration.resolve(agentConfigs, event.getClusterSpec());
    }
 
    @Override
    protected void beforeConfigure(ClusterActionEvent event) throws IOException {
       VBlobConfig config = toConfig(event);
+      // when warming up, clients are let in once the start action is done
+      if (!config.isWarmupEnabled())
+         authorizePorts(event, config);
+      if (hasPackageCache(event.getClusterSpec())) {
+         event.getStatementBuilder().addStatement(usePackageCache(event.getClusterSpec(), event.getCluster()));
+         event.getStatementBuilder().addStatement(untilDone(getRole() + "-packages", new StatementList(
+               packages(config, toAgentConfig(event)))));
+      }
+      // downloads started while bootstrapping, shared with co-located roles
+      event.getStatementBuilder().addStatement(awaitInstalls());
+      startAgent(event);
+      if (config.isSnapshotEnabled())
+         event.getStatementBuilder().addStatement(restore(config, assignSnapshotSlots(event)));
+      event.getStatementBuilder().addStatement(configure(config));
+   }
+
+   /**
+    * Starts the agent once the JDK is there; the start and stop actions then
+    * go through it.
+    */
+   private void startAgent(ClusterActionEvent event) throws IOException {
+      AgentConfig agent = toAgentConfig(event);
+      if (!agent.isEnabled())
+         return;
+      event.getFirewallManager().addRule(
+            Rule.create().destination(event.getCluster().getInstancesMatching(role(getRole()))).port(
+                  agent.getPort()));
+      event.getStatementBuilder().addStatement(
+            once("whirr-agent", AgentStatements.start(agent, AgentSecret.forCluster(event.getClusterSpec()))));
+   }
+
+   private File snapshotSlotsFile(ClusterActionEvent event) {
+      return new File(event.getClusterSpec().getClusterDirectory(), "vblob-snapshot-slots.properties");
+   }
+
+   /**
+    * hands the snapshot slots of the last cluster by this name to the current
+    * instances, and records who got which
+    */
+   private Map<String, String> assignSnapshotSlots(ClusterActionEvent event) throws IOException {
+      File file = snapshotSlotsFile(event);
+      SnapshotSlots slots = SnapshotSlots.load(file);
+      List<String> addresses = Lists.newArrayList();
+      for (Instance instance : event.getCluster().getInstancesMatching(role(getRole())))
+         addresses.add(instance.getPrivateIp());
+      Map<String, String> assigned = slots.assign(addresses);
+      slots.save(file);
+      return assigned;
+   }
+
+   private void authorizePorts(ClusterActionEvent event, VBlobConfig config) throws IOException {
       Cluster cluster = event.getCluster();
       event.getFirewallManager().addRule(
             Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getS3Port()));
+      if (config.isCacheEnabled())
+         event.getFirewallManager().addRule(
+               Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getCachePort()));
+      if (config.isIndexEnabled())
+         event.getFirewallManager().addRule(
+               Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getIndexPort()));
+      if (config.isTierEnabled())
+         event.getFirewallManager().addRule(
+               Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getTierPort()));
    }
 
    @Override
    protected void beforeStart(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(start(toConfig(event)));
+      AgentDispatcher.run(event, toAgentConfig(event), "start-" + getRole(), start(toConfig(event)));
+   }
+
+   @Override
+   protected void afterStart(ClusterActionEvent event) throws IOException {
+      VBlobConfig config = toConfig(event);
+      if (config.isWarmupEnabled())
+         authorizePorts(event, config);
    }
 
    @Override
    protected void beforeStop(ClusterActionEvent event) throws IOException {
-      event.getStatementBuilder().addStatement(stop(toConfig(event)));
+      AgentDispatcher.run(event, toAgentConfig(event), "stop-" + getRole(), stop(toConfig(event)));
+   }
+
+   /**
+    * Snapshots the data of every instance before it is destroyed; a failed
+    * snapshot stops the destroy, so no data is lost.
+    */
+   @Override
+   protected void beforeDestroy(ClusterActionEvent event) throws IOException {
+      VBlobConfig config = toConfig(event);
+      if (!config.isSnapshotEnabled())
+         return;
+      File file = snapshotSlotsFile(event);
+      SnapshotSlots slots = SnapshotSlots.load(file);
+      ComputeService compute = event.getCompute().apply(event.getClusterSpec()).getComputeService();
+      new VBlobSnapshotter(compute, event.getClusterSpec(), config).snapshot(
+            event.getCluster().getInstancesMatching(role(getRole())), slots);
+      slots.save(file);
    }
 
    @Override
    protected void beforeCleanup(ClusterActionEvent event) throws IOException {
       event.getStatementBuilder().addStatement(cleanup(toConfig(event)));
+      // the agent goes too, so this runs over SSH
+      AgentConfig agent = toAgentConfig(event);
+      if (agent.isEnabled())
+         event.getStatementBuilder().addStatement(once("whirr-agent-cleanup", AgentStatements.cleanup(agent)));
    }
 
 }
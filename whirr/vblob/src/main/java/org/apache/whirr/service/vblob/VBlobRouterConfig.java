@@ -0,0 +1,378 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+
+import com.google.common.base.Objects;
+
+/**
+ * Configuration required to install and configure the vBlob router properly
+ */
+public class VBlobRouterConfig {
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public Builder toBuilder() {
+      return new Builder().fromVBlobRouterConfig(this);
+   }
+
+   public static class Builder {
+      private String user = "vblob";
+      private String home = "/usr/local/vblob-router";
+      private int s3Port = 9980;
+      private String authorizedAccessKey = "MvndHwA4e6dgaGV23L94";
+      private String authorizedSecretKey = "A50GS9tj2DLXRln4rf1K+A/CSjmAbBGw0H5yul6s";
+      private int replicas = 2;
+      private int writeQuorum = 1;
+      private int virtualNodes = 128;
+      private int healthCheckInterval = 2000;
+      private int failureThreshold = 3;
+      private int connectTimeout = 2000;
+      private int readTimeout = 30000;
+      private int threads = 64;
+      private URI jar = URI
+            .create("https://repository-cinderella.forge.cloudbees.com/snapshot/org/apache/whirr/whirr-vblob/0.8.0-SNAPSHOT/whirr-vblob-0.8.0-SNAPSHOT.jar");
+
+      /**
+       * @see VBlobRouterConfig#getUser()
+       */
+      public Builder user(String user) {
+         this.user = user;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getHome()
+       */
+      public Builder home(String home) {
+         this.home = home;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getS3Port()
+       */
+      public Builder s3Port(int s3Port) {
+         this.s3Port = s3Port;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getAuthorizedAccessKey()
+       */
+      public Builder authorizedAccessKey(String authorizedAccessKey) {
+         this.authorizedAccessKey = authorizedAccessKey;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getAuthorizedSecretKey()
+       */
+      public Builder authorizedSecretKey(String authorizedSecretKey) {
+         this.authorizedSecretKey = authorizedSecretKey;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getReplicas()
+       */
+      public Builder replicas(int replicas) {
+         this.replicas = replicas;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getWriteQuorum()
+       */
+      public Builder writeQuorum(int writeQuorum) {
+         this.writeQuorum = writeQuorum;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getVirtualNodes()
+       */
+      public Builder virtualNodes(int virtualNodes) {
+         this.virtualNodes = virtualNodes;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getHealthCheckInterval()
+       */
+      public Builder healthCheckInterval(int healthCheckInterval) {
+         this.healthCheckInterval = healthCheckInterval;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getFailureThreshold()
+       */
+      public Builder failureThreshold(int failureThreshold) {
+         this.failureThreshold = failureThreshold;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getConnectTimeout()
+       */
+      public Builder connectTimeout(int connectTimeout) {
+         this.connectTimeout = connectTimeout;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getReadTimeout()
+       */
+      public Builder readTimeout(int readTimeout) {
+         this.readTimeout = readTimeout;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getThreads()
+       */
+      public Builder threads(int threads) {
+         this.threads = threads;
+         return this;
+      }
+
+      /**
+       * @see VBlobRouterConfig#getJar()
+       */
+      public Builder jar(URI jar) {
+         this.jar = jar;
+         return this;
+      }
+
+      public VBlobRouterConfig build() {
+         return new VBlobRouterConfig(user, home, s3Port, authorizedAccessKey, authorizedSecretKey, replicas,
+               writeQuorum, virtualNodes, healthCheckInterval, failureThreshold, connectTimeout, readTimeout, threads,
+               jar);
+      }
+
+      public Builder fromVBlobRouterConfig(VBlobRouterConfig in) {
+         return this.user(in.user)
+                    .home(in.home)
+                    .s3Port(in.s3Port)
+                    .authorizedAccessKey(in.authorizedAccessKey)
+                    .authorizedSecretKey(in.authorizedSecretKey)
+                    .replicas(in.replicas)
+                    .writeQuorum(in.writeQuorum)
+                    .virtualNodes(in.virtualNodes)
+                    .healthCheckInterval(in.healthCheckInterval)
+                    .failureThreshold(in.failureThreshold)
+                    .connectTimeout(in.connectTimeout)
+                    .readTimeout(in.readTimeout)
+                    .threads(in.threads)
+                    .jar(in.jar);
+      }
+   }
+
+   private final String user;
+   private final String home;
+   private final int s3Port;
+   private final String authorizedAccessKey;
+   private final String authorizedSecretKey;
+   private final int replicas;
+   private final int writeQuorum;
+   private final int virtualNodes;
+   private final int healthCheckInterval;
+   private final int failureThreshold;
+   private final int connectTimeout;
+   private final int readTimeout;
+   private final int threads;
+   private final URI jar;
+
+   protected VBlobRouterConfig(String user, String home, int s3Port, String authorizedAccessKey,
+         String authorizedSecretKey, int replicas, int writeQuorum, int virtualNodes, int healthCheckInterval,
+         int failureThreshold, int connectTimeout, int readTimeout, int threads, URI jar) {
+      this.user = checkNotNull(user, "user");
+      this.home = checkNotNull(home, "home");
+      this.s3Port = s3Port;
+      this.authorizedAccessKey = checkNotNull(authorizedAccessKey, "authorizedAccessKey");
+      this.authorizedSecretKey = checkNotNull(authorizedSecretKey, "authorizedSecretKey");
+      checkArgument(replicas > 0, "replicas must be positive");
+      checkArgument(writeQuorum > 0 && writeQuorum <= replicas, "writeQuorum must be between 1 and replicas");
+      this.replicas = replicas;
+      this.writeQuorum = writeQuorum;
+      this.virtualNodes = virtualNodes;
+      this.healthCheckInterval = healthCheckInterval;
+      this.failureThreshold = failureThreshold;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.threads = threads;
+      this.jar = checkNotNull(jar, "jar");
+   }
+
+   /**
+    * User running the service
+    */
+   public String getUser() {
+      return user;
+   }
+
+   /**
+    * Fully qualified path under which we install the router
+    */
+   public String getHome() {
+      return home;
+   }
+
+   /**
+    * Port the router accepts S3 connections on (default 9980)
+    */
+   public int getS3Port() {
+      return s3Port;
+   }
+
+   /**
+    * The access key the router uses for requests of its own to the vBlob
+    * backends, such as creating a bucket on a backend that joined late. Clients
+    * keep using their own keys, which are passed through.
+    */
+   public String getAuthorizedAccessKey() {
+      return authorizedAccessKey;
+   }
+
+   /**
+    * The secret key corresponding to {@link #getAuthorizedAccessKey()}
+    */
+   public String getAuthorizedSecretKey() {
+      return authorizedSecretKey;
+   }
+
+   /**
+    * Number of vBlob backends each object is written to (default 2)
+    */
+   public int getReplicas() {
+      return replicas;
+   }
+
+   /**
+    * Number of replica writes that must succeed before a write is acknowledged
+    * (default 1)
+    */
+   public int getWriteQuorum() {
+      return writeQuorum;
+   }
+
+   /**
+    * Points each backend takes on the hash ring; more points spread keys more
+    * evenly (default 128)
+    */
+   public int getVirtualNodes() {
+      return virtualNodes;
+   }
+
+   /**
+    * Milliseconds between health checks of each backend (default 2000)
+    */
+   public int getHealthCheckInterval() {
+      return healthCheckInterval;
+   }
+
+   /**
+    * Consecutive failures after which a backend is treated as down (default 3)
+    */
+   public int getFailureThreshold() {
+      return failureThreshold;
+   }
+
+   /**
+    * Milliseconds to wait for a connection to a backend (default 2000)
+    */
+   public int getConnectTimeout() {
+      return connectTimeout;
+   }
+
+   /**
+    * Milliseconds to wait for a backend to respond (default 30000)
+    */
+   public int getReadTimeout() {
+      return readTimeout;
+   }
+
+   /**
+    * Threads serving client requests (default 64)
+    */
+   public int getThreads() {
+      return threads;
+   }
+
+   /**
+    * location of the whirr-vblob jar, which contains the router
+    */
+   public URI getJar() {
+      return jar;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(user, home, s3Port, authorizedAccessKey, replicas, writeQuorum, virtualNodes,
+            healthCheckInterval, failureThreshold, connectTimeout, readTimeout, threads, jar);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (obj == null)
+         return false;
+      if (getClass() != obj.getClass())
+         return false;
+      VBlobRouterConfig other = VBlobRouterConfig.class.cast(obj);
+      return Objects.equal(this.user, other.user) && Objects.equal(this.home, other.home)
+            && Objects.equal(this.s3Port, other.s3Port)
+            && Objects.equal(this.authorizedAccessKey, other.authorizedAccessKey)
+            && Objects.equal(this.replicas, other.replicas) && Objects.equal(this.writeQuorum, other.writeQuorum)
+            && Objects.equal(this.virtualNodes, other.virtualNodes)
+            && Objects.equal(this.healthCheckInterval, other.healthCheckInterval)
+            && Objects.equal(this.failureThreshold, other.failureThreshold)
+            && Objects.equal(this.connectTimeout, other.connectTimeout)
+            && Objects.equal(this.readTimeout, other.readTimeout) && Objects.equal(this.threads, other.threads)
+            && Objects.equal(this.jar, other.jar);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).omitNullValues().add("user", user).add("home", home).add("s3Port", s3Port)
+            .add("authorizedAccessKey", authorizedAccessKey).add("replicas", replicas)
+            .add("writeQuorum", writeQuorum).add("virtualNodes", virtualNodes)
+            .add("healthCheckInterval", healthCheckInterval).add("failureThreshold", failureThreshold)
+            .add("connectTimeout", connectTimeout).add("readTimeout", readTimeout).add("threads", threads)
+            .add("jar", jar).toString();
+   }
+
+}
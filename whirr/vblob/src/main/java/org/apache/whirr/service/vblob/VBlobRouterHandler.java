@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob;
+
+import static org.apache.whirr.RolePredicates.role;
+import static org.apache.whirr.service.common.BootstrapStatements.awaitInstalls;
+import static org.apache.whirr.service.common.BootstrapStatements.hasPackageCache;
+import static org.apache.whirr.service.common.BootstrapStatements.untilDone;
+import static org.apache.whirr.service.common.BootstrapStatements.usePackageCache;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.cleanup;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.configure;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.install;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.packages;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.start;
+import static org.apache.whirr.service.vblob.VBlobRouterStatements.stop;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.ClusterActionEvent;
+import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.common.RequiredConfiguration;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+/**
+ * Presents the {@code vblob} instances of a cluster as one S3 endpoint.
+ */
+public class VBlobRouterHandler extends ClusterActionHandlerSupport {
+
+   /**
+    * resolved and validated once per cluster spec, when it is first seen
+    */
+   private final LoadingCache<ClusterSpec, VBlobRouterConfig> configs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, VBlobRouterConfig>() {
+            @Override
+            public VBlobRouterConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToVBlobRouterConfig(getRole(), spec.getClusterUser())
+                     .apply(getConfiguration(spec, "whirr-" + getRole() + "-default.properties"));
+            }
+         });
+
+   /**
+    * settings of the vblob role, whose port the router forwards to
+    */
+   private final LoadingCache<ClusterSpec, VBlobConfig> vBlobConfigs = CacheBuilder.newBuilder().weakKeys()
+         .build(new CacheLoader<ClusterSpec, VBlobConfig>() {
+            @Override
+            public VBlobConfig load(ClusterSpec spec) throws IOException {
+               return new CommonsConfigurationToVBlobConfig("vblob", spec.getClusterUser())
+                     .apply(getConfiguration(spec, "whirr-vblob-default.properties"));
+            }
+         });
+
+   @Override
+   public String getRole() {
+      return "vblob-router";
+   }
+
+   @Override
+   protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
+      // the backends' settings are needed at configure time, so check them now
+      toVBlobConfig(event);
+      VBlobRouterConfig config = toConfig(event);
+      for (Statement step : install(config))
+         event.getStatementBuilder().addStatement(step);
+      // with a package cache, packages wait for it until the configure action
+      if (!hasPackageCache(event.getClusterSpec()))
+         for (Statement step : packages(config))
+            event.getStatementBuilder().addStatement(step);
+   }
+
+   /**
+    * Bootstrap runs before any instance is provisioned, so missing or bad
+    * settings fail the launch right away, all listed in one error.
+    */
+   protected VBlobRouterConfig toConfig(ClusterActionEvent event) throws IOException {
+      return RequiredConfiguration.resolve(configs, event.getClusterSpec());
+   }
+
+   protected VBlobConfig toVBlobConfig(ClusterActionEvent event) throws IOException {
+      return RequiredConfiguration.resolve(vBlobConfigs, event.getClusterSpec());
+   }
+
+   @Override
+   protected void beforeConfigure(ClusterActionEvent event) throws IOException {
+      VBlobRouterConfig config = toConfig(event);
+      Cluster cluster = event.getCluster();
+      event.getFirewallManager().addRule(
+            Rule.create().destination(cluster.getInstancesMatching(role(getRole()))).port(config.getS3Port()));
+
+      // writes must pass the tiering service, or they never reach the remote tier
+      VBlobConfig vBlob = toVBlobConfig(event);
+      int backendPort = vBlob.isTierEnabled() ? vBlob.getTierPort() : vBlob.getS3Port();
+      List<String> backends = Lists.newArrayList();
+      for (Instance instance : cluster.getInstancesMatching(role("vblob"))) {
+         backends.add(instance.getPrivateIp() + ":" + backendPort);
+      }
+      if (hasPackageCache(event.getClusterSpec())) {
+         event.getStatementBuilder().addStatement(usePackageCache(event.getClusterSpec(), event.getCluster()));
+         event.getStatementBuilder().addStatement(untilDone(getRole() + "-packages", new StatementList(
+               packages(config))));
+      }
+      // downloads started while bootstrapping, shared with co-located roles
+      event.getStatementBuilder().addStatement(awaitInstalls());
+      event.getStatementBuilder().addStatement(configure(config, backends));
+   }
+
+   @Override
+   protected void beforeStart(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(start(toConfig(event)));
+   }
+
+   @Override
+   protected void beforeStop(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(stop(toConfig(event)));
+   }
+
+   @Override
+   protected void beforeCleanup(ClusterActionEvent event) throws IOException {
+      event.getStatementBuilder().addStatement(cleanup(toConfig(event)));
+   }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob;
+
+import static org.apache.whirr.service.common.BootstrapStatements.inBackground;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.jclouds.scriptbuilder.domain.Statements.saveHttpResponseTo;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+import org.jclouds.scriptbuilder.statements.java.InstallJDK;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class VBlobRouterStatements {
+
+   public static final String SERVICE = "vblob-router";
+   public static final String MAIN_CLASS = "org.apache.whirr.service.vblob.router.S3Router";
+
+   /**
+    * Fetches the router in the background until the configure action awaits
+    * it.
+    */
+   public static List<Statement> install(VBlobRouterConfig config) {
+      return ImmutableList.of(inBackground(SERVICE, new StatementList(ImmutableSet.<Statement> builder()
+            .add(exec("mkdir -p " + config.getHome()))
+            .add(saveHttpResponseTo(config.getJar(), config.getHome(), SERVICE + ".jar"))
+            .add(exec("chown -R " + config.getUser() + " " + config.getHome())).build())));
+   }
+
+   /**
+    * Installs the JDK, once on instances shared with other roles, while
+    * bootstrapping or, to go through a package cache, when configuring.
+    */
+   public static List<Statement> packages(VBlobRouterConfig config) {
+      return ImmutableList.of(once("jdk", InstallJDK.fromOpenJDK()));
+   }
+
+   /**
+    * Writes the router settings and the vBlob backends it spreads keys over.
+    * The router re-reads the backends whenever they change, so adding or
+    * removing {@code vblob} instances only moves the keys next to them on the
+    * ring; other setting changes restart the router.
+    * 
+    * @param backends
+    *           {@code host:port} of every vBlob instance
+    */
+   public static Statement configure(VBlobRouterConfig config, Iterable<String> backends) {
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(writeRouterProperties(config))
+            .add(createOrOverwriteFile(config.getHome() + "/backends.new", backends))
+            .add(swapBackends(config))
+            .add(call("reconfigure_java_service", SERVICE, config.getHome(), config.getUser(), config.getHome()
+                  + "/router.properties")).build());
+   }
+
+   /**
+    * the router re-reads its backends when the file changes, so membership
+    * changes never need a restart
+    */
+   private static Statement swapBackends(VBlobRouterConfig config) {
+      String backends = config.getHome() + "/backends";
+      return exec("cmp -s " + backends + ".new " + backends + " && rm -f " + backends + ".new || { mv -f "
+            + backends + ".new " + backends + "; chown " + config.getUser() + " " + backends + "; }");
+   }
+
+   private static Statement writeRouterProperties(VBlobRouterConfig config) {
+      Map<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getS3Port() + "")
+            .put("backends.file", config.getHome() + "/backends")
+            .put("replicas", config.getReplicas() + "")
+            .put("write-quorum", config.getWriteQuorum() + "")
+            .put("virtual-nodes", config.getVirtualNodes() + "")
+            .put("health.interval", config.getHealthCheckInterval() + "")
+            .put("health.failures", config.getFailureThreshold() + "")
+            .put("connect-timeout", config.getConnectTimeout() + "")
+            .put("read-timeout", config.getReadTimeout() + "")
+            .put("threads", config.getThreads() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .build();
+
+      return createOrOverwriteFile(config.getHome() + "/router.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+   }
+
+   public static Statement start(VBlobRouterConfig config) {
+      return call("start_java_service", SERVICE, config.getHome(), config.getUser(), config.getHome() + "/" + SERVICE
+            + ".jar", MAIN_CLASS, config.getHome() + "/router.properties");
+   }
+
+   public static Statement stop(VBlobRouterConfig config) {
+      return call("stop_java_service", SERVICE, config.getHome());
+   }
+
+   public static Statement cleanup(VBlobRouterConfig config) {
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(call("stop_java_service", SERVICE, config.getHome()))
+            .add(exec("rm -rf " + config.getHome())).build());
+   }
+}
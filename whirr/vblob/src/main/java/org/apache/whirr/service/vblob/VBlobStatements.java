@@ -18,36 +18,272 @@
 
 package org.apache.whirr.service.vblob;
 
+import static org.apache.whirr.service.common.BootstrapStatements.ARTIFACTS_DIR;
+import static org.apache.whirr.service.common.BootstrapStatements.function;
+import static org.apache.whirr.service.common.BootstrapStatements.inBackground;
+import static org.apache.whirr.service.common.BootstrapStatements.once;
 import static org.jclouds.scriptbuilder.domain.Statements.call;
 import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
-import static org.jclouds.scriptbuilder.domain.Statements.extractTargzAndFlattenIntoDirectory;
+import static org.jclouds.scriptbuilder.domain.Statements.saveHttpResponseTo;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.jclouds.scriptbuilder.domain.Statement;
 import org.jclouds.scriptbuilder.domain.StatementList;
+import org.jclouds.scriptbuilder.statements.java.InstallJDK;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.gson.GsonBuilder;
 
 public class VBlobStatements {
 
-   public static Statement install(VBlobConfig config) {
-      return new StatementList(ImmutableSet
-            .<Statement> builder()
-            .add(call("setupPublicCurl"))
-            .add(call("install_node", config.getFormatToNodejsPackage().get("deb").toASCIIString(), config
-                  .getFormatToNodejsPackage().get("rpm").toASCIIString()))
-            .add(call("install_forever", config.getForeverVersion()))
-            .add(extractTargzAndFlattenIntoDirectory(config.getTar(), config.getHome()))
-            .add(writeConfigJson(config))
-            .add(exec("chown -R " + config.getUser() + " " + config.getHome())).build());
+   public static final String CACHE_SERVICE = "vblob-cache";
+   public static final String CACHE_MAIN_CLASS = "org.apache.whirr.service.vblob.cache.CachingProxy";
+   public static final String STORE_SERVICE = "vblob-store";
+   public static final String STORE_MAIN_CLASS = "org.apache.whirr.service.vblob.store.LogStoreServer";
+   public static final String INDEX_SERVICE = "vblob-index";
+   public static final String INDEX_MAIN_CLASS = "org.apache.whirr.service.vblob.index.ListingIndexServer";
+   public static final String TIER_SERVICE = "vblob-tier";
+   public static final String TIER_MAIN_CLASS = "org.apache.whirr.service.vblob.tier.TieringProxy";
+   /** the Java services above all run from this jar */
+   public static final String JAR = "whirr-vblob.jar";
+   /** the last tarball fetched, under {@link org.apache.whirr.service.common.BootstrapStatements#ARTIFACTS_DIR} */
+   public static final String TARBALL = "vblob.tar.gz";
+
+   /**
+    * Fetches vBlob and its {@code fs} driver, or, with the {@code log} driver,
+    * the Java store in its place, in the background until the configure
+    * action awaits them. Steps are added one at a time, so those other roles
+    * share run once on co-located instances. vBlob is fetched through the
+    * artifact cache, so reinstalling fetches only what changed since the copy
+    * left there.
+    */
+   public static List<Statement> install(VBlobConfig config) {
+      List<Statement> steps = Lists.newArrayList();
+      steps.add(once("curl", call("setupPublicCurl")));
+      ImmutableSet.Builder<Statement> downloads = ImmutableSet.<Statement> builder();
+      downloads.add(mountDataDir(config));
+      if (!config.isLogDriver())
+         downloads.addAll(deployTarball(config));
+      else
+         downloads.add(exec("mkdir -p " + config.getHome()));
+      if (usesJar(config))
+         downloads.add(saveHttpResponseTo(config.getJar(), config.getHome(), JAR));
+      downloads.add(exec("chown -R " + config.getUser() + " " + config.getHome()));
+      steps.add(inBackground("vblob", new StatementList(downloads.build())));
+      return steps;
+   }
+
+   /**
+    * Installs what vBlob needs from the package manager, and zsync for
+    * fetching only what changed in vBlob, while bootstrapping or, to go
+    * through a package cache, when configuring. The index needs Java 7, which
+    * is installed under its own key, so a co-located role's {@code jdk} step
+    * cannot stand in for it, and stays the java on the path.
+    */
+   public static List<Statement> packages(VBlobConfig config) {
+      List<Statement> steps = Lists.newArrayList();
+      if (config.isIndexEnabled())
+         steps.add(once("jdk7", call("install_openjdk7")));
+      else if (usesJar(config))
+         steps.add(once("jdk", InstallJDK.fromOpenJDK()));
+      if (!config.isLogDriver()) {
+         steps.add(once("zsync", call("install_zsync")));
+         steps.add(call("install_node", config.getFormatToNodejsPackage().get("deb").toASCIIString(), config
+               .getFormatToNodejsPackage().get("rpm").toASCIIString()));
+         steps.add(call("install_forever", config.getForeverVersion()));
+      }
+      return steps;
    }
    
+   private static boolean usesJar(VBlobConfig config) {
+      return config.isCacheEnabled() || config.isLogDriver() || config.isIndexEnabled()
+            || config.isTierEnabled();
+   }
+
+   /**
+    * Fetches vBlob into the artifact cache and extracts it over
+    * {@code vblob.home} if it changed.
+    */
+   private static List<Statement> deployTarball(VBlobConfig config) {
+      return ImmutableList.of(
+            call("fetch_artifact", config.getTar().toASCIIString(), ARTIFACTS_DIR, TARBALL),
+            call("deploy_vblob_tar", ARTIFACTS_DIR + "/" + TARBALL, config.getHome(), config.getUser()));
+   }
+
+   private static Statement mountDataDir(VBlobConfig config) {
+      if (config.getDataDevice().isEmpty())
+         return call("mount_vblob_data", config.getDataDir(), config.getUser());
+      return call("mount_vblob_data", config.getDataDir(), config.getUser(), config.getDataDevice());
+   }
+
+   /**
+    * Fills an empty data directory from the latest snapshot of the slot this
+    * instance was given. Runs before vBlob is configured, so a recreated
+    * cluster starts with its data rather than reloading it over S3.
+    * 
+    * @param slots
+    *           slot name by private address of each vBlob instance
+    */
+   public static Statement restore(VBlobConfig config, Map<String, String> slots) {
+      List<String> lines = Lists.newArrayList();
+      for (Map.Entry<String, String> slot : slots.entrySet())
+         lines.add(slot.getKey() + " " + slot.getValue());
+      String slotsFile = config.getHome() + "/snapshot-slots";
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(createOrOverwriteFile(slotsFile, lines))
+            .add(call("restore_vblob_data", config.getSnapshotDir(), config.getDataDir(), config.getUser(), slotsFile))
+            .build());
+   }
+
+   /**
+    * Drains and stops vBlob and copies its data directory into {@code slot}
+    * under the snapshot directory. This runs outside of whirr's scripts, so the
+    * functions are sent along with the call.
+    */
+   public static Statement snapshot(VBlobConfig config, String slot) {
+      String[] ports = clientPorts(config);
+      return new StatementList(ImmutableSet.<Statement> builder()
+            .add(exec(function(VBlobStatements.class, "drain_ports")))
+            .add(exec(function(VBlobStatements.class, "undrain_ports")))
+            .add(exec(function(VBlobStatements.class, "snapshot_vblob_data")))
+            // the instance is going away, so clients are only let back in
+            // should the snapshot fail
+            .add(exec("drain_ports vblob " + config.getDrainTimeout() + " " + Joiner.on(' ').join(ports)))
+            .add(exec("snapshot_vblob_data " + config.getSnapshotDir() + " " + config.getDataDir() + " "
+                  + config.getUser() + " " + slot + " " + config.getSnapshotsKept() + " " + config.getHome()
+                  + " || { undrain_ports " + Joiner.on(' ').join(ports) + "; exit 1; }"))
+            .build());
+   }
+
+   /**
+    * Writes {@code config.json} next to the live copy and lets
+    * {@code reconfigure_vblob} swap it in. Unchanged settings are a no-op, and
+    * changed settings restart the node process under forever without
+    * reinstalling anything.
+    * 
+    * <p/>
+    * With the {@code fs} driver vBlob is fetched again first, which moves
+    * nothing when the artifact is unchanged and only the changed blocks when
+    * a {@code .zsync} is published next to it, and new code restarts it the
+    * same way.
+    */
+   public static Statement configure(VBlobConfig config) {
+      ImmutableSet.Builder<Statement> statements = ImmutableSet.<Statement> builder();
+      if (config.isLogDriver()) {
+         statements.add(writeStoreProperties(config));
+         statements.add(call("reconfigure_java_service", STORE_SERVICE, config.getHome(), config.getUser(),
+               config.getHome() + "/store.properties"));
+      } else {
+         statements.addAll(deployTarball(config));
+         statements.add(writeConfigJson(config));
+         statements.add(call("reconfigure_vblob", config.getHome(), config.getUser(), config.getS3Port() + ""));
+      }
+      if (config.isCacheEnabled()) {
+         statements.add(writeCacheProperties(config));
+         statements.add(call("reconfigure_java_service", CACHE_SERVICE, config.getHome(), config.getUser(),
+               config.getHome() + "/cache.properties"));
+      }
+      if (config.isIndexEnabled()) {
+         statements.add(writeIndexProperties(config));
+         statements.add(call("reconfigure_java_service", INDEX_SERVICE, config.getHome(), config.getUser(),
+               config.getHome() + "/index.properties"));
+      }
+      if (config.isTierEnabled()) {
+         statements.add(writeTierProperties(config));
+         statements.add(call("reconfigure_java_service", TIER_SERVICE, config.getHome(), config.getUser(),
+               config.getHome() + "/tier.properties"));
+      }
+      return new StatementList(statements.build());
+   }
+
+   private static Statement writeCacheProperties(VBlobConfig config) {
+      Map<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getCachePort() + "")
+            .put("backend", "http://127.0.0.1:" + (config.isTierEnabled() ? config.getTierPort() : config.getS3Port()))
+            .put("memory", config.getCacheMemory() + "")
+            .put("max-object-size", config.getCacheMaxObjectSize() + "")
+            .put("ttl", config.getCacheTtl() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .build();
+
+      return createOrOverwriteFile(config.getHome() + "/cache.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+   }
+
+   /**
+    * The index is kept under {@code vblob.home}, so removing vBlob drops it;
+    * the next start rebuilds it from the data directory.
+    */
+   private static Statement writeIndexProperties(VBlobConfig config) {
+      Map<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getIndexPort() + "")
+            .put("backend", "http://127.0.0.1:" + config.getS3Port())
+            .put("data-dir", config.getDataDir())
+            .put("index-dir", config.getHome() + "/index")
+            .put("rescan-interval", config.getIndexRescanInterval() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .build();
+
+      return createOrOverwriteFile(config.getHome() + "/index.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+   }
+
+   /**
+    * The catalog of what is in which tier is kept in the data directory, where
+    * vBlob skips it as it skips its own {@code ~} directories, so it outlives
+    * removing vBlob and moves along with snapshots. Without it, objects only
+    * the remote tier holds would be lost to clients.
+    */
+   private static Statement writeTierProperties(VBlobConfig config) {
+      Map<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getTierPort() + "")
+            .put("backend", "http://127.0.0.1:" + config.getS3Port())
+            .put("data-dir", config.getDataDir())
+            .put("catalog-dir", config.getDataDir() + "/~tier")
+            .put("remote.endpoint", config.getTierEndpoint())
+            .put("remote.bucket", config.getTierBucket())
+            .put("remote.prefix", config.getTierPrefix())
+            .put("remote.access-key", config.getTierAccessKey())
+            .put("remote.secret-key", config.getTierSecretKey())
+            .put("upload-interval", config.getTierUploadInterval() + "")
+            .put("upload-threads", config.getTierUploadThreads() + "")
+            .put("batch-size", config.getTierBatchSize() + "")
+            .put("high-watermark", config.getTierHighWatermark() + "")
+            .put("low-watermark", config.getTierLowWatermark() + "")
+            .put("min-idle", config.getTierMinIdle() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .build();
+
+      return createOrOverwriteFile(config.getHome() + "/tier.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+   }
+
+   private static Statement writeStoreProperties(VBlobConfig config) {
+      Map<String, String> configFile = ImmutableMap.<String, String> builder()
+            .put("port", config.getS3Port() + "")
+            .put("dir", config.getDataDir())
+            .put("segment-size", config.getLogSegmentSize() + "")
+            .put("sync", config.isLogSync() + "")
+            .put("compact-threshold", config.getLogCompactThreshold() + "")
+            .put("auth.access-key", config.getAuthorizedAccessKey())
+            .put("auth.secret-key", config.getAuthorizedSecretKey())
+            .build();
+
+      return createOrOverwriteFile(config.getHome() + "/store.properties.new",
+            ImmutableSet.of(Joiner.on('\n').withKeyValueSeparator("=").join(configFile)));
+   }
+
    private static Statement writeConfigJson(VBlobConfig config) {
       Map<Object, Object> configJ = ImmutableMap
             .builder()
@@ -55,26 +291,109 @@ public class VBlobStatements {
                   ImmutableList
                         .builder()
                         .add(ImmutableMap.of("fs-1",
-                              ImmutableMap.builder().put("type", "fs").put("option", ImmutableMap.of()).build()))
+                              ImmutableMap.builder().put("type", "fs")
+                                    .put("option", ImmutableMap.of("root", config.getDataDir())).build()))
                         .build()).put("port", config.getS3Port()).put("current_driver", "fs-1").put("logtype", "winston")
             .put("logfile", config.getHome() + "/log.txt").put("auth", "s3").put("debug", true).put("account_api", false)
             .put("keyID", config.getAuthorizedAccessKey()).put("secretID",  config.getAuthorizedSecretKey()).build();
       String configJson = new GsonBuilder().setPrettyPrinting().create().toJson(configJ);
-      String fileName = config.getHome() + "/config.json";
+      String fileName = config.getHome() + "/config.json.new";
       return createOrOverwriteFile(fileName, Collections.singleton(configJson));
    }
 
+   /**
+    * Starts vBlob and the services in front of it. Ports a failed stop left
+    * drained are opened first, or clients would stay refused after the start.
+    */
    public static Statement start(VBlobConfig config) {
-      return call("start_vblob", config.getHome(), config.getUser());
+      ImmutableSet.Builder<Statement> statements = ImmutableSet.<Statement> builder();
+      statements.add(call("undrain_ports", clientPorts(config)));
+      if (config.isLogDriver())
+         statements.add(call("start_java_service", STORE_SERVICE, config.getHome(), config.getUser(), config
+               .getHome() + "/" + JAR, STORE_MAIN_CLASS, config.getHome() + "/store.properties"));
+      else
+         statements.add(call("start_vblob", config.getHome(), config.getUser()));
+      if (config.isTierEnabled())
+         statements.add(call("start_java_service", TIER_SERVICE, config.getHome(), config.getUser(), config
+               .getHome() + "/" + JAR, TIER_MAIN_CLASS, config.getHome() + "/tier.properties"));
+      if (config.isCacheEnabled()) {
+         // bodies are held in direct buffers, so leave room for them past the heap
+         long directMemory = config.getCacheMemory() + 64L * 1024 * 1024;
+         statements.add(call("start_java_service", CACHE_SERVICE, config.getHome(), config.getUser(), config
+               .getHome() + "/" + JAR, "-XX:MaxDirectMemorySize=" + directMemory, CACHE_MAIN_CLASS, config
+               .getHome() + "/cache.properties"));
+      }
+      if (config.isIndexEnabled())
+         statements.add(call("start_java_service", INDEX_SERVICE, config.getHome(), config.getUser(), config
+               .getHome() + "/" + JAR, INDEX_MAIN_CLASS, config.getHome() + "/index.properties"));
+      if (config.isWarmupEnabled())
+         statements.add(warmup(config));
+      return new StatementList(statements.build());
    }
 
+   /**
+    * Replays S3 HEAD and GET calls on localhost in rounds, until the mean
+    * latency of a round is within the tolerance of the one before. Goes
+    * through the cache or the tiering service when there is one, so all
+    * processes are warmed. The script reads the secret key from the store's
+    * settings, rather than taking it as an argument.
+    */
+   public static Statement warmup(VBlobConfig config) {
+      int port = config.isCacheEnabled() ? config.getCachePort() : config.isTierEnabled() ? config.getTierPort()
+            : config.getS3Port();
+      String secretFile = config.getHome() + (config.isLogDriver() ? "/store.properties" : "/config.json");
+      String secretProperty = config.isLogDriver() ? "auth.secret-key" : "secretID";
+      return call("warmup_vblob", port + "", config.getAuthorizedAccessKey(), secretFile, secretProperty,
+            config.getWarmupRequests() + "", config.getWarmupTolerance() + "");
+   }
+
+   /**
+    * Drains vBlob and the cache before stopping them: new connections are
+    * refused, so vblob-router routes around the instance, and S3 requests in
+    * flight get up to the drain timeout to finish. The drain line in the output
+    * tells how long that took and how many requests were cut off, and is logged
+    * per instance when the agent runs the stop.
+    */
    public static Statement stop(VBlobConfig config) {
-      return call("stop_vblob", config.getHome(), config.getUser());
+      ImmutableSet.Builder<Statement> statements = ImmutableSet.<Statement> builder();
+      statements.add(call("drain_ports", Lists.asList("vblob", config.getDrainTimeout() + "", clientPorts(config))
+            .toArray(new String[0])));
+      if (config.isCacheEnabled())
+         statements.add(call("stop_java_service", CACHE_SERVICE, config.getHome()));
+      if (config.isIndexEnabled())
+         statements.add(call("stop_java_service", INDEX_SERVICE, config.getHome()));
+      if (config.isTierEnabled())
+         statements.add(call("stop_java_service", TIER_SERVICE, config.getHome()));
+      if (config.isLogDriver())
+         statements.add(call("stop_java_service", STORE_SERVICE, config.getHome()));
+      else
+         statements.add(call("stop_vblob", config.getHome(), config.getUser()));
+      statements.add(call("undrain_ports", clientPorts(config)));
+      return new StatementList(statements.build());
+   }
+
+   private static String[] clientPorts(VBlobConfig config) {
+      List<String> ports = Lists.newArrayList(config.getS3Port() + "");
+      if (config.isCacheEnabled())
+         ports.add(config.getCachePort() + "");
+      if (config.isIndexEnabled())
+         ports.add(config.getIndexPort() + "");
+      if (config.isTierEnabled())
+         ports.add(config.getTierPort() + "");
+      return ports.toArray(new String[ports.size()]);
    }
 
+   /**
+    * Removes vBlob, but not its data directory, which the next install picks
+    * up again.
+    */
    public static Statement cleanup(VBlobConfig config) {
       return new StatementList(ImmutableSet.<Statement> builder()
-            .add(call("stop_vblob", config.getHome(), config.getUser()))
+            .add(call("stop_java_service", CACHE_SERVICE, config.getHome()))
+            .add(call("stop_java_service", INDEX_SERVICE, config.getHome()))
+            .add(call("stop_java_service", TIER_SERVICE, config.getHome()))
+            .add(config.isLogDriver() ? call("stop_java_service", STORE_SERVICE, config.getHome()) : call(
+                  "stop_vblob", config.getHome(), config.getUser()))
             .add(exec("rm -rf " + config.getHome())).build());
    }
 }
@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.cache;
+
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.contentLength;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.error;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.open;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.rawPathAndQuery;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.readFully;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.respond;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.responseBody;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Caches small, frequently read objects in front of a vBlob instance.
+ * 
+ * <ul>
+ * <li>object GETs and HEADs are served from an {@link ObjectCache}; entries
+ * older than {@code ttl} are revalidated with {@code If-None-Match} before
+ * being served again</li>
+ * <li>PUTs, POSTs and DELETEs invalidate the object, or the whole bucket when
+ * they target the bucket, and are forwarded as is</li>
+ * <li>requests for ranges, sub-resources or with query string authentication
+ * are always forwarded</li>
+ * </ul>
+ * 
+ * A cached object is only served to requests whose signature checks out
+ * locally, so the cache never answers a request vBlob would have refused.
+ * Counters are available at {@code /_cache/stats}.
+ */
+public class CachingProxy implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(CachingProxy.class.getName());
+
+   static final String STATS_PATH = "/_cache/stats";
+
+   private static final Set<String> CONDITIONAL = new HashSet<String>(Arrays.asList("if-match", "if-none-match",
+         "if-modified-since", "if-unmodified-since"));
+
+   /** per request headers not worth keeping with a cached object */
+   private static final Set<String> UNCACHED_HEADERS = new HashSet<String>(Arrays.asList("date",
+         "x-amz-request-id", "x-amz-id-2", "connection", "keep-alive", "transfer-encoding", "content-length"));
+
+   private final ObjectCache cache;
+   private final URI backend;
+   private final long ttl;
+   private final String accessKey;
+   private final String secretKey;
+   private final int connectTimeout;
+   private final int readTimeout;
+
+   public CachingProxy(ObjectCache cache, URI backend, long ttl, String accessKey, String secretKey,
+         int connectTimeout, int readTimeout) {
+      this.cache = cache;
+      this.backend = backend;
+      this.ttl = ttl;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         route(exchange);
+      } catch (Exception e) {
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 502, "InternalError", "cache could not reach vBlob");
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   private void route(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getRawPath();
+      String query = exchange.getRequestURI().getRawQuery();
+
+      if (STATS_PATH.equals(path)) {
+         respond(exchange, 200, "text/plain", cache.stats().getBytes("UTF-8"));
+         return;
+      }
+
+      int slash = path.indexOf('/', 1);
+      boolean isObject = slash != -1 && slash < path.length() - 1;
+      if ("GET".equals(method) || "HEAD".equals(method)) {
+         if (isObject && query == null && exchange.getRequestHeaders().getFirst("Range") == null
+               && isAuthentic(exchange))
+            read(exchange, path);
+         else
+            forward(exchange);
+         return;
+      }
+
+      // a bucket delete takes its objects with it
+      String invalidated = isObject ? path : (path.endsWith("/") ? path : path + "/");
+      invalidate(invalidated, isObject);
+      try {
+         forward(exchange);
+      } finally {
+         // a read that started before the write may have cached the old body
+         invalidate(invalidated, isObject);
+      }
+   }
+
+   private void invalidate(String path, boolean isObject) {
+      if (isObject)
+         cache.invalidate(path);
+      else
+         cache.invalidatePrefix(path);
+   }
+
+   private void read(HttpExchange exchange, String key) throws IOException {
+      long now = System.currentTimeMillis();
+      ObjectCache.Entry entry = cache.get(key);
+      if (entry != null && now - entry.getValidatedAt() < ttl) {
+         cache.hits.incrementAndGet();
+         serve(exchange, entry, "HIT");
+         return;
+      }
+
+      long generation = cache.generation();
+      Map<String, List<String>> headers = withoutConditionals(exchange);
+      if (entry != null)
+         headers.put("If-None-Match", Arrays.asList(entry.getETag()));
+      // HEADs fetch the body too, so the next GET is a hit; the client signed
+      // its own method, so the GET is signed again with the keys it was
+      // checked against
+      headers.put("Authorization", Arrays.asList(S3Signatures.authorization(accessKey, secretKey, S3Signatures
+            .stringToSign("GET", headers, key, null))));
+      HttpURLConnection connection = open(backend, "GET", key, headers, connectTimeout, readTimeout);
+      int status = connection.getResponseCode();
+
+      if (status == 304 && entry != null) {
+         HttpForwarding.drain(responseBody(connection));
+         entry.validated(now);
+         cache.revalidations.incrementAndGet();
+         cache.hits.incrementAndGet();
+         serve(exchange, entry, "REVALIDATED");
+         return;
+      }
+
+      cache.misses.incrementAndGet();
+      if (entry != null)
+         cache.invalidate(key);
+      String length = connection.getHeaderField("Content-Length");
+      String eTag = connection.getHeaderField("ETag");
+      if (status != 200 || eTag == null || length == null || !cache.accepts(Long.parseLong(length.trim()))) {
+         exchange.getResponseHeaders().set("X-Cache", "MISS");
+         HttpForwarding.copyResponse(connection, exchange);
+         return;
+      }
+
+      byte[] body = readFully(responseBody(connection));
+      Map<String, List<String>> kept = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+         if (header.getKey() != null && !UNCACHED_HEADERS.contains(header.getKey().toLowerCase()))
+            kept.put(header.getKey(), header.getValue());
+      }
+      if (cache.put(key, eTag, kept, body, now, generation)) {
+         ObjectCache.Entry stored = cache.get(key);
+         if (stored != null) {
+            serve(exchange, stored, "MISS");
+            return;
+         }
+      }
+      HttpForwarding.copyResponseHeaders(kept, exchange.getResponseHeaders());
+      exchange.getResponseHeaders().set("X-Cache", "MISS");
+      if (notModified(exchange, eTag)) {
+         exchange.sendResponseHeaders(304, -1);
+         exchange.close();
+         return;
+      }
+      respond(exchange, 200, null, body);
+   }
+
+   private void serve(HttpExchange exchange, ObjectCache.Entry entry, String disposition) throws IOException {
+      HttpForwarding.copyResponseHeaders(entry.getHeaders(), exchange.getResponseHeaders());
+      exchange.getResponseHeaders().set("X-Cache", disposition);
+      if (notModified(exchange, entry.getETag())) {
+         exchange.sendResponseHeaders(304, -1);
+         exchange.close();
+         return;
+      }
+      if ("HEAD".equals(exchange.getRequestMethod()) || entry.size() == 0) {
+         exchange.getResponseHeaders().set("Content-Length", entry.size() + "");
+         exchange.sendResponseHeaders(200, -1);
+         exchange.close();
+         return;
+      }
+      exchange.sendResponseHeaders(200, entry.size());
+      OutputStream out = exchange.getResponseBody();
+      try {
+         WritableByteChannel channel = Channels.newChannel(out);
+         ByteBuffer body = entry.body();
+         while (body.hasRemaining())
+            channel.write(body);
+         cache.bytesServed.addAndGet(entry.size());
+      } finally {
+         out.close();
+         exchange.close();
+      }
+   }
+
+   private static boolean notModified(HttpExchange exchange, String eTag) {
+      List<String> ifNoneMatch = exchange.getRequestHeaders().get("If-None-Match");
+      if (ifNoneMatch == null)
+         return false;
+      for (String values : ifNoneMatch) {
+         for (String value : values.split(",")) {
+            value = value.trim();
+            if (value.equals("*") || value.equals(eTag) || value.replace("\"", "").equals(eTag.replace("\"", "")))
+               return true;
+         }
+      }
+      return false;
+   }
+
+   private static Map<String, List<String>> withoutConditionals(HttpExchange exchange) {
+      Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+         if (!CONDITIONAL.contains(header.getKey().toLowerCase()))
+            headers.put(header.getKey(), header.getValue());
+      }
+      return headers;
+   }
+
+   /**
+    * @return true if the request is signed with the vBlob keys and recently
+    *         dated, as vBlob would check when the request is forwarded
+    */
+   private boolean isAuthentic(HttpExchange exchange) {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null)
+         return false;
+      if (!S3Signatures.isCurrent(exchange.getRequestHeaders(), System.currentTimeMillis()))
+         return false;
+      return S3Signatures.verify(accessKey, secretKey, authorization, S3Signatures.stringToSign(exchange
+            .getRequestMethod(), exchange.getRequestHeaders(), exchange.getRequestURI().getRawPath(), null));
+   }
+
+   private void forward(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      HttpURLConnection connection = open(backend, method, rawPathAndQuery(exchange), exchange
+            .getRequestHeaders(), connectTimeout, readTimeout);
+      long length = contentLength(exchange.getRequestHeaders());
+      if (length > 0 || "PUT".equals(method) || "POST".equals(method)) {
+         InputStream in = exchange.getRequestBody();
+         try {
+            HttpForwarding.sendBody(connection, in, length);
+         } finally {
+            in.close();
+         }
+      }
+      HttpForwarding.copyResponse(connection, exchange);
+   }
+
+   /**
+    * Starts the cache with settings from the properties file named by the
+    * first argument.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      int threads = Integer.parseInt(settings.getProperty("threads", "64"));
+      // pooled keep-alive connections to vBlob
+      System.setProperty("http.maxConnections", threads + "");
+
+      ObjectCache cache = new ObjectCache(Long.parseLong(settings.getProperty("memory", "268435456")), Long
+            .parseLong(settings.getProperty("max-object-size", "1048576")));
+      CachingProxy proxy = new CachingProxy(cache, URI.create(settings.getProperty("backend",
+            "http://127.0.0.1:9981")), Long.parseLong(settings.getProperty("ttl", "1000")), settings
+            .getProperty("auth.access-key"), settings.getProperty("auth.secret-key"), Integer.parseInt(settings
+            .getProperty("connect-timeout", "2000")), Integer.parseInt(settings.getProperty("read-timeout",
+            "30000")));
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "9982"))), 1024);
+      server.createContext("/", proxy);
+      server.setExecutor(Executors.newFixedThreadPool(threads));
+      server.start();
+      LOG.info("vBlob cache listening on " + server.getAddress());
+   }
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of small objects, bounded by the total size of
+ * their bodies. Bodies are kept in direct buffers, so a large cache does not
+ * add to the heap the garbage collector has to walk.
+ */
+public class ObjectCache {
+
+   /**
+    * A cached object; the body is shared, so callers must read it through
+    * {@link #body()}
+    */
+   public static class Entry {
+      private final String eTag;
+      private final Map<String, List<String>> headers;
+      private final ByteBuffer body;
+      private volatile long validatedAt;
+
+      Entry(String eTag, Map<String, List<String>> headers, byte[] body, long validatedAt) {
+         this.eTag = eTag;
+         this.headers = headers;
+         this.body = ByteBuffer.allocateDirect(body.length);
+         this.body.put(body).flip();
+         this.validatedAt = validatedAt;
+      }
+
+      public String getETag() {
+         return eTag;
+      }
+
+      public Map<String, List<String>> getHeaders() {
+         return headers;
+      }
+
+      /**
+       * @return an independent view of the body, positioned at its start
+       */
+      public ByteBuffer body() {
+         return body.duplicate();
+      }
+
+      public int size() {
+         return body.capacity();
+      }
+
+      public long getValidatedAt() {
+         return validatedAt;
+      }
+
+      void validated(long now) {
+         validatedAt = now;
+      }
+   }
+
+   private final long capacity;
+   private final long maxObjectSize;
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+   private long size;
+   private long generation;
+
+   final AtomicLong hits = new AtomicLong();
+   final AtomicLong misses = new AtomicLong();
+   final AtomicLong revalidations = new AtomicLong();
+   final AtomicLong evictions = new AtomicLong();
+   final AtomicLong invalidations = new AtomicLong();
+   final AtomicLong bytesServed = new AtomicLong();
+
+   /**
+    * @param capacity
+    *           total bytes of bodies held
+    * @param maxObjectSize
+    *           larger objects are never cached
+    */
+   public ObjectCache(long capacity, long maxObjectSize) {
+      this.capacity = capacity;
+      this.maxObjectSize = Math.min(maxObjectSize, capacity);
+   }
+
+   public boolean accepts(long length) {
+      return length >= 0 && length <= maxObjectSize;
+   }
+
+   public synchronized Entry get(String key) {
+      return entries.get(key);
+   }
+
+   /**
+    * @return a token for {@link #put}, taken before fetching from the backend
+    */
+   public synchronized long generation() {
+      return generation;
+   }
+
+   /**
+    * Stores a fetched object, unless something was invalidated since
+    * {@code generation} was taken: the fetch may have raced with a write, and
+    * its body may already be stale.
+    * 
+    * @return true if the object was stored
+    */
+   public boolean put(String key, String eTag, Map<String, List<String>> headers, byte[] body, long now,
+         long generation) {
+      if (!accepts(body.length))
+         return false;
+      // allocate outside the lock
+      Entry entry = new Entry(eTag, headers, body, now);
+      synchronized (this) {
+         if (this.generation != generation)
+            return false;
+         Entry previous = entries.put(key, entry);
+         if (previous != null)
+            size -= previous.size();
+         size += entry.size();
+         Iterator<Entry> eldest = entries.values().iterator();
+         while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().size();
+            eldest.remove();
+            evictions.incrementAndGet();
+         }
+         return true;
+      }
+   }
+
+   public synchronized void invalidate(String key) {
+      generation++;
+      Entry removed = entries.remove(key);
+      if (removed != null) {
+         size -= removed.size();
+         invalidations.incrementAndGet();
+      }
+   }
+
+   /**
+    * drops every key starting with {@code prefix}, such as all objects of a
+    * deleted bucket
+    */
+   public synchronized void invalidatePrefix(String prefix) {
+      generation++;
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<String, Entry> entry = it.next();
+         if (entry.getKey().startsWith(prefix)) {
+            size -= entry.getValue().size();
+            it.remove();
+            invalidations.incrementAndGet();
+         }
+      }
+   }
+
+   /**
+    * @return hit rate and counters in {@code name value} lines
+    */
+   public String stats() {
+      long hit = hits.get();
+      long miss = misses.get();
+      int count;
+      long bytes;
+      synchronized (this) {
+         count = entries.size();
+         bytes = size;
+      }
+      return new StringBuilder()
+            .append("hits ").append(hit).append('\n')
+            .append("misses ").append(miss).append('\n')
+            .append("hit_rate ").append(hit + miss == 0 ? 0 : (double) hit / (hit + miss)).append('\n')
+            .append("revalidations ").append(revalidations.get()).append('\n')
+            .append("evictions ").append(evictions.get()).append('\n')
+            .append("invalidations ").append(invalidations.get()).append('\n')
+            .append("bytes_served ").append(bytesServed.get()).append('\n')
+            .append("entries ").append(count).append('\n')
+            .append("bytes ").append(bytes).append('\n')
+            .append("capacity ").append(capacity).append('\n').toString();
+   }
+}
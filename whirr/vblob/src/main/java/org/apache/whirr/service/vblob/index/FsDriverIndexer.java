@@ -0,0 +1,444 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.index;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.whirr.service.vblob.index.KeyIndex.Entry;
+
+/**
+ * Keeps a {@link KeyIndex} of every bucket in the data directory of vBlob's
+ * {@code fs} driver. The driver writes a small JSON metadata file per object,
+ * naming its key, size and ETag, next to a {@code blob} directory with the
+ * bodies. This reads those files as the kernel reports them changed, and
+ * rescans every bucket now and then to catch what notifications missed, such
+ * as changes made while it was down or an overflowed event queue.
+ * 
+ * <p/>
+ * Indexes are saved to {@code indexDir}, so a restart serves listings from the
+ * saved copy until its first rescan is done. A bucket without one is only
+ * {@link #isReady(String) ready} once it has been scanned.
+ */
+public class FsDriverIndexer {
+   private static final Logger LOG = Logger.getLogger(FsDriverIndexer.class.getName());
+
+   /** metadata files are small; anything larger is an object body */
+   static final int MAX_METADATA_SIZE = 64 * 1024;
+
+   private static final Pattern NAME = jsonString("vblob_file_name");
+   private static final Pattern ETAG = jsonString("vblob_file_etag");
+   private static final Pattern SIZE = Pattern.compile("\"vblob_file_size\"\\s*:\\s*\"?(\\d+)");
+   private static final Pattern UPDATED = Pattern.compile("\"vblob_update_time\"\\s*:\\s*(?:\"([^\"]*)\"|(\\d+))");
+
+   private final File dataDir;
+   private final File indexDir;
+   private final long rescanIntervalSeconds;
+   private final ConcurrentMap<String, KeyIndex> indexes = new ConcurrentHashMap<String, KeyIndex>();
+   private final Set<String> ready = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   /** bucket and path within it of each watched directory */
+   private final ConcurrentMap<WatchKey, String[]> watched = new ConcurrentHashMap<WatchKey, String[]>();
+   private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+   private WatchService watcher;
+   private Thread watchThread;
+
+   public FsDriverIndexer(File dataDir, File indexDir, long rescanIntervalSeconds) {
+      this.dataDir = dataDir;
+      this.indexDir = indexDir;
+      this.rescanIntervalSeconds = rescanIntervalSeconds;
+   }
+
+   /**
+    * Loads the saved indexes, starts watching, and rescans every bucket in the
+    * background, then again every rescan interval.
+    */
+   public void start() throws IOException {
+      if (!indexDir.isDirectory() && !indexDir.mkdirs())
+         throw new IOException("could not create " + indexDir);
+      watcher = FileSystems.getDefault().newWatchService();
+      // buckets come and go as top level directories
+      watched.put(dataDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE), new String[] { null, "" });
+      for (String bucket : buckets()) {
+         File saved = indexFile(bucket);
+         indexes.put(bucket, KeyIndex.load(saved));
+         if (saved.exists())
+            ready.add(bucket);
+      }
+      watchThread = new Thread(new Runnable() {
+         public void run() {
+            watch();
+         }
+      }, "vblob-index-watch");
+      watchThread.setDaemon(true);
+      watchThread.start();
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            rescanAll();
+         }
+      }, 0, rescanIntervalSeconds, TimeUnit.SECONDS);
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            saveAll();
+         }
+      }, 10, 10, TimeUnit.SECONDS);
+   }
+
+   public void stop() {
+      scheduler.shutdownNow();
+      try {
+         watcher.close();
+      } catch (IOException ignored) {
+      }
+      saveAll();
+   }
+
+   /**
+    * @return true if listings of {@code bucket} can be answered from its index
+    */
+   public boolean isReady(String bucket) {
+      return ready.contains(bucket);
+   }
+
+   public KeyIndex get(String bucket) {
+      return indexes.get(bucket);
+   }
+
+   public Map<String, Integer> sizes() {
+      Map<String, Integer> sizes = new HashMap<String, Integer>();
+      for (Map.Entry<String, KeyIndex> index : indexes.entrySet())
+         sizes.put(index.getKey(), index.getValue().size());
+      return sizes;
+   }
+
+   private String[] buckets() {
+      String[] names = dataDir.list();
+      if (names == null)
+         return new String[0];
+      List<String> buckets = new ArrayList<String>();
+      for (String name : names)
+         if (isBucket(name) && new File(dataDir, name).isDirectory())
+            buckets.add(name);
+      return buckets.toArray(new String[buckets.size()]);
+   }
+
+   /** the driver keeps its own state in directories starting with ~ */
+   private static boolean isBucket(String name) {
+      return !name.startsWith("~") && !name.startsWith(".");
+   }
+
+   /** below a bucket, skips the bodies and the driver's scratch space */
+   private static boolean isMetadataDir(String name) {
+      return !name.equals("blob") && !name.startsWith("~") && !name.startsWith(".");
+   }
+
+   private File indexFile(String bucket) {
+      return new File(indexDir, bucket + ".index");
+   }
+
+   void rescanAll() {
+      for (String bucket : buckets()) {
+         try {
+            rescan(bucket);
+         } catch (Exception e) {
+            LOG.log(Level.WARNING, "could not rescan bucket " + bucket, e);
+         }
+      }
+   }
+
+   /**
+    * Walks the metadata of {@code bucket}, watching every directory on the way,
+    * and reconciles its index with what was found.
+    */
+   void rescan(String bucket) throws IOException {
+      long start = System.nanoTime();
+      File bucketDir = new File(dataDir, bucket);
+      Map<String, Entry> scanned = new HashMap<String, Entry>();
+      walk(bucket, bucketDir, "", scanned);
+      KeyIndex index = indexes.get(bucket);
+      if (index == null) {
+         indexes.putIfAbsent(bucket, new KeyIndex());
+         index = indexes.get(bucket);
+      }
+      int dropped = index.reconcile(scanned, bucketDir);
+      ready.add(bucket);
+      LOG.info("rescanned bucket " + bucket + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + "ms: " + index.size() + " keys, " + dropped + " dropped");
+   }
+
+   private void walk(String bucket, File dir, String path, Map<String, Entry> scanned) throws IOException {
+      watch(bucket, dir, path);
+      String[] names = dir.list();
+      if (names == null)
+         return;
+      for (String name : names) {
+         File file = new File(dir, name);
+         String child = path.isEmpty() ? name : path + "/" + name;
+         if (file.isDirectory()) {
+            if (isMetadataDir(name))
+               walk(bucket, file, child, scanned);
+         } else {
+            Entry entry = read(file);
+            if (entry != null)
+               scanned.put(child, entry);
+         }
+      }
+   }
+
+   private void watch(String bucket, File dir, String path) throws IOException {
+      try {
+         watched.put(dir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), new String[] {
+               bucket, path });
+      } catch (ClosedWatchServiceException e) {
+         // stopping
+      }
+   }
+
+   private void watch() {
+      while (true) {
+         WatchKey key;
+         try {
+            key = watcher.take();
+         } catch (InterruptedException e) {
+            return;
+         } catch (ClosedWatchServiceException e) {
+            return;
+         }
+         String[] where = watched.get(key);
+         if (where != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+               try {
+                  if (where[0] == null)
+                     bucketChanged(event);
+                  else
+                     fileChanged(where[0], where[1], event);
+               } catch (Exception e) {
+                  LOG.log(Level.WARNING, "could not index " + event.context() + " in " + where[0], e);
+               }
+            }
+         }
+         if (!key.reset())
+            watched.remove(key);
+      }
+   }
+
+   private void bucketChanged(WatchEvent<?> event) {
+      if (event.kind() == OVERFLOW) {
+         rescanLater(null);
+         return;
+      }
+      final String bucket = ((Path) event.context()).toString();
+      if (!isBucket(bucket))
+         return;
+      if (event.kind() == ENTRY_DELETE) {
+         indexes.remove(bucket);
+         ready.remove(bucket);
+         indexFile(bucket).delete();
+      } else {
+         rescanLater(bucket);
+      }
+   }
+
+   private void fileChanged(String bucket, String dir, WatchEvent<?> event) throws IOException {
+      if (event.kind() == OVERFLOW) {
+         rescanLater(bucket);
+         return;
+      }
+      String name = ((Path) event.context()).toString();
+      String path = dir.isEmpty() ? name : dir + "/" + name;
+      File file = new File(new File(dataDir, bucket), path);
+      KeyIndex index = indexes.get(bucket);
+      if (index == null)
+         return;
+      if (event.kind() == ENTRY_DELETE) {
+         index.remove(path);
+      } else if (file.isDirectory()) {
+         if (event.kind() == ENTRY_CREATE && isMetadataDir(name)) {
+            // files may land in it before it is watched, so walk it too
+            Map<String, Entry> found = new HashMap<String, Entry>();
+            walk(bucket, file, path, found);
+            for (Map.Entry<String, Entry> entry : found.entrySet())
+               index.put(entry.getKey(), entry.getValue());
+         }
+      } else {
+         Entry entry = read(file);
+         if (entry != null)
+            index.put(path, entry);
+      }
+   }
+
+   private void rescanLater(final String bucket) {
+      scheduler.execute(new Runnable() {
+         public void run() {
+            if (bucket == null) {
+               rescanAll();
+               return;
+            }
+            try {
+               rescan(bucket);
+            } catch (Exception e) {
+               LOG.log(Level.WARNING, "could not rescan bucket " + bucket, e);
+            }
+         }
+      });
+   }
+
+   void saveAll() {
+      for (Map.Entry<String, KeyIndex> index : indexes.entrySet()) {
+         try {
+            index.getValue().saveIfChanged(indexFile(index.getKey()));
+         } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not save the index of bucket " + index.getKey(), e);
+         }
+      }
+   }
+
+   /**
+    * @return the entry described by a metadata file, or null if it is not one,
+    *         such as a temporary file the driver is still writing
+    */
+   static Entry read(File file) {
+      long length = file.length();
+      if (length == 0 || length > MAX_METADATA_SIZE)
+         return null;
+      byte[] bytes = new byte[(int) length];
+      try {
+         InputStream in = new FileInputStream(file);
+         try {
+            int read = 0;
+            while (read < bytes.length) {
+               int n = in.read(bytes, read, bytes.length - read);
+               if (n == -1)
+                  return null;
+               read += n;
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException e) {
+         // deleted since it was listed
+         return null;
+      }
+      String json;
+      try {
+         json = new String(bytes, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+      Matcher name = NAME.matcher(json);
+      Matcher size = SIZE.matcher(json);
+      if (!json.trim().startsWith("{") || !name.find() || !size.find())
+         return null;
+      Matcher eTag = ETAG.matcher(json);
+      Matcher updated = UPDATED.matcher(json);
+      long lastModified = file.lastModified();
+      if (updated.find())
+         lastModified = time(updated.group(1) != null ? updated.group(1).trim() : updated.group(2), file);
+      return new Entry(unescape(name.group(1)), Long.parseLong(size.group(1)), eTag.find() ? unescape(
+            eTag.group(1)).replace("\"", "") : "", lastModified);
+   }
+
+   private static Pattern jsonString(String field) {
+      return Pattern.compile("\"" + field + "\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+   }
+
+   private static String unescape(String json) {
+      StringBuilder value = new StringBuilder(json.length());
+      for (int i = 0; i < json.length(); i++) {
+         char c = json.charAt(i);
+         if (c != '\\' || i + 1 == json.length()) {
+            value.append(c);
+            continue;
+         }
+         char escaped = json.charAt(++i);
+         switch (escaped) {
+         case 'n':
+            value.append('\n');
+            break;
+         case 't':
+            value.append('\t');
+            break;
+         case 'r':
+            value.append('\r');
+            break;
+         case 'b':
+            value.append('\b');
+            break;
+         case 'f':
+            value.append('\f');
+            break;
+         case 'u':
+            value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+            i += 4;
+            break;
+         default:
+            value.append(escaped);
+         }
+      }
+      return value.toString();
+   }
+
+   /**
+    * @return milliseconds since the epoch of an update time written as a
+    *         number or an HTTP date, or else of the file's modification
+    */
+   private static long time(String value, File file) {
+      if (value.matches("\\d+"))
+         return Long.parseLong(value);
+      SimpleDateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+         return rfc1123.parse(value).getTime();
+      } catch (ParseException e) {
+         return file.lastModified();
+      }
+   }
+}
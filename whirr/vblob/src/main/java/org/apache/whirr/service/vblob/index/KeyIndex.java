@@ -0,0 +1,282 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.index;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The keys of one bucket in order, each with what a listing shows of it, and
+ * the metadata file it was read from, so that a deleted file removes its key.
+ * Reads never block on updates.
+ */
+public class KeyIndex {
+
+   /** what a listing shows of an object */
+   public static class Entry {
+      private final String key;
+      private final long size;
+      private final String eTag;
+      private final long lastModified;
+
+      public Entry(String key, long size, String eTag, long lastModified) {
+         this.key = key;
+         this.size = size;
+         this.eTag = eTag;
+         this.lastModified = lastModified;
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      public long getSize() {
+         return size;
+      }
+
+      public String getETag() {
+         return eTag;
+      }
+
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Entry))
+            return false;
+         Entry that = (Entry) obj;
+         return key.equals(that.key) && size == that.size && eTag.equals(that.eTag)
+               && lastModified == that.lastModified;
+      }
+
+      @Override
+      public int hashCode() {
+         return key.hashCode();
+      }
+   }
+
+   /** a page of a listing, as ListObjects returns it */
+   public static class Listing {
+      private final List<Entry> contents = new ArrayList<Entry>();
+      private final List<String> commonPrefixes = new ArrayList<String>();
+      private boolean truncated;
+      private String nextMarker;
+
+      public List<Entry> getContents() {
+         return contents;
+      }
+
+      public List<String> getCommonPrefixes() {
+         return commonPrefixes;
+      }
+
+      public boolean isTruncated() {
+         return truncated;
+      }
+
+      public String getNextMarker() {
+         return nextMarker;
+      }
+   }
+
+   private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+   /** key by the path of its metadata file, relative to the bucket */
+   private final ConcurrentMap<String, String> keysByFile = new ConcurrentHashMap<String, String>();
+   private final AtomicBoolean dirty = new AtomicBoolean();
+
+   /**
+    * records {@code entry} as read from {@code file}, replacing whatever that
+    * file held before
+    */
+   public void put(String file, Entry entry) {
+      String previous = keysByFile.put(file, entry.getKey());
+      if (previous != null && !previous.equals(entry.getKey()))
+         entries.remove(previous);
+      if (!entry.equals(entries.put(entry.getKey(), entry)))
+         dirty.set(true);
+   }
+
+   /**
+    * forgets the key read from {@code file}, which was deleted
+    */
+   public void remove(String file) {
+      String key = keysByFile.remove(file);
+      if (key != null && entries.remove(key) != null)
+         dirty.set(true);
+   }
+
+   /**
+    * Reconciles with a full scan of {@code bucketDir}: files that were not seen
+    * and are gone are forgotten. Files created while the scan ran are kept, as
+    * their change notifications may have arrived first.
+    * 
+    * @return how many keys were dropped
+    */
+   public int reconcile(Map<String, Entry> scanned, File bucketDir) {
+      int dropped = 0;
+      for (String file : keysByFile.keySet()) {
+         if (!scanned.containsKey(file) && !new File(bucketDir, file).exists()) {
+            String key = keysByFile.remove(file);
+            if (key != null && entries.remove(key) != null)
+               dropped++;
+         }
+      }
+      for (Map.Entry<String, Entry> file : scanned.entrySet())
+         put(file.getKey(), file.getValue());
+      if (dropped > 0)
+         dirty.set(true);
+      return dropped;
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   /**
+    * Lists keys as S3 does: those starting with {@code prefix}, after
+    * {@code marker}, with keys that contain {@code delimiter} past the prefix
+    * rolled up into common prefixes, at most {@code maxKeys} of both together.
+    */
+   public Listing list(String prefix, String marker, String delimiter, int maxKeys) {
+      prefix = prefix == null ? "" : prefix;
+      if (delimiter != null && delimiter.isEmpty())
+         delimiter = null;
+
+      Listing listing = new Listing();
+      String cursor = prefix;
+      boolean inclusive = true;
+      if (marker != null && marker.compareTo(prefix) >= 0) {
+         cursor = marker;
+         inclusive = false;
+         // a marker that is a common prefix skips everything under it
+         if (delimiter != null && marker.startsWith(prefix) && marker.endsWith(delimiter)
+               && marker.length() > prefix.length())
+            cursor = marker + Character.MAX_VALUE;
+      }
+      int count = 0;
+      while (true) {
+         Map.Entry<String, Entry> entry = inclusive ? entries.ceilingEntry(cursor) : entries.higherEntry(cursor);
+         if (entry == null || !entry.getKey().startsWith(prefix))
+            break;
+         if (count == maxKeys) {
+            listing.truncated = true;
+            break;
+         }
+         String key = entry.getKey();
+         int next = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+         if (next != -1) {
+            String commonPrefix = key.substring(0, next + delimiter.length());
+            listing.commonPrefixes.add(commonPrefix);
+            listing.nextMarker = commonPrefix;
+            cursor = commonPrefix + Character.MAX_VALUE;
+         } else {
+            listing.contents.add(entry.getValue());
+            listing.nextMarker = key;
+            cursor = key;
+         }
+         inclusive = false;
+         count++;
+      }
+      if (!listing.truncated)
+         listing.nextMarker = null;
+      return listing;
+   }
+
+   /**
+    * Writes the index to {@code file}, if it changed since it was last saved
+    * or loaded, by way of a temporary file so a crash leaves the old one.
+    * 
+    * @return true if it was written
+    */
+   public boolean saveIfChanged(File file) throws IOException {
+      if (!dirty.getAndSet(false))
+         return false;
+      File temp = new File(file.getPath() + ".tmp");
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+      try {
+         for (Map.Entry<String, String> mapping : keysByFile.entrySet()) {
+            Entry entry = entries.get(mapping.getValue());
+            if (entry == null)
+               continue;
+            out.write(encode(mapping.getKey()) + "\t" + encode(entry.getKey()) + "\t" + entry.getSize() + "\t"
+                  + encode(entry.getETag()) + "\t" + entry.getLastModified() + "\n");
+         }
+      } catch (IOException e) {
+         dirty.set(true);
+         throw e;
+      } finally {
+         out.close();
+      }
+      if (!temp.renameTo(file)) {
+         dirty.set(true);
+         throw new IOException("could not replace " + file);
+      }
+      return true;
+   }
+
+   /**
+    * @return the index saved in {@code file}, empty if there is none
+    */
+   public static KeyIndex load(File file) throws IOException {
+      KeyIndex index = new KeyIndex();
+      if (!file.exists())
+         return index;
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         for (String line = in.readLine(); line != null; line = in.readLine()) {
+            String[] fields = line.split("\t");
+            // a line cut short by a crash is left to the next rescan
+            if (fields.length != 5)
+               continue;
+            index.put(decode(fields[0]), new Entry(decode(fields[1]), Long.parseLong(fields[2]), decode(fields[3]),
+                  Long.parseLong(fields[4])));
+         }
+      } finally {
+         in.close();
+      }
+      index.dirty.set(false);
+      return index;
+   }
+
+   private static String encode(String value) throws IOException {
+      return URLEncoder.encode(value, "UTF-8");
+   }
+
+   private static String decode(String value) throws IOException {
+      return URLDecoder.decode(value, "UTF-8");
+   }
+}
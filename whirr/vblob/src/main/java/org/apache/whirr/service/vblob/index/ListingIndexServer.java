@@ -0,0 +1,293 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.index;
+
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.contentLength;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.error;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.open;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.rawPathAndQuery;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.respond;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.whirr.service.vblob.index.KeyIndex.Entry;
+import org.apache.whirr.service.vblob.index.KeyIndex.Listing;
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers ListObjects in front of a vBlob instance with the {@code fs} driver
+ * from the {@link FsDriverIndexer index} of its data directory, and forwards
+ * every other request to vBlob as is.
+ * 
+ * <p/>
+ * A listing is only answered here when its signature checks out locally, it
+ * asks for nothing but {@code prefix}, {@code marker}, {@code delimiter} and
+ * {@code max-keys}, and the bucket has been indexed; otherwise vBlob lists it.
+ * Counters are available at {@code /_index/stats}.
+ */
+public class ListingIndexServer implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(ListingIndexServer.class.getName());
+
+   static final String STATS_PATH = "/_index/stats";
+
+   private static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+   private static final Set<String> LISTING_PARAMETERS = new HashSet<String>(Arrays.asList("prefix", "marker",
+         "delimiter", "max-keys"));
+
+   private final FsDriverIndexer indexer;
+   private final URI backend;
+   private final String accessKey;
+   private final String secretKey;
+   private final int connectTimeout;
+   private final int readTimeout;
+   private final AtomicLong listed = new AtomicLong();
+   private final AtomicLong forwarded = new AtomicLong();
+
+   public ListingIndexServer(FsDriverIndexer indexer, URI backend, String accessKey, String secretKey,
+         int connectTimeout, int readTimeout) {
+      this.indexer = indexer;
+      this.backend = backend;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         route(exchange);
+      } catch (Exception e) {
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 502, "InternalError", "index could not reach vBlob");
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   private void route(HttpExchange exchange) throws IOException {
+      String path = exchange.getRequestURI().getRawPath();
+      if (STATS_PATH.equals(path)) {
+         respond(exchange, 200, "text/plain", stats().getBytes("UTF-8"));
+         return;
+      }
+      int slash = path.indexOf('/', 1);
+      boolean isBucket = path.length() > 1 && (slash == -1 || slash == path.length() - 1);
+      if ("GET".equals(exchange.getRequestMethod()) && isBucket) {
+         String bucket = URLDecoder.decode(path.substring(1, slash == -1 ? path.length() : slash), "UTF-8");
+         Map<String, String> query = listingQuery(exchange.getRequestURI().getRawQuery());
+         if (query != null && indexer.isReady(bucket) && indexer.get(bucket) != null && isAuthentic(exchange)) {
+            list(exchange, bucket, query);
+            return;
+         }
+      }
+      forward(exchange);
+   }
+
+   /**
+    * @return the decoded parameters of a plain listing, or null if the query
+    *         asks for anything else, such as a sub-resource
+    */
+   public static Map<String, String> listingQuery(String rawQuery) throws IOException {
+      Map<String, String> query = new HashMap<String, String>();
+      if (rawQuery == null || rawQuery.isEmpty())
+         return query;
+      for (String param : rawQuery.split("&")) {
+         int eq = param.indexOf('=');
+         String name = URLDecoder.decode(eq == -1 ? param : param.substring(0, eq), "UTF-8");
+         if (!LISTING_PARAMETERS.contains(name))
+            return null;
+         query.put(name, eq == -1 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+      return query;
+   }
+
+   private void list(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+      int maxKeys = 1000;
+      if (query.containsKey("max-keys")) {
+         try {
+            maxKeys = Math.min(1000, Integer.parseInt(query.get("max-keys")));
+         } catch (NumberFormatException e) {
+            maxKeys = -1;
+         }
+         if (maxKeys < 0) {
+            error(exchange, 400, "InvalidArgument", "max-keys must be a number from 0 to 1000");
+            return;
+         }
+      }
+      String prefix = query.get("prefix");
+      String marker = query.get("marker");
+      String delimiter = query.get("delimiter");
+      Listing listing = indexer.get(bucket).list(prefix, marker, delimiter, maxKeys);
+      listed.incrementAndGet();
+      exchange.getResponseHeaders().set("X-Index", "HIT");
+      respond(exchange, 200, "application/xml", listingXml(bucket, prefix, marker, delimiter, maxKeys, listing,
+            accessKey));
+   }
+
+   /**
+    * @return the {@code ListBucketResult} document of {@code listing}, with
+    *         {@code owner} as the owner of every object
+    */
+   public static byte[] listingXml(String bucket, String prefix, String marker, String delimiter, int maxKeys,
+         Listing listing, String owner) throws IOException {
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      xml.append("<ListBucketResult xmlns=\"").append(XMLNS).append("\">");
+      xml.append("<Name>").append(escape(bucket)).append("</Name>");
+      xml.append("<Prefix>").append(escape(prefix == null ? "" : prefix)).append("</Prefix>");
+      xml.append("<Marker>").append(escape(marker == null ? "" : marker)).append("</Marker>");
+      xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+      if (delimiter != null)
+         xml.append("<Delimiter>").append(escape(delimiter)).append("</Delimiter>");
+      xml.append("<IsTruncated>").append(listing.isTruncated()).append("</IsTruncated>");
+      if (listing.getNextMarker() != null)
+         xml.append("<NextMarker>").append(escape(listing.getNextMarker())).append("</NextMarker>");
+      for (Entry entry : listing.getContents()) {
+         xml.append("<Contents><Key>").append(escape(entry.getKey())).append("</Key><LastModified>")
+               .append(iso8601(entry.getLastModified())).append("</LastModified><ETag>&quot;")
+               .append(escape(entry.getETag())).append("&quot;</ETag><Size>").append(entry.getSize())
+               .append("</Size>");
+         xml.append("<Owner><ID>").append(escape(owner)).append("</ID><DisplayName>").append(escape(owner))
+               .append("</DisplayName></Owner>");
+         xml.append("<StorageClass>STANDARD</StorageClass></Contents>");
+      }
+      for (String commonPrefix : listing.getCommonPrefixes())
+         xml.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>");
+      xml.append("</ListBucketResult>");
+      return xml.toString().getBytes("UTF-8");
+   }
+
+   /**
+    * @return true if the request is signed with the vBlob keys and recently
+    *         dated, as vBlob would check when the request is forwarded
+    */
+   private boolean isAuthentic(HttpExchange exchange) {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null)
+         return false;
+      if (!S3Signatures.isCurrent(exchange.getRequestHeaders(), System.currentTimeMillis()))
+         return false;
+      return S3Signatures.verify(accessKey, secretKey, authorization, S3Signatures.stringToSign(exchange
+            .getRequestMethod(), exchange.getRequestHeaders(), exchange.getRequestURI().getRawPath(), exchange
+            .getRequestURI().getRawQuery()));
+   }
+
+   private void forward(HttpExchange exchange) throws IOException {
+      forwarded.incrementAndGet();
+      String method = exchange.getRequestMethod();
+      HttpURLConnection connection = open(backend, method, rawPathAndQuery(exchange), exchange
+            .getRequestHeaders(), connectTimeout, readTimeout);
+      long length = contentLength(exchange.getRequestHeaders());
+      if (length > 0 || "PUT".equals(method) || "POST".equals(method)) {
+         InputStream in = exchange.getRequestBody();
+         try {
+            HttpForwarding.sendBody(connection, in, length);
+         } finally {
+            in.close();
+         }
+      }
+      HttpForwarding.copyResponse(connection, exchange);
+   }
+
+   String stats() {
+      StringBuilder stats = new StringBuilder();
+      stats.append("listed ").append(listed.get()).append('\n');
+      stats.append("forwarded ").append(forwarded.get()).append('\n');
+      for (Map.Entry<String, Integer> bucket : indexer.sizes().entrySet())
+         stats.append("keys ").append(bucket.getKey()).append(' ').append(bucket.getValue())
+               .append(indexer.isReady(bucket.getKey()) ? "" : " scanning").append('\n');
+      return stats.toString();
+   }
+
+   private static String iso8601(long time) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format.format(new Date(time));
+   }
+
+   private static String escape(String value) {
+      return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+   }
+
+   /**
+    * Starts the index with settings from the properties file named by the
+    * first argument.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      int threads = Integer.parseInt(settings.getProperty("threads", "64"));
+      // pooled keep-alive connections to vBlob
+      System.setProperty("http.maxConnections", threads + "");
+
+      final FsDriverIndexer indexer = new FsDriverIndexer(new File(settings.getProperty("data-dir")), new File(
+            settings.getProperty("index-dir")), Long.parseLong(settings.getProperty("rescan-interval", "3600")));
+      indexer.start();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         @Override
+         public void run() {
+            indexer.stop();
+         }
+      });
+      ListingIndexServer index = new ListingIndexServer(indexer, URI.create(settings.getProperty("backend",
+            "http://127.0.0.1:9981")), settings.getProperty("auth.access-key"), settings
+            .getProperty("auth.secret-key"), Integer.parseInt(settings.getProperty("connect-timeout", "2000")),
+            Integer.parseInt(settings.getProperty("read-timeout", "30000")));
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "9983"))), 1024);
+      server.createContext("/", index);
+      server.setExecutor(Executors.newFixedThreadPool(threads));
+      server.start();
+      LOG.info("vBlob listing index listening on " + server.getAddress());
+   }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.migrate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Token bucket shared by every transfer of a migration, so the total rate
+ * stays under {@link #getBytesPerSecond()} no matter how many connections are
+ * open.
+ */
+public class BandwidthLimiter {
+
+   /**
+    * a limiter that never blocks
+    */
+   public static final BandwidthLimiter UNLIMITED = new BandwidthLimiter(0);
+
+   private final long bytesPerSecond;
+   private long available;
+   private long lastRefill = System.nanoTime();
+
+   /**
+    * @param bytesPerSecond
+    *           total rate across all streams, or {@code 0} for unlimited
+    */
+   public BandwidthLimiter(long bytesPerSecond) {
+      checkArgument(bytesPerSecond >= 0, "bytesPerSecond must be positive or 0 for unlimited");
+      this.bytesPerSecond = bytesPerSecond;
+      this.available = bytesPerSecond;
+   }
+
+   public long getBytesPerSecond() {
+      return bytesPerSecond;
+   }
+
+   /**
+    * blocks until {@code bytes} can be sent without exceeding the rate
+    */
+   public void acquire(int bytes) throws InterruptedException {
+      if (bytesPerSecond == 0)
+         return;
+      synchronized (this) {
+         while (true) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1000000000L);
+            lastRefill = now;
+            if (available >= bytes || available == bytesPerSecond) {
+               // a read larger than a full second of budget is let through
+               // once the bucket is full, rather than blocking forever
+               available -= bytes;
+               return;
+            }
+            long waitNanos = (bytes - available) * 1000000000L / bytesPerSecond;
+            wait(Math.max(1, waitNanos / 1000000L));
+         }
+      }
+   }
+
+   /**
+    * wraps {@code in} so that every read draws from this limiter
+    */
+   public InputStream throttle(InputStream in) {
+      if (bytesPerSecond == 0)
+         return in;
+      return new FilterInputStream(in) {
+
+         @Override
+         public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+               acquireUninterruptibly(1);
+            return b;
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0)
+               acquireUninterruptibly(read);
+            return read;
+         }
+      };
+   }
+
+   private void acquireUninterruptibly(int bytes) throws IOException {
+      try {
+         acquire(bytes);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while throttling", e);
+      }
+   }
+}
@@ -0,0 +1,364 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.migrate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.afterMarker;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder.PayloadBlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.s3.S3ApiMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+/**
+ * Copies or moves a bucket from one vBlob endpoint to another.
+ * 
+ * <ul>
+ * <li>the top level of the bucket is listed first, and every common prefix
+ * under it is then listed concurrently on {@code listExecutor}</li>
+ * <li>objects are streamed from source to target on {@code transferExecutor},
+ * so the number of connections follows the size of that pool</li>
+ * <li>the MD5 of every stream is checked against the source and target etags
+ * before the object is recorded in the {@link MigrationJournal}, and before the
+ * source copy is removed when moving</li>
+ * <li>all streams draw from one {@link BandwidthLimiter}</li>
+ * </ul>
+ */
+public class BucketMigrator {
+   private static final Logger LOG = LoggerFactory.getLogger(BucketMigrator.class);
+
+   private final BlobStore source;
+   private final BlobStore target;
+   private final ExecutorService listExecutor;
+   private final ExecutorService transferExecutor;
+   private final int maxInFlight;
+   private final Semaphore inFlight;
+   private final BandwidthLimiter limiter;
+   private final MigrationJournal journal;
+
+   /**
+    * @param maxInFlight
+    *           upper bound on listed objects waiting for a transfer thread, so
+    *           huge buckets do not queue millions of tasks
+    */
+   public BucketMigrator(BlobStore source, BlobStore target, ExecutorService listExecutor,
+         ExecutorService transferExecutor, int maxInFlight, BandwidthLimiter limiter, MigrationJournal journal) {
+      this.source = checkNotNull(source, "source");
+      this.target = checkNotNull(target, "target");
+      this.listExecutor = checkNotNull(listExecutor, "listExecutor");
+      this.transferExecutor = checkNotNull(transferExecutor, "transferExecutor");
+      this.maxInFlight = maxInFlight;
+      this.inFlight = new Semaphore(maxInFlight);
+      this.limiter = checkNotNull(limiter, "limiter");
+      this.journal = checkNotNull(journal, "journal");
+   }
+
+   /**
+    * Outcome of {@link BucketMigrator#migrate}
+    */
+   public static class Result {
+      private final AtomicLong copied = new AtomicLong();
+      private final AtomicLong skipped = new AtomicLong();
+      private final AtomicLong failed = new AtomicLong();
+      private final AtomicLong bytes = new AtomicLong();
+
+      /**
+       * objects streamed and verified during this run
+       */
+      public long getCopied() {
+         return copied.get();
+      }
+
+      /**
+       * objects already present in the journal or at the target
+       */
+      public long getSkipped() {
+         return skipped.get();
+      }
+
+      /**
+       * objects that could not be copied or failed verification
+       */
+      public long getFailed() {
+         return failed.get();
+      }
+
+      /**
+       * payload bytes transferred during this run
+       */
+      public long getBytes() {
+         return bytes.get();
+      }
+
+      @Override
+      public String toString() {
+         return Objects.toStringHelper(this).add("copied", copied).add("skipped", skipped).add("failed", failed)
+               .add("bytes", bytes).toString();
+      }
+   }
+
+   /**
+    * copies every object in {@code bucket}. When {@code move} is set, each
+    * source copy is removed once verified at the target, and the bucket once
+    * it is empty.
+    */
+   public Result migrate(final String bucket, final boolean move) throws InterruptedException {
+      final Result result = new Result();
+      target.createContainerInLocation(null, bucket);
+
+      List<Future<?>> listings = Lists.newArrayList();
+      String marker = null;
+      do {
+         ListContainerOptions options = marker == null ? new ListContainerOptions() : afterMarker(marker);
+         PageSet<? extends StorageMetadata> page = source.list(bucket, options);
+         for (final StorageMetadata md : page) {
+            if (md.getType() == StorageType.BLOB) {
+               submit(bucket, (BlobMetadata) md, move, result);
+            } else if (md.getType() == StorageType.RELATIVE_PATH) {
+               listings.add(listExecutor.submit(new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                     listRecursively(bucket, md.getName(), move, result);
+                     return null;
+                  }
+               }));
+            }
+         }
+         marker = page.getNextMarker();
+      } while (marker != null);
+
+      for (Future<?> listing : listings) {
+         try {
+            listing.get();
+         } catch (ExecutionException e) {
+            LOG.warn("listing of " + bucket + " failed", e.getCause());
+            result.failed.incrementAndGet();
+         }
+      }
+      // every permit back means every transfer has finished
+      inFlight.acquire(maxInFlight);
+      inFlight.release(maxInFlight);
+
+      if (move && result.getFailed() == 0 && !deleteIfEmpty(bucket))
+         LOG.warn("{} was written to while it was moved and is kept at the source; move it again", bucket);
+      LOG.info("{} {}: {}", new Object[] { move ? "moved" : "copied", bucket, result });
+      return result;
+   }
+
+   /**
+    * Only the objects verified at the target were removed, so the bucket is
+    * left alone if anything was written to it since it was listed. Deleting
+    * the container through the blob store would take those objects with it.
+    */
+   private boolean deleteIfEmpty(String bucket) {
+      return source.getContext().unwrap(S3ApiMetadata.CONTEXT_TOKEN).getApi().deleteBucketIfEmpty(bucket);
+   }
+
+   private void listRecursively(String bucket, String directory, boolean move, Result result)
+         throws InterruptedException {
+      String marker = null;
+      do {
+         ListContainerOptions options = inDirectory(directory).recursive();
+         if (marker != null)
+            options.afterMarker(marker);
+         PageSet<? extends StorageMetadata> page = source.list(bucket, options);
+         for (StorageMetadata md : page) {
+            if (md.getType() == StorageType.BLOB)
+               submit(bucket, (BlobMetadata) md, move, result);
+         }
+         marker = page.getNextMarker();
+      } while (marker != null);
+   }
+
+   private void submit(final String bucket, final BlobMetadata md, final boolean move, final Result result)
+         throws InterruptedException {
+      if (journal.isDone(bucket, md.getName(), md.getETag())) {
+         result.skipped.incrementAndGet();
+         if (move)
+            source.removeBlob(bucket, md.getName());
+         return;
+      }
+      inFlight.acquire();
+      transferExecutor.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               if (transfer(bucket, md, result) && move)
+                  source.removeBlob(bucket, md.getName());
+            } catch (Exception e) {
+               LOG.warn("could not migrate " + bucket + "/" + md.getName(), e);
+               result.failed.incrementAndGet();
+            } finally {
+               inFlight.release();
+            }
+         }
+      });
+   }
+
+   /**
+    * @return true if the object is verified at the target
+    */
+   private boolean transfer(String bucket, BlobMetadata md, Result result) throws IOException {
+      String name = md.getName();
+      String sourceETag = unquote(md.getETag());
+
+      BlobMetadata existing = target.blobMetadata(bucket, name);
+      if (existing != null && sourceETag != null && sourceETag.equals(unquote(existing.getETag()))) {
+         journal.markDone(bucket, name, md.getETag());
+         result.skipped.incrementAndGet();
+         return true;
+      }
+
+      Blob blob = source.getBlob(bucket, name);
+      if (blob == null) {
+         // removed at the source since it was listed
+         return false;
+      }
+      MessageDigest md5 = md5();
+      InputStream in = new DigestInputStream(limiter.throttle(blob.getPayload().getInput()), md5);
+      try {
+         long length = blob.getMetadata().getContentMetadata().getContentLength();
+         PayloadBlobBuilder builder = target.blobBuilder(name).userMetadata(blob.getMetadata().getUserMetadata())
+               .payload(in).contentLength(length);
+         String contentType = blob.getMetadata().getContentMetadata().getContentType();
+         if (contentType != null)
+            builder.contentType(contentType);
+         if (isMD5(sourceETag)) {
+            // lets the target reject a corrupted upload itself
+            builder.contentMD5(hexToBytes(sourceETag));
+         }
+         Blob copy = builder.build();
+         String targetETag = unquote(target.putBlob(bucket, copy));
+         String streamed = bytesToHex(md5.digest());
+
+         if (isMD5(sourceETag) && !sourceETag.equals(streamed) || isMD5(targetETag) && !targetETag.equals(streamed)) {
+            LOG.warn("checksum mismatch for {}/{}: source {} streamed {} target {}", new Object[] { bucket, name,
+                  sourceETag, streamed, targetETag });
+            target.removeBlob(bucket, name);
+            result.failed.incrementAndGet();
+            return false;
+         }
+         journal.markDone(bucket, name, md.getETag());
+         result.copied.incrementAndGet();
+         result.bytes.addAndGet(length);
+         return true;
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Copies or moves one bucket between two endpoints that share credentials.
+    * 
+    * <pre>
+    * BucketMigrator source-endpoint target-endpoint access-key secret-key bucket [copy|move] [threads] [bytes-per-second] [journal]
+    * </pre>
+    */
+   public static void main(String... args) throws Exception {
+      if (args.length < 5) {
+         System.err.println("usage: BucketMigrator source-endpoint target-endpoint access-key secret-key bucket "
+               + "[copy|move] [threads] [bytes-per-second] [journal]");
+         System.exit(1);
+      }
+      boolean move = args.length > 5 && "move".equals(args[5]);
+      int threads = args.length > 6 ? Integer.parseInt(args[6]) : 16;
+      long bandwidth = args.length > 7 ? Long.parseLong(args[7]) : 0;
+      MigrationJournal journal = args.length > 8 ? new MigrationJournal(new File(args[8])) : MigrationJournal.inMemory();
+
+      BlobStoreContext source = VBlobEndpoints.newContext(URI.create(args[0]), args[2], args[3], threads);
+      BlobStoreContext target = VBlobEndpoints.newContext(URI.create(args[1]), args[2], args[3], threads);
+      ExecutorService listExecutor = Executors.newFixedThreadPool(threads);
+      ExecutorService transferExecutor = Executors.newFixedThreadPool(threads);
+      try {
+         Result result = new BucketMigrator(source.getBlobStore(), target.getBlobStore(), listExecutor,
+               transferExecutor, threads * 4, new BandwidthLimiter(bandwidth), journal).migrate(args[4], move);
+         System.out.println(result);
+         System.exit(result.getFailed() == 0 ? 0 : 2);
+      } finally {
+         journal.close();
+         listExecutor.shutdownNow();
+         transferExecutor.shutdownNow();
+         source.close();
+         target.close();
+      }
+   }
+
+   private static MessageDigest md5() {
+      try {
+         return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   static String unquote(String eTag) {
+      if (eTag == null)
+         return null;
+      return eTag.replace("\"", "").toLowerCase();
+   }
+
+   /**
+    * multipart etags look like {@code <hex>-<parts>} and are not content MD5s
+    */
+   static boolean isMD5(String eTag) {
+      return eTag != null && eTag.matches("[0-9a-f]{32}");
+   }
+
+   static byte[] hexToBytes(String hex) {
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; i++)
+         bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+      return bytes;
+   }
+
+   static String bytesToHex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes)
+         hex.append(String.format("%02x", b & 0xff));
+      return hex.toString();
+   }
+}
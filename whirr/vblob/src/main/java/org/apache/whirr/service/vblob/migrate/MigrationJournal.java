@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.migrate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Append-only record of objects that were copied and verified. A migration
+ * that is interrupted and started again with the same journal skips everything
+ * already recorded.
+ */
+public class MigrationJournal implements Closeable {
+
+   /**
+    * a journal that remembers nothing, for one-shot migrations
+    */
+   public static MigrationJournal inMemory() {
+      return new MigrationJournal(null);
+   }
+
+   private final Set<String> done = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final Writer writer;
+
+   public MigrationJournal(File file) {
+      if (file == null) {
+         this.writer = null;
+         return;
+      }
+      try {
+         if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null) {
+                  done.add(line);
+               }
+            } finally {
+               reader.close();
+            }
+         }
+         this.writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+      } catch (IOException e) {
+         throw new IllegalStateException("could not open journal " + file, e);
+      }
+   }
+
+   public boolean isDone(String bucket, String key, String eTag) {
+      return done.contains(entry(bucket, key, eTag));
+   }
+
+   public void markDone(String bucket, String key, String eTag) throws IOException {
+      String entry = entry(bucket, key, eTag);
+      if (done.add(entry) && writer != null) {
+         synchronized (writer) {
+            writer.write(entry);
+            writer.write('\n');
+            writer.flush();
+         }
+      }
+   }
+
+   private static String entry(String bucket, String key, String eTag) {
+      // the etag is part of the entry so that an object overwritten at the
+      // source after it was migrated is copied again
+      return checkNotNull(bucket, "bucket") + '\t' + checkNotNull(key, "key") + '\t' + eTag;
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (writer != null)
+         writer.close();
+   }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.migrate;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import joptsimple.OptionException;
+import joptsimple.OptionSet;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.command.AbstractClusterCommand;
+import org.apache.whirr.service.vblob.CommonsConfigurationToVBlobConfig;
+import org.apache.whirr.service.vblob.VBlobConfig;
+import org.apache.whirr.service.vblob.migrate.VBlobRebalancer.Move;
+
+/**
+ * {@code whirr rebalance-vblob} moves buckets between the {@code vblob}
+ * instances of a running cluster until each holds a similar amount of data.
+ * Clients should not write to the buckets being moved; what they write is
+ * kept at the source, with the bucket, and moved by running the command again.
+ * Completed transfers are recorded in the cluster directory, so an
+ * interrupted run resumes where it stopped.
+ */
+public class RebalanceVBlobCommand extends AbstractClusterCommand {
+
+   public RebalanceVBlobCommand() {
+      this(new ClusterControllerFactory());
+   }
+
+   public RebalanceVBlobCommand(ClusterControllerFactory factory) {
+      super("rebalance-vblob", "Move buckets so each vblob instance holds a similar amount of data.", factory);
+   }
+
+   @Override
+   public int run(InputStream in, PrintStream out, PrintStream err, List<String> args) throws Exception {
+      OptionSet options;
+      try {
+         options = parser.parse(args.toArray(new String[args.size()]));
+      } catch (OptionException e) {
+         err.println(e.getMessage());
+         printUsage(err);
+         return -1;
+      }
+      ClusterSpec spec = getClusterSpec(options);
+      ClusterController controller = createClusterController(spec.getServiceName());
+
+      CompositeConfiguration settings = new CompositeConfiguration();
+      settings.addConfiguration(spec.getConfiguration());
+      settings.addConfiguration(new PropertiesConfiguration(getClass().getClassLoader().getResource(
+            "whirr-vblob-default.properties")));
+      VBlobConfig config;
+      try {
+         config = new CommonsConfigurationToVBlobConfig("vblob", spec.getClusterUser()).apply(settings);
+      } catch (IllegalArgumentException e) {
+         err.println(e.getMessage());
+         return -1;
+      }
+
+      List<Move> moves = new VBlobRebalancer(config, new File(spec.getClusterDirectory(),
+            "vblob-rebalance.journal")).rebalance(VBlobEndpoints.forInstances(controller.getInstances(spec), config));
+      for (Move move : moves)
+         out.println(move);
+      out.println(moves.isEmpty() ? "vblob instances are balanced" : "Moved " + moves.size() + " bucket(s)");
+      return 0;
+   }
+}
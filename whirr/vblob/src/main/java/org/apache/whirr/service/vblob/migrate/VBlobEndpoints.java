@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.migrate;
+
+import static org.apache.whirr.RolePredicates.role;
+import static org.jclouds.Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT;
+import static org.jclouds.Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST;
+import static org.jclouds.s3.reference.S3Constants.PROPERTY_S3_VIRTUAL_HOST_BUCKETS;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.service.vblob.VBlobConfig;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.s3.S3ApiMetadata;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * Connects to vBlob instances over their S3 interface.
+ */
+public class VBlobEndpoints {
+
+   /**
+    * S3 endpoints of every {@code vblob} instance among {@code instances}, as
+    * reachable from the controller
+    */
+   public static List<URI> forInstances(Iterable<Instance> instances, VBlobConfig config) throws IOException {
+      ImmutableList.Builder<URI> endpoints = ImmutableList.builder();
+      for (Instance instance : Iterables.filter(instances, role("vblob"))) {
+         endpoints.add(URI.create("http://" + instance.getPublicAddress().getHostAddress() + ":" + config.getS3Port()));
+      }
+      return endpoints.build();
+   }
+
+   /**
+    * @param connections
+    *           size of the http connection pool to the endpoint
+    */
+   public static BlobStoreContext newContext(URI endpoint, String accessKey, String secretKey, int connections) {
+      Properties overrides = new Properties();
+      // vBlob only supports path-style buckets
+      overrides.setProperty(PROPERTY_S3_VIRTUAL_HOST_BUCKETS, "false");
+      overrides.setProperty(PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, connections + "");
+      overrides.setProperty(PROPERTY_MAX_CONNECTIONS_PER_HOST, connections + "");
+      return ContextBuilder.newBuilder(new S3ApiMetadata()).endpoint(endpoint.toASCIIString())
+            .credentials(accessKey, secretKey).overrides(overrides).buildView(BlobStoreContext.class);
+   }
+}
@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.migrate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.recursive;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.whirr.service.vblob.VBlobConfig;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Spreads buckets across vBlob instances by size. Each vBlob instance has its
+ * own store, so a bucket lives entirely on one instance; rebalancing moves whole
+ * buckets from the fullest instances to the emptiest until no move would narrow
+ * the gap between them.
+ */
+public class VBlobRebalancer {
+   private static final Logger LOG = LoggerFactory.getLogger(VBlobRebalancer.class);
+
+   /**
+    * A planned move of one bucket
+    */
+   public static class Move {
+      private final String bucket;
+      private final long bytes;
+      private final URI from;
+      private final URI to;
+
+      public Move(String bucket, long bytes, URI from, URI to) {
+         this.bucket = checkNotNull(bucket, "bucket");
+         this.bytes = bytes;
+         this.from = checkNotNull(from, "from");
+         this.to = checkNotNull(to, "to");
+      }
+
+      public String getBucket() {
+         return bucket;
+      }
+
+      public long getBytes() {
+         return bytes;
+      }
+
+      public URI getFrom() {
+         return from;
+      }
+
+      public URI getTo() {
+         return to;
+      }
+
+      @Override
+      public String toString() {
+         return Objects.toStringHelper(this).add("bucket", bucket).add("bytes", bytes).add("from", from)
+               .add("to", to).toString();
+      }
+   }
+
+   private final VBlobConfig config;
+   private final File journal;
+
+   /**
+    * @param journal
+    *           where completed transfers are recorded, so an interrupted
+    *           rebalance resumes where it stopped
+    */
+   public VBlobRebalancer(VBlobConfig config, File journal) {
+      this.config = checkNotNull(config, "config");
+      this.journal = checkNotNull(journal, "journal");
+   }
+
+   /**
+    * inventories {@code endpoints}, then moves buckets until they are balanced
+    * 
+    * @return the moves that were made
+    */
+   public List<Move> rebalance(List<URI> endpoints) throws IOException, InterruptedException {
+      Map<URI, BlobStoreContext> contexts = Maps.newLinkedHashMap();
+      ExecutorService listExecutor = Executors.newFixedThreadPool(config.getMigrationThreads());
+      ExecutorService transferExecutor = Executors.newFixedThreadPool(config.getMigrationThreads());
+      MigrationJournal migrationJournal = new MigrationJournal(journal);
+      try {
+         for (URI endpoint : endpoints) {
+            contexts.put(endpoint, VBlobEndpoints.newContext(endpoint, config.getAuthorizedAccessKey(),
+                  config.getAuthorizedSecretKey(), config.getMigrationThreads()));
+         }
+         Map<URI, Map<String, Long>> inventory = inventory(contexts, listExecutor);
+         List<Move> moves = plan(inventory);
+         BandwidthLimiter limiter = new BandwidthLimiter(config.getMigrationBandwidth());
+         for (Move move : moves) {
+            LOG.info("rebalancing {}", move);
+            BucketMigrator migrator = new BucketMigrator(contexts.get(move.getFrom()).getBlobStore(), contexts.get(
+                  move.getTo()).getBlobStore(), listExecutor, transferExecutor, config.getMigrationThreads() * 4,
+                  limiter, migrationJournal);
+            migrator.migrate(move.getBucket(), true);
+         }
+         return moves;
+      } finally {
+         migrationJournal.close();
+         listExecutor.shutdownNow();
+         transferExecutor.shutdownNow();
+         for (BlobStoreContext context : contexts.values())
+            context.close();
+      }
+   }
+
+   private Map<URI, Map<String, Long>> inventory(Map<URI, BlobStoreContext> contexts, ExecutorService executor)
+         throws IOException, InterruptedException {
+      Map<URI, Future<Map<String, Long>>> futures = Maps.newLinkedHashMap();
+      for (Map.Entry<URI, BlobStoreContext> entry : contexts.entrySet()) {
+         final BlobStore blobStore = entry.getValue().getBlobStore();
+         futures.put(entry.getKey(), executor.submit(new Callable<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> call() {
+               Map<String, Long> sizes = Maps.newLinkedHashMap();
+               for (StorageMetadata bucket : blobStore.list()) {
+                  sizes.put(bucket.getName(), size(blobStore, bucket.getName()));
+               }
+               return sizes;
+            }
+         }));
+      }
+      Map<URI, Map<String, Long>> inventory = Maps.newLinkedHashMap();
+      for (Map.Entry<URI, Future<Map<String, Long>>> entry : futures.entrySet()) {
+         try {
+            inventory.put(entry.getKey(), entry.getValue().get());
+         } catch (ExecutionException e) {
+            throw new IOException("could not inventory " + entry.getKey(), e.getCause());
+         }
+      }
+      return inventory;
+   }
+
+   private static long size(BlobStore blobStore, String bucket) {
+      long bytes = 0;
+      String marker = null;
+      do {
+         ListContainerOptions options = recursive();
+         if (marker != null)
+            options.afterMarker(marker);
+         PageSet<? extends StorageMetadata> page = blobStore.list(bucket, options);
+         for (StorageMetadata md : page) {
+            if (md.getType() == StorageType.BLOB) {
+               Long length = ((BlobMetadata) md).getContentMetadata().getContentLength();
+               bytes += length != null ? length : 0;
+            }
+         }
+         marker = page.getNextMarker();
+      } while (marker != null);
+      return bytes;
+   }
+
+   /**
+    * Greedy plan: repeatedly take the fullest and emptiest instances and move
+    * the largest bucket from the former that still leaves it at least as full
+    * as the latter. Buckets with the same name on several instances are left
+    * alone, as they are separate data sets.
+    */
+   static List<Move> plan(Map<URI, Map<String, Long>> inventory) {
+      Set<String> seen = Sets.newHashSet();
+      Set<String> duplicates = Sets.newHashSet();
+      for (Map<String, Long> buckets : inventory.values()) {
+         for (String bucket : buckets.keySet()) {
+            if (!seen.add(bucket))
+               duplicates.add(bucket);
+         }
+      }
+      if (!duplicates.isEmpty())
+         LOG.warn("not moving buckets present on more than one instance: {}", duplicates);
+
+      final Map<URI, Long> load = Maps.newLinkedHashMap();
+      Map<URI, List<Map.Entry<String, Long>>> movable = Maps.newLinkedHashMap();
+      for (Map.Entry<URI, Map<String, Long>> entry : inventory.entrySet()) {
+         long total = 0;
+         List<Map.Entry<String, Long>> buckets = Lists.newArrayList();
+         for (Map.Entry<String, Long> bucket : entry.getValue().entrySet()) {
+            total += bucket.getValue();
+            if (!duplicates.contains(bucket.getKey()))
+               buckets.add(bucket);
+         }
+         Collections.sort(buckets, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+               return b.getValue().compareTo(a.getValue());
+            }
+         });
+         load.put(entry.getKey(), total);
+         movable.put(entry.getKey(), buckets);
+      }
+
+      List<Move> moves = Lists.newArrayList();
+      Comparator<URI> byLoad = new Comparator<URI>() {
+         @Override
+         public int compare(URI a, URI b) {
+            return load.get(a).compareTo(load.get(b));
+         }
+      };
+      while (load.size() > 1) {
+         URI emptiest = Collections.min(load.keySet(), byLoad);
+         URI fullest = Collections.max(load.keySet(), byLoad);
+         long gap = load.get(fullest) - load.get(emptiest);
+         Map.Entry<String, Long> candidate = null;
+         for (Map.Entry<String, Long> bucket : movable.get(fullest)) {
+            // moving more than half the gap would only swap the roles
+            if (bucket.getValue() > 0 && bucket.getValue() * 2 <= gap) {
+               candidate = bucket;
+               break;
+            }
+         }
+         if (candidate == null)
+            break;
+         movable.get(fullest).remove(candidate);
+         load.put(fullest, load.get(fullest) - candidate.getValue());
+         load.put(emptiest, load.get(emptiest) + candidate.getValue());
+         moves.add(new Move(candidate.getKey(), candidate.getValue(), fullest, emptiest));
+      }
+      return ImmutableList.copyOf(moves);
+   }
+}
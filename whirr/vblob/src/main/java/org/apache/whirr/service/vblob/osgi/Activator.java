@@ -2,6 +2,7 @@ package org.apache.whirr.service.vblob.osgi;
 
 import org.apache.whirr.service.ClusterActionHandler;
 import org.apache.whirr.service.vblob.VBlobHandler;
+import org.apache.whirr.service.vblob.VBlobRouterHandler;
 import org.jclouds.scriptbuilder.functionloader.osgi.BundleFunctionLoader;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -14,6 +15,8 @@ public class Activator implements BundleActivator {
   private BundleFunctionLoader functionLoader;
   private final ClusterActionHandler clusterActionHandler = new VBlobHandler();
   private ServiceRegistration registration;
+  private final ClusterActionHandler routerHandler = new VBlobRouterHandler();
+  private ServiceRegistration routerRegistration;
 
   /**
    * Called when this bundle is started so the Framework can perform the
@@ -39,6 +42,10 @@ public class Activator implements BundleActivator {
     Properties props = new Properties();
     props.put("name", "vblob");
     registration = context.registerService(ClusterActionHandler.class.getName(), clusterActionHandler, props);
+
+    Properties routerProps = new Properties();
+    routerProps.put("name", "vblob-router");
+    routerRegistration = context.registerService(ClusterActionHandler.class.getName(), routerHandler, routerProps);
   }
 
   /**
@@ -63,6 +70,9 @@ public class Activator implements BundleActivator {
     if (registration != null) {
       registration.unregister();
     }
+    if (routerRegistration != null) {
+      routerRegistration.unregister();
+    }
   }
 }
 
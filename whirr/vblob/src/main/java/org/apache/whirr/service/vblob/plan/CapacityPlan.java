@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import java.util.List;
+
+import org.apache.whirr.service.vblob.plan.CapacityProfile.Hardware;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Instance templates recommended for a {@link CapacityTarget}, written out as
+ * cluster properties.
+ */
+public class CapacityPlan {
+
+   /**
+    * instances of one hardware size running the same roles
+    */
+   public static class Group {
+      private final List<String> roles;
+      private final int count;
+      private final Hardware hardware;
+      private final double utilization;
+
+      Group(List<String> roles, int count, Hardware hardware, double utilization) {
+         this.roles = ImmutableList.copyOf(roles);
+         this.count = count;
+         this.hardware = hardware;
+         this.utilization = utilization;
+      }
+
+      public List<String> getRoles() {
+         return roles;
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      public Hardware getHardware() {
+         return hardware;
+      }
+
+      /**
+       * @return share of the measured capacity each instance uses at the
+       *         target load
+       */
+      public double getUtilization() {
+         return utilization;
+      }
+
+      double getCost() {
+         return count * hardware.getCost();
+      }
+
+      String getTemplate() {
+         return Joiner.on('+').join(roles);
+      }
+   }
+
+   private final CapacityTarget target;
+   private final List<Group> groups;
+
+   CapacityPlan(CapacityTarget target, List<Group> groups) {
+      this.target = target;
+      this.groups = ImmutableList.copyOf(groups);
+   }
+
+   public List<Group> getGroups() {
+      return groups;
+   }
+
+   public boolean isColocated() {
+      return groups.size() == 1;
+   }
+
+   double getCost() {
+      double cost = 0;
+      for (Group group : groups)
+         cost += group.getCost();
+      return cost;
+   }
+
+   /**
+    * @return share of capacity left on the busiest instance at the target load
+    */
+   public double getHeadroom() {
+      double utilization = 0;
+      for (Group group : groups)
+         utilization = Math.max(utilization, group.getUtilization());
+      return 1 - utilization;
+   }
+
+   /**
+    * @return lines of a properties file, which can be used as is or included
+    *         from a recipe
+    */
+   public List<String> toProperties() {
+      List<String> lines = Lists.newArrayList();
+      lines.add("# capacity plan for " + target);
+      lines.add("# " + (isColocated() ? "co-located" : "split") + " roles, cost " + format(getCost()));
+      List<String> templates = Lists.newArrayList();
+      for (Group group : groups) {
+         lines.add(String.format("# %s: %d x %s at %.0f%% of measured capacity", group.getTemplate(), group
+               .getCount(), group.getHardware().getId(), group.getUtilization() * 100));
+         templates.add(group.getCount() + " " + group.getTemplate());
+      }
+      lines.add(String.format("# predicted headroom %.0f%%", getHeadroom() * 100));
+      lines.add("whirr.instance-templates=" + Joiner.on(',').join(templates));
+      boolean routed = false;
+      for (Group group : groups) {
+         lines.add("whirr.templates." + group.getTemplate() + ".hardware-id=" + group.getHardware().getId());
+         routed |= group.getRoles().contains(CapacityPlanner.ROUTER);
+      }
+      if (routed)
+         lines.add(CapacityPlanner.ROUTER + ".replicas=" + target.getReplicas());
+      return lines;
+   }
+
+   private static String format(double cost) {
+      return cost == Math.rint(cost) ? String.valueOf((long) cost) : String.valueOf(cost);
+   }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.whirr.service.vblob.plan.CapacityPlan.Group;
+import org.apache.whirr.service.vblob.plan.CapacityProfile.Hardware;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Sizes the cinderella and vblob templates for a target load from a measured
+ * {@link CapacityProfile}. Each request takes a share of an instance, as
+ * measured for the role and object size, and the roles on an instance add up.
+ * Both co-locating the roles and splitting them are tried on every hardware
+ * size, and the cheapest plan that keeps every instance within the
+ * utilization wins, co-location on a tie.
+ */
+public class CapacityPlanner {
+   static final String CINDERELLA = "cinderella";
+   static final String VBLOB = "vblob";
+   static final String ROUTER = "vblob-router";
+
+   private final CapacityProfile profile;
+   private final double utilization;
+
+   /**
+    * @param utilization
+    *           highest share of its measured capacity an instance should use
+    *           at the target load, leaving the rest for peaks
+    */
+   public CapacityPlanner(CapacityProfile profile, double utilization) {
+      checkArgument(utilization > 0 && utilization <= 1, "utilization must be above 0 and at most 1");
+      this.profile = checkNotNull(profile, "profile");
+      this.utilization = utilization;
+   }
+
+   /**
+    * @throws IllegalArgumentException
+    *            if no hardware in the profile can carry the target
+    */
+   public CapacityPlan plan(CapacityTarget target) {
+      CapacityPlan best = null;
+      for (Hardware hardware : profile.getHardware()) {
+         CapacityPlan colocated = colocated(target, hardware);
+         if (colocated != null && (best == null || colocated.getCost() < best.getCost()))
+            best = colocated;
+      }
+      CapacityPlan split = split(target);
+      if (split != null && (best == null || split.getCost() < best.getCost()))
+         best = split;
+      checkArgument(best != null, "no hardware in the profile measures a vblob-router rate, which is needed "
+            + "to spread %s over more than one vblob instance", target);
+      return best;
+   }
+
+   private CapacityPlan colocated(CapacityTarget target, Hardware hardware) {
+      double work = cinderellaWork(target, hardware) + vBlobWork(target, hardware, false);
+      double disk = diskWork(target, hardware, false);
+      int count = instances(Math.max(work, disk));
+      List<String> roles = ImmutableList.of(VBLOB, CINDERELLA);
+      if (count > 1) {
+         if (!hardware.canRoute())
+            return null;
+         work = cinderellaWork(target, hardware) + vBlobWork(target, hardware, true) + routerWork(target, hardware);
+         disk = diskWork(target, hardware, true);
+         count = Math.max(instances(Math.max(work, disk)), target.getReplicas());
+         roles = ImmutableList.of(VBLOB, CINDERELLA, ROUTER);
+      }
+      return new CapacityPlan(target, ImmutableList.of(new Group(roles, count, hardware, Math.max(work, disk)
+            / count)));
+   }
+
+   private CapacityPlan split(CapacityTarget target) {
+      Group vBlob = null;
+      for (Hardware hardware : profile.getHardware()) {
+         double work = vBlobWork(target, hardware, false);
+         double disk = diskWork(target, hardware, false);
+         int count = instances(Math.max(work, disk));
+         if (count > 1) {
+            work = vBlobWork(target, hardware, true);
+            disk = diskWork(target, hardware, true);
+            count = Math.max(instances(Math.max(work, disk)), target.getReplicas());
+         }
+         Group group = new Group(ImmutableList.of(VBLOB), count, hardware, Math.max(work, disk) / count);
+         if (vBlob == null || group.getCost() < vBlob.getCost())
+            vBlob = group;
+      }
+      boolean routed = vBlob.getCount() > 1;
+      Group cinderella = null;
+      for (Hardware hardware : profile.getHardware()) {
+         if (routed && !hardware.canRoute())
+            continue;
+         double work = cinderellaWork(target, hardware) + (routed ? routerWork(target, hardware) : 0);
+         int count = instances(work);
+         Group group = new Group(routed ? ImmutableList.of(CINDERELLA, ROUTER) : ImmutableList.of(CINDERELLA),
+               count, hardware, work / count);
+         if (cinderella == null || group.getCost() < cinderella.getCost())
+            cinderella = group;
+      }
+      if (cinderella == null)
+         return null;
+      return new CapacityPlan(target, ImmutableList.of(cinderella, vBlob));
+   }
+
+   /**
+    * @return instances needed for {@code work}, in instances at full
+    *         capacity
+    */
+   private int instances(double work) {
+      return Math.max(1, (int) Math.ceil(work / utilization - 1e-9));
+   }
+
+   private double cinderellaWork(CapacityTarget target, Hardware hardware) {
+      return target.getEc2Rate() * hardware.cinderellaTime();
+   }
+
+   /**
+    * Writes go to every replica once a router spreads objects, reads to one
+    * of them.
+    */
+   private double vBlobWork(CapacityTarget target, Hardware hardware, boolean routed) {
+      double copies = routed ? 1 - target.getWriteShare() + target.getWriteShare() * target.getReplicas() : 1;
+      double work = 0;
+      for (Map.Entry<Long, Double> size : target.getSizeMix().entrySet())
+         work += size.getValue() * hardware.vBlobTime(size.getKey());
+      return target.getS3Rate() * copies * work;
+   }
+
+   private double routerWork(CapacityTarget target, Hardware hardware) {
+      double work = 0;
+      for (Map.Entry<Long, Double> size : target.getSizeMix().entrySet())
+         work += size.getValue() * hardware.routerTime(size.getKey());
+      return target.getS3Rate() * work;
+   }
+
+   private double diskWork(CapacityTarget target, Hardware hardware, boolean routed) {
+      return (double) target.getStoredBytes() * (routed ? target.getReplicas() : 1) / hardware.getDisk();
+   }
+}
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.common.RequiredConfiguration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * What one instance of each hardware size sustains, as measured by load tests
+ * of a single instance running one role at a time. Read from properties such
+ * as:
+ * 
+ * <pre>
+ * hardware-ids=m1.large,m1.xlarge
+ * hardware.m1.large.cost=2
+ * # bytes free for vblob.data.dir
+ * hardware.m1.large.disk=400000000000
+ * # EC2 requests per second cinderella sustains
+ * hardware.m1.large.cinderella.rate=350
+ * # S3 requests per second for objects of the given size in bytes
+ * hardware.m1.large.vblob.rate.4096=2500
+ * hardware.m1.large.vblob.rate.1048576=90
+ * # only needed for more than one vblob instance
+ * hardware.m1.large.vblob-router.rate.4096=6000
+ * hardware.m1.large.vblob-router.rate.1048576=120
+ * </pre>
+ */
+public class CapacityProfile {
+
+   /**
+    * one hardware size
+    */
+   public static class Hardware {
+      private final String id;
+      private final double cost;
+      private final long disk;
+      private final double cinderellaRate;
+      private final SortedMap<Long, Double> vBlobRates;
+      private final SortedMap<Long, Double> routerRates;
+
+      Hardware(String id, double cost, long disk, double cinderellaRate, Map<Long, Double> vBlobRates,
+            Map<Long, Double> routerRates) {
+         this.id = id;
+         this.cost = cost;
+         this.disk = disk;
+         this.cinderellaRate = cinderellaRate;
+         this.vBlobRates = Maps.newTreeMap();
+         this.vBlobRates.putAll(vBlobRates);
+         this.routerRates = Maps.newTreeMap();
+         this.routerRates.putAll(routerRates);
+      }
+
+      public String getId() {
+         return id;
+      }
+
+      /**
+       * relative price of one instance, compared between plans
+       */
+      public double getCost() {
+         return cost;
+      }
+
+      public long getDisk() {
+         return disk;
+      }
+
+      /**
+       * seconds of one instance taken by an EC2 request
+       */
+      double cinderellaTime() {
+         return 1 / cinderellaRate;
+      }
+
+      /**
+       * seconds of one instance taken by an S3 request for an object of
+       * {@code size} bytes
+       */
+      double vBlobTime(long size) {
+         return time(vBlobRates, size);
+      }
+
+      boolean canRoute() {
+         return !routerRates.isEmpty();
+      }
+
+      double routerTime(long size) {
+         return time(routerRates, size);
+      }
+
+      /**
+       * Interpolates linearly between the measured sizes, as a request costs a
+       * fixed amount plus an amount per byte. Smaller sizes cost as much as the
+       * smallest measured one, and larger sizes continue the slope of the
+       * largest two, or with a single measurement, grow with the size.
+       */
+      static double time(SortedMap<Long, Double> rates, long size) {
+         Long below = null;
+         Long above = null;
+         for (Long measured : rates.keySet()) {
+            if (measured <= size)
+               below = measured;
+            if (measured >= size && above == null)
+               above = measured;
+         }
+         if (below == null)
+            return 1 / rates.get(above);
+         if (above == null) {
+            SortedMap<Long, Double> smaller = rates.headMap(below);
+            if (smaller.isEmpty())
+               return size / (below * rates.get(below));
+            above = below;
+            below = smaller.lastKey();
+         }
+         double belowTime = 1 / rates.get(below);
+         if (above.equals(below))
+            return belowTime;
+         double slope = (1 / rates.get(above) - belowTime) / (above - below);
+         return belowTime + slope * (size - below);
+      }
+   }
+
+   private final Map<String, Hardware> hardware;
+
+   CapacityProfile(Map<String, Hardware> hardware) {
+      this.hardware = ImmutableMap.copyOf(hardware);
+   }
+
+   /**
+    * @throws IllegalArgumentException
+    *            listing every missing or malformed measurement
+    */
+   public static CapacityProfile fromConfiguration(Configuration config) {
+      RequiredConfiguration required = new RequiredConfiguration(config, "hardware");
+      String[] ids = config.getStringArray("hardware-ids");
+      if (ids.length == 0)
+         required.addProblem("hardware-ids is not set");
+      Map<String, Hardware> hardware = Maps.newLinkedHashMap();
+      for (String id : ids) {
+         id = id.trim();
+         double cost = required.getLong(id + ".cost", 1, Long.MAX_VALUE);
+         long disk = required.getLong(id + ".disk", 1, Long.MAX_VALUE);
+         double cinderellaRate = required.getLong(id + ".cinderella.rate", 1, Long.MAX_VALUE);
+         Map<Long, Double> vBlobRates = rates(config, required, id + ".vblob.rate");
+         if (vBlobRates.isEmpty())
+            required.addProblem("hardware." + id + ".vblob.rate.<size> is not set for any size");
+         Map<Long, Double> routerRates = rates(config, required, id + ".vblob-router.rate");
+         hardware.put(id, new Hardware(id, cost, disk, cinderellaRate, vBlobRates, routerRates));
+      }
+      required.validate();
+      return new CapacityProfile(hardware);
+   }
+
+   private static Map<Long, Double> rates(Configuration config, RequiredConfiguration required, String key) {
+      Map<Long, Double> rates = Maps.newTreeMap();
+      for (Iterator<?> keys = config.subset("hardware." + key).getKeys(); keys.hasNext();) {
+         String size = (String) keys.next();
+         try {
+            rates.put(Long.parseLong(size), (double) required.getLong(key + "." + size, 1, Long.MAX_VALUE));
+         } catch (NumberFormatException e) {
+            required.addProblem("hardware." + key + "." + size + " is not for a size in bytes");
+         }
+      }
+      return rates;
+   }
+
+   public Iterable<Hardware> getHardware() {
+      return hardware.values();
+   }
+}
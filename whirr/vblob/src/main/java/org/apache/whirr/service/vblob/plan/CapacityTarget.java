@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * The load a cluster is planned for.
+ */
+public class CapacityTarget {
+   private final double ec2Rate;
+   private final double s3Throughput;
+   private final SortedMap<Long, Double> sizeMix;
+   private final double writeShare;
+   private final long storedBytes;
+   private final int replicas;
+
+   /**
+    * @param ec2Rate
+    *           EC2 requests per second
+    * @param s3Throughput
+    *           bytes of S3 object bodies per second, read and written
+    * @param sizeMix
+    *           share of S3 requests by object size in bytes
+    * @param writeShare
+    *           share of S3 requests that write, between 0 and 1
+    * @param storedBytes
+    *           bytes of objects kept
+    * @param replicas
+    *           copies kept of each object when a router spreads them over
+    *           several vblob instances
+    */
+   public CapacityTarget(double ec2Rate, double s3Throughput, Map<Long, Double> sizeMix, double writeShare,
+         long storedBytes, int replicas) {
+      checkArgument(ec2Rate >= 0, "ec2Rate must not be negative");
+      checkArgument(s3Throughput >= 0, "s3Throughput must not be negative");
+      checkArgument(!checkNotNull(sizeMix, "sizeMix").isEmpty(), "sizeMix must have at least one size");
+      checkArgument(writeShare >= 0 && writeShare <= 1, "writeShare must be between 0 and 1");
+      checkArgument(storedBytes >= 0, "storedBytes must not be negative");
+      checkArgument(replicas >= 1, "replicas must be at least 1");
+      double total = 0;
+      for (Map.Entry<Long, Double> size : sizeMix.entrySet()) {
+         checkArgument(size.getKey() > 0 && size.getValue() > 0, "sizeMix must have positive sizes and shares");
+         total += size.getValue();
+      }
+      ImmutableSortedMap.Builder<Long, Double> normalized = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<Long, Double> size : sizeMix.entrySet())
+         normalized.put(size.getKey(), size.getValue() / total);
+      this.ec2Rate = ec2Rate;
+      this.s3Throughput = s3Throughput;
+      this.sizeMix = normalized.build();
+      this.writeShare = writeShare;
+      this.storedBytes = storedBytes;
+      this.replicas = replicas;
+   }
+
+   public double getEc2Rate() {
+      return ec2Rate;
+   }
+
+   public double getS3Throughput() {
+      return s3Throughput;
+   }
+
+   /**
+    * @return share of S3 requests by object size, adding up to 1
+    */
+   public SortedMap<Long, Double> getSizeMix() {
+      return sizeMix;
+   }
+
+   public double getWriteShare() {
+      return writeShare;
+   }
+
+   public long getStoredBytes() {
+      return storedBytes;
+   }
+
+   public int getReplicas() {
+      return replicas;
+   }
+
+   /**
+    * @return S3 requests per second that carry {@link #getS3Throughput()}
+    */
+   public double getS3Rate() {
+      double meanSize = 0;
+      for (Map.Entry<Long, Double> size : sizeMix.entrySet())
+         meanSize += size.getKey() * size.getValue();
+      return s3Throughput / meanSize;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%.0f EC2 requests/s, %.0f bytes/s of S3 objects (%.0f requests/s, %.0f%% writes, "
+            + "sizes %s), %d bytes stored", ec2Rate, s3Throughput, getS3Rate(), writeShare * 100, Joiner.on(',')
+            .withKeyValueSeparator(":").join(sizeMix), storedBytes);
+   }
+}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.command.Command;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * {@code whirr plan-capacity} prints the instance templates for a target load,
+ * as properties a recipe can include.
+ */
+public class PlanCapacityCommand extends Command {
+
+   private final OptionParser parser = new OptionParser();
+   private final OptionSpec<File> profile = parser.accepts("profile",
+         "Properties measured per hardware size, see CapacityProfile").withRequiredArg().ofType(File.class);
+   private final OptionSpec<Double> ec2Rate = parser.accepts("ec2-rate", "EC2 requests per second")
+         .withRequiredArg().ofType(Double.class).defaultsTo(0d);
+   private final OptionSpec<String> s3Throughput = parser.accepts("s3-throughput",
+         "Bytes of S3 objects per second, such as 50M").withRequiredArg().defaultsTo("0");
+   private final OptionSpec<String> objectSizes = parser.accepts("object-sizes",
+         "Percent of S3 requests by object size, such as 4K:80,1M:20").withRequiredArg();
+   private final OptionSpec<Double> writePercent = parser.accepts("write-percent",
+         "Percent of S3 requests that write").withRequiredArg().ofType(Double.class).defaultsTo(20d);
+   private final OptionSpec<String> storedBytes = parser.accepts("stored-bytes",
+         "Bytes of objects kept, such as 2T").withRequiredArg().defaultsTo("0");
+   private final OptionSpec<Integer> replicas = parser.accepts("replicas",
+         "Copies of each object over several vblob instances").withRequiredArg().ofType(Integer.class)
+         .defaultsTo(2);
+   private final OptionSpec<Double> utilization = parser.accepts("utilization",
+         "Highest percent of its measured capacity an instance may use").withRequiredArg().ofType(Double.class)
+         .defaultsTo(70d);
+   private final OptionSpec<File> output = parser.accepts("output", "File to write, instead of standard out")
+         .withRequiredArg().ofType(File.class);
+
+   public PlanCapacityCommand() {
+      super("plan-capacity", "Size instance templates for a target load.");
+   }
+
+   @Override
+   public int run(InputStream in, PrintStream out, PrintStream err, List<String> args) throws Exception {
+      OptionSet options;
+      try {
+         options = parser.parse(args.toArray(new String[args.size()]));
+      } catch (OptionException e) {
+         err.println(e.getMessage());
+         printUsage(err);
+         return -1;
+      }
+      if (!options.has(profile) || !options.has(objectSizes)) {
+         err.println("--profile and --object-sizes are required");
+         printUsage(err);
+         return -1;
+      }
+      CapacityPlan plan;
+      try {
+         CapacityTarget target = new CapacityTarget(options.valueOf(ec2Rate), parseBytes(options
+               .valueOf(s3Throughput)), parseSizes(options.valueOf(objectSizes)),
+               options.valueOf(writePercent) / 100, parseBytes(options.valueOf(storedBytes)), options
+                     .valueOf(replicas));
+         plan = new CapacityPlanner(CapacityProfile.fromConfiguration(new PropertiesConfiguration(options
+               .valueOf(profile))), options.valueOf(utilization) / 100).plan(target);
+      } catch (IllegalArgumentException e) {
+         err.println(e.getMessage());
+         return -1;
+      } catch (ConfigurationException e) {
+         err.println("Cannot read " + options.valueOf(profile) + ": " + e.getMessage());
+         return -1;
+      }
+      String properties = Joiner.on('\n').join(plan.toProperties()) + "\n";
+      if (options.has(output))
+         Files.write(properties, options.valueOf(output), Charsets.UTF_8);
+      else
+         out.print(properties);
+      return 0;
+   }
+
+   public void printUsage(PrintStream stream) {
+      stream.println("Usage: whirr " + getName() + " --profile <file> --object-sizes <size:percent,...> [OPTIONS]");
+      stream.println();
+      try {
+         parser.printHelpOn(stream);
+      } catch (IOException e) {
+         // a PrintStream does not throw
+      }
+   }
+
+   /**
+    * @return {@code bytes} with an optional K, M, G or T suffix, in powers of
+    *         1024
+    */
+   static long parseBytes(String bytes) {
+      String value = bytes.trim().toUpperCase();
+      int shift = 0;
+      if (!value.isEmpty()) {
+         int unit = "KMGT".indexOf(value.charAt(value.length() - 1));
+         if (unit >= 0) {
+            shift = 10 * (unit + 1);
+            value = value.substring(0, value.length() - 1);
+         }
+      }
+      try {
+         return (long) (Double.parseDouble(value) * (1L << shift));
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(bytes + " is not a number of bytes");
+      }
+   }
+
+   static Map<Long, Double> parseSizes(String sizes) {
+      Map<Long, Double> mix = Maps.newTreeMap();
+      for (String size : Splitter.on(',').trimResults().omitEmptyStrings().split(sizes)) {
+         int colon = size.indexOf(':');
+         if (colon < 0)
+            throw new IllegalArgumentException(size + " is not size:percent");
+         try {
+            mix.put(parseBytes(size.substring(0, colon)), Double.parseDouble(size.substring(colon + 1)));
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(size + " is not size:percent");
+         }
+      }
+      return mix;
+   }
+}
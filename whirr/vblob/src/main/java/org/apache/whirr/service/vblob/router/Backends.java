@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.router;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Membership and health of the vBlob backends behind the router.
+ * 
+ * <p/>
+ * Members are read from a file with one {@code host:port} per line, which the
+ * handler rewrites on every configure action. The file is re-read whenever it
+ * changes, so the ring follows {@code vblob} instances being added or removed
+ * without restarting the router.
+ * 
+ * <p/>
+ * Health does not change the ring, so a backend that is briefly down keeps its
+ * keys. Instead, unhealthy replicas are tried last, and skipped entirely for
+ * writes.
+ */
+public class Backends {
+   private static final Logger LOG = Logger.getLogger(Backends.class.getName());
+
+   private final File membersFile;
+   private final int virtualNodes;
+   private final int failureThreshold;
+   private final int connectTimeout;
+   private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+   private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "vblob-router-health");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   private volatile long lastModified = -1;
+   private volatile HashRing ring = new HashRing(Collections.<String> emptyList(), 0);
+
+   public Backends(File membersFile, int virtualNodes, int failureThreshold, int connectTimeout) {
+      this.membersFile = membersFile;
+      this.virtualNodes = virtualNodes;
+      this.failureThreshold = failureThreshold;
+      this.connectTimeout = connectTimeout;
+   }
+
+   /**
+    * loads the members and starts checking them every {@code intervalMillis}
+    */
+   public void start(long intervalMillis) {
+      reload();
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            reload();
+            for (String backend : failures.keySet())
+               check(backend);
+         }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   public void stop() {
+      scheduler.shutdownNow();
+   }
+
+   void reload() {
+      long modified = membersFile.lastModified();
+      if (modified == lastModified)
+         return;
+      Set<String> members = new LinkedHashSet<String>();
+      try {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(membersFile), "UTF-8"));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (!line.trim().isEmpty() && !line.startsWith("#"))
+                  members.add(line.trim());
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (IOException e) {
+         LOG.log(Level.WARNING, "could not read " + membersFile + ", keeping " + failures.keySet(), e);
+         return;
+      }
+      for (String member : members) {
+         if (!failures.containsKey(member))
+            failures.put(member, new AtomicInteger());
+      }
+      failures.keySet().retainAll(members);
+      ring = new HashRing(members, virtualNodes);
+      lastModified = modified;
+      LOG.info("backends are now " + members);
+   }
+
+   private void check(String backend) {
+      try {
+         HttpURLConnection connection = (HttpURLConnection) new URL("http://" + backend + "/").openConnection();
+         connection.setConnectTimeout(connectTimeout);
+         connection.setReadTimeout(connectTimeout);
+         // any response at all, including an auth failure, means the server is up
+         connection.getResponseCode();
+         connection.disconnect();
+         markUp(backend);
+      } catch (IOException e) {
+         markDown(backend);
+      }
+   }
+
+   public void markUp(String backend) {
+      AtomicInteger count = failures.get(backend);
+      if (count != null && count.getAndSet(0) >= failureThreshold)
+         LOG.info(backend + " is healthy again");
+   }
+
+   public void markDown(String backend) {
+      AtomicInteger count = failures.get(backend);
+      if (count != null && count.incrementAndGet() == failureThreshold)
+         LOG.warning(backend + " is unhealthy");
+   }
+
+   public boolean isHealthy(String backend) {
+      AtomicInteger count = failures.get(backend);
+      return count != null && count.get() < failureThreshold;
+   }
+
+   /**
+    * @return replicas for {@code key}, healthy ones first
+    */
+   public List<String> replicasFor(String key, int replicas) {
+      List<String> ordered = new ArrayList<String>(replicas);
+      List<String> unhealthy = new ArrayList<String>();
+      for (String backend : ring.replicasFor(key, replicas)) {
+         if (isHealthy(backend))
+            ordered.add(backend);
+         else
+            unhealthy.add(backend);
+      }
+      ordered.addAll(unhealthy);
+      return ordered;
+   }
+
+   /**
+    * @return every member currently considered healthy
+    */
+   public List<String> healthy() {
+      List<String> healthy = new ArrayList<String>();
+      for (String backend : failures.keySet()) {
+         if (isHealthy(backend))
+            healthy.add(backend);
+      }
+      return healthy;
+   }
+
+   public static URI endpoint(String backend) {
+      return URI.create("http://" + backend);
+   }
+}
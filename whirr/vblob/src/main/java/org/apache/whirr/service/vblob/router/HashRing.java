@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.router;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring of backends. Each backend is placed at
+ * {@code virtualNodes} points so that keys spread evenly, and adding or
+ * removing one backend only moves the keys next to its points.
+ * 
+ * <p/>
+ * Instances are immutable; membership changes build a new ring.
+ */
+public class HashRing {
+
+   private final NavigableMap<Long, String> points = new TreeMap<Long, String>();
+   private final int members;
+
+   public HashRing(Collection<String> backends, int virtualNodes) {
+      for (String backend : backends) {
+         for (int i = 0; i < virtualNodes; i++)
+            points.put(hash(backend + "#" + i), backend);
+      }
+      this.members = backends.size();
+   }
+
+   /**
+    * @return up to {@code replicas} distinct backends responsible for
+    *         {@code key}, in ring order starting at its primary
+    */
+   public List<String> replicasFor(String key, int replicas) {
+      if (points.isEmpty())
+         return Collections.emptyList();
+      int wanted = Math.min(replicas, members);
+      List<String> result = new ArrayList<String>(wanted);
+      long hash = hash(key);
+      for (Map.Entry<Long, String> point : points.tailMap(hash, true).entrySet()) {
+         if (!result.contains(point.getValue()) && result.add(point.getValue()) && result.size() == wanted)
+            return result;
+      }
+      for (Map.Entry<Long, String> point : points.headMap(hash, false).entrySet()) {
+         if (!result.contains(point.getValue()) && result.add(point.getValue()) && result.size() == wanted)
+            return result;
+      }
+      return result;
+   }
+
+   public int size() {
+      return members;
+   }
+
+   static long hash(String value) {
+      try {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+         long hash = 0;
+         for (int i = 0; i < 8; i++)
+            hash = (hash << 8) | (digest[i] & 0xff);
+         return hash;
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.router;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Merges S3 listings returned by several backends into one response, as keys
+ * of a bucket are spread over the ring.
+ */
+public class ListingMerger {
+
+   /**
+    * merges {@code ListAllMyBucketsResult} documents by bucket name
+    */
+   static byte[] mergeBuckets(List<byte[]> responses) throws Exception {
+      Document template = null;
+      Map<String, Element> buckets = new TreeMap<String, Element>();
+      for (byte[] response : responses) {
+         Document doc = parse(response);
+         if (template == null)
+            template = doc;
+         for (Element bucket : children(doc.getDocumentElement(), "Buckets", "Bucket")) {
+            String name = text(bucket, "Name");
+            if (!buckets.containsKey(name))
+               buckets.put(name, bucket);
+         }
+      }
+      Element container = first(template.getDocumentElement(), "Buckets");
+      removeChildren(container, "Bucket");
+      for (Element bucket : buckets.values())
+         container.appendChild(template.importNode(bucket, true));
+      return serialize(template);
+   }
+
+   /**
+    * Merges {@code ListBucketResult} documents. When a backend truncated its
+    * listing, nothing past its last key can be returned yet, since that backend
+    * may still hold keys before the others' next ones.
+    */
+   public static byte[] mergeObjects(List<byte[]> responses, int maxKeys) throws Exception {
+      Document template = null;
+      Map<String, Element> entries = new TreeMap<String, Element>();
+      String horizon = null;
+      boolean truncated = false;
+      for (byte[] response : responses) {
+         Document doc = parse(response);
+         if (template == null)
+            template = doc;
+         Element root = doc.getDocumentElement();
+         String last = null;
+         for (Element contents : children(root, null, "Contents")) {
+            last = text(contents, "Key");
+            entries.put(last, contents);
+         }
+         for (Element prefix : children(root, null, "CommonPrefixes")) {
+            String name = text(prefix, "Prefix");
+            if (last == null || name.compareTo(last) > 0)
+               last = name;
+            if (!entries.containsKey(name))
+               entries.put(name, prefix);
+         }
+         if ("true".equals(text(root, "IsTruncated")) && last != null) {
+            truncated = true;
+            if (horizon == null || last.compareTo(horizon) < 0)
+               horizon = last;
+         }
+      }
+
+      Element root = template.getDocumentElement();
+      removeChildren(root, "Contents");
+      removeChildren(root, "CommonPrefixes");
+      removeChildren(root, "NextMarker");
+      String nextMarker = null;
+      int count = 0;
+      for (Map.Entry<String, Element> entry : entries.entrySet()) {
+         if (count == maxKeys || horizon != null && entry.getKey().compareTo(horizon) > 0) {
+            truncated = true;
+            break;
+         }
+         root.appendChild(template.importNode(entry.getValue(), true));
+         nextMarker = entry.getKey();
+         count++;
+      }
+      setText(template, root, "IsTruncated", Boolean.toString(truncated));
+      if (truncated && nextMarker != null)
+         setText(template, root, "NextMarker", nextMarker);
+      return serialize(template);
+   }
+
+   private static Document parse(byte[] xml) throws Exception {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(false);
+      return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+   }
+
+   private static byte[] serialize(Document doc) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+      return out.toByteArray();
+   }
+
+   private static List<Element> children(Element parent, String container, String name) {
+      Element from = container == null ? parent : first(parent, container);
+      List<Element> result = new ArrayList<Element>();
+      if (from == null)
+         return result;
+      NodeList nodes = from.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         Node node = nodes.item(i);
+         if (node instanceof Element && name.equals(node.getNodeName()))
+            result.add((Element) node);
+      }
+      return result;
+   }
+
+   private static Element first(Element parent, String name) {
+      NodeList nodes = parent.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+         if (nodes.item(i) instanceof Element && name.equals(nodes.item(i).getNodeName()))
+            return (Element) nodes.item(i);
+      }
+      return null;
+   }
+
+   private static String text(Element parent, String name) {
+      Element child = first(parent, name);
+      return child == null ? null : child.getTextContent();
+   }
+
+   private static void setText(Document doc, Element parent, String name, String value) {
+      Element child = first(parent, name);
+      if (child == null) {
+         child = doc.createElement(name);
+         parent.appendChild(child);
+      }
+      child.setTextContent(value);
+   }
+
+   private static void removeChildren(Element parent, String name) {
+      for (Element child : children(parent, null, name))
+         parent.removeChild(child);
+   }
+}
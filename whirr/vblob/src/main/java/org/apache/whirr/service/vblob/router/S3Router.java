@@ -0,0 +1,673 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.router;
+
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.contentLength;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.error;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.open;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.rawPathAndQuery;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.readFully;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.respond;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.responseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One S3 endpoint in front of many vBlob instances.
+ * 
+ * <ul>
+ * <li>objects are placed on {@code replicas} backends chosen by a
+ * {@link HashRing} over {@code bucket/key}</li>
+ * <li>writes go to every healthy replica in parallel, and are acknowledged once
+ * {@code write-quorum} of them succeed</li>
+ * <li>reads rotate over the healthy replicas, and fail over to the next replica
+ * on errors or a missing object</li>
+ * <li>a delete leaves a tombstone naming the replicas it has not reached yet,
+ * which reads skip, so a replica that was down does not bring the object back;
+ * the delete is sent again once such a replica is healthy</li>
+ * <li>bucket operations go to every healthy backend, and listings are merged,
+ * since a bucket's keys are spread over all of them</li>
+ * </ul>
+ * 
+ * Requests are forwarded with the client's signature, as S3 v2 signatures do
+ * not cover the host. The router only signs requests of its own, such as
+ * creating a bucket on a backend that joined after the bucket was made.
+ * 
+ * <p/>
+ * Multipart uploads are sent to the first healthy replica only, as upload ids
+ * are not shared between backends. Tombstones are kept in memory, so deletes
+ * missed by a replica are lost when the router restarts.
+ */
+public class S3Router implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(S3Router.class.getName());
+
+   /** bodies up to this size are buffered in memory before being replicated */
+   private static final int SPOOL_THRESHOLD = 1024 * 1024;
+
+   /**
+    * A backend response held in memory
+    */
+   static class Response {
+      final String backend;
+      final int status;
+      final Map<String, List<String>> headers;
+      final byte[] body;
+
+      Response(String backend, int status, Map<String, List<String>> headers, byte[] body) {
+         this.backend = backend;
+         this.status = status;
+         this.headers = headers;
+         this.body = body;
+      }
+
+      boolean isSuccess() {
+         return status >= 200 && status < 300;
+      }
+   }
+
+   private final Backends backends;
+   private final int replicas;
+   private final int writeQuorum;
+   private final int connectTimeout;
+   private final int readTimeout;
+   private final String accessKey;
+   private final String secretKey;
+   private final ExecutorService fanOut;
+   private final AtomicInteger reads = new AtomicInteger();
+   /**
+    * raw paths, mapped to the replicas still holding the deleted object; sets
+    * are replaced under the lock of the map, so reads need none
+    */
+   private final ConcurrentMap<String, Set<String>> tombstones = new ConcurrentHashMap<String, Set<String>>();
+
+   public S3Router(Backends backends, int replicas, int writeQuorum, int connectTimeout, int readTimeout,
+         String accessKey, String secretKey, ExecutorService fanOut) {
+      this.backends = backends;
+      this.replicas = replicas;
+      this.writeQuorum = Math.min(writeQuorum, replicas);
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.fanOut = fanOut;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         route(exchange);
+      } catch (Exception e) {
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 500, "InternalError", "router error");
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   private void route(HttpExchange exchange) throws Exception {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getRawPath();
+      String query = exchange.getRequestURI().getRawQuery();
+
+      if ("/".equals(path)) {
+         if ("GET".equals(method))
+            listBuckets(exchange);
+         else
+            error(exchange, 405, "MethodNotAllowed", method + " is not allowed on the service");
+         return;
+      }
+
+      int slash = path.indexOf('/', 1);
+      String bucket = slash == -1 ? path.substring(1) : path.substring(1, slash);
+      String key = slash == -1 ? "" : path.substring(slash + 1);
+
+      if (key.isEmpty()) {
+         if ("GET".equals(method) && !hasSubResource(query))
+            listObjects(exchange, query);
+         else if ("GET".equals(method) || "HEAD".equals(method))
+            read(exchange, backends.healthy());
+         else
+            broadcast(exchange, bucket);
+         return;
+      }
+
+      List<String> placement = backends.replicasFor(bucket + "/" + key, replicas);
+      if (placement.isEmpty()) {
+         error(exchange, 503, "ServiceUnavailable", "no backends");
+      } else if (query != null && (query.contains("uploads") || query.contains("uploadId"))) {
+         forward(exchange, firstHealthy(placement), bodyOf(exchange));
+      } else if ("GET".equals(method) || "HEAD".equals(method)) {
+         read(exchange, rotateHealthy(withoutTombstoned(path, placement)));
+      } else {
+         replicate(exchange, bucket, path, placement);
+      }
+   }
+
+   private static boolean hasSubResource(String query) {
+      if (query == null)
+         return false;
+      for (String param : query.split("&")) {
+         String name = param.indexOf('=') == -1 ? param : param.substring(0, param.indexOf('='));
+         if (!name.equals("prefix") && !name.equals("marker") && !name.equals("delimiter")
+               && !name.equals("max-keys"))
+            return true;
+      }
+      return false;
+   }
+
+   private String firstHealthy(List<String> placement) {
+      for (String backend : placement)
+         if (backends.isHealthy(backend))
+            return backend;
+      return placement.get(0);
+   }
+
+   /**
+    * leaves out the replicas a delete of {@code path} has not reached, unless
+    * it has reached none yet
+    */
+   private List<String> withoutTombstoned(String path, List<String> placement) {
+      Set<String> stale = tombstones.get(path);
+      if (stale == null)
+         return placement;
+      List<String> current = new ArrayList<String>(placement);
+      current.removeAll(stale);
+      return current.isEmpty() ? placement : current;
+   }
+
+   /**
+    * sends deletes again to the replicas that missed them and are healthy
+    * now, dropping each tombstone once every replica has the delete
+    */
+   public void repairTombstones() {
+      for (Map.Entry<String, Set<String>> tombstone : tombstones.entrySet()) {
+         for (String backend : tombstone.getValue()) {
+            if (!backends.isHealthy(backend))
+               continue;
+            int status = sendSigned(backend, "DELETE", tombstone.getKey());
+            if (status >= 200 && status < 300 || status == 404)
+               deleted(tombstone.getKey(), backend);
+         }
+      }
+   }
+
+   /**
+    * marks the replicas of {@code path} that have not answered this delete
+    * yet as still holding the object, the first time one of them accepts it
+    */
+   private void tombstone(String path, List<String> placement, Set<String> answered) {
+      synchronized (tombstones) {
+         Set<String> stale = Sets.newHashSet(placement);
+         Set<String> existing = tombstones.get(path);
+         if (existing != null)
+            stale.addAll(existing);
+         stale.removeAll(answered);
+         if (stale.isEmpty())
+            tombstones.remove(path);
+         else
+            tombstones.put(path, ImmutableSet.copyOf(stale));
+      }
+   }
+
+   /**
+    * records that {@code backend} no longer holds the object at {@code path}
+    * an earlier delete removed
+    */
+   private void deleted(String path, String backend) {
+      synchronized (tombstones) {
+         Set<String> stale = tombstones.get(path);
+         if (stale == null || !stale.contains(backend))
+            return;
+         if (stale.size() == 1)
+            tombstones.remove(path);
+         else
+            tombstones.put(path, ImmutableSet.copyOf(Sets.difference(stale, ImmutableSet.of(backend))));
+      }
+   }
+
+   /**
+    * spreads reads over the healthy replicas, keeping unhealthy ones last
+    */
+   private List<String> rotateHealthy(List<String> placement) {
+      int healthy = 0;
+      while (healthy < placement.size() && backends.isHealthy(placement.get(healthy)))
+         healthy++;
+      if (healthy < 2)
+         return placement;
+      List<String> rotated = new ArrayList<String>(placement);
+      Collections.rotate(rotated.subList(0, healthy), (reads.getAndIncrement() & Integer.MAX_VALUE) % healthy);
+      return rotated;
+   }
+
+   private void read(HttpExchange exchange, List<String> candidates) throws IOException {
+      Response fallback = null;
+      for (int i = 0; i < candidates.size(); i++) {
+         String backend = candidates.get(i);
+         HttpURLConnection connection = null;
+         try {
+            connection = open(Backends.endpoint(backend), exchange.getRequestMethod(), rawPathAndQuery(exchange),
+                  exchange.getRequestHeaders(), connectTimeout, readTimeout);
+            int status = connection.getResponseCode();
+            if (status >= 500 || status == 404 && i < candidates.size() - 1) {
+               // another replica may still have the object, for example if
+               // this one was down when it was written
+               if (status >= 500)
+                  backends.markDown(backend);
+               fallback = new Response(backend, status, connection.getHeaderFields(),
+                     readFully(responseBody(connection)));
+               continue;
+            }
+            backends.markUp(backend);
+            HttpForwarding.copyResponse(connection, exchange);
+            return;
+         } catch (IOException e) {
+            LOG.log(Level.FINE, "read from " + backend + " failed", e);
+            backends.markDown(backend);
+         }
+      }
+      if (fallback != null)
+         relay(exchange, fallback);
+      else
+         error(exchange, 503, "ServiceUnavailable", "no replica answered");
+   }
+
+   /**
+    * writes to every healthy replica, answering as soon as the quorum is met
+    */
+   private void replicate(final HttpExchange exchange, final String bucket, final String path,
+         final List<String> placement) throws Exception {
+      final Body body = bodyOf(exchange);
+      final List<String> targets = new ArrayList<String>();
+      for (String backend : placement) {
+         if (backends.isHealthy(backend))
+            targets.add(backend);
+      }
+      if (targets.size() < writeQuorum) {
+         body.release();
+         error(exchange, 503, "ServiceUnavailable", targets.size() + " healthy replicas, " + writeQuorum
+               + " required");
+         return;
+      }
+      // replicas that answered a delete, and whether it left a tombstone
+      final Set<String> answered = Sets.newHashSet();
+      final AtomicBoolean tombstoned = new AtomicBoolean();
+      CompletionService<Response> completion = new ExecutorCompletionService<Response>(fanOut);
+      final List<Future<Response>> writes = new ArrayList<Future<Response>>();
+      for (final String backend : targets) {
+         writes.add(completion.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+               Response response = send(exchange, backend, body);
+               if (response.status == 404 && new String(response.body, "UTF-8").contains("NoSuchBucket")
+                     && createBucket(backend, bucket))
+                  response = send(exchange, backend, body);
+               if (!"DELETE".equals(exchange.getRequestMethod())) {
+                  // the replica holds the latest write
+                  if (response.isSuccess())
+                     deleted(path, backend);
+               } else if (response.isSuccess() || response.status == 404) {
+                  synchronized (answered) {
+                     answered.add(backend);
+                     // a replica accepting the delete shows the client may
+                     // make it
+                     if (response.isSuccess() && !tombstoned.getAndSet(true))
+                        tombstone(path, placement, answered);
+                     else
+                        deleted(path, backend);
+                  }
+               }
+               return response;
+            }
+         }));
+      }
+      // the body is released once every write finished, not just the quorum
+      fanOut.execute(new Runnable() {
+         @Override
+         public void run() {
+            for (Future<Response> write : writes) {
+               try {
+                  write.get();
+               } catch (Exception ignored) {
+                  // counted below
+               }
+            }
+            body.release();
+         }
+      });
+
+      Response success = null;
+      Response failure = null;
+      int successes = 0;
+      for (int i = 0; i < targets.size(); i++) {
+         Response response;
+         try {
+            response = completion.take().get();
+         } catch (ExecutionException e) {
+            LOG.log(Level.FINE, "replica write failed", e.getCause());
+            continue;
+         }
+         if (response.isSuccess()) {
+            successes++;
+            if (success == null)
+               success = response;
+            if (successes >= writeQuorum) {
+               relay(exchange, success);
+               return;
+            }
+         } else if (failure == null) {
+            failure = response;
+         }
+      }
+      if (failure != null)
+         relay(exchange, failure);
+      else
+         error(exchange, 503, "ServiceUnavailable", successes + " of " + writeQuorum + " replica writes succeeded");
+   }
+
+   /**
+    * sends a bucket operation to every healthy backend
+    */
+   private void broadcast(final HttpExchange exchange, String bucket) throws Exception {
+      final Body body = bodyOf(exchange);
+      try {
+         Response failure = null;
+         Response success = null;
+         for (Response response : fanOut(exchange, backends.healthy(), body)) {
+            if (response.isSuccess() && success == null)
+               success = response;
+            else if (!response.isSuccess() && failure == null)
+               failure = response;
+         }
+         if (failure != null)
+            relay(exchange, failure);
+         else if (success != null)
+            relay(exchange, success);
+         else
+            error(exchange, 503, "ServiceUnavailable", "no backends");
+      } finally {
+         body.release();
+      }
+   }
+
+   private void listBuckets(HttpExchange exchange) throws Exception {
+      List<byte[]> listings = new ArrayList<byte[]>();
+      Response first = null;
+      for (Response response : fanOut(exchange, backends.healthy(), Body.EMPTY)) {
+         if (response.status == 200)
+            listings.add(response.body);
+         else if (first == null)
+            first = response;
+      }
+      if (!listings.isEmpty())
+         respond(exchange, 200, "application/xml", ListingMerger.mergeBuckets(listings));
+      else if (first != null)
+         relay(exchange, first);
+      else
+         error(exchange, 503, "ServiceUnavailable", "no backends");
+   }
+
+   private void listObjects(HttpExchange exchange, String query) throws Exception {
+      int maxKeys = 1000;
+      if (query != null) {
+         for (String param : query.split("&")) {
+            if (param.startsWith("max-keys="))
+               maxKeys = Integer.parseInt(param.substring("max-keys=".length()));
+         }
+      }
+      List<byte[]> listings = new ArrayList<byte[]>();
+      Response first = null;
+      for (Response response : fanOut(exchange, backends.healthy(), Body.EMPTY)) {
+         if (response.status == 200)
+            listings.add(response.body);
+         else if (first == null || first.status == 404)
+            first = response;
+      }
+      // backends that joined after the bucket was created answer 404
+      if (!listings.isEmpty())
+         respond(exchange, 200, "application/xml", ListingMerger.mergeObjects(listings, maxKeys));
+      else if (first != null)
+         relay(exchange, first);
+      else
+         error(exchange, 503, "ServiceUnavailable", "no backends");
+   }
+
+   private List<Response> fanOut(final HttpExchange exchange, List<String> targets, final Body body)
+         throws InterruptedException {
+      List<Future<Response>> futures = new ArrayList<Future<Response>>();
+      for (final String backend : targets) {
+         futures.add(fanOut.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+               return send(exchange, backend, body);
+            }
+         }));
+      }
+      List<Response> responses = new ArrayList<Response>();
+      for (Future<Response> future : futures) {
+         try {
+            responses.add(future.get());
+         } catch (ExecutionException e) {
+            LOG.log(Level.FINE, "fan out failed", e.getCause());
+         }
+      }
+      return responses;
+   }
+
+   private Response send(HttpExchange exchange, String backend, Body body) throws IOException {
+      try {
+         HttpURLConnection connection = open(Backends.endpoint(backend), exchange.getRequestMethod(),
+               rawPathAndQuery(exchange), exchange.getRequestHeaders(), connectTimeout, readTimeout);
+         String method = exchange.getRequestMethod();
+         if (body.length > 0 || "PUT".equals(method) || "POST".equals(method)) {
+            InputStream in = body.open();
+            try {
+               HttpForwarding.sendBody(connection, in, body.length);
+            } finally {
+               in.close();
+            }
+         }
+         Response response = new Response(backend, connection.getResponseCode(), connection.getHeaderFields(),
+               readFully(responseBody(connection)));
+         if (response.status >= 500)
+            backends.markDown(backend);
+         else
+            backends.markUp(backend);
+         return response;
+      } catch (IOException e) {
+         backends.markDown(backend);
+         throw e;
+      }
+   }
+
+   private void forward(HttpExchange exchange, String backend, Body body) throws IOException {
+      try {
+         relay(exchange, send(exchange, backend, body));
+      } finally {
+         body.release();
+      }
+   }
+
+   private boolean createBucket(String backend, String bucket) {
+      int status = sendSigned(backend, "PUT", "/" + bucket);
+      LOG.info("created bucket " + bucket + " on " + backend + ": " + status);
+      return status >= 200 && status < 300;
+   }
+
+   /**
+    * sends a request of the router's own, with no body
+    * 
+    * @return the status of the response, or -1 if the backend did not answer
+    */
+   private int sendSigned(String backend, String method, String path) {
+      try {
+         SimpleDateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+         rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+         Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+         headers.put("Date", Collections.singletonList(rfc1123.format(new Date())));
+         headers.put("Authorization", Collections.singletonList(S3Signatures.authorization(accessKey, secretKey,
+               S3Signatures.stringToSign(method, headers, path, null))));
+         HttpURLConnection connection = open(Backends.endpoint(backend), method, path, headers, connectTimeout,
+               readTimeout);
+         if ("PUT".equals(method))
+            HttpForwarding.sendBody(connection, new ByteArrayInputStream(new byte[0]), 0);
+         int status = connection.getResponseCode();
+         HttpForwarding.drain(responseBody(connection));
+         return status;
+      } catch (IOException e) {
+         LOG.log(Level.WARNING, "could not " + method + " " + path + " on " + backend, e);
+         return -1;
+      }
+   }
+
+   private static void relay(HttpExchange exchange, Response response) throws IOException {
+      HttpForwarding.copyResponseHeaders(response.headers, exchange.getResponseHeaders());
+      respond(exchange, response.status, null, response.body);
+   }
+
+   /**
+    * A request body that can be sent more than once
+    */
+   static class Body {
+      static final Body EMPTY = new Body(new byte[0], null, 0);
+
+      final byte[] memory;
+      final File file;
+      final long length;
+
+      Body(byte[] memory, File file, long length) {
+         this.memory = memory;
+         this.file = file;
+         this.length = length;
+      }
+
+      InputStream open() throws IOException {
+         return file != null ? new FileInputStream(file) : new ByteArrayInputStream(memory);
+      }
+
+      void release() {
+         if (file != null)
+            file.delete();
+      }
+   }
+
+   private static Body bodyOf(HttpExchange exchange) throws IOException {
+      long length = contentLength(exchange.getRequestHeaders());
+      InputStream in = exchange.getRequestBody();
+      if (length == 0)
+         return Body.EMPTY;
+      if (length > 0 && length <= SPOOL_THRESHOLD) {
+         byte[] memory = readFully(in);
+         return new Body(memory, null, memory.length);
+      }
+      File file = File.createTempFile("vblob-router", ".body");
+      OutputStream out = new FileOutputStream(file);
+      try {
+         return new Body(null, file, HttpForwarding.copy(in, out));
+      } finally {
+         out.close();
+         in.close();
+      }
+   }
+
+   /**
+    * Starts the router with settings from the properties file named by the
+    * first argument.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      int threads = Integer.parseInt(settings.getProperty("threads", "64"));
+      int connectTimeout = Integer.parseInt(settings.getProperty("connect-timeout", "2000"));
+      // pooled keep-alive connections to each backend
+      System.setProperty("http.maxConnections", threads + "");
+
+      Backends backends = new Backends(new File(settings.getProperty("backends.file")), Integer.parseInt(settings
+            .getProperty("virtual-nodes", "128")), Integer.parseInt(settings.getProperty("health.failures", "3")),
+            connectTimeout);
+      long interval = Long.parseLong(settings.getProperty("health.interval", "2000"));
+      backends.start(interval);
+
+      final S3Router router = new S3Router(backends, Integer.parseInt(settings.getProperty("replicas", "2")),
+            Integer.parseInt(settings.getProperty("write-quorum", "1")), connectTimeout, Integer.parseInt(settings
+                  .getProperty("read-timeout", "30000")), settings.getProperty("auth.access-key"),
+            settings.getProperty("auth.secret-key"), Executors.newCachedThreadPool());
+      Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            router.repairTombstones();
+         }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "9980"))), 1024);
+      server.createContext("/", router);
+      server.setExecutor(Executors.newFixedThreadPool(threads));
+      server.start();
+      LOG.info("vBlob router listening on " + server.getAddress());
+   }
+}
@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Moves S3 requests and responses between the JDK http server and
+ * {@link HttpURLConnection}, for the proxies that sit in front of vBlob.
+ */
+public class HttpForwarding {
+
+   private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+         "proxy-authenticate", "proxy-authorization", "te", "trailers", "transfer-encoding", "upgrade", "host",
+         "content-length", "expect"));
+
+   /**
+    * Opens a request to {@code endpoint} carrying the given headers, minus the
+    * hop-by-hop ones. Since S3 v2 signatures do not cover the host, a request
+    * signed for the proxy stays valid when sent to a backend.
+    */
+   public static HttpURLConnection open(URI endpoint, String method, String rawPathAndQuery,
+         Map<String, List<String>> headers, int connectTimeout, int readTimeout) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) new URL(endpoint.toASCIIString() + rawPathAndQuery)
+            .openConnection();
+      connection.setRequestMethod(method);
+      connection.setInstanceFollowRedirects(false);
+      connection.setUseCaches(false);
+      connection.setConnectTimeout(connectTimeout);
+      connection.setReadTimeout(readTimeout);
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (header.getKey() == null || HOP_BY_HOP.contains(header.getKey().toLowerCase()))
+            continue;
+         for (String value : header.getValue())
+            connection.addRequestProperty(header.getKey(), value);
+      }
+      return connection;
+   }
+
+   /**
+    * @return the path and query of the exchange as they were sent
+    */
+   public static String rawPathAndQuery(HttpExchange exchange) {
+      URI uri = exchange.getRequestURI();
+      return uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+   }
+
+   /**
+    * @return the declared length of the request body, or -1
+    */
+   public static long contentLength(Headers headers) {
+      String length = headers.getFirst("Content-Length");
+      return length == null ? -1 : Long.parseLong(length.trim());
+   }
+
+   /**
+    * streams {@code length} bytes of {@code body} as the request payload
+    */
+   public static void sendBody(HttpURLConnection connection, InputStream body, long length) throws IOException {
+      connection.setDoOutput(true);
+      if (length >= 0 && length <= Integer.MAX_VALUE)
+         connection.setFixedLengthStreamingMode((int) length);
+      else
+         connection.setChunkedStreamingMode(64 * 1024);
+      OutputStream out = connection.getOutputStream();
+      try {
+         copy(body, out);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * @return the response body, whether or not the status is an error
+    */
+   public static InputStream responseBody(HttpURLConnection connection) throws IOException {
+      if (connection.getResponseCode() >= 400) {
+         InputStream error = connection.getErrorStream();
+         return error != null ? error : new ByteArrayInputStream(new byte[0]);
+      }
+      return connection.getInputStream();
+   }
+
+   /**
+    * Relays status, headers and body of {@code from} to the client.
+    */
+   public static void copyResponse(HttpURLConnection from, HttpExchange to) throws IOException {
+      int status = from.getResponseCode();
+      copyResponseHeaders(from.getHeaderFields(), to.getResponseHeaders());
+      String contentLength = from.getHeaderField("Content-Length");
+      long length = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+      if ("HEAD".equals(to.getRequestMethod())) {
+         if (length >= 0)
+            to.getResponseHeaders().set("Content-Length", length + "");
+         to.sendResponseHeaders(status, -1);
+         drain(responseBody(from));
+         to.close();
+         return;
+      }
+      InputStream body = responseBody(from);
+      try {
+         // the jdk server treats 0 as chunked and -1 as no body
+         to.sendResponseHeaders(status, length == 0 ? -1 : length < 0 ? 0 : length);
+         OutputStream out = to.getResponseBody();
+         copy(body, out);
+         out.close();
+      } finally {
+         body.close();
+         to.close();
+      }
+   }
+
+   public static void copyResponseHeaders(Map<String, List<String>> from, Headers to) {
+      for (Map.Entry<String, List<String>> header : from.entrySet()) {
+         if (header.getKey() == null || HOP_BY_HOP.contains(header.getKey().toLowerCase()))
+            continue;
+         to.put(header.getKey(), header.getValue());
+      }
+   }
+
+   /**
+    * Sends a complete response held in memory.
+    */
+   public static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+      if (contentType != null)
+         exchange.getResponseHeaders().set("Content-Type", contentType);
+      if ("HEAD".equals(exchange.getRequestMethod()) || body.length == 0) {
+         exchange.getResponseHeaders().set("Content-Length", body.length + "");
+         exchange.sendResponseHeaders(status, -1);
+      } else {
+         exchange.sendResponseHeaders(status, body.length);
+         exchange.getResponseBody().write(body);
+      }
+      exchange.close();
+   }
+
+   /**
+    * Sends an S3 style error document.
+    */
+   public static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>" + code + "</Code><Message>"
+            + message + "</Message></Error>";
+      respond(exchange, status, "application/xml", xml.getBytes("UTF-8"));
+   }
+
+   public static long copy(InputStream in, OutputStream out) throws IOException {
+      byte[] buffer = new byte[64 * 1024];
+      long total = 0;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+         out.write(buffer, 0, read);
+         total += read;
+      }
+      return total;
+   }
+
+   public static byte[] readFully(InputStream in) throws IOException {
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         copy(in, out);
+         return out.toByteArray();
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * reads and discards the rest of a response so its connection can be reused
+    */
+   public static void drain(InputStream in) {
+      try {
+         byte[] buffer = new byte[8 * 1024];
+         while (in.read(buffer) != -1)
+            ;
+         in.close();
+      } catch (IOException e) {
+         // the connection will not be reused
+      }
+   }
+}
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.s3;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * S3 (version 2) request signatures, so that the Java services deployed next to
+ * vBlob can sign their own requests to it and check the ones sent to them.
+ * 
+ * <p/>
+ * Only uses the JDK, as these classes run on the nodes without the rest of
+ * whirr on the classpath.
+ */
+public class S3Signatures {
+
+   /** requests dated further from now than this are refused, as S3 does */
+   public static final long MAX_SKEW = 15 * 60 * 1000;
+
+   private static final List<String> SUB_RESOURCES = Arrays.asList("acl", "lifecycle", "location", "logging",
+         "notification", "partNumber", "policy", "requestPayment", "response-cache-control",
+         "response-content-disposition", "response-content-encoding", "response-content-language",
+         "response-content-type", "response-expires", "torrent", "uploadId", "uploads", "versionId", "versioning",
+         "versions", "website");
+
+   /**
+    * @param headers
+    *           request headers, any case; each name maps to all its values
+    * @param rawPath
+    *           path as sent on the wire, still url-encoded
+    * @param rawQuery
+    *           query as sent on the wire, or null
+    */
+   public static String stringToSign(String method, Map<String, List<String>> headers, String rawPath, String rawQuery) {
+      StringBuilder toSign = new StringBuilder();
+      toSign.append(method).append('\n');
+      toSign.append(first(headers, "Content-MD5")).append('\n');
+      toSign.append(first(headers, "Content-Type")).append('\n');
+      toSign.append(first(headers, "Date")).append('\n');
+
+      SortedMap<String, String> amzHeaders = new TreeMap<String, String>();
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (header.getKey() == null)
+            continue;
+         String name = header.getKey().toLowerCase();
+         if (name.startsWith("x-amz-")) {
+            StringBuilder values = new StringBuilder();
+            for (String value : header.getValue()) {
+               if (values.length() > 0)
+                  values.append(',');
+               values.append(value.trim());
+            }
+            amzHeaders.put(name, values.toString());
+         }
+      }
+      for (Map.Entry<String, String> header : amzHeaders.entrySet())
+         toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+
+      toSign.append(rawPath);
+      if (rawQuery != null) {
+         SortedMap<String, String> subResources = new TreeMap<String, String>();
+         for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String name = eq == -1 ? param : param.substring(0, eq);
+            if (SUB_RESOURCES.contains(name))
+               subResources.put(name, eq == -1 ? null : decode(param.substring(eq + 1)));
+         }
+         char separator = '?';
+         for (Map.Entry<String, String> subResource : subResources.entrySet()) {
+            toSign.append(separator).append(subResource.getKey());
+            if (subResource.getValue() != null)
+               toSign.append('=').append(subResource.getValue());
+            separator = '&';
+         }
+      }
+      return toSign.toString();
+   }
+
+   /**
+    * @return the value of the {@code Authorization} header for the request
+    */
+   public static String authorization(String accessKey, String secretKey, String stringToSign) {
+      return "AWS " + accessKey + ":" + sign(secretKey, stringToSign);
+   }
+
+   /**
+    * @return true if {@code authorization} is a valid signature of the request
+    *         by {@code accessKey}
+    */
+   public static boolean verify(String accessKey, String secretKey, String authorization, String stringToSign) {
+      if (authorization == null || !authorization.startsWith("AWS "))
+         return false;
+      int colon = authorization.indexOf(':');
+      if (colon == -1 || !authorization.substring(4, colon).equals(accessKey))
+         return false;
+      return constantTimeEquals(authorization.substring(colon + 1), sign(secretKey, stringToSign));
+   }
+
+   /**
+    * @return true if the {@code x-amz-date}, or else {@code Date}, header of
+    *         a request is within {@link #MAX_SKEW} of {@code now}
+    */
+   public static boolean isCurrent(Map<String, List<String>> headers, long now) {
+      String date = first(headers, "x-amz-date");
+      if (date.isEmpty())
+         date = first(headers, "Date");
+      if (date.isEmpty())
+         return false;
+      try {
+         SimpleDateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+         rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+         return Math.abs(now - rfc1123.parse(date).getTime()) <= MAX_SKEW;
+      } catch (ParseException e) {
+         return false;
+      }
+   }
+
+   public static String sign(String secretKey, String stringToSign) {
+      try {
+         Mac mac = Mac.getInstance("HmacSHA1");
+         mac.init(new SecretKeySpec(secretKey.getBytes("UTF-8"), "HmacSHA1"));
+         return DatatypeConverter.printBase64Binary(mac.doFinal(stringToSign.getBytes("UTF-8")));
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      } catch (InvalidKeyException e) {
+         throw new IllegalArgumentException(e);
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static boolean constantTimeEquals(String a, String b) {
+      if (a.length() != b.length())
+         return false;
+      int diff = 0;
+      for (int i = 0; i < a.length(); i++)
+         diff |= a.charAt(i) ^ b.charAt(i);
+      return diff == 0;
+   }
+
+   private static String first(Map<String, List<String>> headers, String name) {
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty())
+            return header.getValue().get(0);
+      }
+      return "";
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
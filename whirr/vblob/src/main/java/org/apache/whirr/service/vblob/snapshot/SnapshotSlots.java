@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.snapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+/**
+ * Which snapshot each vBlob instance restores from and saves to. Snapshots are
+ * kept in numbered slots, one per instance, and the table of slots is kept in
+ * the cluster directory, so that a recreated cluster hands every slot to one of
+ * its new instances.
+ */
+public class SnapshotSlots {
+   static final String PREFIX = "slot-";
+
+   private final SortedMap<Integer, String> slotToAddress;
+
+   SnapshotSlots(Map<Integer, String> slotToAddress) {
+      this.slotToAddress = Maps.newTreeMap();
+      this.slotToAddress.putAll(slotToAddress);
+   }
+
+   public static SnapshotSlots empty() {
+      return new SnapshotSlots(ImmutableSortedMap.<Integer, String> of());
+   }
+
+   /**
+    * @return the slots saved in {@code file}, or none if it does not exist
+    */
+   public static SnapshotSlots load(File file) throws IOException {
+      SortedMap<Integer, String> slots = Maps.newTreeMap();
+      if (file.exists()) {
+         Properties properties = new Properties();
+         InputStream in = new FileInputStream(file);
+         try {
+            properties.load(in);
+         } finally {
+            in.close();
+         }
+         for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PREFIX))
+               slots.put(Integer.parseInt(name.substring(PREFIX.length())), properties.getProperty(name));
+         }
+      }
+      return new SnapshotSlots(slots);
+   }
+
+   public void save(File file) throws IOException {
+      Properties properties = new Properties();
+      for (Map.Entry<Integer, String> slot : slotToAddress.entrySet())
+         properties.setProperty(name(slot.getKey()), slot.getValue());
+      OutputStream out = new FileOutputStream(file);
+      try {
+         properties.store(out, "vBlob snapshot slot of each instance, by private address");
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Gives each address a slot: the one it already had if it is still in the
+    * cluster, otherwise the lowest slot no current address holds, so every
+    * existing snapshot is restored before new, empty slots are used.
+    * 
+    * @return slot name by address
+    */
+   public Map<String, String> assign(Collection<String> addresses) {
+      Map<String, String> assigned = Maps.newLinkedHashMap();
+      List<Integer> free = Lists.newArrayList();
+      for (Map.Entry<Integer, String> slot : slotToAddress.entrySet()) {
+         if (addresses.contains(slot.getValue()))
+            assigned.put(slot.getValue(), name(slot.getKey()));
+         else
+            free.add(slot.getKey());
+      }
+      int next = slotToAddress.isEmpty() ? 0 : slotToAddress.lastKey() + 1;
+      for (String address : Ordering.natural().sortedCopy(addresses)) {
+         if (assigned.containsKey(address))
+            continue;
+         int slot = free.isEmpty() ? next++ : free.remove(0);
+         slotToAddress.put(slot, address);
+         assigned.put(address, name(slot));
+      }
+      return assigned;
+   }
+
+   /**
+    * @return the slot of {@code address}, or null if it has none
+    */
+   public String slotOf(String address) {
+      for (Map.Entry<Integer, String> slot : slotToAddress.entrySet()) {
+         if (slot.getValue().equals(address))
+            return name(slot.getKey());
+      }
+      return null;
+   }
+
+   static String name(int slot) {
+      return PREFIX + slot;
+   }
+
+   @Override
+   public String toString() {
+      return slotToAddress.toString();
+   }
+}
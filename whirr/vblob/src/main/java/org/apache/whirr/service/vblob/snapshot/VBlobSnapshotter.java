@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.snapshot;
+
+import static org.jclouds.compute.options.RunScriptOptions.Builder.overrideLoginCredentials;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.vblob.VBlobConfig;
+import org.apache.whirr.service.vblob.VBlobStatements;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.domain.LoginCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Snapshots the data directory of every vBlob instance into its slot, in
+ * parallel. Runs just before the instances are destroyed, when the usual
+ * statement builder is no longer run, so it talks to the nodes directly.
+ */
+public class VBlobSnapshotter {
+   private static final Logger LOG = LoggerFactory.getLogger(VBlobSnapshotter.class);
+
+   private final ComputeService compute;
+   private final ClusterSpec spec;
+   private final VBlobConfig config;
+
+   public VBlobSnapshotter(ComputeService compute, ClusterSpec spec, VBlobConfig config) {
+      this.compute = compute;
+      this.spec = spec;
+      this.config = config;
+   }
+
+   /**
+    * @throws IOException
+    *            naming every instance whose snapshot failed, so the caller
+    *            can keep the cluster rather than lose the data
+    */
+   public void snapshot(Iterable<Instance> instances, SnapshotSlots slots) throws IOException {
+      final RunScriptOptions options = overrideLoginCredentials(
+            LoginCredentials.builder().user(spec.getClusterUser()).privateKey(spec.getPrivateKey()).build())
+            .nameTask("snapshot-vblob");
+      List<String> addresses = Lists.newArrayList();
+      for (Instance instance : instances)
+         addresses.add(instance.getPrivateIp());
+      Map<String, String> assigned = slots.assign(addresses);
+
+      ExecutorService executor = Executors.newCachedThreadPool();
+      try {
+         Map<Instance, Future<ExecResponse>> snapshots = Maps.newLinkedHashMap();
+         for (final Instance instance : instances) {
+            final String slot = assigned.get(instance.getPrivateIp());
+            snapshots.put(instance, executor.submit(new Callable<ExecResponse>() {
+               @Override
+               public ExecResponse call() {
+                  LOG.info("snapshotting vBlob on {} into {}", instance.getPrivateIp(), slot);
+                  return compute.runScriptOnNode(instance.getId(), VBlobStatements.snapshot(config, slot), options);
+               }
+            }));
+         }
+         List<String> failed = Lists.newArrayList();
+         for (Map.Entry<Instance, Future<ExecResponse>> snapshot : snapshots.entrySet()) {
+            String address = snapshot.getKey().getPrivateIp();
+            try {
+               ExecResponse response = snapshot.getValue().get();
+               if (response.getExitStatus() != 0) {
+                  LOG.error("snapshot of vBlob on {} failed: {}", address, response.getError());
+                  failed.add(address);
+               } else {
+                  LOG.info("vBlob on {}: {}", address, response.getOutput().trim());
+               }
+            } catch (ExecutionException e) {
+               LOG.error("snapshot of vBlob on " + address + " failed", e.getCause());
+               failed.add(address);
+            }
+         }
+         if (!failed.isEmpty())
+            throw new IOException("could not snapshot vBlob data on " + failed);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while snapshotting vBlob", e);
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+}
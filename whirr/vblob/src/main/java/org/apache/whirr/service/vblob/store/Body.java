@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * An object body, received in full before it is appended, so a slow client
+ * never holds the append lock. Small bodies stay in memory, larger ones are
+ * spooled to a file next to the segments.
+ */
+public class Body {
+   static final int IN_MEMORY = 1024 * 1024;
+
+   private final byte[] bytes;
+   private final File spool;
+   private final long length;
+   private final byte[] md5;
+   private final CRC32 crc;
+
+   private Body(byte[] bytes, File spool, long length, byte[] md5, CRC32 crc) {
+      this.bytes = bytes;
+      this.spool = spool;
+      this.length = length;
+      this.md5 = md5;
+      this.crc = crc;
+   }
+
+   static Body empty() {
+      return new Body(new byte[0], null, 0, newDigest().digest(), new CRC32());
+   }
+
+   /**
+    * Reads {@code length} bytes of {@code in}, or all of it if {@code length}
+    * is negative.
+    */
+   public static Body read(InputStream in, long length, File spoolDir) throws IOException {
+      MessageDigest md5 = newDigest();
+      CRC32 crc = new CRC32();
+      // small bodies, the common case, should not pay for zeroing a large buffer
+      byte[] buffer = new byte[length >= 0 && length < 64 * 1024 ? (int) Math.max(length, 1) : 64 * 1024];
+      ByteArrayOutputStream memory = new ByteArrayOutputStream(length >= 0 && length <= IN_MEMORY ? (int) length
+            : 8192);
+      OutputStream out = memory;
+      File spool = null;
+      long total = 0;
+      try {
+         while (length < 0 || total < length) {
+            int read = in.read(buffer, 0, (int) (length < 0 ? buffer.length : Math.min(buffer.length, length - total)));
+            if (read == -1) {
+               if (length < 0)
+                  break;
+               throw new IOException("body ended after " + total + " of " + length + " bytes");
+            }
+            md5.update(buffer, 0, read);
+            crc.update(buffer, 0, read);
+            total += read;
+            if (spool == null && total > IN_MEMORY) {
+               spool = File.createTempFile("body", ".spool", spoolDir);
+               out = new FileOutputStream(spool);
+               memory.writeTo(out);
+               memory = null;
+            } else if (spool == null) {
+               memory.write(buffer, 0, read);
+               continue;
+            }
+            out.write(buffer, 0, read);
+         }
+      } catch (IOException e) {
+         if (spool != null) {
+            out.close();
+            spool.delete();
+         }
+         throw e;
+      }
+      if (spool != null) {
+         out.close();
+         return new Body(null, spool, total, md5.digest(), crc);
+      }
+      return new Body(memory.toByteArray(), null, total, md5.digest(), crc);
+   }
+
+   public long length() {
+      return length;
+   }
+
+   public byte[] md5() {
+      return md5.clone();
+   }
+
+   /**
+    * @return the checksum of the body, to be continued over the rest of the
+    *         record; a body is appended only once
+    */
+   CRC32 crc() {
+      return crc;
+   }
+
+   void appendTo(Segment segment) throws IOException {
+      if (bytes != null) {
+         segment.append(ByteBuffer.wrap(bytes));
+         return;
+      }
+      FileChannel channel = new RandomAccessFile(spool, "r").getChannel();
+      try {
+         segment.append(channel, 0, length);
+      } finally {
+         channel.close();
+      }
+   }
+
+   public void discard() {
+      if (spool != null)
+         spool.delete();
+   }
+
+   private static MessageDigest newDigest() {
+      try {
+         return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
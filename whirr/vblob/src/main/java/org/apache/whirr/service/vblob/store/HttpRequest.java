@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP/1.1 request read off a connection. The body is left on the
+ * connection, as a stream that ends where the request does.
+ */
+class HttpRequest {
+   private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+   private final String method;
+   private final String rawPath;
+   private final String rawQuery;
+   private final boolean http11;
+   private final Map<String, List<String>> headers;
+   private final InputStream body;
+
+   private HttpRequest(String method, String rawPath, String rawQuery, boolean http11,
+         Map<String, List<String>> headers, InputStream body) {
+      this.method = method;
+      this.rawPath = rawPath;
+      this.rawQuery = rawQuery;
+      this.http11 = http11;
+      this.headers = headers;
+      this.body = body;
+   }
+
+   /**
+    * @return the next request, or null if the client closed the connection
+    *         between requests
+    * @throws HttpException
+    *            if the request is malformed
+    */
+   static HttpRequest read(InputStream in) throws IOException {
+      int[] budget = { MAX_HEADER_BYTES };
+      String requestLine = readLine(in, budget);
+      while (requestLine != null && requestLine.isEmpty())
+         requestLine = readLine(in, budget);
+      if (requestLine == null)
+         return null;
+      String[] parts = requestLine.split(" ");
+      if (parts.length != 3 || !parts[2].startsWith("HTTP/1."))
+         throw new HttpException(400, "malformed request line");
+      String target = parts[1];
+      int question = target.indexOf('?');
+
+      Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      String line;
+      while ((line = readLine(in, budget)) != null && !line.isEmpty()) {
+         int colon = line.indexOf(':');
+         if (colon <= 0)
+            throw new HttpException(400, "malformed header");
+         String name = line.substring(0, colon).trim();
+         List<String> values = headers.get(name);
+         if (values == null)
+            headers.put(name, values = new ArrayList<String>(1));
+         values.add(line.substring(colon + 1).trim());
+      }
+      if (line == null)
+         throw new HttpException(400, "request ended in its headers");
+
+      InputStream body;
+      String transferEncoding = first(headers, "Transfer-Encoding");
+      String contentLength = first(headers, "Content-Length");
+      if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+         body = new ChunkedInputStream(in);
+      } else if (contentLength != null) {
+         try {
+            body = new BoundedInputStream(in, Long.parseLong(contentLength));
+         } catch (NumberFormatException e) {
+            throw new HttpException(400, "bad Content-Length");
+         }
+      } else {
+         body = new BoundedInputStream(in, 0);
+      }
+      return new HttpRequest(parts[0], question == -1 ? target : target.substring(0, question), question == -1
+            ? null : target.substring(question + 1), parts[2].equals("HTTP/1.1"), headers, body);
+   }
+
+   String getMethod() {
+      return method;
+   }
+
+   String getRawPath() {
+      return rawPath;
+   }
+
+   String getRawQuery() {
+      return rawQuery;
+   }
+
+   Map<String, List<String>> getHeaders() {
+      return headers;
+   }
+
+   String getHeader(String name) {
+      return first(headers, name);
+   }
+
+   InputStream getBody() {
+      return body;
+   }
+
+   /**
+    * @return the declared length of the body, or -1 if it is chunked
+    */
+   long getContentLength() {
+      return body instanceof BoundedInputStream ? ((BoundedInputStream) body).length : -1;
+   }
+
+   boolean expectsContinue() {
+      String expect = getHeader("Expect");
+      return expect != null && expect.equalsIgnoreCase("100-continue");
+   }
+
+   boolean isKeepAlive() {
+      String connection = getHeader("Connection");
+      if (http11)
+         return connection == null || !connection.equalsIgnoreCase("close");
+      return connection != null && connection.equalsIgnoreCase("keep-alive");
+   }
+
+   /**
+    * @return true if the body was read to its end, so the connection can carry
+    *         another request
+    */
+   boolean isConsumed() {
+      if (body instanceof BoundedInputStream)
+         return ((BoundedInputStream) body).remaining == 0;
+      return ((ChunkedInputStream) body).done;
+   }
+
+   private static String first(Map<String, List<String>> headers, String name) {
+      List<String> values = headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+   }
+
+   private static String readLine(InputStream in, int[] budget) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1) {
+         if (--budget[0] < 0)
+            throw new HttpException(431, "request headers are too large");
+         if (c == '\n') {
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r')
+               line.setLength(length - 1);
+            return line.toString();
+         }
+         line.append((char) c);
+      }
+      return line.length() == 0 ? null : line.toString();
+   }
+
+   /**
+    * A malformed request, answered with {@code status} and then the
+    * connection is closed.
+    */
+   static class HttpException extends IOException {
+      private static final long serialVersionUID = 1L;
+      final int status;
+
+      HttpException(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }
+
+   private static class BoundedInputStream extends InputStream {
+      private final InputStream in;
+      private final long length;
+      private long remaining;
+
+      BoundedInputStream(InputStream in, long length) {
+         this.in = in;
+         this.length = length;
+         this.remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (remaining <= 0)
+            return -1;
+         int c = in.read();
+         if (c != -1)
+            remaining--;
+         return c;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (remaining <= 0)
+            return -1;
+         int read = in.read(b, off, (int) Math.min(len, remaining));
+         if (read > 0)
+            remaining -= read;
+         return read;
+      }
+   }
+
+   private static class ChunkedInputStream extends InputStream {
+      private final InputStream in;
+      private long chunk;
+      private boolean done;
+
+      ChunkedInputStream(InputStream in) {
+         this.in = in;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] one = new byte[1];
+         return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (done)
+            return -1;
+         if (chunk == 0) {
+            int[] budget = { MAX_HEADER_BYTES };
+            String size = readLine(in, budget);
+            if (size == null)
+               throw new HttpException(400, "chunked body ended early");
+            int extension = size.indexOf(';');
+            try {
+               chunk = Long.parseLong((extension == -1 ? size : size.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+               throw new HttpException(400, "bad chunk size");
+            }
+            if (chunk == 0) {
+               // trailers, up to the empty line
+               String trailer;
+               while ((trailer = readLine(in, budget)) != null && !trailer.isEmpty())
+                  ;
+               done = true;
+               return -1;
+            }
+         }
+         int read = in.read(b, off, (int) Math.min(len, chunk));
+         if (read == -1)
+            throw new HttpException(400, "chunked body ended early");
+         chunk -= read;
+         if (chunk == 0)
+            readLine(in, new int[] { 2 });
+         return read;
+      }
+   }
+}
@@ -0,0 +1,710 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Log-structured object store. Objects are appended to large segment files
+ * instead of each getting a file of its own, and an in-memory index maps
+ * every key to the record holding it, so storing millions of small objects
+ * costs neither inodes nor directory lookups.
+ * 
+ * <ul>
+ * <li>writes are appended, one at a time, to the newest segment, which is
+ * replaced by a fresh one once it reaches {@code segmentSize}</li>
+ * <li>reads go straight from the segment to the socket, see
+ * {@link StoredObject#transferTo}</li>
+ * <li>{@link #compact} copies the live records out of segments that are
+ * mostly overwritten or deleted data, and drops them</li>
+ * <li>{@link #open} rebuilds the index from the segments; a record torn by a
+ * crash at the end of the newest segment is cut off</li>
+ * </ul>
+ */
+public class LogStore implements Closeable {
+   private static final Logger LOG = Logger.getLogger(LogStore.class.getName());
+
+   static final int MAX_KEY_LENGTH = 1024;
+
+   /**
+    * Where the record of an object or bucket is.
+    */
+   static class Location {
+      final Segment segment;
+      final long position;
+      final int metadataOffset;
+      final int headLength;
+      final long bodyLength;
+      final long lastModified;
+      final byte[] md5;
+
+      Location(Segment segment, long position, int metadataOffset, int headLength, long bodyLength,
+            long lastModified, byte[] md5) {
+         this.segment = segment;
+         this.position = position;
+         this.metadataOffset = metadataOffset;
+         this.headLength = headLength;
+         this.bodyLength = bodyLength;
+         this.lastModified = lastModified;
+         this.md5 = md5;
+      }
+
+      long length() {
+         return headLength + bodyLength;
+      }
+
+      boolean isAt(Segment segment, long position) {
+         return this.segment == segment && this.position == position;
+      }
+
+      Location movedTo(Segment segment, long position) {
+         return new Location(segment, position, metadataOffset, headLength, bodyLength, lastModified, md5);
+      }
+   }
+
+   static class Bucket {
+      final String name;
+      final ConcurrentNavigableMap<String, Location> objects = new ConcurrentSkipListMap<String, Location>();
+      volatile Location record;
+
+      Bucket(String name, Location record) {
+         this.name = name;
+         this.record = record;
+      }
+   }
+
+   /**
+    * An object being read. Its segment is kept until {@link #close()}, even if
+    * compaction drops it meanwhile.
+    */
+   public static class StoredObject implements Closeable {
+      private final String key;
+      private final Location location;
+
+      StoredObject(String key, Location location) {
+         this.key = key;
+         this.location = location;
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      public long size() {
+         return location.bodyLength;
+      }
+
+      public long lastModified() {
+         return location.lastModified;
+      }
+
+      public String eTag() {
+         return hex(location.md5);
+      }
+
+      public Map<String, String> metadata() throws IOException {
+         return Record.metadata(location.segment, location.position + location.metadataOffset,
+               location.position + location.headLength);
+      }
+
+      /**
+       * Sends {@code count} bytes of the body, starting at {@code offset}.
+       * When {@code to} is a socket, the kernel copies the bytes from the
+       * page cache without passing them through the JVM.
+       */
+      public void transferTo(long offset, long count, WritableByteChannel to) throws IOException {
+         location.segment.transferTo(location.position + location.headLength + offset, count, to);
+      }
+
+      public InputStream openStream() {
+         return new InputStream() {
+            private long offset;
+
+            @Override
+            public int read() throws IOException {
+               byte[] one = new byte[1];
+               return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+               if (offset >= location.bodyLength)
+                  return -1;
+               ByteBuffer into = ByteBuffer.wrap(b, off, (int) Math.min(len, location.bodyLength - offset)).slice();
+               location.segment.read(into, location.position + location.headLength + offset);
+               offset += into.limit();
+               return into.limit();
+            }
+         };
+      }
+
+      @Override
+      public void close() {
+         location.segment.release();
+      }
+   }
+
+   public static class Summary {
+      private final String key;
+      private final long size;
+      private final long lastModified;
+      private final String eTag;
+
+      Summary(String key, Location location) {
+         this.key = key;
+         this.size = location.bodyLength;
+         this.lastModified = location.lastModified;
+         this.eTag = hex(location.md5);
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      public long getSize() {
+         return size;
+      }
+
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      public String getETag() {
+         return eTag;
+      }
+   }
+
+   /**
+    * One page of a bucket listing.
+    */
+   public static class Listing {
+      private final List<Summary> contents = new ArrayList<Summary>();
+      private final List<String> commonPrefixes = new ArrayList<String>();
+      private boolean truncated;
+      private String nextMarker;
+
+      public List<Summary> getContents() {
+         return contents;
+      }
+
+      public List<String> getCommonPrefixes() {
+         return commonPrefixes;
+      }
+
+      public boolean isTruncated() {
+         return truncated;
+      }
+
+      public String getNextMarker() {
+         return nextMarker;
+      }
+   }
+
+   private final File dir;
+   private final File spoolDir;
+   private final long segmentSize;
+   private final boolean sync;
+   private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+   private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+   /** serializes appends, and every change to the index */
+   private final ReentrantLock appendLock = new ReentrantLock();
+   private final AtomicLong objects = new AtomicLong();
+   private final AtomicLong compactions = new AtomicLong();
+   private final AtomicLong reclaimed = new AtomicLong();
+   private volatile Segment active;
+
+   private LogStore(File dir, long segmentSize, boolean sync) {
+      this.dir = dir;
+      this.spoolDir = new File(dir, "tmp");
+      this.segmentSize = segmentSize;
+      this.sync = sync;
+   }
+
+   /**
+    * Opens the store in {@code dir}, creating it if needed.
+    * 
+    * @param segmentSize
+    *           bytes after which a new segment is started
+    * @param sync
+    *           force each write to disk before it is acknowledged; segments
+    *           are always forced when they are sealed
+    */
+   public static LogStore open(File dir, long segmentSize, boolean sync) throws IOException {
+      LogStore store = new LogStore(dir, segmentSize, sync);
+      store.recover();
+      return store;
+   }
+
+   private void recover() throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      if (spoolDir.isDirectory()) {
+         for (File spool : spoolDir.listFiles())
+            spool.delete();
+      } else if (!spoolDir.mkdirs()) {
+         throw new IOException("cannot create " + spoolDir);
+      }
+
+      String[] names = dir.list();
+      List<Long> ids = new ArrayList<Long>();
+      for (String name : names) {
+         if (Segment.isSegment(name))
+            ids.add(Segment.id(name));
+      }
+      Collections.sort(ids);
+      long started = System.currentTimeMillis();
+      for (int i = 0; i < ids.size(); i++) {
+         Segment segment = new Segment(ids.get(i), new File(dir, Segment.name(ids.get(i))));
+         segments.put(segment.getId(), segment);
+         // older segments were forced when they were sealed
+         boolean newest = i == ids.size() - 1;
+         long position = 0;
+         while (position < segment.size()) {
+            Record record = Record.read(segment, position, newest);
+            if (record == null)
+               break;
+            apply(record.type, record.bucket, record.key, new Location(segment, position, record.metadataOffset,
+                  record.headLength, record.bodyLength, record.lastModified, record.md5));
+            position += record.length();
+         }
+         if (position < segment.size()) {
+            if (newest) {
+               LOG.warning("cutting off a torn record at " + position + " of " + segment);
+               segment.truncate(position);
+            } else {
+               LOG.warning("skipping a damaged record at " + position + " of " + segment
+                     + "; the rest of the segment is lost");
+               segment.addGarbage(segment.size() - position);
+            }
+         }
+      }
+      active = ids.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+      LOG.info("recovered " + buckets.size() + " buckets and " + objects.get() + " objects from "
+            + segments.size() + " segments in " + (System.currentTimeMillis() - started) + "ms");
+   }
+
+   private Segment newSegment(long id) throws IOException {
+      Segment segment = new Segment(id, new File(dir, Segment.name(id)));
+      segments.put(id, segment);
+      return segment;
+   }
+
+   /**
+    * @return where bodies too large to hold in memory are spooled
+    */
+   public File spoolDir() {
+      return spoolDir;
+   }
+
+   /**
+    * @return creation time by bucket name
+    */
+   public SortedMap<String, Long> buckets() {
+      SortedMap<String, Long> names = new TreeMap<String, Long>();
+      for (Bucket bucket : buckets.values())
+         names.put(bucket.name, bucket.record == null ? 0 : bucket.record.lastModified);
+      return names;
+   }
+
+   public boolean bucketExists(String bucket) {
+      return buckets.containsKey(bucket);
+   }
+
+   /**
+    * @return false if the bucket already exists
+    */
+   public boolean createBucket(String bucket) throws IOException {
+      Location location;
+      appendLock.lock();
+      try {
+         if (buckets.containsKey(bucket))
+            return false;
+         location = append(Record.CREATE_BUCKET, bucket, "", Collections.<String, String> emptyMap(), Body.empty());
+         apply(Record.CREATE_BUCKET, bucket, "", location);
+      } finally {
+         appendLock.unlock();
+      }
+      sync(location);
+      return true;
+   }
+
+   public void deleteBucket(String bucket) throws IOException, S3Exception {
+      Location location;
+      appendLock.lock();
+      try {
+         Bucket existing = buckets.get(bucket);
+         if (existing == null)
+            throw S3Exception.noSuchBucket(bucket);
+         if (!existing.objects.isEmpty())
+            throw new S3Exception(409, "BucketNotEmpty", "The bucket you tried to delete is not empty: " + bucket);
+         location = append(Record.DELETE_BUCKET, bucket, "", Collections.<String, String> emptyMap(), Body.empty());
+         apply(Record.DELETE_BUCKET, bucket, "", location);
+      } finally {
+         appendLock.unlock();
+      }
+      sync(location);
+   }
+
+   /**
+    * Stores {@code body} under {@code key}, replacing what was there.
+    * 
+    * @return the ETag of the object
+    */
+   public String put(String bucket, String key, Map<String, String> metadata, Body body) throws IOException,
+         S3Exception {
+      checkKey(key);
+      Location location;
+      appendLock.lock();
+      try {
+         if (!buckets.containsKey(bucket))
+            throw S3Exception.noSuchBucket(bucket);
+         location = append(Record.PUT_OBJECT, bucket, key, metadata, body);
+         apply(Record.PUT_OBJECT, bucket, key, location);
+      } finally {
+         appendLock.unlock();
+         body.discard();
+      }
+      sync(location);
+      return hex(location.md5);
+   }
+
+   /**
+    * @return the object, which the caller must close, or null if there is none
+    */
+   public StoredObject open(String bucket, String key) throws S3Exception {
+      while (true) {
+         Bucket existing = buckets.get(bucket);
+         if (existing == null)
+            throw S3Exception.noSuchBucket(bucket);
+         Location location = existing.objects.get(key);
+         if (location == null)
+            return null;
+         // fails if compaction dropped the segment, which moved the object first
+         if (location.segment.retain())
+            return new StoredObject(key, location);
+      }
+   }
+
+   /**
+    * @return false if there was no such object
+    */
+   public boolean delete(String bucket, String key) throws IOException, S3Exception {
+      Location location;
+      appendLock.lock();
+      try {
+         Bucket existing = buckets.get(bucket);
+         if (existing == null)
+            throw S3Exception.noSuchBucket(bucket);
+         if (!existing.objects.containsKey(key))
+            return false;
+         location = append(Record.DELETE_OBJECT, bucket, key, Collections.<String, String> emptyMap(), Body.empty());
+         apply(Record.DELETE_OBJECT, bucket, key, location);
+      } finally {
+         appendLock.unlock();
+      }
+      sync(location);
+      return true;
+   }
+
+   /**
+    * Lists keys in order, as S3 does: keys after {@code marker} that start
+    * with {@code prefix}, with keys that share a part up to the next
+    * {@code delimiter} rolled up into one common prefix.
+    */
+   public Listing list(String bucket, String prefix, String marker, String delimiter, int maxKeys)
+         throws S3Exception {
+      Bucket existing = buckets.get(bucket);
+      if (existing == null)
+         throw S3Exception.noSuchBucket(bucket);
+      prefix = prefix == null ? "" : prefix;
+      if (delimiter != null && delimiter.isEmpty())
+         delimiter = null;
+
+      Listing listing = new Listing();
+      String cursor = prefix;
+      boolean inclusive = true;
+      if (marker != null && marker.compareTo(prefix) >= 0) {
+         cursor = marker;
+         inclusive = false;
+         // a marker that is a common prefix skips everything under it
+         if (delimiter != null && marker.startsWith(prefix) && marker.endsWith(delimiter)
+               && marker.length() > prefix.length())
+            cursor = marker + Character.MAX_VALUE;
+      }
+      int count = 0;
+      while (true) {
+         Map.Entry<String, Location> entry = inclusive ? existing.objects.ceilingEntry(cursor) : existing.objects
+               .higherEntry(cursor);
+         if (entry == null || !entry.getKey().startsWith(prefix))
+            break;
+         if (count == maxKeys) {
+            listing.truncated = true;
+            break;
+         }
+         String key = entry.getKey();
+         int next = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+         if (next != -1) {
+            String commonPrefix = key.substring(0, next + delimiter.length());
+            listing.commonPrefixes.add(commonPrefix);
+            listing.nextMarker = commonPrefix;
+            cursor = commonPrefix + Character.MAX_VALUE;
+         } else {
+            listing.contents.add(new Summary(key, entry.getValue()));
+            listing.nextMarker = key;
+            cursor = key;
+         }
+         inclusive = false;
+         count++;
+      }
+      if (!listing.truncated)
+         listing.nextMarker = null;
+      return listing;
+   }
+
+   /**
+    * Rewrites the live records of every sealed segment in which at least
+    * {@code garbagePercent} of the bytes are overwritten or deleted objects,
+    * then drops it. Writers wait for one record at a time at most.
+    * 
+    * @return the number of segments dropped
+    */
+   public int compact(int garbagePercent) throws IOException {
+      int dropped = 0;
+      for (Segment segment : segments.values()) {
+         if (segment == active)
+            continue;
+         if (segment.size() > 0 && segment.garbage() * 100 < segment.size() * garbagePercent)
+            continue;
+         long started = System.currentTimeMillis();
+         long moved = 0;
+         long position = 0;
+         while (position < segment.size()) {
+            Record record = Record.read(segment, position, false);
+            if (record == null)
+               break;
+            if (moveIfLive(segment, position, record))
+               moved += record.length();
+            position += record.length();
+         }
+         // the moved records must be on disk before the originals go
+         Segment current = active;
+         current.sync(current.size());
+         segments.remove(segment.getId());
+         segment.drop();
+         compactions.incrementAndGet();
+         reclaimed.addAndGet(segment.size() - moved);
+         dropped++;
+         LOG.info("compacted " + segment + ": moved " + moved + " of " + segment.size() + " bytes in "
+               + (System.currentTimeMillis() - started) + "ms");
+      }
+      return dropped;
+   }
+
+   private boolean moveIfLive(Segment segment, long position, Record record) throws IOException {
+      appendLock.lock();
+      try {
+         Bucket bucket = buckets.get(record.bucket);
+         // deletes are kept while an older segment may still hold what they deleted
+         boolean older = segments.firstKey() < segment.getId();
+         switch (record.type) {
+         case Record.PUT_OBJECT:
+            Location object = bucket == null ? null : bucket.objects.get(record.key);
+            if (object == null || !object.isAt(segment, position))
+               return false;
+            bucket.objects.put(record.key, object.movedTo(active, copy(segment, position, record)));
+            return true;
+         case Record.CREATE_BUCKET:
+            if (bucket == null || bucket.record == null || !bucket.record.isAt(segment, position))
+               return false;
+            bucket.record = bucket.record.movedTo(active, copy(segment, position, record));
+            return true;
+         case Record.DELETE_OBJECT:
+            if (!older || (bucket != null && bucket.objects.containsKey(record.key)))
+               return false;
+            copy(segment, position, record);
+            return true;
+         default:
+            if (!older || bucket != null)
+               return false;
+            copy(segment, position, record);
+            return true;
+         }
+      } finally {
+         appendLock.unlock();
+      }
+   }
+
+   /**
+    * @return the position of the copy in the active segment
+    */
+   private long copy(Segment from, long position, Record record) throws IOException {
+      rollIfFull();
+      long copy = active.size();
+      active.append(from.channel(), position, record.length());
+      return copy;
+   }
+
+   private Location append(byte type, String bucket, String key, Map<String, String> metadata, Body body)
+         throws IOException {
+      long lastModified = System.currentTimeMillis();
+      byte[] md5 = body.md5();
+      ByteBuffer head = Record.head(type, bucket, key, metadata, body.length(), lastModified, md5, body.crc());
+      int headLength = head.remaining();
+      rollIfFull();
+      Segment segment = active;
+      long position = segment.size();
+      try {
+         segment.append(head);
+         body.appendTo(segment);
+      } catch (IOException e) {
+         segment.truncate(position);
+         throw e;
+      }
+      return new Location(segment, position, Record.metadataOffset(bucket, key), headLength, body.length(),
+            lastModified, md5);
+   }
+
+   private void rollIfFull() throws IOException {
+      if (active.size() < segmentSize)
+         return;
+      Segment sealed = active;
+      sealed.sync(sealed.size());
+      active = newSegment(sealed.getId() + 1);
+   }
+
+   private void sync(Location location) throws IOException {
+      if (sync)
+         location.segment.sync(location.position + location.length());
+   }
+
+   /**
+    * Applies a record to the index, both when it is written and when it is
+    * replayed, and accounts for the records it makes obsolete.
+    * 
+    * <p/>
+    * Compaction moves the record that created a bucket behind the objects put
+    * into it, so on replay an object may arrive before its bucket does. Since
+    * objects are only ever put into existing buckets, and buckets are only
+    * deleted once empty, such an object creates the bucket, and the record
+    * that follows completes it.
+    */
+   private void apply(byte type, String bucket, String key, Location location) {
+      Bucket existing = buckets.get(bucket);
+      switch (type) {
+      case Record.PUT_OBJECT:
+         if (existing == null)
+            buckets.put(bucket, existing = new Bucket(bucket, null));
+         Location replaced = existing.objects.put(key, location);
+         if (replaced != null)
+            replaced.segment.addGarbage(replaced.length());
+         else
+            objects.incrementAndGet();
+         break;
+      case Record.DELETE_OBJECT:
+         Location deleted = existing == null ? null : existing.objects.remove(key);
+         if (deleted != null) {
+            deleted.segment.addGarbage(deleted.length());
+            objects.decrementAndGet();
+         }
+         break;
+      case Record.CREATE_BUCKET:
+         if (existing == null)
+            buckets.put(bucket, new Bucket(bucket, location));
+         else if (existing.record == null)
+            existing.record = location;
+         else
+            location.segment.addGarbage(location.length());
+         break;
+      case Record.DELETE_BUCKET:
+         if (existing == null)
+            break;
+         buckets.remove(bucket);
+         if (existing.record != null)
+            existing.record.segment.addGarbage(existing.record.length());
+         for (Location object : existing.objects.values()) {
+            object.segment.addGarbage(object.length());
+            objects.decrementAndGet();
+         }
+         break;
+      }
+   }
+
+   private static void checkKey(String key) throws S3Exception {
+      if (key.isEmpty() || Record.utf8(key).length > MAX_KEY_LENGTH)
+         throw new S3Exception(400, "KeyTooLongError", "Your key is too long");
+   }
+
+   /**
+    * @return one {@code name: value} line per counter
+    */
+   public String stats() {
+      long size = 0;
+      long garbage = 0;
+      for (Segment segment : segments.values()) {
+         size += segment.size();
+         garbage += segment.garbage();
+      }
+      return "buckets: " + buckets.size() + "\nobjects: " + objects.get() + "\nsegments: " + segments.size()
+            + "\nbytes: " + size + "\ngarbage: " + garbage + "\ncompactions: " + compactions.get()
+            + "\nreclaimed: " + reclaimed.get() + "\n";
+   }
+
+   @Override
+   public void close() throws IOException {
+      appendLock.lock();
+      try {
+         active.sync(active.size());
+         for (Segment segment : segments.values())
+            segment.release();
+         segments.clear();
+      } finally {
+         appendLock.unlock();
+      }
+   }
+
+   static String hex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes)
+         hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return hex.toString();
+   }
+
+   @Override
+   public String toString() {
+      return "LogStore(" + dir + ")";
+   }
+}
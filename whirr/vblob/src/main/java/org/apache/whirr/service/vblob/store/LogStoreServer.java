@@ -0,0 +1,721 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+import org.apache.whirr.service.vblob.store.LogStore.Listing;
+import org.apache.whirr.service.vblob.store.LogStore.StoredObject;
+import org.apache.whirr.service.vblob.store.LogStore.Summary;
+
+/**
+ * Serves a {@link LogStore} over the subset of the S3 REST API that vBlob
+ * offers: path style buckets, object PUT (and copy), GET with ranges and
+ * conditions, HEAD and DELETE, and listings with prefixes, markers and
+ * delimiters. Requests must be signed with the configured keys.
+ * 
+ * <p/>
+ * Each connection is served by one thread from a pool. The server writes to
+ * the socket channel itself rather than through a stream, so that object
+ * bodies go from the segment files to the socket with
+ * {@link java.nio.channels.FileChannel#transferTo}. Counters are available at
+ * {@code /_store/stats}.
+ */
+public class LogStoreServer {
+   private static final Logger LOG = Logger.getLogger(LogStoreServer.class.getName());
+
+   static final String STATS_PATH = "/_store/stats";
+
+   private static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+
+   /** headers kept with an object and returned with it */
+   private static final String[] STORED_HEADERS = { "Content-Type", "Content-Encoding", "Content-Disposition",
+         "Content-Language", "Cache-Control", "Expires" };
+
+   private final LogStore store;
+   private final String accessKey;
+   private final String secretKey;
+
+   public LogStoreServer(LogStore store, String accessKey, String secretKey) {
+      this.store = store;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+   }
+
+   /**
+    * Serves requests on {@code connection} until the client closes it, sends
+    * a bad request, or is idle past the socket timeout.
+    */
+   void serve(SocketChannel connection) {
+      try {
+         InputStream in = new BufferedInputStream(connection.socket().getInputStream(), 16 * 1024);
+         while (true) {
+            HttpRequest request;
+            try {
+               request = HttpRequest.read(in);
+            } catch (HttpRequest.HttpException e) {
+               send(connection, e.status, new LinkedHashMap<String, String>(), error("InvalidRequest", e
+                     .getMessage()), false, false);
+               return;
+            }
+            if (request == null || !handle(request, connection))
+               return;
+         }
+      } catch (SocketTimeoutException idle) {
+         // nothing came on a kept alive connection
+      } catch (ClosedChannelException closed) {
+         // the client went away
+      } catch (IOException e) {
+         LOG.log(Level.FINE, "connection failed", e);
+      } finally {
+         try {
+            connection.close();
+         } catch (IOException ignored) {
+         }
+      }
+   }
+
+   /**
+    * @return true if the connection can carry another request
+    */
+   boolean handle(HttpRequest request, SocketChannel out) throws IOException {
+      Map<String, String> headers = new LinkedHashMap<String, String>();
+      try {
+         route(request, headers, out);
+      } catch (S3Exception e) {
+         headers.clear();
+         // a body we did not read is still on the connection
+         boolean keepAlive = request.isKeepAlive() && request.isConsumed();
+         send(out, e.getStatus(), headers, error(e.getCode(), e.getMessage()), "HEAD".equals(request
+               .getMethod()), keepAlive);
+         return keepAlive;
+      }
+      return request.isKeepAlive() && request.isConsumed();
+   }
+
+   private void route(HttpRequest request, Map<String, String> headers, SocketChannel out) throws IOException,
+         S3Exception {
+      String method = request.getMethod();
+      boolean head = "HEAD".equals(method);
+      boolean keepAlive = request.isKeepAlive();
+      if (STATS_PATH.equals(request.getRawPath())) {
+         headers.put("Content-Type", "text/plain");
+         send(out, 200, headers, store.stats().getBytes("UTF-8"), head, keepAlive);
+         return;
+      }
+      authenticate(request);
+
+      String path = decodePath(request.getRawPath());
+      Map<String, String> query = parseQuery(request.getRawQuery());
+      for (String name : query.keySet()) {
+         if (!name.equals("prefix") && !name.equals("marker") && !name.equals("delimiter")
+               && !name.equals("max-keys") && !name.startsWith("response-"))
+            throw new S3Exception(501, "NotImplemented", "?" + name + " is not supported");
+      }
+      int slash = path.indexOf('/', 1);
+      String bucket = slash == -1 ? path.substring(1) : path.substring(1, slash);
+      String key = slash == -1 ? "" : path.substring(slash + 1);
+
+      if (bucket.isEmpty()) {
+         if (!"GET".equals(method) && !head)
+            throw new S3Exception(405, "MethodNotAllowed", method + " is not allowed on the service");
+         headers.put("Content-Type", "application/xml");
+         send(out, 200, headers, listBuckets(), head, keepAlive);
+      } else if (key.isEmpty()) {
+         checkBucketName(bucket);
+         if ("GET".equals(method)) {
+            headers.put("Content-Type", "application/xml");
+            send(out, 200, headers, listObjects(bucket, query), false, keepAlive);
+         } else if (head) {
+            if (!store.bucketExists(bucket))
+               throw S3Exception.noSuchBucket(bucket);
+            send(out, 200, headers, new byte[0], true, keepAlive);
+         } else if ("PUT".equals(method)) {
+            // the location constraint, if any, does not apply to a single store
+            discard(request, out);
+            store.createBucket(bucket);
+            headers.put("Location", "/" + bucket);
+            send(out, 200, headers, new byte[0], false, keepAlive);
+         } else if ("DELETE".equals(method)) {
+            store.deleteBucket(bucket);
+            send(out, 204, headers, new byte[0], false, keepAlive);
+         } else {
+            throw new S3Exception(405, "MethodNotAllowed", method + " is not allowed on a bucket");
+         }
+      } else if ("GET".equals(method) || head) {
+         get(request, bucket, key, headers, out);
+      } else if ("PUT".equals(method)) {
+         if (request.getHeader("x-amz-copy-source") != null)
+            copy(request, bucket, key, headers, out);
+         else
+            put(request, bucket, key, headers, out);
+      } else if ("DELETE".equals(method)) {
+         store.delete(bucket, key);
+         send(out, 204, headers, new byte[0], false, keepAlive);
+      } else {
+         throw new S3Exception(405, "MethodNotAllowed", method + " is not allowed on an object");
+      }
+   }
+
+   private void authenticate(HttpRequest request) throws S3Exception {
+      String authorization = request.getHeader("Authorization");
+      if (authorization == null)
+         throw new S3Exception(403, "AccessDenied", "Access Denied");
+      if (!S3Signatures.isCurrent(request.getHeaders(), System.currentTimeMillis()))
+         throw new S3Exception(403, "RequestTimeTooSkewed",
+               "The difference between the request time and the current time is too large.");
+      String toSign = S3Signatures.stringToSign(request.getMethod(), request.getHeaders(), request.getRawPath(),
+            request.getRawQuery());
+      if (!S3Signatures.verify(accessKey, secretKey, authorization, toSign))
+         throw new S3Exception(403, "SignatureDoesNotMatch",
+               "The request signature we calculated does not match the signature you provided.");
+   }
+
+   private void put(HttpRequest request, String bucket, String key, Map<String, String> headers, SocketChannel out)
+         throws IOException, S3Exception {
+      if (!store.bucketExists(bucket))
+         throw S3Exception.noSuchBucket(bucket);
+      if (request.expectsContinue())
+         out.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII")));
+      Body body = Body.read(request.getBody(), request.getContentLength(), store.spoolDir());
+      String contentMD5 = request.getHeader("Content-MD5");
+      if (contentMD5 != null) {
+         byte[] expected;
+         try {
+            expected = DatatypeConverter.parseBase64Binary(contentMD5);
+         } catch (IllegalArgumentException e) {
+            expected = null;
+         }
+         if (expected == null || !Arrays.equals(expected, body.md5())) {
+            body.discard();
+            throw new S3Exception(400, "BadDigest", "The Content-MD5 you specified did not match what we received.");
+         }
+      }
+      String eTag = store.put(bucket, key, metadata(request.getHeaders()), body);
+      headers.put("ETag", "\"" + eTag + "\"");
+      send(out, 200, headers, new byte[0], false, request.isKeepAlive());
+   }
+
+   private void copy(HttpRequest request, String bucket, String key, Map<String, String> headers, SocketChannel out)
+         throws IOException, S3Exception {
+      String source = decodePath(request.getHeader("x-amz-copy-source"));
+      if (!source.startsWith("/"))
+         source = "/" + source;
+      int slash = source.indexOf('/', 1);
+      if (slash == -1 || slash == source.length() - 1)
+         throw new S3Exception(400, "InvalidArgument", "x-amz-copy-source must name an object");
+      discard(request, out);
+      if (!store.bucketExists(bucket))
+         throw S3Exception.noSuchBucket(bucket);
+      StoredObject object = store.open(source.substring(1, slash), source.substring(slash + 1));
+      if (object == null)
+         throw new S3Exception(404, "NoSuchKey", "The specified key does not exist.");
+      Body body;
+      Map<String, String> metadata;
+      try {
+         body = Body.read(object.openStream(), object.size(), store.spoolDir());
+         metadata = "REPLACE".equalsIgnoreCase(request.getHeader("x-amz-metadata-directive")) ? metadata(request
+               .getHeaders()) : object.metadata();
+      } finally {
+         object.close();
+      }
+      String eTag = store.put(bucket, key, metadata, body);
+      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<CopyObjectResult xmlns=\"" + XMLNS
+            + "\"><LastModified>" + iso8601(System.currentTimeMillis()) + "</LastModified><ETag>&quot;" + eTag
+            + "&quot;</ETag></CopyObjectResult>";
+      headers.put("Content-Type", "application/xml");
+      send(out, 200, headers, xml.getBytes("UTF-8"), false, request.isKeepAlive());
+   }
+
+   private void get(HttpRequest request, String bucket, String key, Map<String, String> headers, SocketChannel out)
+         throws IOException, S3Exception {
+      boolean head = "HEAD".equals(request.getMethod());
+      StoredObject object = store.open(bucket, key);
+      if (object == null)
+         throw new S3Exception(404, "NoSuchKey", "The specified key does not exist.");
+      try {
+         String eTag = "\"" + object.eTag() + "\"";
+         long lastModified = object.lastModified() / 1000 * 1000;
+         Map<String, String> metadata = object.metadata();
+         headers.put("Content-Type", metadata.containsKey("Content-Type") ? metadata.remove("Content-Type")
+               : "binary/octet-stream");
+         headers.putAll(metadata);
+         headers.put("ETag", eTag);
+         headers.put("Last-Modified", rfc1123(lastModified));
+         headers.put("Accept-Ranges", "bytes");
+
+         String ifMatch = request.getHeader("If-Match");
+         if (ifMatch != null && !matches(ifMatch, eTag))
+            throw new S3Exception(412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+         long ifUnmodifiedSince = parseDate(request.getHeader("If-Unmodified-Since"));
+         if (ifUnmodifiedSince != -1 && lastModified > ifUnmodifiedSince)
+            throw new S3Exception(412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+         String ifNoneMatch = request.getHeader("If-None-Match");
+         long ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+         if (ifNoneMatch != null ? matches(ifNoneMatch, eTag) : ifModifiedSince != -1
+               && lastModified <= ifModifiedSince) {
+            headers.remove("Content-Type");
+            sendHeaders(out, 304, headers, -1, request.isKeepAlive());
+            return;
+         }
+
+         long size = object.size();
+         long start = 0;
+         long length = size;
+         int status = 200;
+         long[] range = parseRange(request.getHeader("Range"), size);
+         if (range != null) {
+            if (range.length == 0) {
+               headers.clear();
+               headers.put("Content-Range", "bytes */" + size);
+               throw new S3Exception(416, "InvalidRange", "The requested range is not satisfiable");
+            }
+            start = range[0];
+            length = range[1] - range[0] + 1;
+            status = 206;
+            headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+         }
+         for (Map.Entry<String, String> override : parseQuery(request.getRawQuery()).entrySet()) {
+            if (override.getKey().startsWith("response-"))
+               headers.put(responseHeader(override.getKey().substring("response-".length())), override.getValue());
+         }
+         sendHeaders(out, status, headers, length, request.isKeepAlive());
+         if (!head)
+            object.transferTo(start, length, out);
+      } finally {
+         object.close();
+      }
+   }
+
+   private byte[] listBuckets() throws IOException {
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      xml.append("<ListAllMyBucketsResult xmlns=\"").append(XMLNS).append("\">");
+      owner(xml);
+      xml.append("<Buckets>");
+      for (Map.Entry<String, Long> bucket : store.buckets().entrySet()) {
+         xml.append("<Bucket><Name>").append(escape(bucket.getKey())).append("</Name><CreationDate>")
+               .append(iso8601(bucket.getValue())).append("</CreationDate></Bucket>");
+      }
+      xml.append("</Buckets></ListAllMyBucketsResult>");
+      return xml.toString().getBytes("UTF-8");
+   }
+
+   private byte[] listObjects(String bucket, Map<String, String> query) throws IOException, S3Exception {
+      int maxKeys = 1000;
+      if (query.containsKey("max-keys")) {
+         try {
+            maxKeys = Math.min(1000, Integer.parseInt(query.get("max-keys")));
+         } catch (NumberFormatException e) {
+            maxKeys = -1;
+         }
+         if (maxKeys < 0)
+            throw new S3Exception(400, "InvalidArgument", "max-keys must be a number from 0 to 1000");
+      }
+      String prefix = query.get("prefix");
+      String marker = query.get("marker");
+      String delimiter = query.get("delimiter");
+      Listing listing = store.list(bucket, prefix, marker, delimiter, maxKeys);
+
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      xml.append("<ListBucketResult xmlns=\"").append(XMLNS).append("\">");
+      xml.append("<Name>").append(escape(bucket)).append("</Name>");
+      xml.append("<Prefix>").append(escape(prefix == null ? "" : prefix)).append("</Prefix>");
+      xml.append("<Marker>").append(escape(marker == null ? "" : marker)).append("</Marker>");
+      xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+      if (delimiter != null)
+         xml.append("<Delimiter>").append(escape(delimiter)).append("</Delimiter>");
+      xml.append("<IsTruncated>").append(listing.isTruncated()).append("</IsTruncated>");
+      if (listing.getNextMarker() != null)
+         xml.append("<NextMarker>").append(escape(listing.getNextMarker())).append("</NextMarker>");
+      for (Summary summary : listing.getContents()) {
+         xml.append("<Contents><Key>").append(escape(summary.getKey())).append("</Key><LastModified>")
+               .append(iso8601(summary.getLastModified())).append("</LastModified><ETag>&quot;")
+               .append(summary.getETag()).append("&quot;</ETag><Size>").append(summary.getSize()).append("</Size>");
+         owner(xml);
+         xml.append("<StorageClass>STANDARD</StorageClass></Contents>");
+      }
+      for (String commonPrefix : listing.getCommonPrefixes())
+         xml.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>");
+      xml.append("</ListBucketResult>");
+      return xml.toString().getBytes("UTF-8");
+   }
+
+   private void owner(StringBuilder xml) {
+      xml.append("<Owner><ID>").append(escape(accessKey)).append("</ID><DisplayName>").append(escape(accessKey))
+            .append("</DisplayName></Owner>");
+   }
+
+   /**
+    * Reads and drops a request body we have no use for, such as a bucket's
+    * location constraint.
+    */
+   private static void discard(HttpRequest request, SocketChannel out) throws IOException {
+      if (request.isConsumed())
+         return;
+      if (request.expectsContinue())
+         out.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII")));
+      InputStream body = request.getBody();
+      byte[] buffer = new byte[8192];
+      while (body.read(buffer) != -1)
+         ;
+   }
+
+   private static Map<String, String> metadata(Map<String, List<String>> headers) {
+      Map<String, String> metadata = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      for (String name : STORED_HEADERS) {
+         List<String> values = headers.get(name);
+         if (values != null && !values.isEmpty())
+            metadata.put(name, values.get(0));
+      }
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (header.getKey().toLowerCase().startsWith("x-amz-meta-"))
+            metadata.put(header.getKey().toLowerCase(), join(header.getValue()));
+      }
+      return metadata;
+   }
+
+   private static String join(List<String> values) {
+      StringBuilder joined = new StringBuilder();
+      for (String value : values) {
+         if (joined.length() > 0)
+            joined.append(',');
+         joined.append(value);
+      }
+      return joined.toString();
+   }
+
+   private static String responseHeader(String name) {
+      StringBuilder header = new StringBuilder();
+      for (String part : name.split("-")) {
+         if (header.length() > 0)
+            header.append('-');
+         if (!part.isEmpty())
+            header.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+      }
+      return header.toString();
+   }
+
+   private static boolean matches(String condition, String eTag) {
+      for (String value : condition.split(",")) {
+         value = value.trim();
+         if (value.equals("*") || value.equals(eTag) || value.equals(eTag.replace("\"", "")))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return first and last byte of a single {@code bytes=} range, an empty
+    *         array if it cannot be satisfied, or null to send the whole body
+    */
+   static long[] parseRange(String range, long size) {
+      if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1)
+         return null;
+      String spec = range.substring("bytes=".length()).trim();
+      int dash = spec.indexOf('-');
+      if (dash == -1)
+         return null;
+      try {
+         long first;
+         long last;
+         if (dash == 0) {
+            long suffix = Long.parseLong(spec.substring(1));
+            if (suffix == 0)
+               return new long[0];
+            first = Math.max(0, size - suffix);
+            last = size - 1;
+         } else {
+            first = Long.parseLong(spec.substring(0, dash));
+            last = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+            if (last < first && dash != spec.length() - 1)
+               return null;
+         }
+         if (first >= size)
+            return new long[0];
+         return new long[] { first, last };
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   private static void checkBucketName(String bucket) throws S3Exception {
+      if (bucket.length() > 255 || !bucket.matches("[A-Za-z0-9._-]+"))
+         throw new S3Exception(400, "InvalidBucketName", "The specified bucket is not valid: " + bucket);
+   }
+
+   /**
+    * Decodes a path; unlike a query, a {@code +} in a path is not a space.
+    */
+   static String decodePath(String raw) throws S3Exception {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length());
+      for (int i = 0; i < raw.length(); i++) {
+         char c = raw.charAt(i);
+         if (c == '%') {
+            if (i + 2 >= raw.length())
+               throw new S3Exception(400, "InvalidURI", "Couldn't parse the specified URI.");
+            int hi = Character.digit(raw.charAt(i + 1), 16);
+            int lo = Character.digit(raw.charAt(i + 2), 16);
+            if (hi == -1 || lo == -1)
+               throw new S3Exception(400, "InvalidURI", "Couldn't parse the specified URI.");
+            bytes.write(hi << 4 | lo);
+            i += 2;
+         } else {
+            byte[] utf8 = Record.utf8(String.valueOf(c));
+            bytes.write(utf8, 0, utf8.length);
+         }
+      }
+      try {
+         return bytes.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static Map<String, String> parseQuery(String rawQuery) throws S3Exception {
+      Map<String, String> query = new LinkedHashMap<String, String>();
+      if (rawQuery == null || rawQuery.isEmpty())
+         return query;
+      try {
+         for (String param : rawQuery.split("&")) {
+            if (param.isEmpty())
+               continue;
+            int eq = param.indexOf('=');
+            query.put(URLDecoder.decode(eq == -1 ? param : param.substring(0, eq), "UTF-8"), eq == -1 ? null
+                  : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+         }
+      } catch (IllegalArgumentException e) {
+         throw new S3Exception(400, "InvalidURI", "Couldn't parse the specified URI.");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+      return query;
+   }
+
+   private static long parseDate(String date) {
+      if (date == null)
+         return -1;
+      try {
+         return rfc1123Format().parse(date).getTime();
+      } catch (ParseException e) {
+         return -1;
+      }
+   }
+
+   private static SimpleDateFormat rfc1123Format() {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format;
+   }
+
+   private static String rfc1123(long time) {
+      return rfc1123Format().format(new Date(time));
+   }
+
+   private static String iso8601(long time) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format.format(new Date(time));
+   }
+
+   private static String escape(String value) {
+      return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+   }
+
+   private static byte[] error(String code, String message) throws UnsupportedEncodingException {
+      return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>" + code + "</Code><Message>"
+            + escape(message) + "</Message></Error>").getBytes("UTF-8");
+   }
+
+   private static void send(SocketChannel out, int status, Map<String, String> headers, byte[] body, boolean head,
+         boolean keepAlive) throws IOException {
+      if (body.length > 0 && !headers.containsKey("Content-Type"))
+         headers.put("Content-Type", "application/xml");
+      sendHeaders(out, status, headers, body.length, keepAlive);
+      if (!head && body.length > 0)
+         write(out, ByteBuffer.wrap(body));
+   }
+
+   /**
+    * @param length
+    *           of the body to follow, or -1 for none
+    */
+   private static void sendHeaders(SocketChannel out, int status, Map<String, String> headers, long length,
+         boolean keepAlive) throws IOException {
+      StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason(status))
+            .append("\r\n");
+      response.append("Date: ").append(rfc1123(System.currentTimeMillis())).append("\r\n");
+      response.append("Server: vblob-store\r\n");
+      for (Map.Entry<String, String> header : headers.entrySet())
+         response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      if (status != 304 && status != 204)
+         response.append("Content-Length: ").append(Math.max(0, length)).append("\r\n");
+      if (!keepAlive)
+         response.append("Connection: close\r\n");
+      response.append("\r\n");
+      write(out, ByteBuffer.wrap(response.toString().getBytes("UTF-8")));
+   }
+
+   private static void write(SocketChannel out, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining())
+         out.write(buffer);
+   }
+
+   private static String reason(int status) {
+      switch (status) {
+      case 200:
+         return "OK";
+      case 204:
+         return "No Content";
+      case 206:
+         return "Partial Content";
+      case 304:
+         return "Not Modified";
+      case 400:
+         return "Bad Request";
+      case 403:
+         return "Forbidden";
+      case 404:
+         return "Not Found";
+      case 405:
+         return "Method Not Allowed";
+      case 409:
+         return "Conflict";
+      case 412:
+         return "Precondition Failed";
+      case 416:
+         return "Requested Range Not Satisfiable";
+      case 431:
+         return "Request Header Fields Too Large";
+      case 501:
+         return "Not Implemented";
+      default:
+         return "Error";
+      }
+   }
+
+   /**
+    * Starts the store with settings from the properties file named by the
+    * first argument.
+    */
+   public static void main(String... args) throws IOException {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      final LogStore store = LogStore.open(new File(settings.getProperty("dir", "/data/vblob")), Long
+            .parseLong(settings.getProperty("segment-size", "268435456")), Boolean.parseBoolean(settings
+            .getProperty("sync", "true")));
+      final LogStoreServer server = new LogStoreServer(store, settings.getProperty("auth.access-key"), settings
+            .getProperty("auth.secret-key"));
+      final int idleTimeout = Integer.parseInt(settings.getProperty("idle-timeout", "60000"));
+      final int compactThreshold = Integer.parseInt(settings.getProperty("compact-threshold", "50"));
+      long compactInterval = Long.parseLong(settings.getProperty("compact-interval", "30"));
+
+      ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "compactor");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      compactor.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               store.compact(compactThreshold);
+            } catch (Throwable e) {
+               LOG.log(Level.WARNING, "compaction failed", e);
+            }
+         }
+      }, compactInterval, compactInterval, TimeUnit.SECONDS);
+
+      final ServerSocketChannel listener = ServerSocketChannel.open();
+      listener.socket().setReuseAddress(true);
+      listener.socket().bind(new InetSocketAddress(Integer.parseInt(settings.getProperty("port", "9981"))), 1024);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         @Override
+         public void run() {
+            try {
+               listener.close();
+               store.close();
+            } catch (IOException e) {
+               LOG.log(Level.WARNING, "could not close " + store, e);
+            }
+         }
+      });
+
+      ExecutorService connections = Executors.newFixedThreadPool(Integer.parseInt(settings.getProperty("threads",
+            "256")));
+      LOG.info("vBlob log store listening on " + listener.socket().getLocalSocketAddress());
+      while (listener.isOpen()) {
+         final SocketChannel connection;
+         try {
+            connection = listener.accept();
+         } catch (ClosedChannelException e) {
+            break;
+         }
+         connection.socket().setTcpNoDelay(true);
+         connection.socket().setSoTimeout(idleTimeout);
+         connections.execute(new Runnable() {
+            @Override
+            public void run() {
+               server.serve(connection);
+            }
+         });
+      }
+   }
+}
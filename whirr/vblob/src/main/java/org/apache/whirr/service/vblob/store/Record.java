@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of one record in a segment:
+ * 
+ * <pre>
+ *  0  int    magic
+ *  4  int    CRC32 of the body, then bytes 8 to the end of the metadata
+ *  8  byte   type
+ *  9  short  bucket length
+ * 11  short  key length
+ * 13  int    metadata length
+ * 17  long   body length
+ * 25  long   last modified
+ * 33  16     MD5 of the body
+ * 49         bucket, key and metadata, then the body
+ * </pre>
+ * 
+ * Metadata is stored as {@code name:value} lines. The body comes first in the
+ * checksum, so that it can be computed while a body is received, before the
+ * rest of the record is known.
+ */
+class Record {
+   static final int MAGIC = 0x56424c31;
+   static final int HEADER = 49;
+
+   static final byte PUT_OBJECT = 1;
+   static final byte DELETE_OBJECT = 2;
+   static final byte CREATE_BUCKET = 3;
+   static final byte DELETE_BUCKET = 4;
+
+   /** bodies checked per mapping while recovering */
+   private static final long MAP_CHUNK = 64 * 1024 * 1024;
+
+   final byte type;
+   final String bucket;
+   final String key;
+   final long bodyLength;
+   final long lastModified;
+   final byte[] md5;
+   final int crc;
+   /** header, bucket and key */
+   final int metadataOffset;
+   /** header, bucket, key and metadata */
+   final int headLength;
+
+   private Record(byte type, String bucket, String key, long bodyLength, long lastModified, byte[] md5, int crc,
+         int metadataOffset, int headLength) {
+      this.type = type;
+      this.bucket = bucket;
+      this.key = key;
+      this.bodyLength = bodyLength;
+      this.lastModified = lastModified;
+      this.md5 = md5;
+      this.crc = crc;
+      this.metadataOffset = metadataOffset;
+      this.headLength = headLength;
+   }
+
+   long length() {
+      return headLength + bodyLength;
+   }
+
+   /**
+    * Encodes everything but the body. {@code bodyCrc} must hold the checksum of
+    * the body, and is updated to the checksum of the whole record.
+    */
+   static ByteBuffer head(byte type, String bucket, String key, Map<String, String> metadata, long bodyLength,
+         long lastModified, byte[] md5, CRC32 bodyCrc) {
+      byte[] bucketBytes = utf8(bucket);
+      byte[] keyBytes = utf8(key);
+      byte[] metadataBytes = utf8(encode(metadata));
+      ByteBuffer head = ByteBuffer.allocate(HEADER + bucketBytes.length + keyBytes.length + metadataBytes.length);
+      head.putInt(MAGIC).putInt(0).put(type).putShort((short) bucketBytes.length)
+            .putShort((short) keyBytes.length).putInt(metadataBytes.length).putLong(bodyLength)
+            .putLong(lastModified).put(md5 == null ? new byte[16] : md5);
+      head.put(bucketBytes).put(keyBytes).put(metadataBytes);
+      bodyCrc.update(head.array(), 8, head.capacity() - 8);
+      head.putInt(4, (int) bodyCrc.getValue());
+      head.flip();
+      return head;
+   }
+
+   /**
+    * Reads the record at {@code position}.
+    * 
+    * @param verify
+    *           check the body against the checksum as well
+    * @return null if there is no intact record at {@code position}
+    */
+   static Record read(Segment segment, long position, boolean verify) throws IOException {
+      long remaining = segment.size() - position;
+      if (remaining < HEADER)
+         return null;
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      segment.read(header, position);
+      if (header.getInt(0) != MAGIC)
+         return null;
+      int crc = header.getInt(4);
+      byte type = header.get(8);
+      int bucketLength = header.getShort(9) & 0xffff;
+      int keyLength = header.getShort(11) & 0xffff;
+      int metadataLength = header.getInt(13);
+      long bodyLength = header.getLong(17);
+      long lastModified = header.getLong(25);
+      if (type < PUT_OBJECT || type > DELETE_BUCKET || metadataLength < 0 || bodyLength < 0)
+         return null;
+      int headLength = HEADER + bucketLength + keyLength + metadataLength;
+      if (headLength + bodyLength > remaining)
+         return null;
+      byte[] md5 = new byte[16];
+      header.position(33);
+      header.get(md5);
+
+      ByteBuffer names = ByteBuffer.allocate(bucketLength + keyLength);
+      segment.read(names, position + HEADER);
+      String bucket = new String(names.array(), 0, bucketLength, "UTF-8");
+      String key = new String(names.array(), bucketLength, keyLength, "UTF-8");
+      Record record = new Record(type, bucket, key, bodyLength, lastModified, md5, crc, HEADER + bucketLength
+            + keyLength, headLength);
+
+      if (verify) {
+         CRC32 checksum = new CRC32();
+         long bodyPosition = position + headLength;
+         for (long offset = 0; offset < bodyLength; offset += MAP_CHUNK) {
+            MappedByteBuffer chunk = segment.channel().map(MapMode.READ_ONLY, bodyPosition + offset,
+                  Math.min(MAP_CHUNK, bodyLength - offset));
+            byte[] buffer = new byte[64 * 1024];
+            while (chunk.hasRemaining()) {
+               int length = Math.min(buffer.length, chunk.remaining());
+               chunk.get(buffer, 0, length);
+               checksum.update(buffer, 0, length);
+            }
+         }
+         ByteBuffer head = ByteBuffer.allocate(headLength - 8);
+         segment.read(head, position + 8);
+         checksum.update(head.array(), 0, head.limit());
+         if ((int) checksum.getValue() != crc)
+            return null;
+      }
+      return record;
+   }
+
+   /**
+    * @return the metadata held between {@code from} and {@code to}
+    */
+   static Map<String, String> metadata(Segment segment, long from, long to) throws IOException {
+      ByteBuffer metadata = ByteBuffer.allocate((int) (to - from));
+      segment.read(metadata, from);
+      return decode(new String(metadata.array(), 0, metadata.limit(), "UTF-8"));
+   }
+
+   static int metadataOffset(String bucket, String key) {
+      return HEADER + utf8(bucket).length + utf8(key).length;
+   }
+
+   private static String encode(Map<String, String> metadata) {
+      StringBuilder encoded = new StringBuilder();
+      for (Map.Entry<String, String> entry : metadata.entrySet())
+         encoded.append(entry.getKey()).append(':').append(entry.getValue().replace('\n', ' ')).append('\n');
+      return encoded.toString();
+   }
+
+   private static Map<String, String> decode(String encoded) {
+      Map<String, String> metadata = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      for (String line : encoded.split("\n")) {
+         int colon = line.indexOf(':');
+         if (colon > 0)
+            metadata.put(line.substring(0, colon), line.substring(colon + 1));
+      }
+      return metadata;
+   }
+
+   static byte[] utf8(String value) {
+      try {
+         return value.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+/**
+ * An S3 error, carried to the client as its code and status.
+ */
+public class S3Exception extends Exception {
+   private static final long serialVersionUID = 1L;
+
+   private final int status;
+   private final String code;
+
+   public S3Exception(int status, String code, String message) {
+      super(message);
+      this.status = status;
+      this.code = code;
+   }
+
+   public int getStatus() {
+      return status;
+   }
+
+   public String getCode() {
+      return code;
+   }
+
+   static S3Exception noSuchBucket(String bucket) {
+      return new S3Exception(404, "NoSuchBucket", "The specified bucket does not exist: " + bucket);
+   }
+}
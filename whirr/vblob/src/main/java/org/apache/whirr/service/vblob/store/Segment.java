@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One append-only file of records. Readers {@link #retain()} a segment for as
+ * long as they stream from it, so compaction can drop a segment while a slow
+ * GET is still sending its last bytes.
+ */
+class Segment {
+   private final long id;
+   private final File file;
+   private final FileChannel channel;
+   /** one reference is held by the store until the segment is dropped */
+   private final AtomicInteger references = new AtomicInteger(1);
+   private final AtomicLong garbage = new AtomicLong();
+   private final Object syncLock = new Object();
+   private volatile long size;
+   private long synced;
+   private volatile boolean dropped;
+
+   Segment(long id, File file) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      this.size = channel.size();
+      this.synced = size;
+   }
+
+   static String name(long id) {
+      return String.format("segment-%012d.log", id);
+   }
+
+   static long id(String name) {
+      return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+   }
+
+   static boolean isSegment(String name) {
+      return name.matches("segment-[0-9]{12}\\.log");
+   }
+
+   long getId() {
+      return id;
+   }
+
+   long size() {
+      return size;
+   }
+
+   long garbage() {
+      return garbage.get();
+   }
+
+   void addGarbage(long bytes) {
+      garbage.addAndGet(bytes);
+   }
+
+   FileChannel channel() {
+      return channel;
+   }
+
+   /**
+    * @return false if the segment was already dropped, in which case the
+    *         caller must look the object up again
+    */
+   boolean retain() {
+      while (true) {
+         int current = references.get();
+         if (current <= 0)
+            return false;
+         if (references.compareAndSet(current, current + 1))
+            return true;
+      }
+   }
+
+   void release() {
+      if (references.decrementAndGet() == 0) {
+         try {
+            channel.close();
+         } catch (IOException ignored) {
+         }
+         if (dropped)
+            file.delete();
+      }
+   }
+
+   /**
+    * Deletes the file once the last reader is done with it.
+    */
+   void drop() {
+      dropped = true;
+      release();
+   }
+
+   /**
+    * Writes at the end of the file; only called under the store's append lock.
+    */
+   void append(ByteBuffer buffer) throws IOException {
+      long position = size;
+      while (buffer.hasRemaining())
+         position += channel.write(buffer, position);
+      size = position;
+   }
+
+   /**
+    * Copies {@code count} bytes from {@code from} to the end of the file; only
+    * called under the store's append lock.
+    */
+   void append(FileChannel from, long fromPosition, long count) throws IOException {
+      long copied = 0;
+      while (copied < count) {
+         long transferred = channel.transferFrom(from.position(fromPosition + copied), size + copied, count - copied);
+         if (transferred <= 0)
+            throw new IOException("short copy into " + file);
+         copied += transferred;
+      }
+      size += count;
+   }
+
+   /**
+    * Forgets everything past {@code length}: a record torn by a crash.
+    */
+   void truncate(long length) throws IOException {
+      channel.truncate(length);
+      size = length;
+      synced = Math.min(synced, length);
+   }
+
+   void read(ByteBuffer into, long position) throws IOException {
+      while (into.hasRemaining()) {
+         if (channel.read(into, position + into.position()) < 0)
+            throw new IOException("unexpected end of " + file);
+      }
+      into.flip();
+   }
+
+   /**
+    * Sends a region of the file without copying it through the heap.
+    */
+   void transferTo(long position, long count, WritableByteChannel to) throws IOException {
+      long sent = 0;
+      while (sent < count) {
+         long transferred = channel.transferTo(position + sent, count - sent, to);
+         if (transferred <= 0)
+            throw new IOException("short transfer from " + file);
+         sent += transferred;
+      }
+   }
+
+   /**
+    * Forces everything appended up to {@code position} to disk. Appenders
+    * waiting at the same time share one force.
+    */
+   void sync(long position) throws IOException {
+      synchronized (syncLock) {
+         if (synced >= position)
+            return;
+         long appended = size;
+         channel.force(false);
+         synced = appended;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return file.getName();
+   }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.tier;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+
+/**
+ * An S3 endpoint this service signs its own requests to: the vBlob it sits in
+ * front of, or the remote tier. Buckets are addressed on the path, as vBlob only supports
+ * those.
+ */
+public class S3Endpoint {
+   private final URI endpoint;
+   private final String accessKey;
+   private final String secretKey;
+   private final int connectTimeout;
+   private final int readTimeout;
+
+   public S3Endpoint(URI endpoint, String accessKey, String secretKey, int connectTimeout, int readTimeout) {
+      this.endpoint = endpoint;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+   }
+
+   /**
+    * Opens a signed request for {@code key} in {@code bucket}, or for the
+    * bucket itself when {@code key} is null.
+    * 
+    * @param headers
+    *           sent and signed along, such as {@code Content-Type} or
+    *           {@code x-amz-meta-*}
+    */
+   public HttpURLConnection open(String method, String bucket, String key, String rawQuery,
+         Map<String, List<String>> headers) throws IOException {
+      String rawPath = "/" + encode(bucket) + (key == null ? "" : "/" + encode(key));
+      Map<String, List<String>> signed = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      signed.putAll(headers);
+      signed.put("Date", Arrays.asList(rfc1123(System.currentTimeMillis())));
+      HttpURLConnection connection = (HttpURLConnection) new URL(endpoint.toASCIIString() + rawPath
+            + (rawQuery == null ? "" : "?" + rawQuery)).openConnection();
+      connection.setRequestMethod(method);
+      connection.setInstanceFollowRedirects(false);
+      connection.setUseCaches(false);
+      connection.setConnectTimeout(connectTimeout);
+      connection.setReadTimeout(readTimeout);
+      for (Map.Entry<String, List<String>> header : signed.entrySet()) {
+         for (String value : header.getValue())
+            connection.addRequestProperty(header.getKey(), value);
+      }
+      connection.setRequestProperty("Authorization", S3Signatures.authorization(accessKey, secretKey, S3Signatures
+            .stringToSign(method, signed, rawPath, rawQuery)));
+      return connection;
+   }
+
+   public HttpURLConnection open(String method, String bucket, String key) throws IOException {
+      return open(method, bucket, key, null, new TreeMap<String, List<String>>());
+   }
+
+   @Override
+   public String toString() {
+      return endpoint.toString();
+   }
+
+   /**
+    * url-encodes a bucket or key as S3 expects it on the path, keeping the
+    * slashes of a key
+    */
+   static String encode(String value) {
+      try {
+         return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("%2F", "/").replace("*", "%2A")
+               .replace("%7E", "~");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String rfc1123(long time) {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format.format(new Date(time));
+   }
+}
@@ -0,0 +1,420 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.tier;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.whirr.service.vblob.index.KeyIndex;
+
+/**
+ * Where each object this instance was given lives: only on local disk, on
+ * local disk and in the remote tier, or only in the remote tier. Every change
+ * is appended to a journal in {@code dir} as it happens, so a crash loses at
+ * most the access times since the journal was last compacted, and the
+ * objects evicted to the remote tier are never lost track of.
+ */
+public class TierCatalog implements Closeable {
+
+   public static enum State {
+      /** written locally, not yet copied to the remote tier */
+      DIRTY,
+      /** the same on local disk and in the remote tier */
+      CLEAN,
+      /** evicted from local disk, only in the remote tier */
+      COLD,
+      /** deleted locally, still to be deleted from the remote tier */
+      DELETED;
+   }
+
+   public static class Entry {
+      private final String bucket;
+      private final String key;
+      private final State state;
+      private final long size;
+      private final String eTag;
+      private final long lastModified;
+      private volatile long lastAccess;
+
+      Entry(String bucket, String key, State state, long size, String eTag, long lastModified, long lastAccess) {
+         this.bucket = bucket;
+         this.key = key;
+         this.state = state;
+         this.size = size;
+         this.eTag = eTag;
+         this.lastModified = lastModified;
+         this.lastAccess = lastAccess;
+      }
+
+      public String getBucket() {
+         return bucket;
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      public State getState() {
+         return state;
+      }
+
+      public long getSize() {
+         return size;
+      }
+
+      /** without quotes */
+      public String getETag() {
+         return eTag;
+      }
+
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      public long getLastAccess() {
+         return lastAccess;
+      }
+
+      Entry with(State state) {
+         return new Entry(bucket, key, state, size, eTag, lastModified, lastAccess);
+      }
+
+      @Override
+      public String toString() {
+         return state + " " + bucket + "/" + key;
+      }
+   }
+
+   private final File journalFile;
+   private final Map<String, Entry> entries = new HashMap<String, Entry>();
+   /** what listings show of the objects only in the remote tier, by bucket */
+   private final Map<String, KeyIndex> cold = new HashMap<String, KeyIndex>();
+   private Writer journal;
+   private int journalLines;
+
+   /**
+    * @return the catalog kept in {@code dir}, with everything its journal
+    *         recorded
+    */
+   public static TierCatalog open(File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("could not create " + dir);
+      TierCatalog catalog = new TierCatalog(new File(dir, "catalog"));
+      catalog.replay();
+      catalog.compact();
+      return catalog;
+   }
+
+   private TierCatalog(File journalFile) {
+      this.journalFile = journalFile;
+   }
+
+   public synchronized Entry get(String bucket, String key) {
+      return entries.get(id(bucket, key));
+   }
+
+   public synchronized int size() {
+      return entries.size();
+   }
+
+   /**
+    * records a local write, which is to be copied to the remote tier
+    */
+   public synchronized void written(String bucket, String key, long size, String eTag, long now) throws IOException {
+      update(new Entry(bucket, key, State.DIRTY, size, unquote(eTag), now, now));
+   }
+
+   /**
+    * records an object found on local disk that the catalog did not know of,
+    * such as one written before tiering was enabled
+    * 
+    * @return true if it was not known
+    */
+   public synchronized boolean found(String bucket, String key, long size, String eTag, long lastModified, long now)
+         throws IOException {
+      if (entries.containsKey(id(bucket, key)))
+         return false;
+      update(new Entry(bucket, key, State.DIRTY, size, unquote(eTag), lastModified, now));
+      return true;
+   }
+
+   /**
+    * records a read, which keeps the object on local disk longer
+    */
+   public void read(String bucket, String key, long now) {
+      Entry entry;
+      synchronized (this) {
+         entry = entries.get(id(bucket, key));
+      }
+      if (entry != null)
+         entry.lastAccess = now;
+   }
+
+   /**
+    * records a local delete, which is to be repeated in the remote tier
+    */
+   public synchronized void deleted(String bucket, String key) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry == null || entry.state == State.DELETED)
+         return;
+      update(entry.with(State.DELETED));
+   }
+
+   /**
+    * records that the remote tier holds {@code eTag}, unless the object was
+    * written or deleted since
+    */
+   public synchronized void uploaded(String bucket, String key, String eTag) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry != null && entry.state == State.DIRTY && entry.eTag.equals(unquote(eTag)))
+         update(entry.with(State.CLEAN));
+   }
+
+   /**
+    * records that the remote tier no longer holds the object, unless it was
+    * written again since
+    */
+   public synchronized void remoteDeleted(String bucket, String key) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry != null && entry.state == State.DELETED)
+         forget(entry);
+   }
+
+   /**
+    * forgets an object that is gone from local disk without having been
+    * deleted through this service
+    */
+   public synchronized void vanished(String bucket, String key, String eTag) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry != null && entry.state == State.DIRTY && entry.eTag.equals(unquote(eTag)))
+         forget(entry);
+   }
+
+   /**
+    * records that the local copy of {@code eTag} was removed
+    */
+   public synchronized void evicted(String bucket, String key, String eTag) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry != null && entry.state == State.CLEAN && entry.eTag.equals(unquote(eTag)))
+         update(entry.with(State.COLD));
+   }
+
+   /**
+    * records that a cold object was copied back to local disk
+    */
+   public synchronized void warmed(String bucket, String key, String eTag, long now) throws IOException {
+      Entry entry = entries.get(id(bucket, key));
+      if (entry != null && entry.state == State.COLD && entry.eTag.equals(unquote(eTag))) {
+         entry = entry.with(State.CLEAN);
+         entry.lastAccess = now;
+         update(entry);
+      }
+   }
+
+   /**
+    * @return up to {@code max} objects to copy to or delete from the remote
+    *         tier, those changed longest ago first
+    */
+   public synchronized List<Entry> pending(int max) {
+      List<Entry> pending = new ArrayList<Entry>();
+      for (Entry entry : entries.values()) {
+         if (entry.state == State.DIRTY || entry.state == State.DELETED)
+            pending.add(entry);
+      }
+      Collections.sort(pending, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            return a.lastModified < b.lastModified ? -1 : a.lastModified == b.lastModified ? 0 : 1;
+         }
+      });
+      return pending.size() > max ? new ArrayList<Entry>(pending.subList(0, max)) : pending;
+   }
+
+   /**
+    * @return objects in both tiers that were not read since
+    *         {@code idleSince}, least recently read first
+    */
+   public synchronized List<Entry> evictable(long idleSince) {
+      List<Entry> evictable = new ArrayList<Entry>();
+      for (Entry entry : entries.values()) {
+         if (entry.state == State.CLEAN && entry.lastAccess <= idleSince)
+            evictable.add(entry);
+      }
+      Collections.sort(evictable, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            return a.lastAccess < b.lastAccess ? -1 : a.lastAccess == b.lastAccess ? 0 : 1;
+         }
+      });
+      return evictable;
+   }
+
+   /**
+    * @return true if objects of {@code bucket} are only in the remote tier, so
+    *         its local listings and deletes are not the whole story
+    */
+   public synchronized boolean hasCold(String bucket) {
+      KeyIndex index = cold.get(bucket);
+      return index != null && index.size() > 0;
+   }
+
+   /**
+    * Lists the objects of {@code bucket} only in the remote tier, as
+    * {@link KeyIndex#list} does.
+    */
+   public synchronized KeyIndex.Listing listCold(String bucket, String prefix, String marker, String delimiter,
+         int maxKeys) {
+      KeyIndex index = cold.get(bucket);
+      return (index == null ? new KeyIndex() : index).list(prefix, marker, delimiter, maxKeys);
+   }
+
+   /**
+    * Rewrites the journal with one line per object, dropping the history
+    * before, by way of a temporary file so a crash leaves the old one.
+    */
+   public synchronized void compact() throws IOException {
+      if (journal != null)
+         journal.close();
+      File temp = new File(journalFile.getPath() + ".tmp");
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+      try {
+         for (Entry entry : entries.values())
+            out.write(line(entry));
+      } finally {
+         out.close();
+      }
+      if (!temp.renameTo(journalFile))
+         throw new IOException("could not replace " + journalFile);
+      journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+      journalLines = entries.size();
+   }
+
+   /**
+    * @return true if the journal holds enough superseded lines to be worth
+    *         {@link #compact() compacting}
+    */
+   public synchronized boolean needsCompaction() {
+      return journalLines > 2 * entries.size() + 10000;
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      compact();
+      journal.close();
+   }
+
+   private void update(Entry entry) throws IOException {
+      entries.put(id(entry.bucket, entry.key), entry);
+      index(entry);
+      append(line(entry));
+   }
+
+   private void forget(Entry entry) throws IOException {
+      entries.remove(id(entry.bucket, entry.key));
+      unindex(entry);
+      append("-\t" + encode(entry.bucket) + "\t" + encode(entry.key) + "\n");
+   }
+
+   private void index(Entry entry) {
+      if (entry.state != State.COLD) {
+         unindex(entry);
+         return;
+      }
+      KeyIndex index = cold.get(entry.bucket);
+      if (index == null) {
+         index = new KeyIndex();
+         cold.put(entry.bucket, index);
+      }
+      index.put(entry.key, new KeyIndex.Entry(entry.key, entry.size, entry.eTag, entry.lastModified));
+   }
+
+   private void unindex(Entry entry) {
+      KeyIndex index = cold.get(entry.bucket);
+      if (index != null)
+         index.remove(entry.key);
+   }
+
+   private void append(String line) throws IOException {
+      journal.write(line);
+      journal.flush();
+      journalLines++;
+   }
+
+   private void replay() throws IOException {
+      if (!journalFile.exists())
+         return;
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+      try {
+         for (String line = in.readLine(); line != null; line = in.readLine()) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3 && fields[0].equals("-")) {
+               Entry entry = entries.remove(id(decode(fields[1]), decode(fields[2])));
+               if (entry != null)
+                  unindex(entry);
+            } else if (fields.length == 8) {
+               Entry entry = new Entry(decode(fields[1]), decode(fields[2]), State.valueOf(fields[0]), Long
+                     .parseLong(fields[3]), decode(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6]));
+               entries.put(id(entry.bucket, entry.key), entry);
+               index(entry);
+            }
+            // anything else is a line cut short by a crash
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   private static String line(Entry entry) throws IOException {
+      // the trailing field tells a complete line from one cut short
+      return entry.state + "\t" + encode(entry.bucket) + "\t" + encode(entry.key) + "\t" + entry.size + "\t"
+            + encode(entry.eTag) + "\t" + entry.lastModified + "\t" + entry.lastAccess + "\t.\n";
+   }
+
+   private static String id(String bucket, String key) {
+      // bucket names cannot hold a slash
+      return bucket + "/" + key;
+   }
+
+   static String unquote(String eTag) {
+      return eTag == null ? "" : eTag.replace("\"", "");
+   }
+
+   private static String encode(String value) throws UnsupportedEncodingException {
+      return URLEncoder.encode(value, "UTF-8");
+   }
+
+   private static String decode(String value) throws UnsupportedEncodingException {
+      return URLDecoder.decode(value, "UTF-8");
+   }
+}
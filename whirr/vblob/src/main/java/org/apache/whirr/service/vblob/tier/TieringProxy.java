@@ -0,0 +1,468 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.tier;
+
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.contentLength;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.error;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.open;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.rawPathAndQuery;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.readFully;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.respond;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.responseBody;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.whirr.service.vblob.index.KeyIndex;
+import org.apache.whirr.service.vblob.index.ListingIndexServer;
+import org.apache.whirr.service.vblob.router.ListingMerger;
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+import org.apache.whirr.service.vblob.tier.TierCatalog.Entry;
+import org.apache.whirr.service.vblob.tier.TierCatalog.State;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps vBlob's local disk as the hot tier of a remote S3 one, in front of a
+ * vBlob instance.
+ * 
+ * <ul>
+ * <li>PUTs, completed multipart uploads and DELETEs are forwarded to vBlob,
+ * and once it took them recorded in the {@link TierCatalog}, for
+ * {@link WriteBehind} to repeat in the remote tier later, in batches</li>
+ * <li>reads are forwarded to vBlob and recorded, so objects read least
+ * recently are the first evicted from local disk</li>
+ * <li>a read of an evicted object, with or without sub-resources such as
+ * {@code ?acl}, or a copy from one, first copies it back from the remote
+ * tier, then forwards the request</li>
+ * <li>listings of buckets with evicted objects are merged with the catalog's
+ * listing of those</li>
+ * <li>a bucket with evicted objects is not empty, so deleting it fails as S3
+ * would</li>
+ * </ul>
+ * 
+ * Only requests whose signature checks out locally move objects between tiers
+ * or are answered from the catalog. Counters are available at
+ * {@code /_tier/stats}.
+ */
+public class TieringProxy implements HttpHandler {
+   private static final Logger LOG = Logger.getLogger(TieringProxy.class.getName());
+
+   static final String STATS_PATH = "/_tier/stats";
+
+   private final TierCatalog catalog;
+   private final WriteBehind writeBehind;
+   private final URI backend;
+   private final String accessKey;
+   private final String secretKey;
+   private final int connectTimeout;
+   private final int readTimeout;
+   private final AtomicLong coldReads = new AtomicLong();
+   private final AtomicLong mergedListings = new AtomicLong();
+   private final S3Endpoint vBlob;
+
+   public TieringProxy(TierCatalog catalog, WriteBehind writeBehind, URI backend, String accessKey,
+         String secretKey, int connectTimeout, int readTimeout) {
+      this.catalog = catalog;
+      this.writeBehind = writeBehind;
+      this.backend = backend;
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.vBlob = new S3Endpoint(backend, accessKey, secretKey, connectTimeout, readTimeout);
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         route(exchange);
+      } catch (Exception e) {
+         LOG.log(Level.WARNING, "failed " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+         try {
+            error(exchange, 502, "InternalError", "tiering could not reach vBlob or the remote tier");
+         } catch (IOException ignored) {
+            exchange.close();
+         }
+      }
+   }
+
+   private void route(HttpExchange exchange) throws Exception {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getRawPath();
+      if (STATS_PATH.equals(path)) {
+         respond(exchange, 200, "text/plain", stats().getBytes("UTF-8"));
+         return;
+      }
+      int slash = path.indexOf('/', 1);
+      if (path.length() <= 1) {
+         forward(exchange);
+         return;
+      }
+      String bucket = URLDecoder.decode(path.substring(1, slash == -1 ? path.length() : slash), "UTF-8");
+      String key = slash == -1 || slash == path.length() - 1 ? null : URLDecoder.decode(path.substring(slash + 1),
+            "UTF-8");
+      // objects are written and deleted without sub-resources such as ?acl
+      String rawQuery = exchange.getRequestURI().getRawQuery();
+      boolean plain = rawQuery == null;
+
+      if (key == null) {
+         if ("GET".equals(method) && catalog.hasCold(bucket)) {
+            Map<String, String> query = ListingIndexServer.listingQuery(rawQuery);
+            if (query != null && isAuthentic(exchange)) {
+               list(exchange, bucket, query);
+               return;
+            }
+         } else if ("DELETE".equals(method) && catalog.hasCold(bucket)) {
+            error(exchange, 409, "BucketNotEmpty", "The bucket you tried to delete is not empty");
+            return;
+         }
+         forward(exchange);
+         return;
+      }
+
+      if ("GET".equals(method) || "HEAD".equals(method)) {
+         read(exchange, bucket, key);
+      } else if ("PUT".equals(method) && plain) {
+         write(exchange, bucket, key);
+      } else if ("POST".equals(method) && hasParam(rawQuery, "uploadId")) {
+         completeMultipartUpload(exchange, bucket, key);
+      } else if ("DELETE".equals(method) && plain) {
+         delete(exchange, bucket, key);
+      } else {
+         // such as an upload part copy, which vBlob can only take from a warm object
+         String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+         if ("PUT".equals(method) && copySource != null && isAuthentic(exchange))
+            warmCopySource(copySource);
+         forward(exchange);
+      }
+   }
+
+   private static boolean hasParam(String query, String name) {
+      if (query == null)
+         return false;
+      for (String param : query.split("&")) {
+         if (param.equals(name) || param.startsWith(name + "="))
+            return true;
+      }
+      return false;
+   }
+
+   private void read(HttpExchange exchange, String bucket, String key) throws IOException {
+      Entry entry = catalog.get(bucket, key);
+      if (entry != null && entry.getState() == State.COLD && isAuthentic(exchange)) {
+         coldReads.incrementAndGet();
+         writeBehind.warm(bucket, key);
+      }
+      HttpURLConnection connection = send(exchange);
+      if (connection.getResponseCode() / 100 == 2)
+         catalog.read(bucket, key, System.currentTimeMillis());
+      HttpForwarding.copyResponse(connection, exchange);
+   }
+
+   private void write(HttpExchange exchange, String bucket, String key) throws IOException {
+      String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+      if (copySource != null && isAuthentic(exchange))
+         warmCopySource(copySource);
+      Lock lock = writeBehind.lock(bucket, key);
+      lock.lock();
+      try {
+         HttpURLConnection connection = send(exchange);
+         if (connection.getResponseCode() / 100 == 2) {
+            long length = copySource != null ? sizeOf(copySource) : contentLength(exchange.getRequestHeaders());
+            String eTag = connection.getHeaderField("ETag");
+            if (eTag == null)
+               eTag = "";
+            catalog.written(bucket, key, Math.max(length, 0), eTag, System.currentTimeMillis());
+         }
+         HttpForwarding.copyResponse(connection, exchange);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Records the object a multipart upload completed into, which vBlob
+    * answers with 200 even when the completion failed.
+    */
+   private void completeMultipartUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+      Lock lock = writeBehind.lock(bucket, key);
+      lock.lock();
+      try {
+         HttpURLConnection connection = send(exchange);
+         int status = connection.getResponseCode();
+         byte[] body = readFully(responseBody(connection));
+         if (status == 200 && !new String(body, "UTF-8").contains("<Error>")) {
+            HttpURLConnection head = vBlob.open("HEAD", bucket, key);
+            if (head.getResponseCode() == 200) {
+               String length = head.getHeaderField("Content-Length");
+               catalog.written(bucket, key, length == null ? 0 : Long.parseLong(length.trim()), head
+                     .getHeaderField("ETag"), System.currentTimeMillis());
+            } else {
+               LOG.warning("could not find " + bucket + "/" + key + " after its multipart upload: "
+                     + head.getResponseCode());
+            }
+            HttpForwarding.drain(responseBody(head));
+         }
+         HttpForwarding.copyResponseHeaders(connection.getHeaderFields(), exchange.getResponseHeaders());
+         respond(exchange, status, null, body);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * vBlob can only copy an object on its local disk
+    */
+   private void warmCopySource(String copySource) throws IOException {
+      String[] source = copySource(copySource);
+      if (source != null)
+         writeBehind.warm(source[0], source[1]);
+   }
+
+   private long sizeOf(String copySource) throws IOException {
+      String[] source = copySource(copySource);
+      Entry entry = source != null ? catalog.get(source[0], source[1]) : null;
+      return entry == null ? 0 : entry.getSize();
+   }
+
+   /**
+    * @return the bucket and key of {@code x-amz-copy-source}, without any
+    *         {@code ?versionId}, or null if it names no object
+    */
+   private static String[] copySource(String copySource) throws IOException {
+      int question = copySource.indexOf('?');
+      String source = copySource.substring(copySource.startsWith("/") ? 1 : 0, question == -1 ? copySource
+            .length() : question);
+      source = URLDecoder.decode(source, "UTF-8");
+      int slash = source.indexOf('/');
+      return slash > 0 && slash < source.length() - 1 ? new String[] { source.substring(0, slash),
+            source.substring(slash + 1) } : null;
+   }
+
+   private void delete(HttpExchange exchange, String bucket, String key) throws IOException {
+      Lock lock = writeBehind.lock(bucket, key);
+      lock.lock();
+      try {
+         Entry entry = catalog.get(bucket, key);
+         HttpURLConnection connection = send(exchange);
+         int status = connection.getResponseCode();
+         if (status / 100 == 2) {
+            catalog.deleted(bucket, key);
+         } else if (status == 404 && entry != null && entry.getState() == State.COLD && isAuthentic(exchange)) {
+            // only the remote tier has it, which the delete is repeated in
+            HttpForwarding.drain(responseBody(connection));
+            catalog.deleted(bucket, key);
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+         }
+         HttpForwarding.copyResponse(connection, exchange);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Lists {@code bucket} in vBlob and merges in its evicted objects.
+    */
+   private void list(HttpExchange exchange, String bucket, Map<String, String> query) throws Exception {
+      int maxKeys = 1000;
+      if (query.containsKey("max-keys")) {
+         try {
+            maxKeys = Math.min(1000, Integer.parseInt(query.get("max-keys")));
+         } catch (NumberFormatException e) {
+            maxKeys = -1;
+         }
+         if (maxKeys < 0) {
+            error(exchange, 400, "InvalidArgument", "max-keys must be a number from 0 to 1000");
+            return;
+         }
+      }
+      HttpURLConnection connection = send(exchange);
+      if (connection.getResponseCode() != 200) {
+         HttpForwarding.copyResponse(connection, exchange);
+         return;
+      }
+      byte[] local = readFully(responseBody(connection));
+      String prefix = query.get("prefix");
+      String marker = query.get("marker");
+      String delimiter = query.get("delimiter");
+      KeyIndex.Listing cold = catalog.listCold(bucket, prefix, marker, delimiter, maxKeys);
+      byte[] remote = ListingIndexServer.listingXml(bucket, prefix, marker, delimiter, maxKeys, cold, accessKey);
+      mergedListings.incrementAndGet();
+      respond(exchange, 200, "application/xml", ListingMerger.mergeObjects(Arrays.asList(local, remote), maxKeys));
+   }
+
+   /**
+    * @return true if the request is signed with the vBlob keys and recently
+    *         dated, as vBlob would check when the request is forwarded
+    */
+   private boolean isAuthentic(HttpExchange exchange) {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null)
+         return false;
+      if (!S3Signatures.isCurrent(exchange.getRequestHeaders(), System.currentTimeMillis()))
+         return false;
+      return S3Signatures.verify(accessKey, secretKey, authorization, S3Signatures.stringToSign(exchange
+            .getRequestMethod(), exchange.getRequestHeaders(), exchange.getRequestURI().getRawPath(), exchange
+            .getRequestURI().getRawQuery()));
+   }
+
+   /**
+    * sends the request as is to vBlob, leaving the response to the caller
+    */
+   private HttpURLConnection send(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      HttpURLConnection connection = open(backend, method, rawPathAndQuery(exchange), exchange
+            .getRequestHeaders(), connectTimeout, readTimeout);
+      long length = contentLength(exchange.getRequestHeaders());
+      if (length > 0 || "PUT".equals(method) || "POST".equals(method)) {
+         InputStream in = exchange.getRequestBody();
+         try {
+            HttpForwarding.sendBody(connection, in, length);
+         } finally {
+            in.close();
+         }
+      }
+      return connection;
+   }
+
+   private void forward(HttpExchange exchange) throws IOException {
+      HttpForwarding.copyResponse(send(exchange), exchange);
+   }
+
+   String stats() {
+      return writeBehind.stats() + "cold-reads " + coldReads.get() + "\nmerged-listings " + mergedListings.get()
+            + "\n";
+   }
+
+   /**
+    * Syncs the remote tier with local writes, then, while the disk holding
+    * {@code dataDir} is fuller than {@code highWatermark} percent, evicts
+    * objects until it is down to {@code lowWatermark} percent.
+    */
+   static void syncAndEvict(TierCatalog catalog, WriteBehind writeBehind, File dataDir, int highWatermark,
+         int lowWatermark) throws Exception {
+      writeBehind.sync();
+      long total = dataDir.getTotalSpace();
+      long used = total - dataDir.getUsableSpace();
+      if (total > 0 && used * 100 > total * highWatermark) {
+         long freed = writeBehind.evict(used - total * lowWatermark / 100);
+         LOG.info("disk " + used * 100 / total + "% full, evicted " + freed + " bytes to the remote tier");
+      }
+      if (catalog.needsCompaction())
+         catalog.compact();
+   }
+
+   /**
+    * Starts tiering with settings from the properties file named by the first
+    * argument.
+    */
+   public static void main(String... args) throws Exception {
+      Properties settings = new Properties();
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         settings.load(in);
+      } finally {
+         in.close();
+      }
+      int threads = Integer.parseInt(settings.getProperty("threads", "64"));
+      // pooled keep-alive connections to vBlob and the remote tier
+      System.setProperty("http.maxConnections", threads + "");
+      int connectTimeout = Integer.parseInt(settings.getProperty("connect-timeout", "2000"));
+      int readTimeout = Integer.parseInt(settings.getProperty("read-timeout", "30000"));
+      URI backend = URI.create(settings.getProperty("backend", "http://127.0.0.1:9981"));
+      String accessKey = settings.getProperty("auth.access-key");
+      String secretKey = settings.getProperty("auth.secret-key");
+
+      final TierCatalog catalog = TierCatalog.open(new File(settings.getProperty("catalog-dir")));
+      S3Endpoint local = new S3Endpoint(backend, accessKey, secretKey, connectTimeout, readTimeout);
+      S3Endpoint remote = new S3Endpoint(URI.create(settings.getProperty("remote.endpoint")), settings
+            .getProperty("remote.access-key"), settings.getProperty("remote.secret-key"), connectTimeout,
+            readTimeout);
+      ExecutorService uploads = Executors.newFixedThreadPool(Integer.parseInt(settings.getProperty("upload-threads",
+            "4")));
+      final WriteBehind writeBehind = new WriteBehind(catalog, local, remote, settings.getProperty("remote.bucket"),
+            settings.getProperty("remote.prefix", ""), uploads, Integer.parseInt(settings.getProperty("batch-size",
+                  "100")), TimeUnit.SECONDS.toMillis(Long.parseLong(settings.getProperty("min-idle", "3600"))));
+      final File dataDir = new File(settings.getProperty("data-dir"));
+      final int highWatermark = Integer.parseInt(settings.getProperty("high-watermark", "80"));
+      final int lowWatermark = Integer.parseInt(settings.getProperty("low-watermark", "70"));
+      long interval = Long.parseLong(settings.getProperty("upload-interval", "30"));
+
+      final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      final AtomicBoolean prepared = new AtomicBoolean();
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               if (!prepared.get()) {
+                  writeBehind.createRemoteBucket();
+                  LOG.info("found " + writeBehind.scan() + " objects not yet in the remote tier");
+                  prepared.set(true);
+               }
+               syncAndEvict(catalog, writeBehind, dataDir, highWatermark, lowWatermark);
+            } catch (Throwable e) {
+               LOG.log(Level.WARNING, "could not sync with the remote tier", e);
+            }
+         }
+      }, 0, interval, TimeUnit.SECONDS);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         @Override
+         public void run() {
+            scheduler.shutdownNow();
+            try {
+               catalog.close();
+            } catch (IOException e) {
+               LOG.log(Level.WARNING, "could not close the tier catalog", e);
+            }
+         }
+      });
+
+      TieringProxy proxy = new TieringProxy(catalog, writeBehind, backend, accessKey, secretKey, connectTimeout,
+            readTimeout);
+      HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(settings.getProperty("port",
+            "9984"))), 1024);
+      server.createContext("/", proxy);
+      server.setExecutor(Executors.newFixedThreadPool(threads));
+      server.start();
+      LOG.info("vBlob tiering listening on " + server.getAddress() + ", remote tier " + remote);
+   }
+}
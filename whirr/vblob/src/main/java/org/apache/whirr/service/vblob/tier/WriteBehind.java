@@ -0,0 +1,447 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.tier;
+
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.drain;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.readFully;
+import static org.apache.whirr.service.vblob.s3.HttpForwarding.responseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.tier.TierCatalog.Entry;
+import org.apache.whirr.service.vblob.tier.TierCatalog.State;
+
+/**
+ * Moves objects between vBlob's local disk and the remote tier.
+ * 
+ * <ul>
+ * <li>{@link #sync()} copies objects written locally to the remote tier, and
+ * repeats local deletes there, in batches of {@code batchSize} run
+ * concurrently on {@code executor}</li>
+ * <li>{@link #evict(long)} removes the local copies of objects the remote tier
+ * holds, least recently read first, once they have not been read for
+ * {@code minIdle} milliseconds</li>
+ * <li>{@link #warm(String, String)} copies a cold object back to local disk
+ * </li>
+ * </ul>
+ * 
+ * Objects in the remote tier are stored under
+ * {@code <remote bucket>/<prefix><bucket>/<key>}, with their content type and
+ * user metadata. Every copy is checked against the MD5 ETag it was read with.
+ * An object whose ETag is not an MD5, such as one completed from a multipart
+ * upload, carries its local ETag in {@value #TIER_ETAG} instead, so both tiers
+ * name it alike.
+ */
+public class WriteBehind {
+   private static final Logger LOG = Logger.getLogger(WriteBehind.class.getName());
+
+   /** headers that go with an object from one tier to the other */
+   private static final List<String> KEPT_HEADERS = Arrays.asList("content-type", "content-encoding",
+         "content-disposition", "content-language", "cache-control", "expires");
+   private static final Pattern KEY = Pattern.compile("<Key>([^<]*)</Key>");
+   private static final Pattern ETAG = Pattern.compile("<ETag>([^<]*)</ETag>");
+   private static final Pattern SIZE = Pattern.compile("<Size>(\\d+)</Size>");
+   private static final Pattern NAME = Pattern.compile("<Name>([^<]*)</Name>");
+   private static final Pattern NEXT_MARKER = Pattern.compile("<NextMarker>([^<]*)</NextMarker>");
+
+   /** the user metadata holding an ETag the copies would not reproduce */
+   static final String TIER_ETAG = "x-amz-meta-tier-etag";
+
+   private final TierCatalog catalog;
+   private final S3Endpoint local;
+   private final S3Endpoint remote;
+   private final String remoteBucket;
+   private final String remotePrefix;
+   private final ExecutorService executor;
+   private final int batchSize;
+   private final long minIdle;
+   /** serializes eviction, warming and client writes of the same key */
+   private final Lock[] locks = new Lock[256];
+
+   final AtomicLong uploaded = new AtomicLong();
+   final AtomicLong bytesUploaded = new AtomicLong();
+   final AtomicLong remoteDeletes = new AtomicLong();
+   final AtomicLong evicted = new AtomicLong();
+   final AtomicLong bytesEvicted = new AtomicLong();
+   final AtomicLong warmed = new AtomicLong();
+   final AtomicLong failures = new AtomicLong();
+
+   public WriteBehind(TierCatalog catalog, S3Endpoint local, S3Endpoint remote, String remoteBucket,
+         String remotePrefix, ExecutorService executor, int batchSize, long minIdle) {
+      this.catalog = catalog;
+      this.local = local;
+      this.remote = remote;
+      this.remoteBucket = remoteBucket;
+      this.remotePrefix = remotePrefix;
+      this.executor = executor;
+      this.batchSize = batchSize;
+      this.minIdle = minIdle;
+      for (int i = 0; i < locks.length; i++)
+         locks[i] = new ReentrantLock();
+   }
+
+   /**
+    * @return the lock held while an object moves between tiers, which client
+    *         writes of the object take too
+    */
+   public Lock lock(String bucket, String key) {
+      return locks[((bucket + "/" + key).hashCode() & Integer.MAX_VALUE) % locks.length];
+   }
+
+   /**
+    * Creates the remote bucket, unless it exists.
+    */
+   public void createRemoteBucket() throws IOException {
+      HttpURLConnection connection = remote.open("PUT", remoteBucket, null);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(0);
+      connection.getOutputStream().close();
+      int status = connection.getResponseCode();
+      byte[] body = readFully(responseBody(connection));
+      if (status / 100 != 2 && status != 409)
+         throw new IOException("could not create bucket " + remoteBucket + " at " + remote + ": " + status + " "
+               + new String(body, "UTF-8"));
+   }
+
+   /**
+    * Records every local object the catalog does not know of, such as those
+    * written before tiering was enabled or while this service was down, so
+    * they are copied to the remote tier too.
+    * 
+    * @return how many were found
+    */
+   public int scan() throws IOException {
+      int found = 0;
+      long now = System.currentTimeMillis();
+      HttpURLConnection buckets = local.open("GET", "", null);
+      String xml = new String(readFully(responseBody(buckets)), "UTF-8");
+      if (buckets.getResponseCode() != 200)
+         throw new IOException("could not list buckets at " + local + ": " + xml);
+      Matcher bucketNames = NAME.matcher(xml);
+      while (bucketNames.find()) {
+         String bucket = unescape(bucketNames.group(1));
+         String marker = null;
+         do {
+            String query = marker == null ? null : "marker=" + S3Endpoint.encode(marker).replace("/", "%2F");
+            HttpURLConnection listing = local.open("GET", bucket, null, query, new TreeMap<String, List<String>>());
+            String page = new String(readFully(responseBody(listing)), "UTF-8");
+            if (listing.getResponseCode() != 200)
+               throw new IOException("could not list bucket " + bucket + " at " + local + ": " + page);
+            marker = null;
+            for (String contents : page.split("<Contents>")) {
+               Matcher key = KEY.matcher(contents);
+               Matcher size = SIZE.matcher(contents);
+               if (!key.find() || !size.find())
+                  continue;
+               Matcher eTag = ETAG.matcher(contents);
+               marker = unescape(key.group(1));
+               if (catalog.found(bucket, marker, Long.parseLong(size.group(1)), eTag.find() ? unescape(eTag.group(1))
+                     : "", now, now))
+                  found++;
+            }
+            Matcher next = NEXT_MARKER.matcher(page);
+            if (next.find())
+               marker = unescape(next.group(1));
+            if (!page.contains("<IsTruncated>true</IsTruncated>"))
+               marker = null;
+         } while (marker != null);
+      }
+      return found;
+   }
+
+   /**
+    * Copies to the remote tier what was written locally, and deletes there
+    * what was deleted locally, a batch at a time until nothing is left or a
+    * whole batch failed.
+    * 
+    * @return how many objects were copied or deleted
+    */
+   public int sync() throws InterruptedException {
+      int done = 0;
+      while (true) {
+         List<Entry> batch = catalog.pending(batchSize);
+         if (batch.isEmpty())
+            return done;
+         List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+         for (final Entry entry : batch) {
+            results.add(executor.submit(new Callable<Boolean>() {
+               public Boolean call() throws Exception {
+                  return entry.getState() == State.DELETED ? deleteRemote(entry) : upload(entry);
+               }
+            }));
+         }
+         int succeeded = 0;
+         for (int i = 0; i < results.size(); i++) {
+            try {
+               if (results.get(i).get())
+                  succeeded++;
+            } catch (ExecutionException e) {
+               failures.incrementAndGet();
+               LOG.log(Level.WARNING, "could not sync " + batch.get(i), e.getCause());
+            }
+         }
+         done += succeeded;
+         if (succeeded == 0)
+            return done;
+      }
+   }
+
+   private boolean upload(Entry entry) throws IOException {
+      HttpURLConnection from = local.open("GET", entry.getBucket(), entry.getKey());
+      int status = from.getResponseCode();
+      if (status == 404) {
+         drain(responseBody(from));
+         // removed without going through the proxy
+         catalog.vanished(entry.getBucket(), entry.getKey(), entry.getETag());
+         return true;
+      }
+      if (status != 200) {
+         throw new IOException("could not read " + entry + " from " + local + ": " + status + " "
+               + new String(readFully(responseBody(from)), "UTF-8"));
+      }
+      String eTag = eTagOf(from);
+      if (!eTag.equals(entry.getETag())) {
+         // written again since, so record what is being copied now
+         String length = from.getHeaderField("Content-Length");
+         catalog.written(entry.getBucket(), entry.getKey(), length == null ? 0 : Long.parseLong(length.trim()),
+               eTag, System.currentTimeMillis());
+      }
+      long length = copy(from, remote, remoteBucket, remoteKey(entry.getBucket(), entry.getKey()), eTag);
+      catalog.uploaded(entry.getBucket(), entry.getKey(), eTag);
+      uploaded.incrementAndGet();
+      bytesUploaded.addAndGet(length);
+      return true;
+   }
+
+   private boolean deleteRemote(Entry entry) throws IOException {
+      HttpURLConnection connection = remote.open("DELETE", remoteBucket, remoteKey(entry.getBucket(), entry
+            .getKey()));
+      int status = connection.getResponseCode();
+      byte[] body = readFully(responseBody(connection));
+      if (status / 100 != 2 && status != 404)
+         throw new IOException("could not delete " + entry + " from " + remote + ": " + status + " "
+               + new String(body, "UTF-8"));
+      catalog.remoteDeleted(entry.getBucket(), entry.getKey());
+      remoteDeletes.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Removes local copies of objects the remote tier holds, least recently
+    * read first, until {@code bytes} are freed or no object has been idle
+    * long enough.
+    * 
+    * @return bytes freed
+    */
+   public long evict(long bytes) {
+      long freed = 0;
+      long idleSince = System.currentTimeMillis() - minIdle;
+      for (Entry entry : catalog.evictable(idleSince)) {
+         if (freed >= bytes)
+            break;
+         try {
+            if (evict(entry, idleSince))
+               freed += entry.getSize();
+         } catch (IOException e) {
+            failures.incrementAndGet();
+            LOG.log(Level.WARNING, "could not evict " + entry, e);
+         }
+      }
+      return freed;
+   }
+
+   private boolean evict(Entry entry, long idleSince) throws IOException {
+      Lock lock = lock(entry.getBucket(), entry.getKey());
+      lock.lock();
+      try {
+         Entry current = catalog.get(entry.getBucket(), entry.getKey());
+         if (current == null || current.getState() != State.CLEAN || !current.getETag().equals(entry.getETag())
+               || current.getLastAccess() > idleSince)
+            return false;
+         // both copies must still be the same object before one is dropped
+         if (!entry.getETag().equals(head(remote, remoteBucket, remoteKey(entry.getBucket(), entry.getKey())))) {
+            LOG.warning(entry + " is missing from or different in the remote tier, copying it again");
+            catalog.written(entry.getBucket(), entry.getKey(), entry.getSize(), entry.getETag(), System
+                  .currentTimeMillis());
+            return false;
+         }
+         if (!entry.getETag().equals(head(local, entry.getBucket(), entry.getKey())))
+            return false;
+         HttpURLConnection connection = local.open("DELETE", entry.getBucket(), entry.getKey());
+         int status = connection.getResponseCode();
+         byte[] body = readFully(responseBody(connection));
+         if (status / 100 != 2)
+            throw new IOException("could not delete " + entry + " from " + local + ": " + status + " "
+                  + new String(body, "UTF-8"));
+         catalog.evicted(entry.getBucket(), entry.getKey(), entry.getETag());
+         evicted.incrementAndGet();
+         bytesEvicted.addAndGet(entry.getSize());
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Copies a cold object back to local disk, where it stays until it is
+    * evicted again.
+    * 
+    * @return false if it is not cold
+    */
+   public boolean warm(String bucket, String key) throws IOException {
+      Lock lock = lock(bucket, key);
+      lock.lock();
+      try {
+         Entry entry = catalog.get(bucket, key);
+         if (entry == null || entry.getState() != State.COLD)
+            return false;
+         HttpURLConnection from = remote.open("GET", remoteBucket, remoteKey(bucket, key));
+         int status = from.getResponseCode();
+         if (status != 200)
+            throw new IOException("could not read " + entry + " from " + remote + ": " + status + " "
+                  + new String(readFully(responseBody(from)), "UTF-8"));
+         String eTag = eTagOf(from);
+         copy(from, local, bucket, key, eTag);
+         catalog.warmed(bucket, key, eTag, System.currentTimeMillis());
+         warmed.incrementAndGet();
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Streams the object {@code from} returned to {@code key} in {@code bucket}
+    * of {@code to}, with its content type and user metadata, letting the
+    * target check the body against {@code eTag}.
+    * 
+    * @return its length
+    */
+   private static long copy(HttpURLConnection from, S3Endpoint to, String bucket, String key, String eTag)
+         throws IOException {
+      Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, List<String>> header : from.getHeaderFields().entrySet()) {
+         if (header.getKey() == null)
+            continue;
+         String name = header.getKey().toLowerCase();
+         if (KEPT_HEADERS.contains(name) || name.startsWith("x-amz-meta-"))
+            headers.put(header.getKey(), header.getValue());
+      }
+      if (isMd5(eTag)) {
+         headers.put("Content-MD5", Arrays.asList(DatatypeConverter.printBase64Binary(md5(eTag))));
+         headers.remove(TIER_ETAG);
+      } else {
+         headers.put(TIER_ETAG, Arrays.asList(eTag));
+      }
+      String contentLength = from.getHeaderField("Content-Length");
+      long length = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+      HttpURLConnection connection = to.open("PUT", bucket, key, null, headers);
+      InputStream in = from.getInputStream();
+      try {
+         HttpForwarding.sendBody(connection, in, length);
+      } finally {
+         in.close();
+      }
+      int status = connection.getResponseCode();
+      byte[] body = readFully(responseBody(connection));
+      if (status / 100 != 2)
+         throw new IOException("could not write " + bucket + "/" + key + " to " + to + ": " + status + " "
+               + new String(body, "UTF-8"));
+      String written = TierCatalog.unquote(connection.getHeaderField("ETag"));
+      if (isMd5(eTag) && !written.equalsIgnoreCase(eTag))
+         throw new IOException(bucket + "/" + key + " was written to " + to + " as " + written + ", not " + eTag);
+      return length;
+   }
+
+   /**
+    * @return the ETag of the object without quotes, or null if it is missing
+    */
+   private static String head(S3Endpoint endpoint, String bucket, String key) throws IOException {
+      HttpURLConnection connection = endpoint.open("HEAD", bucket, key);
+      int status = connection.getResponseCode();
+      drain(responseBody(connection));
+      if (status == 404)
+         return null;
+      if (status != 200)
+         throw new IOException("could not read " + bucket + "/" + key + " from " + endpoint + ": " + status);
+      return eTagOf(connection);
+   }
+
+   /**
+    * @return the ETag the catalog knows the object by, without quotes
+    */
+   private static String eTagOf(HttpURLConnection connection) {
+      String tagged = connection.getHeaderField(TIER_ETAG);
+      return tagged != null ? tagged : TierCatalog.unquote(connection.getHeaderField("ETag"));
+   }
+
+   private static boolean isMd5(String eTag) {
+      return eTag.matches("[0-9a-fA-F]{32}");
+   }
+
+   private static byte[] md5(String hex) {
+      byte[] md5 = new byte[hex.length() / 2];
+      for (int i = 0; i < md5.length; i++)
+         md5[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return md5;
+   }
+
+   private String remoteKey(String bucket, String key) {
+      return remotePrefix + bucket + "/" + key;
+   }
+
+   String stats() {
+      StringBuilder stats = new StringBuilder();
+      stats.append("objects ").append(catalog.size()).append('\n');
+      stats.append("uploaded ").append(uploaded.get()).append('\n');
+      stats.append("bytes-uploaded ").append(bytesUploaded.get()).append('\n');
+      stats.append("remote-deletes ").append(remoteDeletes.get()).append('\n');
+      stats.append("evicted ").append(evicted.get()).append('\n');
+      stats.append("bytes-evicted ").append(bytesEvicted.get()).append('\n');
+      stats.append("warmed ").append(warmed.get()).append('\n');
+      stats.append("failures ").append(failures.get()).append('\n');
+      return stats.toString();
+   }
+
+   private static String unescape(String xml) {
+      return xml.replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&apos;", "'")
+            .replace("&amp;", "&");
+   }
+}
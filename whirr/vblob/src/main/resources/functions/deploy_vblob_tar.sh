@@ -0,0 +1,43 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Extracts TARBALL over VBLOB_HOME unless it is the one extracted there last,
+# and restarts a running vBlob on the new code. config.json and anything else
+# not in the tarball are left in place.
+function deploy_vblob_tar() {
+  local TARBALL=${1}
+  local VBLOB_HOME=${2}
+  local VBLOB_USER=${3}
+  local MARKER=$VBLOB_HOME/.tarball.sha1
+  local SUM=$(sha1sum < $TARBALL | cut -c1-40)
+
+  if [ -f $MARKER ] && [ "$(cat $MARKER)" == "$SUM" ]; then
+    echo "$VBLOB_HOME is current"
+    return 0
+  fi
+
+  mkdir -p $VBLOB_HOME
+  tar -xzf $TARBALL -C $VBLOB_HOME --strip-components=1 || return 1
+  chown -R $VBLOB_USER $VBLOB_HOME
+  echo $SUM > $MARKER
+
+  # on first launch start_vblob starts the new code
+  if sudo -n -H -u ${VBLOB_USER} forever list 2>/dev/null | grep -q server.js; then
+    echo restarting vBlob on the code from $TARBALL
+    sudo -n -H -u ${VBLOB_USER} sh -c "(cd ${VBLOB_HOME}; forever restartall)"
+  fi
+  return 0
+}
@@ -0,0 +1,46 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Installs OpenJDK 7 and makes it the java on the path, for vblob-index,
+# which watches the data directory with java.nio.file. Fails on images whose
+# package manager only offers Java 6, rather than leaving the index to die at
+# start.
+function install_openjdk7() {
+  if java -version 2>&1 | grep -q '"1\.[7-9]'; then
+    return 0
+  fi
+  if which apt-get > /dev/null 2>&1; then
+    apt-get update -qq
+    apt-get -q -y install openjdk-7-jdk
+  elif which yum > /dev/null 2>&1; then
+    yum -q -y install java-1.7.0-openjdk-devel
+  else
+    abort "we only support apt-get and yum right now... please contribute!"
+    return 1
+  fi || { abort "vblob.index.enabled needs Java 7, which this image's package manager does not offer"; return 1; }
+
+  # set by hand, so a Java 6 installed later for another role does not take over
+  local JAVA=$(ls -d /usr/lib/jvm/*1.7.0*/jre/bin/java /usr/lib/jvm/*-7-*/jre/bin/java 2>/dev/null | head -1)
+  if [ -n "$JAVA" ]; then
+    update-alternatives --set java $JAVA
+    echo "JAVA_HOME=${JAVA%/jre/bin/java}" >> /etc/environment
+  fi
+  if ! java -version 2>&1 | grep -q '"1\.[7-9]'; then
+    abort "vblob.index.enabled needs Java 7, but java on the path is still $(java -version 2>&1 | head -1)"
+    return 1
+  fi
+  return 0
+}
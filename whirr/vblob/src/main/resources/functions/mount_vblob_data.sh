@@ -0,0 +1,33 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function mount_vblob_data() {
+  local DATA_DIR=${1}
+  local VBLOB_USER=${2}
+  local DEVICE=${3}
+
+  mkdir -p $DATA_DIR
+  if [ -n "$DEVICE" ] && ! mountpoint -q $DATA_DIR; then
+    # a volume holding a restored or reattached store keeps its filesystem
+    if ! blkid $DEVICE > /dev/null 2>&1; then
+      echo creating a filesystem on $DEVICE
+      mkfs.ext4 -q -F $DEVICE
+    fi
+    mount -o noatime $DEVICE $DATA_DIR
+    grep -q " $DATA_DIR " /etc/fstab || echo "$DEVICE $DATA_DIR ext4 defaults,noatime,nofail 0 2" >> /etc/fstab
+  fi
+  chown $VBLOB_USER $DATA_DIR
+}
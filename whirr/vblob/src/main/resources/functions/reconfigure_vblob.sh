@@ -0,0 +1,50 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function reconfigure_vblob() {
+  local VBLOB_HOME=${1}
+  local VBLOB_USER=${2}
+  local S3_PORT=${3}
+  local CONFIG=$VBLOB_HOME/config.json
+
+  if [ -f $CONFIG ] && cmp -s $CONFIG.new $CONFIG; then
+    echo "$CONFIG is unchanged"
+    rm -f $CONFIG.new
+    return 0
+  fi
+
+  mv -f $CONFIG.new $CONFIG
+  chown $VBLOB_USER $CONFIG
+
+  # vBlob only reads config.json at startup, so a running server is restarted in
+  # place; on first launch start_vblob picks up the new file
+  if sudo -n -H -u ${VBLOB_USER} forever list 2>/dev/null | grep -q server.js; then
+    echo restarting vBlob to pick up $CONFIG
+    sudo -n -H -u ${VBLOB_USER} sh -c "(cd ${VBLOB_HOME}; forever restartall)"
+    # a rolling reconfigure moves on to the next instances once this one serves
+    # again; any response will do, as the request is not signed
+    local attempt=0
+    until curl -s -o /dev/null http://localhost:${S3_PORT}/; do
+      attempt=$(( attempt + 1 ))
+      if (( $attempt >= 40 )); then
+        echo "vBlob did not come back on port $S3_PORT"
+        return 1
+      fi
+      sleep 2
+    done
+  fi
+  return 0
+}
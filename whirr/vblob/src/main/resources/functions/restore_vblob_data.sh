@@ -0,0 +1,70 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function restore_vblob_data() {
+  local SNAPSHOT_DIR=${1}
+  local DATA_DIR=${2}
+  local VBLOB_USER=${3}
+  local SLOTS_FILE=${4}
+  local SLOT=
+  local IP
+
+  # the slot table maps the private address of each instance to the
+  # snapshot it restores
+  for IP in $(hostname -I 2>/dev/null || ip -o -4 addr show | awk '{ split($4, a, "/"); print a[1] }'); do
+    SLOT=$(awk -v ip=$IP '$1 == ip { print $2 }' $SLOTS_FILE)
+    [ -n "$SLOT" ] && break
+  done
+  if [ -z "$SLOT" ]; then
+    echo "no snapshot slot for this instance in $SLOTS_FILE"
+    return 0
+  fi
+  local SNAPSHOT=$SNAPSHOT_DIR/$SLOT/latest
+  if [ ! -d $SNAPSHOT/ ]; then
+    echo "no snapshot for $SLOT in $SNAPSHOT_DIR, starting empty"
+    return 0
+  fi
+  if [ -n "$(ls -A $DATA_DIR 2> /dev/null)" ]; then
+    echo "$DATA_DIR already holds data, not restoring $SNAPSHOT"
+    return 0
+  fi
+
+  echo restoring $DATA_DIR from $(readlink -f $SNAPSHOT)
+  mkdir -p $DATA_DIR
+  # on one filesystem the data dir shares the snapshot's files through hard
+  # links, so the restore takes time per file rather than per byte. That is
+  # safe as vBlob's fs driver renames each new object into place, and the log
+  # store only writes its newest segment, which gets a copy of its own
+  local SEGMENT
+  if cp -al $SNAPSHOT/. $DATA_DIR/ 2> /dev/null; then
+    SEGMENT=$(find $DATA_DIR -name 'segment-*.log' | sort | tail -n 1)
+    if [ -n "$SEGMENT" ] && ! { cp -p $SEGMENT $SEGMENT.copy && mv -f $SEGMENT.copy $SEGMENT; }; then
+      find $DATA_DIR -mindepth 1 -delete
+      abort "could not restore $DATA_DIR from $SNAPSHOT"
+      return 1
+    fi
+  else
+    echo "$SNAPSHOT_DIR is on another filesystem than $DATA_DIR, copying the whole snapshot"
+    find $DATA_DIR -mindepth 1 -delete
+    if ! cp -a $SNAPSHOT/. $DATA_DIR/; then
+      # an empty store is better than a partial one
+      find $DATA_DIR -mindepth 1 -delete
+      abort "could not restore $DATA_DIR from $SNAPSHOT"
+      return 1
+    fi
+  fi
+  chown -R $VBLOB_USER $DATA_DIR
+}
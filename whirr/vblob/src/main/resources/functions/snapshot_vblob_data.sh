@@ -0,0 +1,58 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function snapshot_vblob_data() {
+  local SNAPSHOT_DIR=${1}
+  local DATA_DIR=${2}
+  local VBLOB_USER=${3}
+  local SLOT=${4}
+  local KEEP=${5}
+  local VBLOB_HOME=${6}
+  local TARGET=$SNAPSHOT_DIR/$SLOT
+  local NAME=$(date -u +%Y%m%dT%H%M%SZ)
+
+  mkdir -p $TARGET || return 1
+  # nothing may write while the store is copied: neither vBlob nor the Java
+  # services next to it
+  sudo -n -H -u ${VBLOB_USER} forever stopall > /dev/null 2>&1
+  local PID_FILE PID
+  for PID_FILE in $(ls $VBLOB_HOME/*.pid 2> /dev/null); do
+    PID=$(cat $PID_FILE)
+    kill $PID 2> /dev/null
+    for i in $(seq 1 30); do
+      kill -0 $PID 2> /dev/null || break
+      sleep 1
+    done
+    rm -f $PID_FILE
+  done
+
+  if which rsync > /dev/null 2>&1; then
+    # files unchanged since the last snapshot are hard links to it
+    local LINK_DEST=
+    [ -d $TARGET/latest/ ] && LINK_DEST=--link-dest=$(readlink -f $TARGET/latest)
+    rsync -a --delete $LINK_DEST $DATA_DIR/ $TARGET/$NAME.partial/ || return 1
+  else
+    mkdir -p $TARGET/$NAME.partial && cp -a $DATA_DIR/. $TARGET/$NAME.partial/ || return 1
+  fi
+  mv $TARGET/$NAME.partial $TARGET/$NAME
+  ln -sfn $NAME $TARGET/latest
+
+  local OLD
+  for OLD in $(ls -1d $TARGET/[0-9]*Z 2> /dev/null | sort | head -n -$KEEP); do
+    rm -rf $OLD
+  done
+  echo "snapshot of $DATA_DIR in $TARGET/$NAME"
+}
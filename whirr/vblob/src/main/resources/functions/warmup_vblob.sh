@@ -0,0 +1,99 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+function warmup_vblob() {
+  local PORT=${1}
+  local ACCESS_KEY=${2}
+  local SECRET_FILE=${3}
+  local SECRET_PROPERTY=${4}
+  local MAX_REQUESTS=${5}
+  local TOLERANCE=${6}
+  local ROUND_SIZE=50
+  local HOST=127.0.0.1:$PORT
+  local BUCKET=whirr-warmup-$(hostname | tr 'A-Z_.' 'a-z--')
+  local SENT=0
+  local FIRST=
+  local PREVIOUS=
+  local MEAN=
+  local SETTLED=
+  # the secret is read from the file the store itself reads, so it never shows
+  # up in ps or in the script's log; gson escapes config.json, so node parses it
+  local SECRET_KEY
+  case $SECRET_FILE in
+    *.json) SECRET_KEY=$(node -e "console.log(JSON.parse(require('fs').readFileSync('$SECRET_FILE', 'utf8')).$SECRET_PROPERTY || '')") ;;
+    *) SECRET_KEY=$(awk -v key="$SECRET_PROPERTY" 'index($0, key "=") == 1 { print substr($0, length(key) + 2) }' $SECRET_FILE) ;;
+  esac
+  if [ -z "$SECRET_KEY" ]; then
+    echo "no $SECRET_PROPERTY in $SECRET_FILE, skipping warm-up"
+    return 0
+  fi
+
+  # prints "status seconds" of a version 2 signed request
+  function s3_warmup_request() {
+    local METHOD=${1}
+    local RESOURCE=${2}
+    local DATA=${3}
+    local DATE=$(LC_ALL=C date -u '+%a, %d %b %Y %H:%M:%S GMT')
+    local SIGNATURE=$(printf '%s\n\n%s\n%s\n%s' $METHOD "${DATA:+application/octet-stream}" "$DATE" $RESOURCE | openssl dgst -sha1 -hmac "$SECRET_KEY" -binary | openssl base64)
+    local OPTIONS=()
+    [ $METHOD = HEAD ] && OPTIONS=(-I)
+    [ $METHOD = PUT ] && OPTIONS=(-H "Content-Length: 0")
+    [ -n "$DATA" ] && OPTIONS=(-H "Content-Type: application/octet-stream" --data-binary @$DATA)
+    curl -s -o /dev/null -w '%{http_code} %{time_total}' -X $METHOD "${OPTIONS[@]}" \
+      -H "Date: $DATE" -H "Authorization: AWS $ACCESS_KEY:$SIGNATURE" "http://$HOST$RESOURCE"
+  }
+
+  echo warming up vBlob on $HOST
+  local OBJECT=$(mktemp)
+  head -c 16384 /dev/urandom > $OBJECT
+  s3_warmup_request PUT /$BUCKET > /dev/null
+  s3_warmup_request PUT /$BUCKET/object $OBJECT > /dev/null
+  rm -f $OBJECT
+
+  while [ $SENT -lt $MAX_REQUESTS ]; do
+    local TOTAL=0
+    local FAILED=0
+    local i
+    for i in $(seq 1 $ROUND_SIZE); do
+      local RESULT
+      case $(( i % 3 )) in
+        0) RESULT=$(s3_warmup_request GET /) ;;
+        1) RESULT=$(s3_warmup_request HEAD /$BUCKET/object) ;;
+        2) RESULT=$(s3_warmup_request GET /$BUCKET/object) ;;
+      esac
+      [ "${RESULT%% *}" = "200" ] || FAILED=$((FAILED + 1))
+      TOTAL=$(echo $TOTAL ${RESULT##* } | awk '{ print $1 + $2 }')
+    done
+    SENT=$((SENT + ROUND_SIZE))
+    MEAN=$(echo $TOTAL $ROUND_SIZE | awk '{ printf "%.1f", $1 * 1000 / $2 }')
+    echo "warm-up round of $ROUND_SIZE: mean ${MEAN}ms, $FAILED failed"
+    [ -z "$FIRST" ] && FIRST=$MEAN
+    if [ -n "$PREVIOUS" ] && echo $MEAN $PREVIOUS $TOLERANCE | awk '{ exit !($1 - $2 <= $2 * $3 / 100 && $2 - $1 <= $2 * $3 / 100) }'; then
+      SETTLED=true
+      break
+    fi
+    PREVIOUS=$MEAN
+  done
+
+  s3_warmup_request DELETE /$BUCKET/object > /dev/null
+  s3_warmup_request DELETE /$BUCKET > /dev/null
+  if [ -n "$SETTLED" ]; then
+    echo "vBlob warmed up after $SENT requests: mean ${MEAN}ms, first round ${FIRST}ms"
+  else
+    echo "vBlob latency did not settle within $MAX_REQUESTS requests: mean ${MEAN}ms, first round ${FIRST}ms"
+  fi
+  return 0
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.service.common.benchmark.LifecycleBenchmark;
+import org.apache.whirr.service.vblob.CommonsConfigurationToVBlobConfig;
+import org.apache.whirr.service.vblob.VBlobConfig;
+import org.apache.whirr.service.vblob.VBlobStatements;
+import org.apache.whirr.service.vblob.store.Body;
+import org.apache.whirr.service.vblob.store.LogStore;
+import org.apache.whirr.service.vblob.store.LogStore.Listing;
+import org.apache.whirr.service.vblob.store.LogStore.StoredObject;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * The vBlob lifecycle, measured by {@link LifecycleBenchmark} against
+ * {@code vblob-benchmark-baseline.properties}.
+ * 
+ * <p/>
+ * {@link #testLogStoreAgainstFileLayout()} also measures the {@code log}
+ * driver's store against the layout of vBlob's {@code fs} driver, a data file
+ * and a metadata file per object, on the local disk.
+ */
+public class VBlobBenchmark extends LifecycleBenchmark {
+
+   public VBlobBenchmark() {
+      super("vblob");
+   }
+
+   @Override
+   protected Map<String, Statement> statements(Configuration configuration) throws Exception {
+      VBlobConfig config = toConfig(configuration);
+      return ImmutableMap.<String, Statement> builder()
+            .put("install", new StatementList(VBlobStatements.install(config)))
+            .put("configure", VBlobStatements.configure(config))
+            .put("start", VBlobStatements.start(config))
+            .put("stop", VBlobStatements.stop(config))
+            .put("cleanup", VBlobStatements.cleanup(config)).build();
+   }
+
+   @Override
+   protected VBlobConfig toConfig(Configuration configuration) throws Exception {
+      return new CommonsConfigurationToVBlobConfig("vblob", "vblob").apply(configuration);
+   }
+
+   @Test
+   public void testLogStoreAgainstFileLayout() throws Exception {
+      int count = Integer.getInteger("whirr.benchmark.objects", 20000);
+      int size = Integer.getInteger("whirr.benchmark.object-size", 1024);
+      byte[] content = new byte[size];
+      new Random(0).nextBytes(content);
+      List<String> keys = Lists.newArrayList();
+      for (int i = 0; i < count; i++)
+         keys.add(String.format("photos/%08d.jpg", i));
+      List<String> shuffled = Lists.newArrayList(keys);
+      Collections.shuffle(shuffled, new Random(1));
+      Map<String, String> metadata = ImmutableMap.of("Content-Type", "image/jpeg");
+
+      File root = Files.createTempDir();
+      try {
+         LogStore store = LogStore.open(new File(root, "log"), 256L * 1024 * 1024, false);
+         try {
+            store.createBucket("bench");
+            Stopwatch watch = new Stopwatch().start();
+            for (String key : keys)
+               store.put("bench", key, metadata, Body.read(new ByteArrayInputStream(content), size, store.spoolDir()));
+            record("store.log.put.us", watch.elapsedTime(TimeUnit.MICROSECONDS) / count);
+
+            watch.reset().start();
+            for (String key : shuffled) {
+               StoredObject object = store.open("bench", key);
+               try {
+                  object.metadata();
+                  object.transferTo(0, object.size(), DISCARD);
+               } finally {
+                  object.close();
+               }
+            }
+            record("store.log.get.us", watch.elapsedTime(TimeUnit.MICROSECONDS) / count);
+
+            watch.reset().start();
+            String marker = null;
+            do {
+               Listing listing = store.list("bench", "photos/", marker, "/", 1000);
+               marker = listing.getNextMarker();
+            } while (marker != null);
+            record("store.log.list.ms", watch.elapsedMillis());
+            record("store.log.files", new File(root, "log").list().length);
+         } finally {
+            store.close();
+         }
+
+         File bucket = new File(root, "fs/bench");
+         File meta = new File(root, "fs/bench-meta");
+         Stopwatch watch = new Stopwatch().start();
+         for (String key : keys) {
+            File file = new File(bucket, key);
+            file.getParentFile().mkdirs();
+            File temp = new File(file.getPath() + ".tmp");
+            Files.write(content, temp);
+            temp.renameTo(file);
+            File metaFile = new File(meta, key + ".json");
+            metaFile.getParentFile().mkdirs();
+            Files.write(("{\"content-type\":\"image/jpeg\",\"size\":" + size + "}").getBytes("UTF-8"), metaFile);
+         }
+         record("store.fs.put.us", watch.elapsedTime(TimeUnit.MICROSECONDS) / count);
+
+         watch.reset().start();
+         for (String key : shuffled) {
+            Files.toByteArray(new File(meta, key + ".json"));
+            FileChannel channel = new FileInputStream(new File(bucket, key)).getChannel();
+            try {
+               channel.transferTo(0, channel.size(), DISCARD);
+            } finally {
+               channel.close();
+            }
+         }
+         record("store.fs.get.us", watch.elapsedTime(TimeUnit.MICROSECONDS) / count);
+
+         watch.reset().start();
+         String[] names = new File(bucket, "photos").list();
+         Arrays.sort(names);
+         for (String name : names)
+            new File(meta, "photos/" + name + ".json").length();
+         record("store.fs.list.ms", watch.elapsedMillis());
+         record("store.fs.files", count * 2);
+      } finally {
+         delete(root);
+      }
+      writeAndCheck();
+   }
+
+   private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+         int length = src.remaining();
+         src.position(src.limit());
+         return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+         return true;
+      }
+
+      @Override
+      public void close() {
+      }
+   };
+
+   private static void delete(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children)
+            delete(child);
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+import org.apache.whirr.service.vblob.tier.S3Endpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CachingProxyTest {
+   private static final String KEY = "vblob-key";
+   private static final String SECRET = "vblob-secret";
+
+   private HttpServer vBlob;
+   private final AtomicInteger fetches = new AtomicInteger();
+   private HttpServer proxy;
+   private S3Endpoint client;
+
+   @Before
+   public void setUp() throws IOException {
+      vBlob = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+      vBlob.createContext("/", new HttpHandler() {
+         /** serves /b/k to requests signed for the method they use, as vBlob does */
+         @Override
+         public void handle(HttpExchange exchange) throws IOException {
+            URI uri = exchange.getRequestURI();
+            if (!S3Signatures.verify(KEY, SECRET, exchange.getRequestHeaders().getFirst("Authorization"),
+                  S3Signatures.stringToSign(exchange.getRequestMethod(), exchange.getRequestHeaders(), uri
+                        .getRawPath(), uri.getRawQuery()))) {
+               HttpForwarding.error(exchange, 403, "SignatureDoesNotMatch", "bad signature");
+               return;
+            }
+            if (!"/b/k".equals(uri.getRawPath())) {
+               HttpForwarding.error(exchange, 404, "NoSuchKey", uri.getRawPath());
+               return;
+            }
+            fetches.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"etag\"");
+            HttpForwarding.respond(exchange, 200, "text/plain", "value".getBytes("UTF-8"));
+         }
+      });
+      vBlob.start();
+      proxy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+      proxy.createContext("/", new CachingProxy(new ObjectCache(1024, 1024), URI.create("http://127.0.0.1:"
+            + vBlob.getAddress().getPort()), 60000, KEY, SECRET, 2000, 5000));
+      proxy.start();
+      client = new S3Endpoint(URI.create("http://127.0.0.1:" + proxy.getAddress().getPort()), KEY, SECRET, 2000,
+            5000);
+   }
+
+   @After
+   public void tearDown() {
+      proxy.stop(0);
+      vBlob.stop(0);
+   }
+
+   @Test
+   public void testUncachedHeadIsFetchedWithItsOwnSignature() throws IOException {
+      HttpURLConnection head = client.open("HEAD", "b", "k");
+      assertEquals(200, head.getResponseCode());
+      assertEquals("MISS", head.getHeaderField("X-Cache"));
+      assertEquals("5", head.getHeaderField("Content-Length"));
+
+      HttpURLConnection get = client.open("GET", "b", "k");
+      assertEquals(200, get.getResponseCode());
+      assertEquals("HIT", get.getHeaderField("X-Cache"));
+      assertEquals("value", new String(HttpForwarding.readFully(get.getInputStream()), "UTF-8"));
+      assertEquals(1, fetches.get());
+   }
+
+   @Test
+   public void testUncachedGetIsServedAndKept() throws IOException {
+      HttpURLConnection miss = client.open("GET", "b", "k");
+      assertEquals(200, miss.getResponseCode());
+      assertEquals("value", new String(HttpForwarding.readFully(miss.getInputStream()), "UTF-8"));
+
+      HttpURLConnection hit = client.open("HEAD", "b", "k");
+      assertEquals(200, hit.getResponseCode());
+      assertEquals("HIT", hit.getHeaderField("X-Cache"));
+      assertEquals(1, fetches.get());
+   }
+}
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ObjectCacheTest {
+   private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+
+   @Test
+   public void testEvictsLeastRecentlyUsedPastCapacity() {
+      ObjectCache cache = new ObjectCache(10, 10);
+      cache.put("/b/1", "1", NO_HEADERS, new byte[4], 0, cache.generation());
+      cache.put("/b/2", "2", NO_HEADERS, new byte[4], 0, cache.generation());
+      cache.get("/b/1");
+      cache.put("/b/3", "3", NO_HEADERS, new byte[4], 0, cache.generation());
+      assertNotNull(cache.get("/b/1"));
+      assertNull(cache.get("/b/2"));
+      assertNotNull(cache.get("/b/3"));
+      assertEquals(1, cache.evictions.get());
+   }
+
+   @Test
+   public void testRejectsObjectsOverTheLimit() {
+      ObjectCache cache = new ObjectCache(100, 10);
+      assertFalse(cache.put("/b/big", "big", NO_HEADERS, new byte[11], 0, cache.generation()));
+      assertNull(cache.get("/b/big"));
+   }
+
+   @Test
+   public void testFetchRacingAWriteIsNotStored() {
+      ObjectCache cache = new ObjectCache(100, 10);
+      long generation = cache.generation();
+      // a PUT lands while the GET is still reading the old body
+      cache.invalidate("/b/key");
+      assertFalse(cache.put("/b/key", "old", NO_HEADERS, new byte[1], 0, generation));
+      assertTrue(cache.put("/b/key", "new", NO_HEADERS, new byte[1], 0, cache.generation()));
+   }
+
+   @Test
+   public void testInvalidatePrefixDropsBucket() {
+      ObjectCache cache = new ObjectCache(100, 10);
+      cache.put("/b/1", "1", NO_HEADERS, new byte[1], 0, cache.generation());
+      cache.put("/bb/1", "1", NO_HEADERS, new byte[1], 0, cache.generation());
+      cache.invalidatePrefix("/b/");
+      assertNull(cache.get("/b/1"));
+      assertNotNull(cache.get("/bb/1"));
+   }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.whirr.service.vblob.index.KeyIndex.Entry;
+import org.apache.whirr.service.vblob.index.KeyIndex.Listing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyIndexTest {
+   private File dir;
+   private KeyIndex index;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = File.createTempFile("keyindex", "");
+      dir.delete();
+      dir.mkdirs();
+      index = new KeyIndex();
+      for (String key : Arrays.asList("a", "b/1", "b/2", "c/1", "d"))
+         index.put("meta/" + key, new Entry(key, 1, "etag", 0));
+   }
+
+   @After
+   public void tearDown() {
+      delete(dir);
+   }
+
+   @Test
+   public void testListWithDelimiterAndMarker() {
+      Listing listing = index.list("", null, "/", 3);
+      assertEquals(Arrays.asList("a"), keys(listing));
+      assertEquals(Arrays.asList("b/", "c/"), listing.getCommonPrefixes());
+      assertTrue(listing.isTruncated());
+      assertEquals("c/", listing.getNextMarker());
+
+      listing = index.list("", listing.getNextMarker(), "/", 3);
+      assertEquals(Arrays.asList("d"), keys(listing));
+      assertFalse(listing.isTruncated());
+      assertNull(listing.getNextMarker());
+
+      assertEquals(Arrays.asList("b/2"), keys(index.list("b/", "b/1", null, 10)));
+   }
+
+   @Test
+   public void testRenamedAndDeletedFiles() {
+      index.put("meta/a", new Entry("e", 1, "etag", 0));
+      index.remove("meta/d");
+      assertEquals(Arrays.asList("b/1", "b/2", "c/1", "e"), keys(index.list("", null, null, 10)));
+   }
+
+   @Test
+   public void testReconcileKeepsFilesThatStillExist() throws IOException {
+      new File(dir, "meta").mkdirs();
+      new File(dir, "meta/d").createNewFile();
+      assertEquals(3, index.reconcile(Collections.singletonMap("meta/a", new Entry("a", 2, "etag", 0)), dir));
+      assertEquals(Arrays.asList("a", "d"), keys(index.list("", null, null, 10)));
+      assertEquals(2, index.list("", null, null, 10).getContents().get(0).getSize());
+   }
+
+   @Test
+   public void testSaveAndLoad() throws IOException {
+      index.put("meta/tab", new Entry("with\ttab and \u00fc", 7, "\"quoted\"", 1234));
+      File file = new File(dir, "index");
+      assertTrue(index.saveIfChanged(file));
+      assertFalse(index.saveIfChanged(file));
+
+      KeyIndex loaded = KeyIndex.load(file);
+      assertEquals(6, loaded.size());
+      Entry entry = loaded.list("with", null, null, 1).getContents().get(0);
+      assertEquals(new Entry("with\ttab and \u00fc", 7, "\"quoted\"", 1234), entry);
+      assertFalse(loaded.saveIfChanged(file));
+   }
+
+   @Test
+   public void testReadMetadataFile() throws IOException {
+      File file = new File(dir, "meta.json");
+      write(file, "{\"vblob_file_name\":\"dir\\/k\\u00fc\",\"vblob_file_size\":42,"
+            + "\"vblob_file_etag\":\"\\\"abc\\\"\",\"vblob_update_time\":\"Thu, 01 Jan 1970 00:00:01 GMT\"}");
+      assertEquals(new Entry("dir/k\u00fc", 42, "abc", 1000), FsDriverIndexer.read(file));
+
+      write(file, "{\"vblob_file_name\":\"k\"");
+      assertNull(FsDriverIndexer.read(file));
+   }
+
+   private static List<String> keys(Listing listing) {
+      List<String> keys = new ArrayList<String>();
+      for (Entry entry : listing.getContents())
+         keys.add(entry.getKey());
+      return keys;
+   }
+
+   private static void write(File file, String content) throws IOException {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         out.write(content.getBytes("UTF-8"));
+      } finally {
+         out.close();
+      }
+   }
+
+   private static void delete(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children)
+            delete(child);
+      }
+      file.delete();
+   }
+}
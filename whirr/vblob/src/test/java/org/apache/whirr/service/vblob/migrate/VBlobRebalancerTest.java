@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.migrate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.whirr.service.vblob.migrate.VBlobRebalancer.Move;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class VBlobRebalancerTest {
+   private static final URI A = URI.create("http://10.0.0.1:9981");
+   private static final URI B = URI.create("http://10.0.0.2:9981");
+   private static final URI C = URI.create("http://10.0.0.3:9981");
+
+   @Test
+   public void testMovesLargestBucketThatNarrowsGap() {
+      Map<URI, Map<String, Long>> inventory = ImmutableMap.<URI, Map<String, Long>> of(
+            A, ImmutableMap.of("logs", 600L, "images", 300L, "tmp", 100L),
+            B, ImmutableMap.<String, Long> of(),
+            C, ImmutableMap.of("backups", 200L));
+
+      List<Move> moves = VBlobRebalancer.plan(inventory);
+
+      assertEquals(2, moves.size());
+      assertEquals("images", moves.get(0).getBucket());
+      assertEquals(A, moves.get(0).getFrom());
+      assertEquals(B, moves.get(0).getTo());
+      assertEquals("tmp", moves.get(1).getBucket());
+      assertEquals(C, moves.get(1).getTo());
+   }
+
+   @Test
+   public void testLeavesDuplicateBucketNamesAlone() {
+      Map<URI, Map<String, Long>> inventory = ImmutableMap.<URI, Map<String, Long>> of(
+            A, ImmutableMap.of("shared", 1000L),
+            B, ImmutableMap.of("shared", 0L));
+
+      assertEquals(0, VBlobRebalancer.plan(inventory).size());
+   }
+
+   @Test
+   public void testBalancedClusterNeedsNoMoves() {
+      Map<URI, Map<String, Long>> inventory = ImmutableMap.<URI, Map<String, Long>> of(
+            A, ImmutableMap.of("a", 500L),
+            B, ImmutableMap.of("b", 500L));
+
+      assertEquals(0, VBlobRebalancer.plan(inventory).size());
+   }
+}
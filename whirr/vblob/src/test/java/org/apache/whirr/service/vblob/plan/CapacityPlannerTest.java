@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.plan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.service.vblob.plan.CapacityPlan.Group;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+public class CapacityPlannerTest {
+   private static final long GB = 1024L * 1024 * 1024;
+
+   private static CapacityProfile profile(Map<String, String> settings) {
+      PropertiesConfiguration config = new PropertiesConfiguration();
+      for (Map.Entry<String, String> setting : settings.entrySet())
+         config.setProperty(setting.getKey(), setting.getValue());
+      return CapacityProfile.fromConfiguration(config);
+   }
+
+   private static final CapacityProfile PROFILE = profile(ImmutableMap.<String, String> builder()
+         .put("hardware-ids", "small")
+         .put("hardware.small.cost", "1")
+         .put("hardware.small.disk", 100 * GB + "")
+         .put("hardware.small.cinderella.rate", "100")
+         .put("hardware.small.vblob.rate.1000", "1000")
+         .put("hardware.small.vblob.rate.2000", "500")
+         .put("hardware.small.vblob-router.rate.1000", "2000")
+         .build());
+
+   private static CapacityTarget target(double ec2Rate, double s3Throughput, long storedBytes) {
+      return new CapacityTarget(ec2Rate, s3Throughput, ImmutableMap.of(1000L, 1.0), 0, storedBytes, 2);
+   }
+
+   @Test
+   public void testSmallLoadCoLocatesOnOneInstance() {
+      CapacityPlan plan = new CapacityPlanner(PROFILE, 0.5).plan(target(20, 200 * 1000, GB));
+      assertTrue(plan.isColocated());
+      Group group = plan.getGroups().get(0);
+      assertEquals(ImmutableList.of("vblob", "cinderella"), group.getRoles());
+      assertEquals(1, group.getCount());
+      // 20 of 100 EC2 requests and 200 of 1000 S3 requests
+      assertEquals(0.6, plan.getHeadroom(), 0.001);
+      assertTrue(plan.toProperties().contains("whirr.instance-templates=1 vblob+cinderella"));
+      assertTrue(plan.toProperties().contains("whirr.templates.vblob+cinderella.hardware-id=small"));
+   }
+
+   @Test
+   public void testStoredBytesSpreadOverReplicatedInstances() {
+      CapacityPlan plan = new CapacityPlanner(PROFILE, 0.5).plan(target(0, 0, 150 * GB));
+      Group group = plan.getGroups().get(0);
+      assertEquals(ImmutableList.of("vblob", "cinderella", "vblob-router"), group.getRoles());
+      // two copies of 150GB on instances half full
+      assertEquals(6, group.getCount());
+      assertTrue(plan.toProperties().contains("vblob-router.replicas=2"));
+   }
+
+   @Test
+   public void testRequestTimeFollowsObjectSize() {
+      ImmutableSortedMap<Long, Double> rates = ImmutableSortedMap.of(1000L, 1000.0, 2000L, 500.0);
+      assertEquals(0.001, CapacityProfile.Hardware.time(rates, 10), 1e-9);
+      assertEquals(0.0015, CapacityProfile.Hardware.time(rates, 1500), 1e-9);
+      assertEquals(0.003, CapacityProfile.Hardware.time(rates, 3000), 1e-9);
+      assertEquals(0.004, CapacityProfile.Hardware.time(ImmutableSortedMap.of(1000L, 1000.0), 4000), 1e-9);
+   }
+
+   @Test
+   public void testProfileReportsEveryMissingMeasurement() {
+      try {
+         profile(ImmutableMap.of("hardware-ids", "small", "hardware.small.cost", "1"));
+         fail();
+      } catch (IllegalArgumentException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith("3 invalid hardware settings"));
+      }
+   }
+}
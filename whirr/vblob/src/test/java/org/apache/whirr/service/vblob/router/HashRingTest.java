@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+   @Test
+   public void testReplicasAreDistinctAndBoundedByMembers() {
+      HashRing ring = new HashRing(Arrays.asList("a:9981", "b:9981", "c:9981"), 64);
+      for (int i = 0; i < 1000; i++) {
+         List<String> replicas = ring.replicasFor("bucket/key" + i, 2);
+         assertEquals(2, replicas.size());
+         assertEquals(2, new HashSet<String>(replicas).size());
+      }
+      assertEquals(3, ring.replicasFor("bucket/key", 5).size());
+   }
+
+   @Test
+   public void testAddingBackendOnlyMovesItsShare() {
+      HashRing before = new HashRing(Arrays.asList("a:9981", "b:9981", "c:9981"), 128);
+      HashRing after = new HashRing(Arrays.asList("a:9981", "b:9981", "c:9981", "d:9981"), 128);
+      int moved = 0;
+      int keys = 10000;
+      for (int i = 0; i < keys; i++) {
+         String primary = after.replicasFor("bucket/key" + i, 1).get(0);
+         if (!primary.equals(before.replicasFor("bucket/key" + i, 1).get(0))) {
+            assertEquals("d:9981", primary);
+            moved++;
+         }
+      }
+      // roughly a quarter of the keys belong to the new backend
+      assertTrue("moved " + moved, moved > keys / 8 && moved < keys / 2);
+   }
+
+   @Test
+   public void testEmptyRing() {
+      assertEquals(0, new HashRing(Arrays.<String> asList(), 128).replicasFor("bucket/key", 2).size());
+   }
+}
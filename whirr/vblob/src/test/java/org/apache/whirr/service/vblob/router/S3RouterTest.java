@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class S3RouterTest {
+
+   /**
+    * A vBlob stand-in keeping objects by path, which does not check
+    * signatures
+    */
+   static class Store implements HttpHandler {
+      final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+      final HttpServer server;
+
+      Store() throws IOException {
+         server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+         server.createContext("/", this);
+         server.start();
+      }
+
+      String address() {
+         return "127.0.0.1:" + server.getAddress().getPort();
+      }
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+         String method = exchange.getRequestMethod();
+         String path = exchange.getRequestURI().getRawPath();
+         byte[] body = HttpForwarding.readFully(exchange.getRequestBody());
+         if ("PUT".equals(method)) {
+            objects.put(path, body);
+            HttpForwarding.respond(exchange, 200, null, new byte[0]);
+         } else if ("DELETE".equals(method)) {
+            objects.remove(path);
+            HttpForwarding.respond(exchange, 204, null, new byte[0]);
+         } else if (objects.containsKey(path)) {
+            HttpForwarding.respond(exchange, 200, "text/plain", objects.get(path));
+         } else {
+            HttpForwarding.error(exchange, 404, "NoSuchKey", path);
+         }
+      }
+   }
+
+   private Store a;
+   private Store b;
+   private File members;
+   private Backends backends;
+   private ExecutorService fanOut;
+   private S3Router router;
+   private HttpServer server;
+
+   @Before
+   public void setUp() throws IOException {
+      a = new Store();
+      b = new Store();
+      members = File.createTempFile("backends", ".txt");
+      Files.write(a.address() + "\n" + b.address() + "\n", members, Charsets.UTF_8);
+      // one failure marks a backend down, and nothing checks it in between
+      backends = new Backends(members, 16, 1, 1000);
+      backends.reload();
+      fanOut = Executors.newCachedThreadPool();
+      router = new S3Router(backends, 2, 1, 1000, 5000, "key", "secret", fanOut);
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+      server.createContext("/", router);
+      server.start();
+   }
+
+   @After
+   public void tearDown() {
+      server.stop(0);
+      a.server.stop(0);
+      b.server.stop(0);
+      fanOut.shutdownNow();
+      members.delete();
+   }
+
+   @Test
+   public void testDeleteMissedByAReplicaStaysDeleted() throws Exception {
+      assertEquals(200, request("PUT", "/bucket/key", "value"));
+      waitFor(b, "/bucket/key", true);
+
+      backends.markDown(b.address());
+      assertEquals(204, request("DELETE", "/bucket/key", null));
+      assertFalse(a.objects.containsKey("/bucket/key"));
+      assertTrue(b.objects.containsKey("/bucket/key"));
+
+      backends.markUp(b.address());
+      // reads rotate over both replicas
+      for (int i = 0; i < 4; i++)
+         assertEquals(404, request("GET", "/bucket/key", null));
+
+      router.repairTombstones();
+      assertFalse(b.objects.containsKey("/bucket/key"));
+   }
+
+   @Test
+   public void testWriteAfterDeleteIsReadAgain() throws Exception {
+      request("PUT", "/bucket/key", "old");
+      waitFor(b, "/bucket/key", true);
+      backends.markDown(b.address());
+      request("DELETE", "/bucket/key", null);
+      backends.markUp(b.address());
+
+      assertEquals(200, request("PUT", "/bucket/key", "new"));
+      waitFor(b, "/bucket/key", true);
+      for (int i = 0; i < 4; i++)
+         assertEquals(200, request("GET", "/bucket/key", null));
+   }
+
+   private int request(String method, String path, String body) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:"
+            + server.getAddress().getPort() + path).openConnection();
+      connection.setRequestMethod(method);
+      if (body != null)
+         HttpForwarding.sendBody(connection, new ByteArrayInputStream(body.getBytes("UTF-8")), body.length());
+      int status = connection.getResponseCode();
+      HttpForwarding.drain(HttpForwarding.responseBody(connection));
+      return status;
+   }
+
+   /** writes past the quorum finish after the client has its answer */
+   private static void waitFor(Store store, String path, boolean present) throws InterruptedException {
+      for (int i = 0; i < 100 && store.objects.containsKey(path) != present; i++)
+         Thread.sleep(10);
+   }
+}
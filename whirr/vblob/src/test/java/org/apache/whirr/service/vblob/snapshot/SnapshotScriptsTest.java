@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.snapshot;
+
+import static org.apache.whirr.service.common.BootstrapStatements.function;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.whirr.service.vblob.VBlobStatements;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Runs {@code snapshot_vblob_data} and {@code restore_vblob_data} on
+ * temporary directories. {@code date} and {@code hostname} are replaced, so
+ * each snapshot is named as the test says and the instance has the address of
+ * slot {@code slot-0}.
+ */
+public class SnapshotScriptsTest {
+
+   private static final String ADDRESS = "10.0.0.1";
+
+   private File root;
+   private File data;
+   private File snapshots;
+   private File home;
+
+   @Before
+   public void setUp() {
+      root = Files.createTempDir();
+      data = new File(root, "data");
+      snapshots = new File(root, "snapshots");
+      home = new File(root, "home");
+      assertTrue(data.mkdir() && home.mkdir());
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      run("rm -rf " + root);
+   }
+
+   @Test
+   public void testSnapshotsHardLinkUnchangedFiles() throws Exception {
+      assumeTrue(run("which rsync").exitStatus == 0);
+      write(data, "bucket/unchanged", "same");
+      write(data, "bucket/changed", "before");
+      snapshot("20261019T000001Z", 2);
+      write(data, "bucket/changed", "after");
+      snapshot("20261019T000002Z", 2);
+
+      File first = new File(snapshots, "slot-0/20261019T000001Z/bucket");
+      File second = new File(snapshots, "slot-0/20261019T000002Z/bucket");
+      assertEquals(0, run("[ " + new File(first, "unchanged") + " -ef " + new File(second, "unchanged") + " ]")
+            .exitStatus);
+      assertFalse(run("[ " + new File(first, "changed") + " -ef " + new File(second, "changed") + " ]")
+            .exitStatus == 0);
+      assertEquals("before", read(new File(first, "changed")));
+      assertEquals("after", read(new File(second, "changed")));
+   }
+
+   @Test
+   public void testOnlyTheKeptSnapshotsRemain() throws Exception {
+      write(data, "bucket/key", "value");
+      snapshot("20261019T000001Z", 2);
+      snapshot("20261019T000002Z", 2);
+      snapshot("20261019T000003Z", 2);
+
+      File slot = new File(snapshots, "slot-0");
+      assertEquals(ImmutableSet.of("20261019T000002Z", "20261019T000003Z", "latest"), ImmutableSet.copyOf(slot
+            .list()));
+      assertEquals(slot.getCanonicalPath() + "/20261019T000003Z",
+            run("readlink -f " + new File(slot, "latest")).output.trim());
+      assertEquals("value", read(new File(slot, "latest/bucket/key")));
+   }
+
+   @Test
+   public void testEmptyDataDirIsRestoredFromTheLatestSnapshot() throws Exception {
+      write(data, "bucket/key", "old");
+      snapshot("20261019T000001Z", 2);
+      write(data, "bucket/key", "new");
+      snapshot("20261019T000002Z", 2);
+      run("rm -rf " + data);
+
+      Result restored = restore();
+      assertEquals(restored.output, 0, restored.exitStatus);
+      assertEquals("new", read(new File(data, "bucket/key")));
+   }
+
+   @Test
+   public void testRestoreHardLinksAllButTheNewestSegment() throws Exception {
+      write(data, "bucket/key", "object");
+      write(data, "segment-000000000001.log", "sealed");
+      write(data, "segment-000000000002.log", "active");
+      snapshot("20261019T000001Z", 2);
+      run("rm -rf " + data);
+
+      Result restored = restore();
+      assertEquals(restored.output, 0, restored.exitStatus);
+      File latest = new File(snapshots, "slot-0/latest");
+      for (String shared : new String[] { "bucket/key", "segment-000000000001.log" })
+         assertEquals(shared, 0, run("[ " + new File(data, shared) + " -ef " + new File(latest, shared) + " ]")
+               .exitStatus);
+      // the log store appends to its newest segment, which must not reach the
+      // snapshot
+      File newest = new File(data, "segment-000000000002.log");
+      assertFalse(run("[ " + newest + " -ef " + new File(latest, newest.getName()) + " ]").exitStatus == 0);
+      assertEquals("active", read(newest));
+   }
+
+   @Test
+   public void testDataDirWithDataIsNotRestoredOver() throws Exception {
+      write(data, "bucket/key", "snapshotted");
+      snapshot("20261019T000001Z", 2);
+      run("rm -rf " + data + "/bucket");
+      write(data, "written-since", "kept");
+
+      Result restored = restore();
+      assertEquals(restored.output, 0, restored.exitStatus);
+      assertTrue(restored.output, restored.output.contains("already holds data"));
+      assertEquals("kept", read(new File(data, "written-since")));
+      assertFalse(new File(data, "bucket").exists());
+   }
+
+   private void snapshot(String name, int keep) throws Exception {
+      Result result = run("function date() { echo " + name + "; }\n"
+            + function(VBlobStatements.class, "snapshot_vblob_data") + "\nsnapshot_vblob_data " + snapshots + " "
+            + data + " " + System.getProperty("user.name") + " slot-0 " + keep + " " + home);
+      assertEquals(result.output, 0, result.exitStatus);
+   }
+
+   private Result restore() throws Exception {
+      File slots = new File(root, "snapshot-slots");
+      Files.write(ADDRESS + " slot-0\n", slots, Charsets.UTF_8);
+      return run("function hostname() { echo " + ADDRESS + "; }\nfunction abort() { echo \"$@\"; return 1; }\n"
+            + function(VBlobStatements.class, "restore_vblob_data") + "\nrestore_vblob_data " + snapshots + " "
+            + data + " " + System.getProperty("user.name") + " " + slots);
+   }
+
+   private static void write(File dir, String path, String content) throws IOException {
+      File file = new File(dir, path);
+      Files.createParentDirs(file);
+      Files.write(content, file, Charsets.UTF_8);
+   }
+
+   private static String read(File file) throws IOException {
+      return Files.toString(file, Charsets.UTF_8);
+   }
+
+   private static class Result {
+      final int exitStatus;
+      final String output;
+
+      Result(int exitStatus, String output) {
+         this.exitStatus = exitStatus;
+         this.output = output;
+      }
+   }
+
+   private static Result run(String script) throws Exception {
+      Process process = new ProcessBuilder("bash", "-c", script).redirectErrorStream(true).start();
+      InputStream in = process.getInputStream();
+      String output = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+      in.close();
+      return new Result(process.waitFor(), output);
+   }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class SnapshotSlotsTest {
+
+   @Test
+   public void testNewClusterGetsSlotsInAddressOrder() {
+      Map<String, String> assigned = SnapshotSlots.empty().assign(ImmutableList.of("10.0.0.2", "10.0.0.1"));
+      assertEquals(ImmutableMap.of("10.0.0.1", "slot-0", "10.0.0.2", "slot-1"), assigned);
+   }
+
+   @Test
+   public void testRecreatedClusterTakesOverEverySlot() {
+      SnapshotSlots slots = new SnapshotSlots(ImmutableMap.of(0, "10.0.0.1", 1, "10.0.0.2"));
+      Map<String, String> assigned = slots.assign(ImmutableList.of("10.0.1.7", "10.0.1.8", "10.0.1.9"));
+      assertEquals(ImmutableMap.of("10.0.1.7", "slot-0", "10.0.1.8", "slot-1", "10.0.1.9", "slot-2"), assigned);
+      assertNull(slots.slotOf("10.0.0.1"));
+   }
+
+   @Test
+   public void testRemainingAddressesKeepTheirSlots() {
+      SnapshotSlots slots = new SnapshotSlots(ImmutableMap.of(0, "10.0.0.1", 1, "10.0.0.2"));
+      Map<String, String> assigned = slots.assign(ImmutableList.of("10.0.0.2", "10.0.0.3"));
+      assertEquals("slot-1", assigned.get("10.0.0.2"));
+      assertEquals("slot-0", assigned.get("10.0.0.3"));
+   }
+
+   @Test
+   public void testSaveAndLoad() throws IOException {
+      File file = File.createTempFile("slots", ".properties");
+      try {
+         SnapshotSlots slots = SnapshotSlots.empty();
+         slots.assign(ImmutableList.of("10.0.0.1", "10.0.0.2"));
+         slots.save(file);
+         SnapshotSlots loaded = SnapshotSlots.load(file);
+         assertEquals("slot-1", loaded.slotOf("10.0.0.2"));
+      } finally {
+         file.delete();
+      }
+   }
+}
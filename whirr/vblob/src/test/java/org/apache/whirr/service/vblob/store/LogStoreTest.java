@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.whirr.service.vblob.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.whirr.service.vblob.store.LogStore.Listing;
+import org.apache.whirr.service.vblob.store.LogStore.StoredObject;
+import org.apache.whirr.service.vblob.store.LogStore.Summary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStoreTest {
+   private static final Map<String, String> NO_METADATA = Collections.emptyMap();
+
+   private File dir;
+   private LogStore store;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = File.createTempFile("logstore", "");
+      dir.delete();
+      store = LogStore.open(dir, 4096, false);
+      store.createBucket("b");
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      store.close();
+      delete(dir);
+   }
+
+   @Test
+   public void testPutGetAndDelete() throws Exception {
+      store.put("b", "k", Collections.singletonMap("Content-Type", "text/plain"), body("hello"));
+      assertEquals("hello", read("b", "k"));
+      StoredObject object = store.open("b", "k");
+      try {
+         assertEquals("5d41402abc4b2a76b9719d911017c592", object.eTag());
+         assertEquals("text/plain", object.metadata().get("content-type"));
+      } finally {
+         object.close();
+      }
+      assertTrue(store.delete("b", "k"));
+      assertNull(store.open("b", "k"));
+      assertFalse(store.delete("b", "k"));
+   }
+
+   @Test(expected = S3Exception.class)
+   public void testPutIntoMissingBucket() throws Exception {
+      store.put("missing", "k", NO_METADATA, body("x"));
+   }
+
+   @Test
+   public void testListRollsUpCommonPrefixes() throws Exception {
+      for (String key : Arrays.asList("a/1", "a/2", "b/1", "c", "d"))
+         store.put("b", key, NO_METADATA, body(key));
+      Listing listing = store.list("b", "", null, "/", 3);
+      assertEquals(Arrays.asList("a/", "b/"), listing.getCommonPrefixes());
+      assertEquals("c", listing.getContents().get(0).getKey());
+      assertTrue(listing.isTruncated());
+      assertEquals("c", listing.getNextMarker());
+
+      listing = store.list("b", "", "a/", "/", 1000);
+      assertEquals(Arrays.asList("b/"), listing.getCommonPrefixes());
+      assertFalse(listing.isTruncated());
+
+      listing = store.list("b", "a/", null, null, 1000);
+      assertEquals(2, listing.getContents().size());
+   }
+
+   @Test
+   public void testRecoversIndexAndCutsOffTornRecord() throws Exception {
+      store.put("b", "kept", NO_METADATA, body("kept"));
+      store.put("b", "deleted", NO_METADATA, body("deleted"));
+      store.delete("b", "deleted");
+      store.put("b", "torn", NO_METADATA, body("torn"));
+      store.close();
+
+      // a crash halfway through the last record
+      File newest = newestSegment();
+      RandomAccessFile file = new RandomAccessFile(newest, "rw");
+      try {
+         file.setLength(file.length() - 2);
+      } finally {
+         file.close();
+      }
+
+      store = LogStore.open(dir, 4096, false);
+      assertEquals("kept", read("b", "kept"));
+      assertNull(store.open("b", "deleted"));
+      assertNull(store.open("b", "torn"));
+      store.put("b", "after", NO_METADATA, body("after"));
+      assertEquals("after", read("b", "after"));
+   }
+
+   @Test
+   public void testCompactionKeepsLiveObjectsAndDeletes() throws Exception {
+      byte[] kilobyte = new byte[1024];
+      for (int round = 0; round < 5; round++) {
+         for (int i = 0; i < 8; i++)
+            store.put("b", "k" + i, NO_METADATA, Body.read(new ByteArrayInputStream(kilobyte), 1024, dir));
+      }
+      store.delete("b", "k0");
+      int segments = segments();
+      assertTrue(store.compact(50) > 0);
+      assertTrue(segments() < segments);
+
+      store.close();
+      store = LogStore.open(dir, 4096, false);
+      assertNull(store.open("b", "k0"));
+      Listing listing = store.list("b", null, null, null, 1000);
+      assertEquals(7, listing.getContents().size());
+      for (Summary summary : listing.getContents())
+         assertEquals(1024, summary.getSize());
+   }
+
+   private Body body(String content) throws IOException {
+      byte[] bytes = content.getBytes("UTF-8");
+      return Body.read(new ByteArrayInputStream(bytes), bytes.length, dir);
+   }
+
+   private String read(String bucket, String key) throws Exception {
+      StoredObject object = store.open(bucket, key);
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         object.transferTo(0, object.size(), Channels.newChannel(out));
+         return out.toString("UTF-8");
+      } finally {
+         object.close();
+      }
+   }
+
+   private int segments() {
+      int segments = 0;
+      for (String name : dir.list()) {
+         if (Segment.isSegment(name))
+            segments++;
+      }
+      return segments;
+   }
+
+   private File newestSegment() {
+      String newest = null;
+      for (String name : dir.list()) {
+         if (Segment.isSegment(name) && (newest == null || name.compareTo(newest) > 0))
+            newest = name;
+      }
+      return new File(dir, newest);
+   }
+
+   private static void delete(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children)
+            delete(child);
+      }
+      file.delete();
+   }
+}
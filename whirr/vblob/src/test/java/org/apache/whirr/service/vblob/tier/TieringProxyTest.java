@@ -0,0 +1,486 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.vblob.tier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.whirr.service.vblob.s3.HttpForwarding;
+import org.apache.whirr.service.vblob.s3.S3Signatures;
+import org.apache.whirr.service.vblob.tier.TierCatalog.State;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TieringProxyTest {
+   private static final String KEY = "MvndHwA4e6dgaGV23L94";
+   private static final String SECRET = "A50GS9tj2DLXRln4rf1K+A/CSjmAbBGw0H5yul6s";
+
+   private File dir;
+   private FakeS3 vBlob;
+   private FakeS3 remote;
+   private TierCatalog catalog;
+   private ExecutorService uploads;
+   private WriteBehind writeBehind;
+   private HttpServer proxy;
+   private S3Endpoint client;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = File.createTempFile("tier", "");
+      dir.delete();
+      vBlob = new FakeS3("vblob-key", "vblob-secret");
+      remote = new FakeS3(KEY, SECRET);
+      vBlob.buckets.put("b", new ConcurrentSkipListMap<String, FakeS3.StoredObject>());
+      catalog = TierCatalog.open(dir);
+      uploads = Executors.newFixedThreadPool(2);
+      writeBehind = new WriteBehind(catalog, endpoint(vBlob, "vblob-key", "vblob-secret"), endpoint(remote, KEY,
+            SECRET), "tier", "node1/", uploads, 1, 0);
+      writeBehind.createRemoteBucket();
+      proxy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+      proxy.createContext("/", new TieringProxy(catalog, writeBehind, vBlob.uri(), "vblob-key", "vblob-secret",
+            2000, 5000));
+      proxy.start();
+      client = new S3Endpoint(URI.create("http://127.0.0.1:" + proxy.getAddress().getPort()), "vblob-key",
+            "vblob-secret", 2000, 5000);
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      proxy.stop(0);
+      vBlob.stop();
+      remote.stop();
+      uploads.shutdownNow();
+      catalog.close();
+      for (File file : dir.listFiles())
+         file.delete();
+      dir.delete();
+   }
+
+   @Test
+   public void testWritesAreCopiedToTheRemoteTierInBatches() throws Exception {
+      assertEquals(200, put("b", "a/1", "one"));
+      assertEquals(200, put("b", "a/2", "two"));
+      assertEquals(State.DIRTY, catalog.get("b", "a/1").getState());
+      assertFalse(remote.holds("tier", "node1/b/a/1"));
+
+      assertEquals(2, writeBehind.sync());
+
+      assertEquals("one", remote.body("tier", "node1/b/a/1"));
+      assertEquals("two", remote.body("tier", "node1/b/a/2"));
+      assertEquals("text/plain", remote.buckets.get("tier").get("node1/b/a/1").contentType);
+      assertEquals(State.CLEAN, catalog.get("b", "a/2").getState());
+   }
+
+   @Test
+   public void testColdObjectsAreListedAndWarmedByReads() throws Exception {
+      put("b", "cold", "brr");
+      put("b", "hot", "hello");
+      writeBehind.sync();
+      catalog.read("b", "hot", System.currentTimeMillis() + 60000);
+
+      // the least recently read object frees enough
+      assertEquals(3, writeBehind.evict(1));
+      assertFalse(vBlob.holds("b", "cold"));
+      assertTrue(vBlob.holds("b", "hot"));
+      assertEquals(State.COLD, catalog.get("b", "cold").getState());
+
+      String listing = get("b", null);
+      assertTrue(listing, listing.contains("<Key>cold</Key>"));
+      assertTrue(listing, listing.contains("<Key>hot</Key>"));
+
+      assertEquals("brr", get("b", "cold"));
+      assertTrue(vBlob.holds("b", "cold"));
+      assertEquals(State.CLEAN, catalog.get("b", "cold").getState());
+   }
+
+   @Test
+   public void testDeletesReachTheRemoteTier() throws Exception {
+      put("b", "k", "v");
+      writeBehind.sync();
+      writeBehind.evict(Long.MAX_VALUE);
+      assertEquals(409, status(client.open("DELETE", "b", null)));
+
+      assertEquals(204, status(client.open("DELETE", "b", "k")));
+      assertTrue(remote.holds("tier", "node1/b/k"));
+      writeBehind.sync();
+
+      assertFalse(remote.holds("tier", "node1/b/k"));
+      assertNull(catalog.get("b", "k"));
+      assertFalse(get("b", null).contains("<Key>k</Key>"));
+   }
+
+   @Test
+   public void testCompletedMultipartUploadsAreTiered() throws Exception {
+      String uploadId = initiate("b", "big");
+      assertEquals(200, status(upload("PUT", "b", "big", "partNumber=1&uploadId=" + uploadId, "hello ")));
+      assertEquals(200, status(upload("PUT", "b", "big", "partNumber=2&uploadId=" + uploadId, "world")));
+      assertEquals(200, status(upload("POST", "b", "big", "uploadId=" + uploadId, "<CompleteMultipartUpload/>")));
+      assertEquals(State.DIRTY, catalog.get("b", "big").getState());
+      assertEquals(11, catalog.get("b", "big").getSize());
+
+      assertEquals(1, writeBehind.sync());
+      assertEquals("hello world", remote.body("tier", "node1/b/big"));
+      assertEquals(11, writeBehind.evict(1));
+      assertFalse(vBlob.holds("b", "big"));
+
+      assertEquals("hello world", get("b", "big"));
+      assertEquals(State.CLEAN, catalog.get("b", "big").getState());
+      // the copy back is known by the same ETag, so it can be evicted again
+      assertEquals(11, writeBehind.evict(1));
+   }
+
+   @Test
+   public void testColdObjectsAreWarmedForCopiesAndQueriedReads() throws Exception {
+      put("b", "k", "v");
+      writeBehind.sync();
+      writeBehind.evict(Long.MAX_VALUE);
+
+      HttpURLConnection copy = client.open("PUT", "b", "copy", null, Collections.singletonMap("x-amz-copy-source",
+            Arrays.asList("/b/k")));
+      HttpForwarding.sendBody(copy, new ByteArrayInputStream(new byte[0]), 0);
+      assertEquals(200, status(copy));
+      assertEquals("v", vBlob.body("b", "copy"));
+
+      writeBehind.sync();
+      writeBehind.evict(Long.MAX_VALUE);
+      assertFalse(vBlob.holds("b", "k"));
+      HttpURLConnection read = client.open("GET", "b", "k", "response-content-type=text%2Fplain", Collections
+            .<String, List<String>> emptyMap());
+      assertEquals(200, status(read));
+      assertTrue(vBlob.holds("b", "k"));
+   }
+
+   @Test
+   public void testScanFindsObjectsWrittenAroundTheProxy() throws Exception {
+      vBlob.store("b", "early", "bird");
+      assertEquals(1, writeBehind.scan());
+      assertEquals(0, writeBehind.scan());
+      writeBehind.sync();
+      assertEquals("bird", remote.body("tier", "node1/b/early"));
+   }
+
+   @Test
+   public void testCatalogOutlivesRestarts() throws Exception {
+      put("b", "k", "v");
+      writeBehind.sync();
+      writeBehind.evict(Long.MAX_VALUE);
+      catalog.close();
+
+      TierCatalog reopened = TierCatalog.open(dir);
+      try {
+         assertEquals(State.COLD, reopened.get("b", "k").getState());
+         assertTrue(reopened.hasCold("b"));
+      } finally {
+         reopened.close();
+      }
+   }
+
+   private int put(String bucket, String key, String body) throws IOException {
+      HttpURLConnection connection = client.open("PUT", bucket, key, null, Collections.singletonMap(
+            "Content-Type", Arrays.asList("text/plain")));
+      HttpForwarding.sendBody(connection, new ByteArrayInputStream(body.getBytes("UTF-8")), body.length());
+      return status(connection);
+   }
+
+   private String initiate(String bucket, String key) throws IOException {
+      HttpURLConnection connection = upload("POST", bucket, key, "uploads", "");
+      String body = new String(HttpForwarding.readFully(connection.getInputStream()), "UTF-8");
+      return body.substring(body.indexOf("<UploadId>") + 10, body.indexOf("</UploadId>"));
+   }
+
+   private HttpURLConnection upload(String method, String bucket, String key, String query, String body)
+         throws IOException {
+      // signed, as HttpURLConnection would otherwise add a form content type to POSTs
+      HttpURLConnection connection = client.open(method, bucket, key, query, Collections.singletonMap(
+            "Content-Type", Arrays.asList("application/xml")));
+      HttpForwarding.sendBody(connection, new ByteArrayInputStream(body.getBytes("UTF-8")), body.length());
+      return connection;
+   }
+
+   private String get(String bucket, String key) throws IOException {
+      HttpURLConnection connection = client.open("GET", bucket, key);
+      assertEquals(200, connection.getResponseCode());
+      return new String(HttpForwarding.readFully(connection.getInputStream()), "UTF-8");
+   }
+
+   private static int status(HttpURLConnection connection) throws IOException {
+      int status = connection.getResponseCode();
+      HttpForwarding.drain(HttpForwarding.responseBody(connection));
+      return status;
+   }
+
+   private static S3Endpoint endpoint(FakeS3 s3, String accessKey, String secretKey) {
+      return new S3Endpoint(s3.uri(), accessKey, secretKey, 2000, 5000);
+   }
+
+   /**
+    * An S3 stand-in holding objects in memory, which checks signatures and
+    * Content-MD5 as S3 does.
+    */
+   static class FakeS3 implements HttpHandler {
+      static class StoredObject {
+         final byte[] body;
+         final String eTag;
+         final String contentType;
+         final Map<String, String> metadata = new TreeMap<String, String>();
+
+         StoredObject(byte[] body, String contentType) throws Exception {
+            this(body, md5(body), contentType);
+         }
+
+         StoredObject(byte[] body, String eTag, String contentType) {
+            this.body = body;
+            this.eTag = eTag;
+            this.contentType = contentType;
+         }
+      }
+
+      final Map<String, SortedMap<String, StoredObject>> buckets = new ConcurrentSkipListMap<String, SortedMap<String, StoredObject>>();
+      final Map<String, SortedMap<Integer, StoredObject>> uploads = new ConcurrentSkipListMap<String, SortedMap<Integer, StoredObject>>();
+      private final HttpServer server;
+      private final ExecutorService threads = Executors.newCachedThreadPool();
+      private final String accessKey;
+      private final String secretKey;
+
+      FakeS3(String accessKey, String secretKey) throws IOException {
+         this.accessKey = accessKey;
+         this.secretKey = secretKey;
+         server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+         server.createContext("/", this);
+         server.setExecutor(threads);
+         server.start();
+      }
+
+      void stop() {
+         server.stop(0);
+         threads.shutdownNow();
+      }
+
+      URI uri() {
+         return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+      }
+
+      boolean holds(String bucket, String key) {
+         return buckets.containsKey(bucket) && buckets.get(bucket).containsKey(key);
+      }
+
+      String body(String bucket, String key) throws IOException {
+         return new String(buckets.get(bucket).get(key).body, "UTF-8");
+      }
+
+      void store(String bucket, String key, String body) throws Exception {
+         buckets.get(bucket).put(key, new StoredObject(body.getBytes("UTF-8"), "text/plain"));
+      }
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+         try {
+            serve(exchange);
+         } catch (Exception e) {
+            HttpForwarding.error(exchange, 500, "InternalError", e.toString());
+         }
+      }
+
+      private void serve(HttpExchange exchange) throws Exception {
+         String method = exchange.getRequestMethod();
+         URI uri = exchange.getRequestURI();
+         if (!S3Signatures.verify(accessKey, secretKey, exchange.getRequestHeaders().getFirst("Authorization"),
+               S3Signatures.stringToSign(method, exchange.getRequestHeaders(), uri.getRawPath(), uri.getRawQuery()))) {
+            HttpForwarding.error(exchange, 403, "SignatureDoesNotMatch", "bad signature");
+            return;
+         }
+         String path = uri.getRawPath().substring(1);
+         int slash = path.indexOf('/');
+         String bucket = URLDecoder.decode(slash == -1 ? path : path.substring(0, slash), "UTF-8");
+         String key = slash == -1 || slash == path.length() - 1 ? null : URLDecoder.decode(path
+               .substring(slash + 1), "UTF-8");
+         byte[] body = HttpForwarding.readFully(exchange.getRequestBody());
+
+         if (bucket.isEmpty()) {
+            StringBuilder xml = new StringBuilder("<ListAllMyBucketsResult><Buckets>");
+            for (String name : buckets.keySet())
+               xml.append("<Bucket><Name>").append(name).append("</Name></Bucket>");
+            HttpForwarding.respond(exchange, 200, "application/xml", xml.append("</Buckets></ListAllMyBucketsResult>")
+                  .toString().getBytes("UTF-8"));
+            return;
+         }
+         SortedMap<String, StoredObject> objects = buckets.get(bucket);
+         if (key == null) {
+            if ("PUT".equals(method)) {
+               if (objects == null)
+                  buckets.put(bucket, new ConcurrentSkipListMap<String, StoredObject>());
+               HttpForwarding.respond(exchange, 200, null, new byte[0]);
+            } else if ("DELETE".equals(method)) {
+               buckets.remove(bucket);
+               HttpForwarding.respond(exchange, 204, null, new byte[0]);
+            } else {
+               list(exchange, bucket, objects);
+            }
+            return;
+         }
+         if (objects == null) {
+            HttpForwarding.error(exchange, 404, "NoSuchBucket", bucket);
+            return;
+         }
+         String query = uri.getRawQuery();
+         if (query != null && !"GET".equals(method) && !"HEAD".equals(method)) {
+            multipart(exchange, objects, key, query, body);
+            return;
+         }
+         if ("PUT".equals(method)) {
+            String md5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+            String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+            StoredObject object = new StoredObject(body, exchange.getRequestHeaders().getFirst("Content-Type"));
+            if (copySource != null) {
+               String[] source = URLDecoder.decode(copySource, "UTF-8").substring(1).split("/", 2);
+               StoredObject copied = buckets.get(source[0]).get(source[1]);
+               if (copied == null) {
+                  HttpForwarding.error(exchange, 404, "NoSuchKey", copySource);
+                  return;
+               }
+               object = new StoredObject(copied.body, copied.eTag, copied.contentType);
+               object.metadata.putAll(copied.metadata);
+            } else if (md5 != null && !DatatypeConverter.printHexBinary(DatatypeConverter.parseBase64Binary(md5))
+                  .equalsIgnoreCase(object.eTag)) {
+               HttpForwarding.error(exchange, 400, "BadDigest", key);
+               return;
+            } else {
+               for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                  if (header.getKey().toLowerCase().startsWith("x-amz-meta-"))
+                     object.metadata.put(header.getKey().toLowerCase(), header.getValue().get(0));
+               }
+            }
+            objects.put(key, object);
+            exchange.getResponseHeaders().set("ETag", "\"" + object.eTag + "\"");
+            HttpForwarding.respond(exchange, 200, null, new byte[0]);
+            return;
+         }
+         if ("DELETE".equals(method)) {
+            objects.remove(key);
+            HttpForwarding.respond(exchange, 204, null, new byte[0]);
+            return;
+         }
+         StoredObject object = objects.get(key);
+         if (object == null) {
+            HttpForwarding.error(exchange, 404, "NoSuchKey", key);
+            return;
+         }
+         exchange.getResponseHeaders().set("ETag", "\"" + object.eTag + "\"");
+         for (Map.Entry<String, String> metadata : object.metadata.entrySet())
+            exchange.getResponseHeaders().set(metadata.getKey(), metadata.getValue());
+         HttpForwarding.respond(exchange, 200, object.contentType, object.body);
+      }
+
+      /**
+       * initiates, takes parts of and completes multipart uploads, whose
+       * ETag is the MD5 of the parts' MD5s and their count as S3 makes it
+       */
+      private void multipart(HttpExchange exchange, SortedMap<String, StoredObject> objects, String key,
+            String query, byte[] body) throws Exception {
+         String method = exchange.getRequestMethod();
+         if ("POST".equals(method) && query.equals("uploads")) {
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new ConcurrentSkipListMap<Integer, StoredObject>());
+            HttpForwarding.respond(exchange, 200, "application/xml", ("<InitiateMultipartUploadResult><UploadId>"
+                  + uploadId + "</UploadId></InitiateMultipartUploadResult>").getBytes("UTF-8"));
+            return;
+         }
+         Map<String, String> params = new TreeMap<String, String>();
+         for (String param : query.split("&")) {
+            String[] pair = param.split("=", 2);
+            params.put(pair[0], pair.length == 2 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+         }
+         SortedMap<Integer, StoredObject> parts = uploads.get(params.get("uploadId"));
+         if (parts == null) {
+            HttpForwarding.error(exchange, 404, "NoSuchUpload", params.get("uploadId"));
+            return;
+         }
+         if ("PUT".equals(method)) {
+            StoredObject part = new StoredObject(body, null);
+            parts.put(Integer.parseInt(params.get("partNumber")), part);
+            exchange.getResponseHeaders().set("ETag", "\"" + part.eTag + "\"");
+            HttpForwarding.respond(exchange, 200, null, new byte[0]);
+            return;
+         }
+         ByteArrayOutputStream whole = new ByteArrayOutputStream();
+         ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+         for (StoredObject part : parts.values()) {
+            whole.write(part.body);
+            md5s.write(DatatypeConverter.parseHexBinary(part.eTag));
+         }
+         uploads.remove(params.get("uploadId"));
+         StoredObject object = new StoredObject(whole.toByteArray(), md5(md5s.toByteArray()) + "-" + parts.size(),
+               "binary/octet-stream");
+         objects.put(key, object);
+         HttpForwarding.respond(exchange, 200, "application/xml", ("<CompleteMultipartUploadResult><Key>" + key
+               + "</Key><ETag>&quot;" + object.eTag + "&quot;</ETag></CompleteMultipartUploadResult>")
+               .getBytes("UTF-8"));
+      }
+
+      static String md5(byte[] bytes) throws Exception {
+         return DatatypeConverter.printHexBinary(MessageDigest.getInstance("MD5").digest(bytes)).toLowerCase();
+      }
+
+      /** lists a whole bucket in one page, with no delimiter */
+      private void list(HttpExchange exchange, String bucket, SortedMap<String, StoredObject> objects)
+            throws IOException {
+         if (objects == null) {
+            HttpForwarding.error(exchange, 404, "NoSuchBucket", bucket);
+            return;
+         }
+         StringBuilder xml = new StringBuilder("<ListBucketResult><Name>").append(bucket).append(
+               "</Name><IsTruncated>false</IsTruncated>");
+         for (Map.Entry<String, StoredObject> object : objects.entrySet())
+            xml.append("<Contents><Key>").append(object.getKey()).append("</Key><ETag>&quot;").append(
+                  object.getValue().eTag).append("&quot;</ETag><Size>").append(object.getValue().body.length)
+                  .append("</Size></Contents>");
+         HttpForwarding.respond(exchange, 200, "application/xml", xml.append("</ListBucketResult>").toString()
+               .getBytes("UTF-8"));
+      }
+   }
+}